@@ -30,6 +30,7 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Range;
 import android.util.Size;
@@ -51,23 +52,28 @@ import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
-@UnstableApi public class CameraViewModel extends AndroidViewModel implements SurfaceEncoder.Listener {
+@UnstableApi public class CameraViewModel extends AndroidViewModel {
     /**
      * Connection value indicating that MediaCodec is shutdown and needs to be restarted
      */
@@ -78,13 +84,57 @@ import java.util.concurrent.atomic.AtomicInteger;
      */
     private static final long MEDIA_CODEC_IDLE_MS = 1000L;
     /**
-     * Fragment duration.  Directly impacts video lag.
+     * Fragment (segment) duration, also the key frame interval.
      * Values < 1 second will greatly reduce compressions
      * Values < 0.5 will likely cause jank
      */
     private static final int FRAGMENT_DURATION_US = ONE_US;
 
-    private static final int MAX_CLIENTS = 4;
+    /**
+     * Chunk duration.  Fragments are sent in chunks of this duration, so the video lag is
+     * about one chunk, while the key frame interval (and compression) stays the same.
+     */
+    private static final int CHUNK_DURATION_US = 200_000;
+
+    /**
+     * Viewers are streamed asynchronously, so they do not hold a thread each.  A viewer that can
+     * not keep up just drops fragments, so this only guards against runaway connections.
+     */
+    private static final int MAX_CLIENTS = 32;
+
+    /**
+     * Number of fragments kept for slow clients and the HLS playlist window, about six segments
+     * worth of chunks
+     */
+    private static final int FRAGMENT_CAPACITY = 6 * FRAGMENT_DURATION_US / CHUNK_DURATION_US;
+
+    /**
+     * How far behind the live edge DASH viewers may seek, within the fragment ring
+     */
+    private static final long TIME_SHIFT_BUFFER_DEPTH_US = 4L * FRAGMENT_DURATION_US;
+
+    /**
+     * Bytes of finished segments and parts kept for repeated requests, on top of the ring,
+     * per rendition
+     */
+    private static final long FRAGMENT_CACHE_BYTES = 8L << 20;
+
+    /**
+     * Width divisors of the renditions, the first one is the camera size.  Each rendition is
+     * another camera output, preview plus two encoders is the most outputs every device supports.
+     */
+    private static final int[] LADDER_DIVISORS = {1, 2};
+
+    /**
+     * Key frame interval of the encoders when there are several renditions.  Key frames are then
+     * requested on a shared schedule, this only applies if the requests are missed.
+     */
+    private static final int FALLBACK_I_FRAME_INTERVAL_S = 4 * FRAGMENT_DURATION_US / ONE_US;
+
+    /**
+     * How long a manifest request waits for the renditions to start
+     */
+    private static final long LIVE_WAIT_TIMEOUT_MS = 3000L;
 
     private static final String TAG = CameraViewModel.class.getSimpleName();
 
@@ -112,12 +162,17 @@ import java.util.concurrent.atomic.AtomicInteger;
 
     private final Semaphore streamSemaphore = new Semaphore(0);
 
+    /**
+     * Encoded frame buffers, kept across encoder restarts
+     */
+    private final DirectBufferPool bufferPool = new DirectBufferPool();
+
     private final CameraDevice.StateCallback cameraStateCallback = new CameraDevice.StateCallback() {
         @Override
         public void onOpened(@NonNull CameraDevice camera) {
             cameraDevice = camera;
             if (surfaceHolder != null) {
-                configureCamera(cameraDevice, surfaceHolder, null);
+                configureCamera(cameraDevice, surfaceHolder, Collections.emptyList());
             }
         }
 
@@ -183,16 +238,44 @@ import java.util.concurrent.atomic.AtomicInteger;
     final Runnable idleCheck = new Runnable() {
         @Override
         public void run() {
+            // HLS and DASH players hold no permit between requests
+            final long hlsIdleMs = SystemClock.uptimeMillis() - lastHlsRequestMs;
+            if (hlsIdleMs < MEDIA_CODEC_IDLE_MS) {
+                getWorkHandler().postDelayed(this, MEDIA_CODEC_IDLE_MS - hlsIdleMs);
+                return;
+            }
             if (streamSemaphore.availablePermits() == MAX_CLIENTS) {
                 // If we have no clients, initiate a shutdown of MediaCodec/Muxer
                 streamSemaphore.drainPermits();
                 connectionData.postValue(MEDIA_CODEC_SHUTDOWN);
-                if (surfaceEncoder != null) {
-                    surfaceEncoder.shutdown();
+                getWorkHandler().removeCallbacks(syncFrameRequest);
+                for (Rendition rendition : renditions) {
+                    rendition.surfaceEncoder.shutdown();
                 }
             }
         }
     };
+    /**
+     * Asks every encoder for a key frame once a segment duration.  The encoders take the request
+     * independently, so their key frames may still land on different frames, the segments are
+     * numbered by time and checked before they are advertised as aligned, see
+     * {@link LiveRendition#isAligned}.  The requests are scheduled on the uptime clock, so they do
+     * not drift from the segment boundaries.
+     */
+    private final Runnable syncFrameRequest = new Runnable() {
+        @Override
+        public void run() {
+            for (Rendition rendition : renditions) {
+                rendition.surfaceEncoder.requestSyncFrame();
+            }
+            nextSyncFrameMs += FRAGMENT_DURATION_US / 1000;
+            getWorkHandler().postAtTime(this, nextSyncFrameMs);
+        }
+    };
+
+    private final DashManifest dashManifest =
+            new DashManifest(TIME_SHIFT_BUFFER_DEPTH_US, FRAGMENT_DURATION_US);
+
     /**
      * Preferred display size
      */
@@ -213,11 +296,29 @@ import java.util.concurrent.atomic.AtomicInteger;
     private int sensorRotation;
     private Range<Integer> selectedFps;
 
+    /**
+     * Encoder of the first (camera size) rendition
+     */
     @Nullable
     private SurfaceEncoder surfaceEncoder;
 
+    /**
+     * The rendition ladder, from the camera size down
+     */
+    private volatile List<Rendition> renditions = Collections.emptyList();
+
+    private volatile long lastHlsRequestMs;
+
+    /**
+     * Numbers the segments of every rendition from the same origin, replaced whenever the
+     * encoders start, null with a single rendition
+     */
     @Nullable
-    private FragmentServer fragmentServer;
+    private volatile FragmentServer.SegmentClock segmentClock;
+    /**
+     * Uptime of the next key frame request, only touched on the work thread
+     */
+    private long nextSyncFrameMs;
 
     private Server jetty;
 
@@ -279,12 +380,27 @@ import java.util.concurrent.atomic.AtomicInteger;
                             selectedFps = fps[fps.length - 1];
                         }
 
+                        final ArrayList<Size> ladder = new ArrayList<>(LADDER_DIVISORS.length);
+                        for (int divisor : LADDER_DIVISORS) {
+                            final Size size = getLadderSize(sizes, imageSize, divisor);
+                            if (size != null && !ladder.contains(size)) {
+                                ladder.add(size);
+                            }
+                        }
+                        final int iFrameInterval = ladder.size() > 1
+                                ? FALLBACK_I_FRAME_INTERVAL_S : FRAGMENT_DURATION_US / ONE_US;
+                        final ArrayList<Rendition> list = new ArrayList<>(ladder.size());
                         try {
-                            surfaceEncoder = new SurfaceEncoder(imageSize.getWidth(), imageSize.getHeight(), selectedFps.getUpper(),
-                                    FRAGMENT_DURATION_US / ONE_US, this);
+                            for (Size size : ladder) {
+                                list.add(new Rendition(list.size(), size, iFrameInterval));
+                            }
                         } catch (IOException e) {
                             Log.e(TAG, "failed to create SurfaceMuxer", e);
                         }
+                        if (!list.isEmpty()) {
+                            surfaceEncoder = list.get(0).surfaceEncoder;
+                            renditions = list;
+                        }
                         cameraManager.openCamera(id, cameraStateCallback, mainHandler);
                         break;
                     }
@@ -297,6 +413,26 @@ import java.util.concurrent.atomic.AtomicInteger;
         return surfaceEncoder != null;
     }
 
+    /**
+     * Return the largest size with the aspect ratio of the camera size and at most its width
+     * divided by divisor, null if none
+     */
+    @Nullable
+    private static Size getLadderSize(@NonNull Size[] sizes, @NonNull Size imageSize,
+                                      int divisor) {
+        final int maxWidth = imageSize.getWidth() / divisor;
+        Size ladderSize = null;
+        for (Size size : sizes) {
+            if ((long)size.getWidth() * imageSize.getHeight()
+                    == (long)size.getHeight() * imageSize.getWidth()
+                    && size.getWidth() <= maxWidth
+                    && (ladderSize == null || size.getWidth() > ladderSize.getWidth())) {
+                ladderSize = size;
+            }
+        }
+        return ladderSize;
+    }
+
     @NonNull
     @UiThread
     private Handler getWorkHandler() {
@@ -316,7 +452,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
     private void configureCamera(@NonNull CameraDevice cameraDevice,
                                  @NonNull SurfaceHolder surfaceHolder,
-                                 @Nullable Surface codecSurface) {
+                                 @NonNull List<Surface> codecSurfaces) {
         try {
             configureCallback = new CameraCaptureSession.StateCallback() {
                 @Override
@@ -326,7 +462,7 @@ import java.util.concurrent.atomic.AtomicInteger;
                                 .createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
                         builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, selectedFps);
                         builder.addTarget(surfaceHolder.getSurface());
-                        if (codecSurface != null) {
+                        for (Surface codecSurface : codecSurfaces) {
                             builder.addTarget(codecSurface);
                         }
 
@@ -342,11 +478,9 @@ import java.util.concurrent.atomic.AtomicInteger;
                     // TODO: Handle
                 }
             };
-            ArrayList<Surface> surfaceList = new ArrayList<>(2);
+            ArrayList<Surface> surfaceList = new ArrayList<>(1 + codecSurfaces.size());
             surfaceList.add(surfaceHolder.getSurface());
-            if (codecSurface != null) {
-                surfaceList.add(codecSurface);
-            }
+            surfaceList.addAll(codecSurfaces);
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
                 final ArrayList<OutputConfiguration> outputList = new ArrayList<>(surfaceList.size());
                 for (Surface surface : surfaceList) {
@@ -375,7 +509,7 @@ import java.util.concurrent.atomic.AtomicInteger;
         if (this.surfaceHolder != surfaceHolder) {
             this.surfaceHolder = surfaceHolder;
             if (cameraDevice != null && surfaceHolder != null) {
-                configureCamera(cameraDevice, surfaceHolder, null);
+                configureCamera(cameraDevice, surfaceHolder, Collections.emptyList());
             }
         }
     }
@@ -384,37 +518,12 @@ import java.util.concurrent.atomic.AtomicInteger;
     @Override
     protected void onCleared() {
         super.onCleared();
-        if (surfaceEncoder != null) {
-            surfaceEncoder.release();
+        for (Rendition rendition : renditions) {
+            rendition.surfaceEncoder.release();
         }
         connectivityManager.unregisterNetworkCallback(networkCallback);
     }
 
-    @Override
-    public void onShutdown() {
-        if (fragmentServer != null) {
-            fragmentServer.close();
-            fragmentServer = null;
-        }
-    }
-
-    @Override
-    public void onReady(MediaFormat mediaFormat) {
-        fragmentServer = new FragmentServer(mediaFormat, sensorRotation, FRAGMENT_DURATION_US);
-        streamSemaphore.release(4);
-    }
-
-    @Override
-    public void onBuffer(ByteBuffer byteBuffer, @NonNull MediaCodec.BufferInfo info) {
-        if (fragmentServer != null) {
-            try {
-                fragmentServer.onBuffer(byteBuffer, info);
-            } catch (IOException e) {
-                Log.wtf(TAG, "Failed to write buffer", e);
-            }
-        }
-    }
-
     class ServletHandler extends AbstractHandler {
         private final AtomicInteger sequence = new AtomicInteger(0);
         @Override
@@ -428,19 +537,131 @@ import java.util.concurrent.atomic.AtomicInteger;
                 Log.w(TAG, "handle() encoder not ready");
                 return;
             }
+            if (!acquireStream(seq, response)) {
+                return;
+            }
+            baseRequest.setHandled(true);
+
+            if (target.startsWith(HlsHandler.PATH) || target.startsWith(DashManifest.PATH)) {
+                // Each request is short, only hold the permit while the encoder starts
+                streamSemaphore.release();
+                lastHlsRequestMs = SystemClock.uptimeMillis();
+                scheduleIdleCheck();
+                handleLive(target, request, response);
+                return;
+            }
+
+            final FragmentServer fragmentServer = getMainRendition().fragmentServer;
+            if (fragmentServer == null) {
+                // Shut down meanwhile
+                streamSemaphore.release();
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+                return;
+            }
+            response.setHeader("content-type", "video/mp4");
+
+            connectionData.postValue(MAX_CLIENTS - streamSemaphore.availablePermits());
+            // Stream without holding this thread, the fragments are written as they are stored
+            final AsyncContext asyncContext = request.startAsync();
+            asyncContext.setTimeout(0);
+            final StreamWriter streamWriter =
+                    new StreamWriter(seq, asyncContext, fragmentServer.newClient());
+            asyncContext.addListener(streamWriter);
+            response.getOutputStream().setWriteListener(streamWriter);
+        }
 
+        /**
+         * Answer the HLS and DASH requests.  The resources of each rendition are in a directory
+         * named after its index, those of the first rendition are also at the top level.
+         */
+        private void handleLive(String target, HttpServletRequest request,
+                                HttpServletResponse response) throws IOException {
+            final boolean dash = target.startsWith(DashManifest.PATH);
+            String name = target.substring((dash ? DashManifest.PATH : HlsHandler.PATH).length());
+            final List<LiveRendition> liveRenditions = getLiveRenditions();
+            if (liveRenditions.isEmpty()) {
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+                return;
+            }
+            final FragmentServer fragmentServer = liveRenditions.get(0).fragmentServer;
+            if (dash && DashManifest.MANIFEST.equals(name)) {
+                // Wait for the first complete segment, so players do not start on an empty timeline
+                FragmentResponses.respondWhen(request, fragmentServer, LIVE_WAIT_TIMEOUT_MS,
+                        () -> dashManifest.build(getLiveRenditions()) != null, (q, r) -> {
+                            final String manifest = dashManifest.build(getLiveRenditions());
+                            if (manifest == null) {
+                                r.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                            } else {
+                                FragmentResponses.sendText(r, manifest, DashManifest.CONTENT_TYPE);
+                            }
+                        });
+            } else if (!dash && HlsPlaylist.MULTIVARIANT_PLAYLIST.equals(name)) {
+                // Players read it once, so wait a while for every rendition to be verified as
+                // aligned, only the aligned ones are listed
+                final long alignedDeadlineMs =
+                        SystemClock.uptimeMillis() + LIVE_WAIT_TIMEOUT_MS / 2;
+                FragmentResponses.respondWhen(request, fragmentServer, LIVE_WAIT_TIMEOUT_MS,
+                        () -> {
+                            final List<LiveRendition> live = getLiveRenditions();
+                            return live.size() == renditions.size()
+                                    && (LiveRendition.getAligned(live).size() == live.size()
+                                    || SystemClock.uptimeMillis() >= alignedDeadlineMs);
+                        },
+                        (q, r) -> FragmentResponses.sendText(r,
+                                HlsPlaylist.buildMultivariant(getLiveRenditions()),
+                                HlsPlaylist.PLAYLIST_CONTENT_TYPE));
+            } else {
+                LiveRendition liveRendition = liveRenditions.get(0);
+                final int slash = name.indexOf('/');
+                if (slash >= 0) {
+                    final String path = name.substring(0, slash);
+                    liveRendition = null;
+                    for (LiveRendition candidate : liveRenditions) {
+                        if (candidate.path.equals(path)) {
+                            liveRendition = candidate;
+                            break;
+                        }
+                    }
+                    if (liveRendition == null) {
+                        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                        return;
+                    }
+                    name = name.substring(slash + 1);
+                }
+                liveRendition.hlsHandler.handle(name, request, response);
+            }
+        }
+
+        /**
+         * Acquire a stream permit, starting the encoders if needed
+         * @return false if the response has been set instead
+         */
+        private boolean acquireStream(int seq, HttpServletResponse response) {
             if (!streamSemaphore.tryAcquire()) {
-                if (fragmentServer == null) {
-                    switch (surfaceEncoder.getState()) {
+                if (getMainRendition().fragmentServer == null) {
+                    switch (getEncoderState()) {
                         case IDLE -> {
-                            Surface surface = surfaceEncoder.startMediaCodec(workHandler);
-                            configureCamera(cameraDevice, surfaceHolder, surface);
+                            segmentClock = renditions.size() > 1
+                                    ? new FragmentServer.SegmentClock(FRAGMENT_DURATION_US) : null;
+                            final ArrayList<Surface> surfaces = new ArrayList<>(renditions.size());
+                            for (Rendition rendition : renditions) {
+                                surfaces.add(rendition.surfaceEncoder.startMediaCodec(workHandler));
+                            }
+                            configureCamera(cameraDevice, surfaceHolder, surfaces);
+                            if (renditions.size() > 1) {
+                                workHandler.removeCallbacks(syncFrameRequest);
+                                nextSyncFrameMs = SystemClock.uptimeMillis()
+                                        + FRAGMENT_DURATION_US / 1000;
+                                workHandler.postAtTime(syncFrameRequest, nextSyncFrameMs);
+                            }
                         }
                         case STOPPING -> {
                             // Edge case where where a client connects while we are shutting down
                             response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
                             response.setHeader(HttpHeaders.RETRY_AFTER, "1");
-                            return;
+                            return false;
                         }
                     }
                     try {
@@ -449,39 +670,261 @@ import java.util.concurrent.atomic.AtomicInteger;
                         //Log.d(TAG, "handle() Server Started: " + seq);
                     } catch (InterruptedException e) {
                         Log.e(TAG, "handle() Waiting for server start", e);
-                        return;
+                        return false;
                     }
                 } else {
                     Log.e(TAG, "handle() Too many sessions: " + seq);
                     // We are overrun
                     response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
                     response.setHeader(HttpHeaders.RETRY_AFTER, "60");
-                    return;
+                    return false;
                 }
             }
-            response.setHeader("content-type", "video/mp4");
+            return true;
+        }
+    }
 
-            connectionData.postValue(MAX_CLIENTS - streamSemaphore.availablePermits());
-            try (OutputStream out = response.getOutputStream()){
-                out.write(fragmentServer.getHeader().array());
-                ByteBuffer byteBuffer = null;
-                while (true) {
-                    byteBuffer = fragmentServer.getFragment(byteBuffer);
-                    //Log.d(TAG, "Sending " + byteBuffer.remaining());
-                    out.write(byteBuffer.array());
-                    out.flush();
+    @NonNull
+    private Rendition getMainRendition() {
+        return renditions.get(0);
+    }
+
+    /**
+     * State of the encoders, STOPPING until every one has stopped
+     */
+    private SurfaceEncoder.State getEncoderState() {
+        for (Rendition rendition : renditions) {
+            if (rendition.surfaceEncoder.getState() == SurfaceEncoder.State.STOPPING) {
+                return SurfaceEncoder.State.STOPPING;
+            }
+        }
+        return getMainRendition().surfaceEncoder.getState();
+    }
+
+    /**
+     * The renditions being served, in ladder order
+     */
+    @NonNull
+    private List<LiveRendition> getLiveRenditions() {
+        final ArrayList<LiveRendition> list = new ArrayList<>(renditions.size());
+        for (Rendition rendition : renditions) {
+            final LiveRendition liveRendition = rendition.liveRendition;
+            if (liveRendition != null) {
+                list.add(liveRendition);
+            }
+        }
+        return list;
+    }
+
+    private void scheduleIdleCheck() {
+        final Handler workHandler = getWorkHandler();
+        workHandler.removeCallbacks(idleCheck);
+        workHandler.postDelayed(idleCheck, MEDIA_CODEC_IDLE_MS);
+    }
+
+    /**
+     * An encoder of the ladder with its own muxer ({@link FragmentServer}).
+     * The encoder callbacks run on the work thread.
+     */
+    private class Rendition implements SurfaceEncoder.Listener {
+        final int index;
+        final SurfaceEncoder surfaceEncoder;
+        @Nullable
+        volatile FragmentServer fragmentServer;
+        @Nullable
+        volatile LiveRendition liveRendition;
+
+        Rendition(int index, Size size, int iFrameInterval) throws IOException {
+            this.index = index;
+            surfaceEncoder = new SurfaceEncoder(size.getWidth(), size.getHeight(),
+                    selectedFps.getUpper(), iFrameInterval, this);
+        }
+
+        @Override
+        public void onShutdown() {
+            final LiveRendition liveRendition = this.liveRendition;
+            if (liveRendition != null) {
+                final FragmentCache fragmentCache = liveRendition.hlsHandler.getFragmentCache();
+                Log.d(TAG, "onShutdown() " + index + " Fragment cache hits: " +
+                        fragmentCache.getHitCount() + " misses: " + fragmentCache.getMissCount());
+                liveRendition.hlsHandler.release();
+                this.liveRendition = null;
+            }
+            if (fragmentServer != null) {
+                fragmentServer.close();
+                fragmentServer = null;
+                Log.d(TAG, "onShutdown() Buffer pool hits: " + bufferPool.getHitCount() +
+                        " misses: " + bufferPool.getMissCount());
+            }
+        }
+
+        @Override
+        public void onReady(MediaFormat mediaFormat) {
+            final FragmentServer fragmentServer = new FragmentServer(mediaFormat, sensorRotation,
+                    FRAGMENT_DURATION_US, CHUNK_DURATION_US, FRAGMENT_CAPACITY, bufferPool);
+            fragmentServer.setSegmentClock(segmentClock);
+            final HlsHandler hlsHandler = new HlsHandler(
+                    new HlsPlaylist(fragmentServer, FRAGMENT_DURATION_US, CHUNK_DURATION_US),
+                    new FragmentCache(FRAGMENT_CACHE_BYTES));
+            liveRendition = new LiveRendition(Integer.toString(index), mediaFormat,
+                    surfaceEncoder.getBitRate(), fragmentServer, hlsHandler);
+            this.fragmentServer = fragmentServer;
+            // The progressive stream is the first rendition
+            if (index == 0) {
+                streamSemaphore.release(MAX_CLIENTS);
+            }
+        }
+
+        @Override
+        public void onBuffer(ByteBuffer byteBuffer, @NonNull MediaCodec.BufferInfo info) {
+            final FragmentServer fragmentServer = this.fragmentServer;
+            if (fragmentServer != null) {
+                try {
+                    fragmentServer.onBuffer(byteBuffer, info);
+                } catch (IOException | IllegalArgumentException e) {
+                    // The frame is dropped, an exception must not escape the encoder callback
+                    Log.wtf(TAG, "Failed to write buffer", e);
                 }
-            } catch (Exception e) {
-                // Just ignore this, it's normal
-                //Log.d(TAG, "handle() exception", e);
-            } finally {
-                streamSemaphore.release();
-                connectionData.postValue(MAX_CLIENTS - streamSemaphore.availablePermits());
-                final Handler workHandler = getWorkHandler();
-                workHandler.removeCallbacks(idleCheck);
-                workHandler.postDelayed(idleCheck, MEDIA_CODEC_IDLE_MS);
             }
-            Log.d(TAG, "handle() Closed: " + seq);
+        }
+    }
+
+    /**
+     * Streams the fragments to a viewer with non-blocking writes.
+     * Jetty calls {@link #onWritePossible()} once the previous write has completed, and the
+     * {@link FragmentServer} calls {@link #run()} once a new fragment is stored.  Neither waits,
+     * so no thread is held while the viewer is idle.
+     */
+    private class StreamWriter implements WriteListener, AsyncListener, Runnable {
+        private final int seq;
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream out;
+        private final FragmentServer.Client client;
+        private boolean headerSent;
+        /**
+         * The fragment being written, released once all its buffers are written
+         */
+        @Nullable
+        private FragmentServer.Fragment fragment;
+        @Nullable
+        private ByteBuffer[] buffers;
+        private int bufferIndex;
+        private boolean flushed;
+        private boolean finished;
+
+        StreamWriter(int seq, AsyncContext asyncContext, FragmentServer.Client client)
+                throws IOException {
+            this.seq = seq;
+            this.asyncContext = asyncContext;
+            this.client = client;
+            out = asyncContext.getResponse().getOutputStream();
+        }
+
+        @Override
+        public synchronized void onWritePossible() throws IOException {
+            if (finished) {
+                return;
+            }
+            while (out.isReady()) {
+                if (buffers == null || bufferIndex == buffers.length) {
+                    // The output is ready again, so the previous write has completed
+                    releaseFragment();
+                    final FragmentServer.Fragment next;
+                    if (headerSent) {
+                        next = client.pollFragment();
+                        fragment = next;
+                    } else {
+                        next = client.pollHeader();
+                        headerSent = next != null;
+                    }
+                    if (next == null) {
+                        if (!flushed) {
+                            flushed = true;
+                            out.flush();
+                            continue;
+                        }
+                        client.notifyWhenAvailable(this);
+                        return;
+                    }
+                    buffers = next.getBuffers();
+                    bufferIndex = 0;
+                    flushed = false;
+                }
+                FragmentResponses.write(out, buffers[bufferIndex++]);
+            }
+        }
+
+        /**
+         * Called by the {@link FragmentServer} when a fragment may be available, resume writing
+         * on a Jetty thread
+         */
+        @Override
+        public void run() {
+            try {
+                asyncContext.start(() -> {
+                    try {
+                        onWritePossible();
+                    } catch (IOException e) {
+                        onError(e);
+                    }
+                });
+            } catch (IllegalStateException e) {
+                // The response is already complete
+                finish();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            // Just ignore this, it's normal when a viewer leaves
+            //Log.d(TAG, "onError() " + seq, t);
+            finish();
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                // Already complete
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            onError(event.getThrowable());
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            onError(event.getThrowable());
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        private void releaseFragment() {
+            if (fragment != null) {
+                fragment.release();
+                fragment = null;
+            }
+        }
+
+        private synchronized void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            releaseFragment();
+            if (client.getDroppedCount() > 0) {
+                Log.d(TAG, "StreamWriter Client " + seq + " dropped " + client.getDroppedCount());
+            }
+            streamSemaphore.release();
+            connectionData.postValue(MAX_CLIENTS - streamSemaphore.availablePermits());
+            scheduleIdleCheck();
+            Log.d(TAG, "StreamWriter Closed: " + seq);
         }
     }
 }
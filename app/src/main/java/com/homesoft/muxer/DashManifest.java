@@ -0,0 +1,228 @@
+package com.homesoft.muxer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Live DASH manifest (ISO/IEC 23009-1, isoff-live profile) over the fragments of the
+ * {@link LiveRendition}s, one Representation each, under {@link #PATH}.
+ * The media segments are the complete segments of the {@link HlsPlaylist}, which start with a
+ * key frame as the profile requires, so both share the same cacheable resources.
+ * {@code $Number$} is the segment number, listed in a SegmentTimeline with the exact segment
+ * times, runs of equal durations as one repeated S.  The chunked fragments would not start with a key frame, so they are not DASH segments.
+ * The segments of the Representations are only declared aligned once
+ * {@link LiveRendition#isAligned} has checked them.
+ */
+public class DashManifest {
+    public static final String PATH = "/dash/";
+    public static final String MANIFEST = "live.mpd";
+    public static final String CONTENT_TYPE = "application/dash+xml";
+
+    /**
+     * Media time units, the times of the fragments
+     */
+    private static final int TIMESCALE = FragmentServer.ONE_US;
+
+    private static String formatDuration(long us) {
+        return String.format(Locale.US, "PT%.3fS", us / (double)FragmentServer.ONE_US);
+    }
+
+    /**
+     * The complete segments of a rendition within the time shift buffer
+     */
+    private static class Timeline {
+        final LiveRendition rendition;
+        final long firstNumber;
+        /**
+         * Segment start times, then the end of the last segment
+         */
+        final long[] timesUs;
+        final long bandwidth;
+
+        Timeline(LiveRendition rendition, long firstNumber, long[] timesUs, long bandwidth) {
+            this.rendition = rendition;
+            this.firstNumber = firstNumber;
+            this.timesUs = timesUs;
+            this.bandwidth = bandwidth;
+        }
+    }
+
+    private final long timeShiftBufferDepthUs;
+    private final long minimumUpdatePeriodUs;
+
+    /**
+     * @param timeShiftBufferDepthUs how far behind the live edge segments are listed, limited to
+     *                               what the fragment ring holds
+     * @param segmentDurationUs expected segment duration, the key frame interval
+     */
+    public DashManifest(long timeShiftBufferDepthUs, long segmentDurationUs) {
+        this.timeShiftBufferDepthUs = timeShiftBufferDepthUs;
+        minimumUpdatePeriodUs = segmentDurationUs;
+    }
+
+    /**
+     * Build the manifest, null until a rendition has a complete segment.
+     * The presentation times of the renditions are on the same (camera) clock.
+     */
+    @Nullable
+    public String build(@NonNull List<LiveRendition> renditions) {
+        final List<Timeline> timelines = new ArrayList<>(renditions.size());
+        // The rendition that started last anchors the period, the others are offset to it
+        Timeline anchor = null;
+        long maxSegmentDurationUs = 0;
+        for (LiveRendition rendition : renditions) {
+            final Timeline timeline = getTimeline(rendition);
+            if (timeline == null) {
+                continue;
+            }
+            timelines.add(timeline);
+            if (anchor == null || rendition.fragmentServer.getStartTimeUs()
+                    > anchor.rendition.fragmentServer.getStartTimeUs()) {
+                anchor = timeline;
+            }
+            for (int i = 0; i < timeline.timesUs.length - 1; i++) {
+                maxSegmentDurationUs = Math.max(maxSegmentDurationUs,
+                        timeline.timesUs[i + 1] - timeline.timesUs[i]);
+            }
+        }
+        if (anchor == null) {
+            return null;
+        }
+        final long anchorTimeUs = anchor.rendition.fragmentServer.getStartTimeUs();
+        boolean aligned = true;
+        for (Timeline timeline : timelines) {
+            if (timeline != anchor && !LiveRendition.isAligned(anchor.rendition,
+                    timeline.rendition)) {
+                aligned = false;
+                break;
+            }
+        }
+
+        final StringBuilder sb = new StringBuilder(2048);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\"")
+                .append(" profiles=\"urn:mpeg:dash:profile:isoff-live:2011\" type=\"dynamic\"")
+                .append(" availabilityStartTime=\"")
+                .append(Instant.ofEpochMilli(anchor.rendition.fragmentServer.getStartWallClockMs()))
+                .append('"')
+                .append(" publishTime=\"").append(Instant.now()).append('"')
+                .append(" minimumUpdatePeriod=\"").append(formatDuration(minimumUpdatePeriodUs))
+                .append('"')
+                .append(" timeShiftBufferDepth=\"").append(formatDuration(timeShiftBufferDepthUs))
+                .append('"')
+                .append(" maxSegmentDuration=\"").append(formatDuration(maxSegmentDurationUs))
+                .append('"')
+                .append(" minBufferTime=\"").append(formatDuration(maxSegmentDurationUs))
+                .append('"')
+                .append(" suggestedPresentationDelay=\"")
+                .append(formatDuration(2 * maxSegmentDurationUs)).append("\">\n");
+        sb.append("  <Period id=\"0\" start=\"PT0S\">\n");
+        sb.append("    <AdaptationSet id=\"0\" contentType=\"video\" mimeType=\"")
+                .append(FragmentResponses.MP4_CONTENT_TYPE).append('"');
+        if (aligned) {
+            sb.append(" segmentAlignment=\"true\"");
+        }
+        sb.append(" startWithSAP=\"1\">\n");
+        for (Timeline timeline : timelines) {
+            final LiveRendition rendition = timeline.rendition;
+            final long startTimeUs = rendition.fragmentServer.getStartTimeUs();
+            sb.append("      <Representation id=\"").append(rendition.path).append('"');
+            if (rendition.codecs != null) {
+                sb.append(" codecs=\"").append(rendition.codecs).append('"');
+            }
+            sb.append(" bandwidth=\"")
+                    .append(timeline.bandwidth > 0 ? timeline.bandwidth : rendition.bitRate)
+                    .append('"')
+                    .append(" width=\"").append(rendition.width).append("\" height=\"")
+                    .append(rendition.height).append("\">\n");
+            sb.append("        <SegmentTemplate timescale=\"").append(TIMESCALE)
+                    .append("\" presentationTimeOffset=\"").append(anchorTimeUs - startTimeUs)
+                    .append("\" initialization=\"").append(rendition.path).append('/')
+                    .append(HlsPlaylist.INIT)
+                    .append("\" media=\"").append(rendition.path).append('/')
+                    .append(HlsPlaylist.SEGMENT_TEMPLATE)
+                    .append("\" startNumber=\"").append(timeline.firstNumber).append("\">\n");
+            sb.append("          <SegmentTimeline>\n");
+            final long[] timesUs = timeline.timesUs;
+            for (int i = 0; i < timesUs.length - 1; ) {
+                final long durationUs = timesUs[i + 1] - timesUs[i];
+                // A run of equal durations is one S, repeated
+                int repeat = 0;
+                while (i + repeat + 2 < timesUs.length
+                        && timesUs[i + repeat + 2] - timesUs[i + repeat + 1] == durationUs) {
+                    repeat++;
+                }
+                sb.append("            <S");
+                if (i == 0) {
+                    sb.append(" t=\"").append(timesUs[0] - startTimeUs).append('"');
+                }
+                sb.append(" d=\"").append(durationUs).append('"');
+                if (repeat > 0) {
+                    sb.append(" r=\"").append(repeat).append('"');
+                }
+                sb.append("/>\n");
+                i += repeat + 1;
+            }
+            sb.append("          </SegmentTimeline>\n");
+            sb.append("        </SegmentTemplate>\n");
+            sb.append("      </Representation>\n");
+        }
+        sb.append("    </AdaptationSet>\n");
+        sb.append("  </Period>\n");
+        // Viewers sync to this clock rather than their own, which may be off
+        sb.append("  <UTCTiming schemeIdUri=\"urn:mpeg:dash:utc:direct:2014\" value=\"")
+                .append(Instant.now()).append("\"/>\n");
+        sb.append("</MPD>\n");
+        return sb.toString();
+    }
+
+    /**
+     * Return the complete segments within the time shift buffer, null if none
+     */
+    @Nullable
+    private Timeline getTimeline(@NonNull LiveRendition rendition) {
+        final FragmentServer fragmentServer = rendition.fragmentServer;
+        if (fragmentServer.peekHeader() == null || fragmentServer.getStartWallClockMs() == 0) {
+            return null;
+        }
+        final List<FragmentServer.Fragment> fragments = fragmentServer.peekSegments();
+        if (fragments.isEmpty()) {
+            return null;
+        }
+        final FragmentServer.Fragment newest = fragments.get(fragments.size() - 1);
+        // The segments that are complete: the start of each, then the end of the last one
+        int segmentCount = 0;
+        final long[] startsUs = new long[fragments.size()];
+        long bytes = 0;
+        for (FragmentServer.Fragment fragment : fragments) {
+            if (fragment.segmentNumber == newest.segmentNumber) {
+                startsUs[segmentCount] = fragment.timeUs;
+                break;
+            }
+            if (fragment.partIndex == 0) {
+                startsUs[segmentCount++] = fragment.timeUs;
+            }
+            bytes += fragment.getSize();
+        }
+        if (segmentCount == 0) {
+            return null;
+        }
+        final long windowUs = startsUs[segmentCount] - startsUs[0];
+        final long bandwidth = windowUs > 0 ? bytes * 8 * FragmentServer.ONE_US / windowUs : 0;
+        // Trim to the time shift buffer
+        final long liveEdgeUs = startsUs[segmentCount];
+        int first = 0;
+        while (first < segmentCount - 1 && liveEdgeUs - startsUs[first] > timeShiftBufferDepthUs) {
+            first++;
+        }
+        final long[] timesUs = new long[segmentCount - first + 1];
+        System.arraycopy(startsUs, first, timesUs, 0, timesUs.length);
+        return new Timeline(rendition, fragments.get(0).segmentNumber + first, timesUs,
+                bandwidth);
+    }
+}
@@ -0,0 +1,124 @@
+package com.homesoft.muxer;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct {@link ByteBuffer}s in power of two size classes.
+ * Thread safe, buffers are acquired on the encoder thread and released on the server threads
+ * once every client has sent them.
+ */
+public class DirectBufferPool {
+    /**
+     * Smallest size class, 4KiB
+     */
+    private static final int MIN_SHIFT = 12;
+    /**
+     * Largest size class, 16MiB.  Anything bigger is allocated as is and not pooled.
+     */
+    private static final int MAX_SHIFT = 24;
+
+    /**
+     * Default limit on the bytes held idle in the pool
+     */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 32L << 20;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] sizeClasses;
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public DirectBufferPool() {
+        this(DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        sizeClasses = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * @return the size class index for a buffer of size bytes or -1 if too large to pool
+     */
+    private static int getSizeClass(int size) {
+        final int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    /**
+     * Get a direct buffer with position 0 and limit set to size.
+     * The capacity may be larger than size.
+     */
+    @NonNull
+    public ByteBuffer acquire(int size) {
+        final int sizeClass = getSizeClass(size);
+        if (sizeClass < 0) {
+            missCount.incrementAndGet();
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer byteBuffer = sizeClasses[sizeClass].poll();
+        if (byteBuffer == null) {
+            missCount.incrementAndGet();
+            byteBuffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+        } else {
+            hitCount.incrementAndGet();
+            pooledBytes.addAndGet(-byteBuffer.capacity());
+        }
+        byteBuffer.clear();
+        byteBuffer.limit(size);
+        return byteBuffer;
+    }
+
+    /**
+     * Return a buffer to the pool.
+     * Buffers that did not come from a pool (heap, read-only or odd sized) are ignored,
+     * as are buffers beyond the pool limit, so memory stays flat.
+     */
+    public void release(@NonNull ByteBuffer byteBuffer) {
+        if (!byteBuffer.isDirect() || byteBuffer.isReadOnly()) {
+            return;
+        }
+        final int capacity = byteBuffer.capacity();
+        if (Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        final int sizeClass = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+        if (sizeClass < 0 || sizeClass >= sizeClasses.length) {
+            return;
+        }
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        sizeClasses[sizeClass].offer(byteBuffer);
+    }
+
+    /**
+     * Number of {@link #acquire(int)} calls served from the pool
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Number of {@link #acquire(int)} calls that had to allocate
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Bytes currently held idle in the pool
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+}
@@ -0,0 +1,200 @@
+package com.homesoft.muxer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of finished resources (segments, parts and the header), bounded by bytes.
+ * Entries keep references on their fragments, so repeated requests are answered from memory
+ * without touching the muxer, even after the fragments have left the ring.
+ * Thread safe.
+ */
+public class FragmentCache {
+    /**
+     * Default limit on the bytes held by the cache
+     */
+    public static final long DEFAULT_MAX_BYTES = 8L << 20;
+
+    private final long maxBytes;
+    /**
+     * Distinguishes the resources of this cache (encoder run) in the ETags, as the resource names
+     * restart with the encoder
+     */
+    private final String etagPrefix = Long.toHexString(System.currentTimeMillis());
+    // Access ordered, the eldest entry is the least recently used.  Guarded by this.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public FragmentCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public FragmentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return the entry for the resource, retained, or null if not cached.
+     * The caller must {@link Entry#release()} the entry once written.
+     */
+    @Nullable
+    public synchronized Entry get(@NonNull String name) {
+        final Entry entry = entries.get(name);
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        entry.retain();
+        return entry;
+    }
+
+    /**
+     * Cache the retained fragments as the resource, taking over their references.
+     * If the resource was cached meanwhile, the fragments are released and the cached entry is
+     * returned instead.
+     * @return the entry, retained, the caller must {@link Entry#release()} it once written
+     */
+    @NonNull
+    public Entry put(@NonNull String name, @NonNull List<FragmentServer.Fragment> fragments) {
+        final Entry entry = new Entry(etagPrefix + '-' + name, fragments);
+        final List<Entry> evicted = new ArrayList<>();
+        final Entry cached;
+        synchronized (this) {
+            cached = entries.get(name);
+            if (cached == null) {
+                entries.put(name, entry);
+                bytes += entry.length;
+                final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+                // Always keep the new entry, even when larger than the cache
+                while (bytes > maxBytes && entries.size() > 1) {
+                    final Entry eldest = iterator.next().getValue();
+                    iterator.remove();
+                    bytes -= eldest.length;
+                    evicted.add(eldest);
+                }
+                entry.retain();
+            } else {
+                cached.retain();
+            }
+        }
+        // Free outside the lock, the buffers go back to the pool
+        for (Entry e : evicted) {
+            e.release();
+        }
+        if (cached != null) {
+            entry.release();
+            return cached;
+        }
+        return entry;
+    }
+
+    /**
+     * Drop every entry.  Entries being written are freed once released.
+     */
+    public void clear() {
+        final List<Entry> cleared;
+        synchronized (this) {
+            cleared = new ArrayList<>(entries.values());
+            entries.clear();
+            bytes = 0;
+        }
+        for (Entry entry : cleared) {
+            entry.release();
+        }
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * A cached resource: the fragment buffers, their total length and a strong ETag
+     */
+    public static class Entry {
+        /**
+         * Quoted strong ETag, the content of a resource never changes
+         */
+        public final String etag;
+        public final long length;
+        private final List<FragmentServer.Fragment> fragments;
+        private final ByteBuffer[] buffers;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+
+        Entry(@NonNull String tag, @NonNull List<FragmentServer.Fragment> fragments) {
+            etag = '"' + tag + '"';
+            this.fragments = fragments;
+            final List<ByteBuffer> list = new ArrayList<>();
+            long length = 0;
+            for (FragmentServer.Fragment fragment : fragments) {
+                for (ByteBuffer byteBuffer : fragment.getBuffers()) {
+                    length += byteBuffer.remaining();
+                    list.add(byteBuffer);
+                }
+            }
+            this.length = length;
+            buffers = list.toArray(new ByteBuffer[0]);
+        }
+
+        /**
+         * Return new views on the bytes from offset, up to length bytes
+         */
+        @NonNull
+        public ByteBuffer[] getBuffers(long offset, long length) {
+            final List<ByteBuffer> views = new ArrayList<>(buffers.length);
+            for (ByteBuffer byteBuffer : buffers) {
+                final int remaining = byteBuffer.remaining();
+                if (offset >= remaining) {
+                    offset -= remaining;
+                    continue;
+                }
+                if (length <= 0) {
+                    break;
+                }
+                final ByteBuffer view = byteBuffer.duplicate();
+                view.position(view.position() + (int)offset);
+                if (view.remaining() > length) {
+                    view.limit(view.position() + (int)length);
+                }
+                length -= view.remaining();
+                offset = 0;
+                views.add(view);
+            }
+            return views.toArray(new ByteBuffer[0]);
+        }
+
+        private void retain() {
+            refCount.incrementAndGet();
+        }
+
+        /**
+         * Release a reference, the fragments are released with the last one
+         */
+        public void release() {
+            if (refCount.decrementAndGet() == 0) {
+                for (FragmentServer.Fragment fragment : fragments) {
+                    fragment.release();
+                }
+            }
+        }
+    }
+}
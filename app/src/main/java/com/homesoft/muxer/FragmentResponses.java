@@ -0,0 +1,253 @@
+package com.homesoft.muxer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Helpers to answer HTTP requests for the resources of a {@link FragmentServer}
+ */
+public final class FragmentResponses {
+    public static final String MP4_CONTENT_TYPE = "video/mp4";
+
+    /**
+     * Writes a response once it is ready
+     */
+    public interface Responder {
+        void respond(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response)
+                throws IOException;
+    }
+
+    private FragmentResponses() {}
+
+    /**
+     * Write a shared fragment buffer without first copying it.
+     * Jetty's {@link HttpOutput} sends large (sample) buffers straight to the socket.
+     */
+    public static void write(@NonNull ServletOutputStream out, @NonNull ByteBuffer byteBuffer)
+            throws IOException {
+        if (out instanceof HttpOutput) {
+            ((HttpOutput) out).write(byteBuffer);
+        } else {
+            final byte[] bytes = new byte[byteBuffer.remaining()];
+            byteBuffer.get(bytes);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Send a cached resource, honoring If-None-Match, a single byte Range and HEAD.
+     * The entry must stay retained until this returns.
+     */
+    public static void sendEntry(@NonNull HttpServletRequest request,
+                                 @NonNull HttpServletResponse response,
+                                 @NonNull FragmentCache.Entry entry,
+                                 @NonNull String cacheControl) throws IOException {
+        response.setHeader("ETag", entry.etag);
+        response.setHeader("Cache-Control", cacheControl);
+        response.setHeader("Accept-Ranges", "bytes");
+        if (matches(request.getHeader("If-None-Match"), entry.etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        long offset = 0;
+        long length = entry.length;
+        final String range = request.getHeader("Range");
+        final String ifRange = request.getHeader("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(entry.etag))) {
+            final long[] bytes = parseRange(range, entry.length);
+            if (bytes != null && bytes.length == 0) {
+                response.setHeader("Content-Range", "bytes */" + entry.length);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (bytes != null) {
+                offset = bytes[0];
+                length = bytes[1] - bytes[0] + 1;
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range",
+                        "bytes " + bytes[0] + '-' + bytes[1] + '/' + entry.length);
+            }
+        }
+        response.setContentType(MP4_CONTENT_TYPE);
+        response.setContentLengthLong(length);
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+        final ServletOutputStream out = response.getOutputStream();
+        for (ByteBuffer byteBuffer : entry.getBuffers(offset, length)) {
+            write(out, byteBuffer);
+        }
+        // The buffers must be sent before they are released
+        out.flush();
+    }
+
+    /**
+     * Whether an If-None-Match header matches the ETag, with the weak comparison it calls for
+     */
+    static boolean matches(@Nullable String ifNoneMatch, @NonNull String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a Range header with a single byte range (RFC 9110)
+     * @return the first and last byte, an empty array if not satisfiable or null to send the
+     * whole resource (missing, malformed or multiple ranges)
+     */
+    @Nullable
+    static long[] parseRange(@NonNull String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = range.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            final long first;
+            final long last;
+            if (dash == 0) {
+                // Suffix range, the last n bytes
+                final long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0 || length == 0) {
+                    return new long[0];
+                }
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? length - 1
+                        : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+                if (first < 0 || last < first) {
+                    return first >= length ? new long[0] : null;
+                }
+            }
+            return first >= length ? new long[0] : new long[]{first, last};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static void sendText(@NonNull HttpServletResponse response, @NonNull String text,
+                                @NonNull String contentType) throws IOException {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        response.setContentType(contentType);
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentLength(bytes.length);
+        response.getOutputStream().write(bytes);
+    }
+
+    /**
+     * Answer a request once {@code ready} holds or the server is closed, checked again each time
+     * a fragment is stored.  No thread is held while waiting, the request is answered with
+     * {@link HttpServletResponse#SC_SERVICE_UNAVAILABLE} if it times out.
+     */
+    public static void respondWhen(@NonNull HttpServletRequest request,
+                                   @NonNull FragmentServer fragmentServer, long timeoutMs,
+                                   @NonNull BooleanSupplier ready,
+                                   @NonNull Responder responder) {
+        final AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(timeoutMs);
+        final PendingResponse pendingResponse =
+                new PendingResponse(asyncContext, fragmentServer, ready, responder);
+        asyncContext.addListener(pendingResponse);
+        pendingResponse.run();
+    }
+
+    private static class PendingResponse implements Runnable, AsyncListener {
+        private final AsyncContext asyncContext;
+        private final FragmentServer fragmentServer;
+        private final BooleanSupplier ready;
+        private final Responder responder;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        PendingResponse(AsyncContext asyncContext, FragmentServer fragmentServer,
+                        BooleanSupplier ready, Responder responder) {
+            this.asyncContext = asyncContext;
+            this.fragmentServer = fragmentServer;
+            this.ready = ready;
+            this.responder = responder;
+        }
+
+        /**
+         * Check again on a Jetty thread
+         */
+        @Override
+        public void run() {
+            try {
+                asyncContext.start(this::check);
+            } catch (IllegalStateException e) {
+                // Already timed out
+            }
+        }
+
+        private void check() {
+            if (done.get()) {
+                return;
+            }
+            if (!fragmentServer.isClosed() && !ready.getAsBoolean()) {
+                fragmentServer.notifyWhenStored(fragmentServer.getNewestSequence() + 1, this);
+                return;
+            }
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                responder.respond((HttpServletRequest) asyncContext.getRequest(),
+                        (HttpServletResponse) asyncContext.getResponse());
+            } catch (IOException e) {
+                // Just ignore this, the client has left
+            } finally {
+                asyncContext.complete();
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            if (done.compareAndSet(false, true)) {
+                ((HttpServletResponse) asyncContext.getResponse())
+                        .setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                asyncContext.complete();
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
@@ -7,9 +7,11 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.OptIn;
+import androidx.annotation.VisibleForTesting;
 import androidx.media3.common.Format;
 import androidx.media3.common.MimeTypes;
 import androidx.media3.common.util.UnstableApi;
+import androidx.media3.muxer.InPlaceAnnexBToAvccConverter;
 import androidx.media3.muxer.Mp4Muxer;
 
 import java.io.IOException;
@@ -17,13 +19,30 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.GatheringByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import kotlin.NotImplementedError;
 
 /**
  * Mp4 Fragment Server
- * Holds the stream header(ftyp+moov) and the latest movie fragment (moof)
+ * Holds the stream header(ftyp+moov) and a ring of the most recent movie fragments (moof+mdat).
+ * In chunked mode a fragment may not start with a key frame, new viewers start at the newest
+ * one that does.
+ * Each viewer reads through its own {@link Client} cursor, so a slow viewer can catch up
+ * without holding up the others.  A viewer can either block for the next fragment, or poll for it
+ * and be called back once it is stored, so it does not need a thread of its own.
+ * Fragments can also be looked up by sequence, and carry their segment number (counting key frame
+ * fragments, or from their time with a {@link SegmentClock}) and timing, so they can be served as
+ * numbered resources, see {@link HlsPlaylist}.
+ * Fragments keep the buffers handed over by the muxer as is, they are shared read-only by all
+ * viewers rather than copied.  Sample buffers come from a {@link DirectBufferPool} and go back to
+ * it once the fragment has left the ring and every viewer has sent it.
  */
 public class FragmentServer implements GatheringByteChannel {
     /**
@@ -31,6 +50,11 @@ public class FragmentServer implements GatheringByteChannel {
      */
     public static final int ONE_US = 1_000_000;
 
+    /**
+     * Default number of fragments retained for slow or late-joining clients
+     */
+    public static final int DEFAULT_FRAGMENT_CAPACITY = 8;
+
     @OptIn(markerClass = UnstableApi.class)
     public static Format getFormat(MediaFormat mediaFormat) {
         final String mimeType = mediaFormat.getString(MediaFormat.KEY_MIME);
@@ -65,33 +89,139 @@ public class FragmentServer implements GatheringByteChannel {
     }
 
     private static final String TAG = FragmentServer.class.getSimpleName();
-
     private final Mp4Muxer mp4Muxer;
     private final Mp4Muxer.TrackToken trackToken;
+    private final DirectBufferPool bufferPool;
 
-    ByteBuffer header;
-    ByteBuffer lastMoof;
-    private boolean open = true;
+    private final AtomicReferenceArray<Fragment> fragments;
+    /**
+     * Clients parked waiting for the next fragment
+     */
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<>();
+    /**
+     * One-shot callbacks of clients polling for the next fragment
+     */
+    private final ConcurrentLinkedQueue<Runnable> callbacks = new ConcurrentLinkedQueue<>();
+
+    private volatile Fragment header;
+    /**
+     * Sequence of the newest fragment in the ring, -1 if none
+     */
+    private volatile long newestSequence = -1;
+    /**
+     * Sequence of the newest fragment that starts with a key frame, -1 if none
+     */
+    private volatile long keyFrameSequence = -1;
+    private volatile boolean open = true;
+    /**
+     * Presentation time of the first fragment, the media time origin of the muxer
+     */
+    private volatile long startTimeUs;
+    /**
+     * Wall clock time of {@link #startTimeUs}, 0 until the first fragment is stored
+     */
+    private volatile long startWallClockMs;
+
+    // Only touched on the encoder thread
+    private boolean fragmentStart = true;
+    private boolean fragmentKeyFrame;
+    private long fragmentTimeUs;
+    /**
+     * Presentation time of the sample being written, which follows a fragment the muxer flushes
+     */
+    private long sampleTimeUs;
+    private long segmentNumber = -1;
+    private int partIndex;
+    /**
+     * Views and pooled copies of a fragment whose mdat is still being written, see
+     * {@link #write(ByteBuffer)}
+     */
+    private final List<ByteBuffer> pendingBuffers = new ArrayList<>();
+    private final List<ByteBuffer> pendingSources = new ArrayList<>();
+    /**
+     * Bytes of the pending fragment still to be written
+     */
+    private long pendingBytes;
+    @Nullable
+    private SegmentClock segmentClock;
 
     public FragmentServer(MediaFormat mediaFormat, int rotation, int fragmentUs) {
+        this(mediaFormat, rotation, fragmentUs, 0, DEFAULT_FRAGMENT_CAPACITY,
+                new DirectBufferPool());
+    }
+
+    /**
+     * @param fragmentUs minimum duration of a segment, which starts on a key frame
+     * @param chunkUs if > 0, each segment is stored as fragments (chunks) of about this duration,
+     *                so viewers get frames without waiting for the next key frame
+     */
+    @OptIn(markerClass = UnstableApi.class)
+    public FragmentServer(MediaFormat mediaFormat, int rotation, int fragmentUs, int chunkUs,
+                          int fragmentCapacity, DirectBufferPool bufferPool) {
+        fragments = new AtomicReferenceArray<>(fragmentCapacity);
+        this.bufferPool = bufferPool;
         int fragmentDurationUs = fragmentUs >= ONE_US ? (fragmentUs - ONE_US / 4) : fragmentUs;
-        mp4Muxer = new Mp4Muxer.Builder(this)
+        final Mp4Muxer.Builder builder = new Mp4Muxer.Builder(this)
+                .setAnnexBToAvccConverter(new InPlaceAnnexBToAvccConverter())
                 .setFragmentedMp4Enabled(true)
-                .setFragmentDurationUs(fragmentDurationUs)
-                .build();
+                .setFragmentDurationUs(fragmentDurationUs);
+        if (chunkUs > 0) {
+            builder.setChunkDurationUs(chunkUs);
+        }
+        mp4Muxer = builder.build();
         final Format format = getFormat(mediaFormat);
         mp4Muxer.setOrientation(rotation);
 
         trackToken = mp4Muxer.addTrack(0, format);
     }
 
+    /**
+     * A server without a muxer, the header is written as usual and the fragments are stored
+     * with {@link #storeFragment} rather than muxed from samples
+     */
+    @VisibleForTesting
+    FragmentServer(int fragmentCapacity) {
+        fragments = new AtomicReferenceArray<>(fragmentCapacity);
+        bufferPool = new DirectBufferPool();
+        mp4Muxer = null;
+        trackToken = null;
+    }
+
+    /**
+     * Number the segments from their presentation time on the clock, rather than counting them.
+     * Set before the first buffer.
+     */
+    public void setSegmentClock(@Nullable SegmentClock segmentClock) {
+        this.segmentClock = segmentClock;
+    }
+
+    /**
+     * Mux a sample.  If the muxer fails the sample is dropped and the exception thrown.
+     * @throws IllegalArgumentException if the muxer rejects a sample
+     */
     public void onBuffer(ByteBuffer byteBuffer, @NonNull MediaCodec.BufferInfo info) throws IOException {
         byteBuffer.limit(info.offset + info.size);
         byteBuffer.position(info.offset);
-        ByteBuffer copy = ByteBuffer.allocateDirect(byteBuffer.remaining());
+        // Room for the in place Annex-B conversion to grow 3-byte start codes to length prefixes
+        ByteBuffer copy = bufferPool.acquire(byteBuffer.remaining()
+                + InPlaceAnnexBToAvccConverter.getMaxSizeIncrease(byteBuffer));
         copy.put(byteBuffer);
         copy.flip();
-        mp4Muxer.writeSampleData(trackToken, copy, info);
+        final boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        sampleTimeUs = info.presentationTimeUs;
+        try {
+            mp4Muxer.writeSampleData(trackToken, copy, info);
+        } catch (IOException | IllegalArgumentException e) {
+            // The muxer fails while flushing the pending samples, before it takes this one
+            bufferPool.release(copy);
+            throw e;
+        }
+        // If the muxer just flushed a fragment, this sample starts the next one
+        if (fragmentStart) {
+            fragmentStart = false;
+            fragmentKeyFrame = keyFrame;
+            fragmentTimeUs = info.presentationTimeUs;
+        }
     }
 
     @Override
@@ -101,7 +231,10 @@ public class FragmentServer implements GatheringByteChannel {
 
     /**
      * This is a little hacky, the FragmentedMp4Writer always writes data in chunks
-     * The first chuck is the ftyp+moov and all subsequent chunks are moof.
+     * The first chuck is the ftyp+moov and all subsequent chunks are moof+mdat.
+     * The buffers are retained (not copied), the muxer does not reuse them once written.
+     * If the mdat is cut short (samples spilled to a file), the rest follows through
+     * {@link #write(ByteBuffer)} and the fragment is stored once complete.
      * @param srcs
      *         The buffers from which bytes are to be retrieved
      *
@@ -109,34 +242,128 @@ public class FragmentServer implements GatheringByteChannel {
      */
     @Override
     public long write(ByteBuffer[] srcs) throws ClosedChannelException {
-        if (!isOpen()) {
-            throw new ClosedChannelException();
+        checkClosed();
+        long bytes = 0;
+        final ByteBuffer[] sources = srcs.clone();
+        final ByteBuffer[] buffers = new ByteBuffer[srcs.length];
+        for (int i = 0; i < srcs.length; i++) {
+            final ByteBuffer src = srcs[i];
+            bytes += src.remaining();
+            buffers[i] = src.asReadOnlyBuffer();
+            // Honor the channel contract, the bytes have been consumed
+            src.position(src.limit());
         }
-        int bytes = 0;
-        for (ByteBuffer byteBuffer : srcs) {
-            bytes += byteBuffer.remaining();
-        }
-        ByteBuffer out = ByteBuffer.allocate(bytes);
-        for (ByteBuffer byteBuffer : srcs) {
-            out.put(byteBuffer);
-        }
-        out.flip();
-        synchronized (this) {
-            if (header == null) {
-                header = out;
-                //Log.d(TAG, "Stored moov: " + header);
+        if (header == null) {
+            header = new Fragment(-1, buffers, true, null);
+            //Log.d(TAG, "Stored moov: " + header);
+            wakeWaiters();
+        } else {
+            pendingBytes = getBoxesSize(buffers) - bytes;
+            if (pendingBytes > 0) {
+                pendingBuffers.addAll(Arrays.asList(buffers));
+                pendingSources.addAll(Arrays.asList(sources));
             } else {
-                lastMoof = out;
-                //Log.d(TAG, "Stored moof" + lastMoof);
+                storeFragment(buffers, sources);
             }
-            notifyAll();
         }
         return bytes;
     }
 
+    /**
+     * Take the rest of the mdat of a fragment whose samples were spilled to a file.
+     * The source is reused by the muxer, so it is copied.
+     */
     @Override
-    public int write(ByteBuffer src) {
-        throw new NotImplementedError();
+    public int write(ByteBuffer src) throws ClosedChannelException {
+        checkClosed();
+        final int bytes = src.remaining();
+        if (bytes > pendingBytes) {
+            throw new IllegalStateException("Not within a fragment: " + bytes + " > "
+                    + pendingBytes);
+        }
+        final ByteBuffer copy = bufferPool.acquire(bytes);
+        copy.put(src);
+        copy.flip();
+        pendingBuffers.add(copy.asReadOnlyBuffer());
+        pendingSources.add(copy);
+        pendingBytes -= bytes;
+        if (pendingBytes == 0) {
+            final ByteBuffer[] buffers = pendingBuffers.toArray(new ByteBuffer[0]);
+            final ByteBuffer[] sources = pendingSources.toArray(new ByteBuffer[0]);
+            pendingBuffers.clear();
+            pendingSources.clear();
+            storeFragment(buffers, sources);
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the size of the boxes starting in the buffers, from their headers, which are each
+     * within a buffer.  For a fragment that is moof+mdat.
+     */
+    static long getBoxesSize(@NonNull ByteBuffer[] buffers) {
+        long size = 0;
+        // Offset of the current buffer
+        long offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            while (size + 8 <= offset + buffer.remaining()) {
+                final long boxSize = buffer.getInt(buffer.position() + (int)(size - offset))
+                        & 0xffffffffL;
+                if (boxSize < 8) {
+                    throw new IllegalStateException("Unsupported box size: " + boxSize);
+                }
+                size += boxSize;
+            }
+            offset += buffer.remaining();
+        }
+        return size;
+    }
+
+    private void storeFragment(@NonNull ByteBuffer[] buffers, @NonNull ByteBuffer[] sources) {
+        // The muxer flushes a fragment when the sample that follows it is written
+        final long durationUs = sampleTimeUs > fragmentTimeUs ? sampleTimeUs - fragmentTimeUs : 0;
+        storeFragment(buffers, fragmentKeyFrame, fragmentTimeUs, durationUs,
+                new PooledBuffers(sources, bufferPool));
+        fragmentStart = true;
+        //Log.d(TAG, "Stored moof");
+    }
+
+    /**
+     * Store a fragment (moof+mdat) in the ring, numbering its segment and part, and wake the
+     * viewers.  Called on the encoder thread.
+     * @param onFreed run once the fragment has left the ring and every viewer has released it
+     */
+    @VisibleForTesting
+    void storeFragment(@NonNull ByteBuffer[] buffers, boolean keyFrame, long timeUs,
+                       long durationUs, @Nullable Runnable onFreed) {
+        final long sequence = newestSequence + 1;
+        long number = segmentNumber;
+        if (keyFrame || segmentNumber < 0) {
+            number = segmentClock == null ? segmentNumber + 1
+                    : Math.max(0, segmentClock.getSegmentNumber(timeUs));
+        }
+        // An extra key frame, within the current segment on the clock, starts a part
+        if (number > segmentNumber) {
+            segmentNumber = number;
+            partIndex = 0;
+        } else {
+            partIndex++;
+        }
+        final Fragment old = fragments.getAndSet(getIndex(sequence),
+                new Fragment(sequence, buffers, keyFrame, segmentNumber, partIndex, timeUs,
+                        durationUs, onFreed));
+        if (old != null) {
+            old.release();
+        }
+        if (keyFrame) {
+            keyFrameSequence = sequence;
+        }
+        if (sequence == 0) {
+            startTimeUs = timeUs;
+            startWallClockMs = System.currentTimeMillis() - durationUs / 1000;
+        }
+        newestSequence = sequence;
+        wakeWaiters();
     }
 
     @Override
@@ -151,28 +378,436 @@ public class FragmentServer implements GatheringByteChannel {
     }
 
     @Override
-    public synchronized void close() {
+    public void close() {
         open = false;
-        notifyAll();
+        wakeWaiters();
+        for (int i = 0; i < fragments.length(); i++) {
+            final Fragment fragment = fragments.getAndSet(i, null);
+            if (fragment != null) {
+                fragment.release();
+            }
+        }
     }
 
     /**
-     * Return the common MP4 header (ftyp + moov)
+     * Create a cursor for a new viewer.
+     * The first fragment returned will be the newest one that starts with a key frame.
      */
-    public synchronized ByteBuffer getHeader() throws ClosedChannelException, InterruptedException {
-        if (header == null) {
-            wait();
-            checkClosed();
+    public Client newClient() {
+        return new Client();
+    }
+
+    /**
+     * Sequence of the newest fragment, -1 if none
+     */
+    public long getNewestSequence() {
+        return newestSequence;
+    }
+
+    /**
+     * Number of fragments retained
+     */
+    public int getCapacity() {
+        return fragments.length();
+    }
+
+    /**
+     * Sequence of the oldest fragment that may still be in the ring
+     */
+    public long getOldestSequence() {
+        return Math.max(0, newestSequence - fragments.length() + 1);
+    }
+
+    /**
+     * Presentation time of the first fragment.  The muxer starts the media timeline (tfdt) there.
+     */
+    public long getStartTimeUs() {
+        return startTimeUs;
+    }
+
+    /**
+     * Wall clock time (ms since the epoch) at which the first fragment started, 0 if none yet
+     */
+    public long getStartWallClockMs() {
+        return startWallClockMs;
+    }
+
+    /**
+     * Return the fragments in the ring, from the first one that starts a segment, without
+     * retaining them.  Only their metadata may be used.
+     * The segment numbers are consecutive, if a segment is missing (on the clock) the fragments
+     * before it are left out.
+     */
+    @NonNull
+    public List<Fragment> peekSegments() {
+        final long newestSequence = this.newestSequence;
+        final List<Fragment> list = new ArrayList<>();
+        for (long sequence = Math.max(0, newestSequence - fragments.length() + 1);
+             sequence <= newestSequence; sequence++) {
+            final Fragment fragment = peekFragment(sequence);
+            if (fragment == null) {
+                // Overwritten while reading, only keep the contiguous tail
+                list.clear();
+            } else if (fragment.partIndex == 0 && !list.isEmpty()
+                    && fragment.segmentNumber != list.get(list.size() - 1).segmentNumber + 1) {
+                // A key frame was missed, so the previous segment took the place of two
+                list.clear();
+                list.add(fragment);
+            } else if (!list.isEmpty() || fragment.partIndex == 0) {
+                list.add(fragment);
+            }
         }
+        return list;
+    }
+
+    /**
+     * Return the header (ftyp + moov) if stored yet.  The header does not need to be released.
+     */
+    @Nullable
+    public Fragment peekHeader() {
         return header;
     }
 
-    public synchronized ByteBuffer getFragment(@Nullable ByteBuffer lastFragment)
-            throws ClosedChannelException, InterruptedException {
-        if (lastFragment == lastMoof) {
-            wait();
+    /**
+     * Return the header, retained, or null if not stored yet.  The header is never freed, this
+     * lets it be released like any fragment.
+     */
+    @Nullable
+    public Fragment retainHeader() {
+        final Fragment header = this.header;
+        return header != null && header.tryRetain() ? header : null;
+    }
+
+    /**
+     * Return the fragment with the given sequence if it is still in the ring, without retaining
+     * it.  Only its metadata may be used, its buffers can be freed at any time.
+     */
+    @Nullable
+    public Fragment peekFragment(long sequence) {
+        if (sequence < 0) {
+            return null;
+        }
+        final Fragment fragment = fragments.get(getIndex(sequence));
+        return fragment != null && fragment.sequence == sequence ? fragment : null;
+    }
+
+    /**
+     * Return the fragment with the given sequence if it is still in the ring.
+     * The caller must {@link Fragment#release()} the fragment once written.
+     */
+    @Nullable
+    public Fragment retainFragment(long sequence) {
+        final Fragment fragment = peekFragment(sequence);
+        return fragment != null && fragment.tryRetain() ? fragment : null;
+    }
+
+    /**
+     * Run the callback once, when a fragment with at least the given sequence (or the header) may
+     * be stored or the server is closed.  The callback is usually run on the encoder thread, so it
+     * must not block, it should only hand the work over to another thread.
+     */
+    public void notifyWhenStored(long sequence, @NonNull Runnable callback) {
+        callbacks.add(callback);
+        // Re-check after registering, so a fragment stored in between is not missed
+        if ((!open || (header != null && newestSequence >= sequence))
+                && callbacks.remove(callback)) {
+            callback.run();
+        }
+    }
+
+    public boolean isClosed() {
+        return !open;
+    }
+
+    private int getIndex(long sequence) {
+        return (int)(sequence % fragments.length());
+    }
+
+    private void wakeWaiters() {
+        for (Thread thread : waiters) {
+            LockSupport.unpark(thread);
+        }
+        Runnable callback;
+        while ((callback = callbacks.poll()) != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Park the calling thread until a fragment with the given sequence (or the header) is stored
+     * or the server is closed
+     */
+    private void await(long sequence) throws ClosedChannelException, InterruptedException {
+        final Thread thread = Thread.currentThread();
+        waiters.add(thread);
+        try {
+            // Re-check after registering, so a fragment stored in between is not missed
+            while (open && (header == null || newestSequence < sequence)) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waiters.remove(thread);
+        }
+        checkClosed();
+    }
+
+    public DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Numbers segments from the presentation time of their first frame, in segment durations
+     * from a shared origin.  Servers muxing encoders of the same camera frames then give a
+     * segment starting on the same frame the same number, and an encoder that misses a key frame,
+     * or adds one, only skips a number or adds a part rather than shifting the numbers from then
+     * on.  Thread safe, the origin is the time of the first segment numbered by any server.
+     */
+    public static class SegmentClock {
+        private static final long UNSET = Long.MIN_VALUE;
+
+        private final long segmentDurationUs;
+        private final AtomicLong originUs = new AtomicLong(UNSET);
+
+        public SegmentClock(long segmentDurationUs) {
+            this.segmentDurationUs = segmentDurationUs;
+        }
+
+        /**
+         * Number of the segment starting at the given time, rounded, so a key frame a little
+         * off the segment boundary still starts that segment
+         */
+        public long getSegmentNumber(long timeUs) {
+            originUs.compareAndSet(UNSET, timeUs);
+            return Math.floorDiv(timeUs - originUs.get() + segmentDurationUs / 2,
+                    segmentDurationUs);
+        }
+    }
+
+    /**
+     * The writable buffers handed over by the muxer, returned to the pool when a fragment is freed
+     */
+    private static class PooledBuffers implements Runnable {
+        private final ByteBuffer[] sources;
+        private final DirectBufferPool bufferPool;
+
+        PooledBuffers(ByteBuffer[] sources, DirectBufferPool bufferPool) {
+            this.sources = sources;
+            this.bufferPool = bufferPool;
+        }
+
+        @Override
+        public void run() {
+            for (ByteBuffer byteBuffer : sources) {
+                bufferPool.release(byteBuffer);
+            }
+        }
+    }
+
+    /**
+     * A movie fragment (moof+mdat) or the header (ftyp+moov), shared by all clients.
+     * The ring holds one reference, every client holds one while writing it.
+     */
+    public static class Fragment {
+        public final long sequence;
+        public final boolean keyFrame;
+        /**
+         * Number of the segment, which starts with a key frame fragment, -1 for the header.
+         * Numbers may be skipped with a {@link SegmentClock}.
+         */
+        public final long segmentNumber;
+        /**
+         * Index of the fragment (part) in its segment
+         */
+        public final int partIndex;
+        /**
+         * Presentation time of the first sample
+         */
+        public final long timeUs;
+        /**
+         * Duration up to the next fragment, 0 if unknown
+         */
+        public final long durationUs;
+        private final ByteBuffer[] buffers;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+        @Nullable
+        private final Runnable onFreed;
+
+        Fragment(long sequence, ByteBuffer[] buffers, boolean keyFrame,
+                 @Nullable Runnable onFreed) {
+            this(sequence, buffers, keyFrame, -1, 0, 0, 0, onFreed);
+        }
+
+        Fragment(long sequence, ByteBuffer[] buffers, boolean keyFrame, long segmentNumber,
+                 int partIndex, long timeUs, long durationUs, @Nullable Runnable onFreed) {
+            this.sequence = sequence;
+            this.buffers = buffers;
+            this.keyFrame = keyFrame;
+            this.segmentNumber = segmentNumber;
+            this.partIndex = partIndex;
+            this.timeUs = timeUs;
+            this.durationUs = durationUs;
+            this.onFreed = onFreed;
+        }
+
+        /**
+         * Return a new set of views on the fragment for a gathering write.
+         * The views are independent, so writing them does not affect other clients.
+         */
+        public ByteBuffer[] getBuffers() {
+            final ByteBuffer[] views = new ByteBuffer[buffers.length];
+            for (int i = 0; i < buffers.length; i++) {
+                views[i] = buffers[i].duplicate();
+            }
+            return views;
+        }
+
+        public long getSize() {
+            long size = 0;
+            for (ByteBuffer byteBuffer : buffers) {
+                size += byteBuffer.remaining();
+            }
+            return size;
+        }
+
+        /**
+         * @return false if the fragment has already been freed
+         */
+        boolean tryRetain() {
+            while (true) {
+                final int count = refCount.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Release a reference acquired from {@link Client#nextFragment()}
+         */
+        public void release() {
+            if (refCount.decrementAndGet() == 0 && onFreed != null) {
+                onFreed.run();
+            }
+        }
+    }
+
+    /**
+     * A viewer's position in the fragment ring.  Not thread safe, each viewer owns its own.
+     */
+    public class Client {
+        /**
+         * Sequence of the next fragment to return, -1 if not started
+         */
+        private long sequence = -1;
+        /**
+         * True while skipping forward to a key frame fragment
+         */
+        private boolean syncing = true;
+        private int droppedCount;
+
+        private Client() {}
+
+        /**
+         * Return the common MP4 header (ftyp + moov).  The header does not need to be released.
+         */
+        public Fragment getHeader() throws ClosedChannelException, InterruptedException {
+            if (header == null) {
+                await(-1);
+            }
+            return header;
+        }
+
+        /**
+         * Return the common MP4 header (ftyp + moov), or null if it is not stored yet.
+         * The header does not need to be released.
+         */
+        @Nullable
+        public Fragment pollHeader() throws ClosedChannelException {
             checkClosed();
+            return header;
+        }
+
+        /**
+         * Return the next fragment, blocking until it is available.
+         * If this client has fallen out of the ring it is moved forward to the newest key frame
+         * fragment, so the decode chain is never broken.
+         * The caller must {@link Fragment#release()} the fragment once written.
+         */
+        public Fragment nextFragment() throws ClosedChannelException, InterruptedException {
+            while (true) {
+                final Fragment fragment = pollFragment();
+                if (fragment != null) {
+                    return fragment;
+                }
+                await(sequence);
+            }
+        }
+
+        /**
+         * Like {@link #nextFragment()}, but return null rather than block if the next fragment is
+         * not stored yet.
+         */
+        @Nullable
+        public Fragment pollFragment() throws ClosedChannelException {
+            if (sequence < 0) {
+                resync();
+            }
+            while (true) {
+                checkClosed();
+                final long newest = newestSequence;
+                if (sequence > newest) {
+                    return null;
+                }
+                final Fragment fragment = fragments.get(getIndex(sequence));
+                if (fragment == null || fragment.sequence != sequence) {
+                    // Overwritten, we fell out of the window
+                    droppedCount++;
+                    resync();
+                    continue;
+                }
+                if (syncing && !fragment.keyFrame) {
+                    sequence++;
+                    continue;
+                }
+                if (!fragment.tryRetain()) {
+                    // Overwritten and freed between the read and the retain
+                    droppedCount++;
+                    resync();
+                    continue;
+                }
+                sequence++;
+                syncing = false;
+                return fragment;
+            }
+        }
+
+        /**
+         * Run the callback once, when the next fragment (or the header) may be available or the
+         * server is closed.  The callback is usually run on the encoder thread, so it must not
+         * block, it should only hand the client over to another thread, which then polls again.
+         */
+        public void notifyWhenAvailable(@NonNull Runnable callback) {
+            notifyWhenStored(sequence, callback);
+        }
+
+        /**
+         * Number of times this client fell out of the ring and was moved forward
+         */
+        public int getDroppedCount() {
+            return droppedCount;
+        }
+
+        private void resync() {
+            final long keySequence = keyFrameSequence;
+            // If the newest key frame fragment is behind us, wait for the next one
+            sequence = keySequence > sequence ? keySequence : newestSequence + 1;
+            syncing = true;
         }
-        return lastMoof;
     }
 }
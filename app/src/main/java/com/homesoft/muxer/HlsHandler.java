@@ -0,0 +1,164 @@
+package com.homesoft.muxer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Answers the requests for the resources of an {@link HlsPlaylist}, which are also the segment
+ * resources of the {@link DashManifest}.
+ * Finished resources are served from a {@link FragmentCache}, with ETags and byte ranges.
+ * Blocking playlist reloads and preload hinted parts are answered asynchronously once the
+ * fragment is stored, so waiting players do not hold a thread.
+ */
+public class HlsHandler {
+    public static final String PATH = "/hls/";
+
+    /**
+     * How long a blocking request may wait, 3 target durations as suggested by the LL-HLS spec
+     */
+    private static final long BLOCKING_TIMEOUT_MS = 3000L;
+
+    /**
+     * Segments are immutable while the encoder runs, their numbers restart with it
+     */
+    private static final String SEGMENT_CACHE_CONTROL = "max-age=10";
+
+    /**
+     * Finds the fragments of a resource in the ring, retained
+     */
+    private interface FragmentSource {
+        @Nullable
+        List<FragmentServer.Fragment> retain();
+    }
+
+    private final HlsPlaylist hlsPlaylist;
+    private final FragmentServer fragmentServer;
+    private final FragmentCache fragmentCache;
+
+    public HlsHandler(@NonNull HlsPlaylist hlsPlaylist, @NonNull FragmentCache fragmentCache) {
+        this.hlsPlaylist = hlsPlaylist;
+        this.fragmentCache = fragmentCache;
+        fragmentServer = hlsPlaylist.getFragmentServer();
+    }
+
+    @NonNull
+    public FragmentCache getFragmentCache() {
+        return fragmentCache;
+    }
+
+    /**
+     * @param name resource name, relative to the media playlist
+     */
+    public void handle(@NonNull String name, @NonNull HttpServletRequest request,
+                       @NonNull HttpServletResponse response) throws IOException {
+        if (HlsPlaylist.PLAYLIST.equals(name)) {
+            handlePlaylist(request, response);
+        } else if (HlsPlaylist.INIT.equals(name)) {
+            final FragmentSource source = () -> {
+                final FragmentServer.Fragment header = fragmentServer.retainHeader();
+                return header == null ? null : Collections.singletonList(header);
+            };
+            if (fragmentServer.peekHeader() == null) {
+                FragmentResponses.respondWhen(request, fragmentServer, BLOCKING_TIMEOUT_MS,
+                        () -> fragmentServer.peekHeader() != null,
+                        (q, r) -> sendResource(q, r, name, source));
+            } else {
+                sendResource(request, response, name, source);
+            }
+        } else {
+            final long msn = HlsPlaylist.parseSegmentName(name);
+            if (msn >= 0) {
+                sendResource(request, response, name, () -> hlsPlaylist.retainSegment(msn));
+                return;
+            }
+            final long[] part = HlsPlaylist.parsePartName(name);
+            if (part == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            } else {
+                handlePart(request, response, name, part[0], (int)part[1]);
+            }
+        }
+    }
+
+    /**
+     * Drop the cached resources
+     */
+    public void release() {
+        fragmentCache.clear();
+    }
+
+    private void handlePlaylist(@NonNull HttpServletRequest request,
+                                @NonNull HttpServletResponse response) throws IOException {
+        final long[] reload = HlsPlaylist.parseBlockingReload(request.getParameter("_HLS_msn"),
+                request.getParameter("_HLS_part"));
+        // The spec asks for a 400 when the request is more than two segments ahead
+        if (reload == null || reload[0] > hlsPlaylist.getNewestSegmentNumber() + 2) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        final long msn = reload[0];
+        final int part = (int)reload[1];
+        FragmentResponses.respondWhen(request, fragmentServer, BLOCKING_TIMEOUT_MS,
+                () -> (msn < 0 || hlsPlaylist.contains(msn, part)) && hlsPlaylist.build() != null,
+                (q, r) -> {
+                    final String playlist = hlsPlaylist.build();
+                    if (playlist == null) {
+                        r.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    } else {
+                        FragmentResponses.sendText(r, playlist,
+                                HlsPlaylist.PLAYLIST_CONTENT_TYPE);
+                    }
+                });
+    }
+
+    private void handlePart(@NonNull HttpServletRequest request,
+                            @NonNull HttpServletResponse response, @NonNull String name,
+                            long msn, int part) throws IOException {
+        final FragmentSource source = () -> {
+            final FragmentServer.Fragment fragment = hlsPlaylist.retainPart(msn, part);
+            // Null if gone from the ring, or the segment ended before this part
+            return fragment == null ? null : Collections.singletonList(fragment);
+        };
+        if (!hlsPlaylist.isAhead(msn, part)) {
+            sendResource(request, response, name, source);
+            return;
+        }
+        // A preload hint, answer once the part is stored
+        if (msn > hlsPlaylist.getNewestSegmentNumber() + 1) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        FragmentResponses.respondWhen(request, fragmentServer, BLOCKING_TIMEOUT_MS,
+                () -> !hlsPlaylist.isAhead(msn, part),
+                (q, r) -> sendResource(q, r, name, source));
+    }
+
+    /**
+     * Send a finished resource from the cache, adding it from the ring on a miss
+     */
+    private void sendResource(@NonNull HttpServletRequest request,
+                              @NonNull HttpServletResponse response, @NonNull String name,
+                              @NonNull FragmentSource source) throws IOException {
+        FragmentCache.Entry entry = fragmentCache.get(name);
+        if (entry == null) {
+            final List<FragmentServer.Fragment> fragments = source.retain();
+            if (fragments == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            entry = fragmentCache.put(name, fragments);
+        }
+        try {
+            FragmentResponses.sendEntry(request, response, entry, SEGMENT_CACHE_CONTROL);
+        } finally {
+            entry.release();
+        }
+    }
+}
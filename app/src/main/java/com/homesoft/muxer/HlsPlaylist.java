@@ -0,0 +1,324 @@
+package com.homesoft.muxer;
+
+import static java.lang.Math.max;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Live HLS media playlist (RFC 8216, with the Low-Latency HLS extensions) over the fragments of a
+ * {@link FragmentServer}.
+ * A segment starts with a key frame fragment and holds the fragments up to the next one, the
+ * fragments themselves are the partial segments.  The window slides with the fragment ring.
+ * Resources, relative to the playlist:
+ * <ul>
+ *     <li>{@value #INIT} the header (ftyp + moov)</li>
+ *     <li>seg{msn}.m4s a whole segment, once complete</li>
+ *     <li>part{msn}.{part}.m4s a partial segment</li>
+ * </ul>
+ * Thread safe, the ring is read without locking and fragments that leave it are skipped.
+ */
+public class HlsPlaylist {
+    public static final String PLAYLIST = "live.m3u8";
+    /**
+     * The multivariant playlist, which lists the media playlist of each rendition
+     */
+    public static final String MULTIVARIANT_PLAYLIST = "master.m3u8";
+    public static final String INIT = "init.mp4";
+    public static final String PLAYLIST_CONTENT_TYPE = "application/vnd.apple.mpegurl";
+
+    private static final String SEGMENT_PREFIX = "seg";
+    private static final String PART_PREFIX = "part";
+    private static final String SEGMENT_SUFFIX = ".m4s";
+    /**
+     * Segment resource names as a DASH SegmentTemplate
+     */
+    public static final String SEGMENT_TEMPLATE = SEGMENT_PREFIX + "$Number$" + SEGMENT_SUFFIX;
+    /**
+     * Parts older than this many target durations are no longer listed
+     */
+    private static final int PART_TARGET_DURATIONS = 3;
+
+    /**
+     * Return the media sequence number of a segment resource name, -1 if it is not one
+     */
+    public static long parseSegmentName(@NonNull String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        return parseNumber(name.substring(SEGMENT_PREFIX.length(),
+                name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Return the media sequence number and part index of a part resource name, null if it is not
+     * one
+     */
+    @Nullable
+    public static long[] parsePartName(@NonNull String name) {
+        if (!name.startsWith(PART_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return null;
+        }
+        final String numbers = name.substring(PART_PREFIX.length(),
+                name.length() - SEGMENT_SUFFIX.length());
+        final int dot = numbers.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        final long msn = parseNumber(numbers.substring(0, dot));
+        final long part = parseNumber(numbers.substring(dot + 1));
+        return msn < 0 || part < 0 || part > Integer.MAX_VALUE ? null : new long[]{msn, part};
+    }
+
+    /**
+     * Parse the _HLS_msn and _HLS_part parameters of a blocking playlist reload
+     * @return the media sequence number and part index, -1 if not given, or null if malformed or
+     * if a part is given without a media sequence number
+     */
+    @Nullable
+    public static long[] parseBlockingReload(@Nullable String msnParameter,
+                                             @Nullable String partParameter) {
+        final long msn = msnParameter == null ? -1 : parseNumber(msnParameter);
+        final long part = partParameter == null ? -1 : parseNumber(partParameter);
+        if ((msnParameter != null && msn < 0) || (partParameter != null
+                && (msnParameter == null || part < 0 || part > Integer.MAX_VALUE))) {
+            return null;
+        }
+        return new long[]{msn, part};
+    }
+
+    private static long parseNumber(String number) {
+        if (number.isEmpty() || number.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < number.length(); i++) {
+            if (!Character.isDigit(number.charAt(i))) {
+                return -1;
+            }
+        }
+        return Long.parseLong(number);
+    }
+
+    /**
+     * Build the multivariant playlist, the media playlists are in the directory of each
+     * rendition.  Players switch between variants at segment boundaries, so only the first
+     * rendition and those whose segments are verified to be aligned with it are listed, see
+     * {@link LiveRendition#isAligned}.
+     */
+    @NonNull
+    public static String buildMultivariant(@NonNull List<LiveRendition> renditions) {
+        final StringBuilder sb = new StringBuilder(512);
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-INDEPENDENT-SEGMENTS\n");
+        for (LiveRendition rendition : LiveRendition.getAligned(renditions)) {
+            sb.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(rendition.bitRate)
+                    .append(",RESOLUTION=").append(rendition.width).append('x')
+                    .append(rendition.height);
+            if (rendition.codecs != null) {
+                sb.append(",CODECS=\"").append(rendition.codecs).append('"');
+            }
+            sb.append('\n');
+            sb.append(rendition.path).append('/').append(PLAYLIST).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String formatSeconds(long us) {
+        return String.format(Locale.US, "%.3f", us / (double)FragmentServer.ONE_US);
+    }
+
+    private static String getSegmentName(long msn) {
+        return SEGMENT_PREFIX + msn + SEGMENT_SUFFIX;
+    }
+
+    private static String getPartName(long msn, int partIndex) {
+        return PART_PREFIX + msn + '.' + partIndex + SEGMENT_SUFFIX;
+    }
+
+    private final FragmentServer fragmentServer;
+
+    // The targets only grow, players expect them to stay put.  Guarded by this.
+    private long targetDurationUs;
+    private long partTargetUs;
+
+    /**
+     * @param targetDurationUs expected segment duration, the key frame interval
+     * @param partTargetUs expected fragment (part) duration
+     */
+    public HlsPlaylist(@NonNull FragmentServer fragmentServer, long targetDurationUs,
+                       long partTargetUs) {
+        this.fragmentServer = fragmentServer;
+        this.targetDurationUs = targetDurationUs;
+        this.partTargetUs = partTargetUs;
+    }
+
+    @NonNull
+    public FragmentServer getFragmentServer() {
+        return fragmentServer;
+    }
+
+    /**
+     * Number of the segment being written, -1 if none
+     */
+    public long getNewestSegmentNumber() {
+        final FragmentServer.Fragment newest =
+                fragmentServer.peekFragment(fragmentServer.getNewestSequence());
+        return newest == null ? -1 : newest.segmentNumber;
+    }
+
+    /**
+     * Whether the playlist lists the whole segment (part < 0) or the part of the segment, used
+     * for blocking playlist reloads
+     */
+    public boolean contains(long msn, int part) {
+        final FragmentServer.Fragment newest =
+                fragmentServer.peekFragment(fragmentServer.getNewestSequence());
+        if (newest == null) {
+            return false;
+        }
+        return newest.segmentNumber > msn
+                || (part >= 0 && newest.segmentNumber == msn && newest.partIndex >= part);
+    }
+
+    /**
+     * Whether the part is not stored yet, but will be if the segment goes on that long
+     */
+    public boolean isAhead(long msn, int part) {
+        final FragmentServer.Fragment newest =
+                fragmentServer.peekFragment(fragmentServer.getNewestSequence());
+        return newest == null || msn > newest.segmentNumber
+                || (msn == newest.segmentNumber && part > newest.partIndex);
+    }
+
+    /**
+     * Build the playlist, null if nothing is stored yet
+     */
+    @Nullable
+    public synchronized String build() {
+        if (fragmentServer.peekHeader() == null) {
+            return null;
+        }
+        final List<FragmentServer.Fragment> fragments = fragmentServer.peekSegments();
+        if (fragments.isEmpty()) {
+            return null;
+        }
+        final FragmentServer.Fragment newest = fragments.get(fragments.size() - 1);
+        // Segment durations, the last segment is still being written
+        long segmentDurationUs = 0;
+        for (FragmentServer.Fragment fragment : fragments) {
+            if (fragment.partIndex == 0) {
+                segmentDurationUs = 0;
+            }
+            segmentDurationUs += fragment.durationUs;
+            if (fragment.segmentNumber < newest.segmentNumber) {
+                targetDurationUs = max(targetDurationUs, segmentDurationUs);
+            }
+            partTargetUs = max(partTargetUs, fragment.durationUs);
+        }
+        final long liveEdgeUs = newest.timeUs + newest.durationUs;
+        final long partWindowUs = PART_TARGET_DURATIONS * targetDurationUs;
+
+        final StringBuilder sb = new StringBuilder(2048);
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:9\n");
+        sb.append("#EXT-X-TARGETDURATION:")
+                .append((targetDurationUs + FragmentServer.ONE_US - 1) / FragmentServer.ONE_US)
+                .append('\n');
+        sb.append("#EXT-X-PART-INF:PART-TARGET=").append(formatSeconds(partTargetUs)).append('\n');
+        sb.append("#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=")
+                .append(formatSeconds(3 * partTargetUs)).append('\n');
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(fragments.get(0).segmentNumber).append('\n');
+        sb.append("#EXT-X-INDEPENDENT-SEGMENTS\n");
+        sb.append("#EXT-X-MAP:URI=\"" + INIT + "\"\n");
+        segmentDurationUs = 0;
+        for (int i = 0; i < fragments.size(); i++) {
+            final FragmentServer.Fragment fragment = fragments.get(i);
+            segmentDurationUs += fragment.durationUs;
+            if (liveEdgeUs - fragment.timeUs <= partWindowUs) {
+                sb.append("#EXT-X-PART:DURATION=").append(formatSeconds(fragment.durationUs))
+                        .append(",URI=\"")
+                        .append(getPartName(fragment.segmentNumber, fragment.partIndex))
+                        .append('"');
+                if (fragment.keyFrame) {
+                    sb.append(",INDEPENDENT=YES");
+                }
+                sb.append('\n');
+            }
+            final boolean segmentEnd = i + 1 < fragments.size()
+                    && fragments.get(i + 1).partIndex == 0;
+            if (segmentEnd) {
+                sb.append("#EXTINF:").append(formatSeconds(segmentDurationUs)).append(",\n");
+                sb.append(getSegmentName(fragment.segmentNumber)).append('\n');
+                segmentDurationUs = 0;
+            }
+        }
+        // The next part, unless the next fragment starts a new segment
+        sb.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"")
+                .append(getPartName(newest.segmentNumber, newest.partIndex + 1)).append("\"\n");
+        return sb.toString();
+    }
+
+    /**
+     * Retain the fragments of a complete segment, null if it is not (wholly) in the ring.
+     * The caller must release each fragment once written.
+     */
+    @Nullable
+    public List<FragmentServer.Fragment> retainSegment(long msn) {
+        final long newestSequence = fragmentServer.getNewestSequence();
+        final List<FragmentServer.Fragment> retained = new ArrayList<>();
+        boolean complete = false;
+        for (long sequence = fragmentServer.getOldestSequence(); sequence <= newestSequence;
+             sequence++) {
+            final FragmentServer.Fragment fragment = fragmentServer.retainFragment(sequence);
+            if (fragment == null) {
+                continue;
+            }
+            if (fragment.segmentNumber == msn) {
+                if (fragment.partIndex == retained.size()) {
+                    retained.add(fragment);
+                    continue;
+                }
+                // A part has left the ring
+                fragment.release();
+                break;
+            }
+            fragment.release();
+            if (fragment.segmentNumber > msn) {
+                complete = true;
+                break;
+            }
+        }
+        if (!complete || retained.isEmpty()) {
+            release(retained);
+            return null;
+        }
+        return retained;
+    }
+
+    /**
+     * Retain a part, null if it is not in the ring.
+     * The caller must release the fragment once written.
+     */
+    @Nullable
+    public FragmentServer.Fragment retainPart(long msn, int part) {
+        final long newestSequence = fragmentServer.getNewestSequence();
+        final long oldestSequence = fragmentServer.getOldestSequence();
+        for (long sequence = newestSequence; sequence >= oldestSequence; sequence--) {
+            final FragmentServer.Fragment fragment = fragmentServer.peekFragment(sequence);
+            if (fragment != null && fragment.segmentNumber == msn && fragment.partIndex == part) {
+                return fragmentServer.retainFragment(sequence);
+            }
+        }
+        return null;
+    }
+
+    public static void release(@NonNull List<FragmentServer.Fragment> fragments) {
+        for (FragmentServer.Fragment fragment : fragments) {
+            fragment.release();
+        }
+    }
+}
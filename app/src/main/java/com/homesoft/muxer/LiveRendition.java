@@ -0,0 +1,123 @@
+package com.homesoft.muxer;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * One rendition of the live stream: an encoder output muxed by its own {@link FragmentServer}
+ * and served by its own {@link HlsHandler}, as listed by the HLS multivariant playlist and the
+ * DASH manifest.
+ */
+public class LiveRendition {
+    /**
+     * Return the RFC 6381 codecs string of an AVC format, from its SPS, or null if unknown
+     */
+    @Nullable
+    static String getCodecs(@NonNull MediaFormat mediaFormat) {
+        if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(mediaFormat.getString(MediaFormat.KEY_MIME))) {
+            return null;
+        }
+        final ByteBuffer csd = mediaFormat.getByteBuffer("csd-0");
+        if (csd == null) {
+            return null;
+        }
+        // Skip the start codes to the SPS NAL unit header, then read profile, constraints, level
+        for (int i = 0; i + 4 < csd.limit(); i++) {
+            if (csd.get(i) == 0 && csd.get(i + 1) == 0 && csd.get(i + 2) == 1
+                    && (csd.get(i + 3) & 0x1f) == 7 && i + 6 < csd.limit()) {
+                return String.format(Locale.US, "avc1.%02X%02X%02X", csd.get(i + 4) & 0xff,
+                        csd.get(i + 5) & 0xff, csd.get(i + 6) & 0xff);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether the segments that are in the rings of both renditions have the same numbers and
+     * start on the same frame, so players can switch between them at any segment.  False until
+     * they have a segment in common.
+     */
+    public static boolean isAligned(@NonNull LiveRendition a, @NonNull LiveRendition b) {
+        final Map<Long, Long> startsUs = new HashMap<>();
+        for (FragmentServer.Fragment fragment : a.fragmentServer.peekSegments()) {
+            if (fragment.partIndex == 0) {
+                startsUs.put(fragment.segmentNumber, fragment.timeUs);
+            }
+        }
+        boolean shared = false;
+        for (FragmentServer.Fragment fragment : b.fragmentServer.peekSegments()) {
+            if (fragment.partIndex == 0) {
+                final Long startUs = startsUs.get(fragment.segmentNumber);
+                if (startUs != null) {
+                    if (startUs != fragment.timeUs) {
+                        return false;
+                    }
+                    shared = true;
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Return the first rendition and those aligned with it
+     */
+    @NonNull
+    public static List<LiveRendition> getAligned(@NonNull List<LiveRendition> renditions) {
+        final List<LiveRendition> aligned = new ArrayList<>(renditions.size());
+        for (LiveRendition rendition : renditions) {
+            if (aligned.isEmpty() || isAligned(aligned.get(0), rendition)) {
+                aligned.add(rendition);
+            }
+        }
+        return aligned;
+    }
+
+    /**
+     * Directory of the resources, relative to the multivariant playlist or manifest
+     */
+    @NonNull
+    public final String path;
+    @NonNull
+    public final FragmentServer fragmentServer;
+    @NonNull
+    public final HlsHandler hlsHandler;
+    public final int width;
+    public final int height;
+    /**
+     * Target bit rate of the encoder
+     */
+    public final int bitRate;
+    @Nullable
+    public final String codecs;
+
+    public LiveRendition(@NonNull String path, @NonNull MediaFormat mediaFormat, int bitRate,
+                         @NonNull FragmentServer fragmentServer,
+                         @NonNull HlsHandler hlsHandler) {
+        this(path, fragmentServer, hlsHandler, mediaFormat.getInteger(MediaFormat.KEY_WIDTH),
+                mediaFormat.getInteger(MediaFormat.KEY_HEIGHT), bitRate, getCodecs(mediaFormat));
+    }
+
+    @VisibleForTesting
+    LiveRendition(@NonNull String path, @NonNull FragmentServer fragmentServer,
+                  @NonNull HlsHandler hlsHandler, int width, int height, int bitRate,
+                  @Nullable String codecs) {
+        this.path = path;
+        this.fragmentServer = fragmentServer;
+        this.hlsHandler = hlsHandler;
+        this.width = width;
+        this.height = height;
+        this.bitRate = bitRate;
+        this.codecs = codecs;
+    }
+}
@@ -3,6 +3,7 @@ package com.homesoft.muxer;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Bundle;
 import android.os.Handler;
 import android.util.Log;
 import android.view.Surface;
@@ -30,6 +31,7 @@ public class SurfaceEncoder extends MediaCodec.Callback {
     private final MediaFormat mediaFormat;
 
     private final Listener listener;
+    private final int bitRate;
 
     private State state = State.IDLE;
 
@@ -42,7 +44,8 @@ public class SurfaceEncoder extends MediaCodec.Callback {
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         float pixelsPerSecond = fps * width * height;
         //Try 1/8 or 12.5%
-        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, (int)(pixelsPerSecond / 8));
+        bitRate = (int)(pixelsPerSecond / 8);
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
         mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
     }
 
@@ -50,6 +53,22 @@ public class SurfaceEncoder extends MediaCodec.Callback {
         return state;
     }
 
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    /**
+     * Ask for the next frame to be a key frame, so encoders fed the same frames can start their
+     * segments together
+     */
+    public void requestSyncFrame() {
+        if (state == State.RUNNING) {
+            final Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            mediaCodec.setParameters(params);
+        }
+    }
+
     public Surface startMediaCodec(Handler workerHandler) {
         state = State.STARTING;
         mediaCodec.setCallback(this, workerHandler);
@@ -0,0 +1,126 @@
+package com.homesoft.muxer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class DashManifestTest {
+    private static final long SEGMENT_US = 1_000_000;
+    private static final long START_US = 5_000_000;
+
+    /**
+     * Return a rendition with a key frame fragment per segment, the last one still being written
+     */
+    private static LiveRendition newRendition(String path, long startUs, long... durationsUs)
+            throws Exception {
+        final FragmentServer fragmentServer = new FragmentServer(30);
+        fragmentServer.write(new ByteBuffer[]{ByteBuffer.allocate(16)});
+        long timeUs = startUs;
+        for (long durationUs : durationsUs) {
+            fragmentServer.storeFragment(new ByteBuffer[]{ByteBuffer.allocate(100)}, true,
+                    timeUs, durationUs, null);
+            timeUs += durationUs;
+        }
+        final HlsHandler hlsHandler = new HlsHandler(
+                new HlsPlaylist(fragmentServer, SEGMENT_US, SEGMENT_US), new FragmentCache());
+        return new LiveRendition(path, fragmentServer, hlsHandler, 1280, 720, 4_000_000,
+                "avc1.42C01F");
+    }
+
+    private static long[] repeat(long durationUs, int count) {
+        final long[] durationsUs = new long[count];
+        Arrays.fill(durationsUs, durationUs);
+        return durationsUs;
+    }
+
+    @Test
+    public void build_noCompleteSegment_returnsNull() throws Exception {
+        final DashManifest dashManifest = new DashManifest(10_000_000, SEGMENT_US);
+
+        assertNull(dashManifest.build(Collections.singletonList(newRendition("0", START_US))));
+        assertNull(dashManifest.build(
+                Collections.singletonList(newRendition("0", START_US, SEGMENT_US))));
+    }
+
+    @Test
+    public void build_equalDurations_listsRepeatedSegments() throws Exception {
+        final LiveRendition rendition = newRendition("0", START_US,
+                SEGMENT_US, SEGMENT_US, SEGMENT_US, 1_200_000, SEGMENT_US, SEGMENT_US);
+
+        final String manifest = new DashManifest(10_000_000, SEGMENT_US)
+                .build(Collections.singletonList(rendition));
+
+        assertTrue(manifest, manifest.contains("          <SegmentTimeline>\n"
+                + "            <S t=\"0\" d=\"1000000\" r=\"2\"/>\n"
+                + "            <S d=\"1200000\"/>\n"
+                + "            <S d=\"1000000\"/>\n"
+                + "          </SegmentTimeline>\n"));
+        assertTrue(manifest.contains(" startNumber=\"0\""));
+        assertTrue(manifest.contains(" maxSegmentDuration=\"PT1.200S\""));
+        assertTrue(manifest.contains(" media=\"0/seg$Number$.m4s\""));
+        assertTrue(manifest.contains(" codecs=\"avc1.42C01F\""));
+        assertTrue(manifest.contains(" width=\"1280\" height=\"720\""));
+    }
+
+    @Test
+    public void build_beyondTimeShiftBuffer_trimsSegmentsAndAdvancesStartNumber()
+            throws Exception {
+        // 8 complete segments, the live edge is at 8s
+        final LiveRendition rendition = newRendition("0", START_US, repeat(SEGMENT_US, 9));
+
+        final String manifest = new DashManifest(3_000_000, SEGMENT_US)
+                .build(Collections.singletonList(rendition));
+
+        assertTrue(manifest.contains(" timeShiftBufferDepth=\"PT3.000S\""));
+        assertTrue(manifest.contains(" startNumber=\"5\""));
+        assertTrue(manifest, manifest.contains("          <SegmentTimeline>\n"
+                + "            <S t=\"5000000\" d=\"1000000\" r=\"2\"/>\n"
+                + "          </SegmentTimeline>\n"));
+    }
+
+    @Test
+    public void build_renditionsStartedApart_offsetsToLastStarted() throws Exception {
+        final LiveRendition first = newRendition("0", START_US, repeat(SEGMENT_US, 5));
+        final LiveRendition second = newRendition("1", START_US + 2 * SEGMENT_US,
+                repeat(SEGMENT_US, 3));
+
+        final String manifest = new DashManifest(10_000_000, SEGMENT_US)
+                .build(Arrays.asList(first, second));
+
+        assertTrue(manifest, manifest.contains(" presentationTimeOffset=\"2000000\""
+                + " initialization=\"0/init.mp4\""));
+        assertTrue(manifest, manifest.contains(" presentationTimeOffset=\"0\""
+                + " initialization=\"1/init.mp4\""));
+    }
+
+    @Test
+    public void build_alignedRenditions_declaresSegmentAlignment() throws Exception {
+        final LiveRendition first = newRendition("0", START_US, repeat(SEGMENT_US, 4));
+        final LiveRendition second = newRendition("1", START_US, repeat(SEGMENT_US, 4));
+
+        final String manifest = new DashManifest(10_000_000, SEGMENT_US)
+                .build(Arrays.asList(first, second));
+
+        assertTrue(manifest.contains(" segmentAlignment=\"true\""));
+        assertTrue(manifest.contains("<Representation id=\"1\""));
+    }
+
+    @Test
+    public void build_segmentsStartingOnOtherFrames_omitsSegmentAlignment() throws Exception {
+        final LiveRendition first = newRendition("0", START_US, repeat(SEGMENT_US, 4));
+        final LiveRendition second = newRendition("1", START_US + 33_333,
+                repeat(SEGMENT_US, 4));
+
+        final String manifest = new DashManifest(10_000_000, SEGMENT_US)
+                .build(Arrays.asList(first, second));
+
+        assertFalse(manifest.contains("segmentAlignment"));
+        assertTrue(manifest.contains("<Representation id=\"1\""));
+    }
+}
@@ -0,0 +1,106 @@
+package com.homesoft.muxer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class DirectBufferPoolTest {
+    private static final int MIN_SIZE = 4 << 10;
+    private static final int MAX_SIZE = 16 << 20;
+
+    @Test
+    public void acquire_roundsUpToSizeClass() {
+        final DirectBufferPool pool = new DirectBufferPool();
+
+        final ByteBuffer small = pool.acquire(10);
+        final ByteBuffer exact = pool.acquire(8 << 10);
+        final ByteBuffer odd = pool.acquire((8 << 10) + 1);
+
+        assertTrue(small.isDirect());
+        assertEquals(MIN_SIZE, small.capacity());
+        assertEquals(0, small.position());
+        assertEquals(10, small.limit());
+        assertEquals(8 << 10, exact.capacity());
+        assertEquals(16 << 10, odd.capacity());
+        assertEquals((8 << 10) + 1, odd.limit());
+        assertEquals(MAX_SIZE, pool.acquire(MAX_SIZE).capacity());
+    }
+
+    @Test
+    public void acquire_afterRelease_reusesBufferAndCountsHit() {
+        final DirectBufferPool pool = new DirectBufferPool();
+        final ByteBuffer byteBuffer = pool.acquire(5000);
+        byteBuffer.position(100);
+        assertEquals(0, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+
+        pool.release(byteBuffer);
+        assertEquals(8 << 10, pool.getPooledBytes());
+        final ByteBuffer reused = pool.acquire(6000);
+
+        assertSame(byteBuffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(6000, reused.limit());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0, pool.getPooledBytes());
+        // Another size class misses
+        assertNotSame(reused, pool.acquire(10));
+        assertEquals(2, pool.getMissCount());
+    }
+
+    @Test
+    public void release_beyondMaxPooledBytes_dropsBuffer() {
+        final DirectBufferPool pool = new DirectBufferPool(2 * MIN_SIZE);
+        final ByteBuffer first = pool.acquire(MIN_SIZE);
+        final ByteBuffer second = pool.acquire(MIN_SIZE);
+        final ByteBuffer third = pool.acquire(MIN_SIZE);
+        final ByteBuffer large = pool.acquire(2 * MIN_SIZE);
+
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        pool.release(large);
+
+        assertEquals(2 * MIN_SIZE, pool.getPooledBytes());
+        pool.acquire(MIN_SIZE);
+        pool.acquire(MIN_SIZE);
+        pool.acquire(MIN_SIZE);
+        assertEquals(2, pool.getHitCount());
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void acquire_oversize_bypassesPool() {
+        final DirectBufferPool pool = new DirectBufferPool(2L * MAX_SIZE);
+        final ByteBuffer oversize = pool.acquire(MAX_SIZE + 1);
+
+        assertTrue(oversize.isDirect());
+        assertEquals(MAX_SIZE + 1, oversize.capacity());
+        assertEquals(1, pool.getMissCount());
+        pool.release(oversize);
+        assertEquals(0, pool.getPooledBytes());
+        // A power of two above the largest size class is not pooled either
+        pool.release(ByteBuffer.allocateDirect(2 * MAX_SIZE));
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void release_foreignBuffers_ignored() {
+        final DirectBufferPool pool = new DirectBufferPool();
+
+        pool.release(ByteBuffer.allocate(MIN_SIZE));
+        pool.release(ByteBuffer.allocateDirect(MIN_SIZE).asReadOnlyBuffer());
+        pool.release(ByteBuffer.allocateDirect(MIN_SIZE + 1));
+        pool.release(ByteBuffer.allocateDirect(MIN_SIZE / 2));
+
+        assertEquals(0, pool.getPooledBytes());
+        pool.acquire(MIN_SIZE);
+        assertEquals(0, pool.getHitCount());
+    }
+}
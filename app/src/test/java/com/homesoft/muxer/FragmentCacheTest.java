@@ -0,0 +1,145 @@
+package com.homesoft.muxer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class FragmentCacheTest {
+    /**
+     * Freed fragments, in order
+     */
+    private final List<String> freed = new ArrayList<>();
+
+    private List<FragmentServer.Fragment> newFragments(String name, int... sizes) {
+        final List<FragmentServer.Fragment> fragments = new ArrayList<>(sizes.length);
+        for (int size : sizes) {
+            final String id = name + '.' + fragments.size();
+            fragments.add(new FragmentServer.Fragment(fragments.size(),
+                    new ByteBuffer[]{ByteBuffer.allocate(size)}, true, () -> freed.add(id)));
+        }
+        return fragments;
+    }
+
+    @Test
+    public void get_afterPut_returnsEntryAndCountsHits() {
+        final FragmentCache cache = new FragmentCache(100);
+        cache.put("seg0.m4s", newFragments("seg0", 10, 20)).release();
+
+        final FragmentCache.Entry entry = cache.get("seg0.m4s");
+
+        assertNotNull(entry);
+        assertEquals(30, entry.length);
+        assertNull(cache.get("seg1.m4s"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        entry.release();
+    }
+
+    @Test
+    public void put_alreadyCached_releasesNewFragmentsAndReturnsCachedEntry() {
+        final FragmentCache cache = new FragmentCache(100);
+        final FragmentCache.Entry first = cache.put("seg0.m4s", newFragments("a", 10));
+
+        final FragmentCache.Entry second = cache.put("seg0.m4s", newFragments("b", 10));
+
+        assertSame(first, second);
+        assertEquals(Collections.singletonList("b.0"), freed);
+        assertEquals(10, cache.getBytes());
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void put_overMaxBytes_evictsLeastRecentlyUsed() {
+        final FragmentCache cache = new FragmentCache(25);
+        cache.put("a", newFragments("a", 10)).release();
+        cache.put("b", newFragments("b", 10)).release();
+        // Makes b the least recently used
+        cache.get("a").release();
+
+        cache.put("c", newFragments("c", 10)).release();
+
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertEquals(20, cache.getBytes());
+        assertEquals(Collections.singletonList("b.0"), freed);
+    }
+
+    @Test
+    public void put_largerThanMaxBytes_keepsOnlyNewEntry() {
+        final FragmentCache cache = new FragmentCache(25);
+        cache.put("a", newFragments("a", 10)).release();
+
+        cache.put("b", newFragments("b", 20, 20)).release();
+
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertEquals(40, cache.getBytes());
+    }
+
+    @Test
+    public void put_evictsEntryInUse_freesFragmentsOnceReleased() {
+        final FragmentCache cache = new FragmentCache(15);
+        final FragmentCache.Entry inUse = cache.put("a", newFragments("a", 10, 5));
+
+        cache.put("b", newFragments("b", 10)).release();
+
+        assertNull(cache.get("a"));
+        assertEquals(Collections.emptyList(), freed);
+        // Still readable while it is being written
+        assertEquals(15, inUse.length);
+        inUse.release();
+        assertEquals(Arrays.asList("a.0", "a.1"), freed);
+    }
+
+    @Test
+    public void clear_entryInUse_freesOthersNowAndItOnceReleased() {
+        final FragmentCache cache = new FragmentCache(100);
+        cache.put("a", newFragments("a", 10)).release();
+        final FragmentCache.Entry inUse = cache.put("b", newFragments("b", 10));
+
+        cache.clear();
+
+        assertEquals(0, cache.getBytes());
+        assertEquals(Collections.singletonList("a.0"), freed);
+        inUse.release();
+        assertEquals(Arrays.asList("a.0", "b.0"), freed);
+    }
+
+    @Test
+    public void getBuffers_rangeAcrossFragments_returnsViewsOfRange() {
+        final FragmentServer.Fragment first = new FragmentServer.Fragment(0,
+                new ByteBuffer[]{ByteBuffer.wrap(new byte[]{0, 1, 2}),
+                        ByteBuffer.wrap(new byte[]{3, 4})}, true, null);
+        final FragmentServer.Fragment second = new FragmentServer.Fragment(1,
+                new ByteBuffer[]{ByteBuffer.wrap(new byte[]{5, 6, 7, 8, 9})}, false, null);
+        final FragmentCache.Entry entry =
+                new FragmentCache(100).put("seg0.m4s", Arrays.asList(first, second));
+
+        final ByteBuffer[] views = entry.getBuffers(2, 5);
+
+        final ByteBuffer bytes = ByteBuffer.allocate(5);
+        for (ByteBuffer view : views) {
+            bytes.put(view);
+        }
+        assertArrayEquals(new byte[]{2, 3, 4, 5, 6}, bytes.array());
+        assertEquals(3, views.length);
+        // Reading the views leaves the cached buffers as they were
+        long remaining = 0;
+        for (ByteBuffer view : entry.getBuffers(0, entry.length)) {
+            remaining += view.remaining();
+        }
+        assertEquals(10, remaining);
+        entry.release();
+    }
+}
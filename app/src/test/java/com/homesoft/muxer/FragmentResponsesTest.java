@@ -0,0 +1,242 @@
+package com.homesoft.muxer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class FragmentResponsesTest {
+    private static final byte[] CONTENT = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+    private static final String CACHE_CONTROL = "max-age=60";
+
+    private FragmentCache.Entry entry;
+    private final Map<String, String> requestHeaders = new HashMap<>();
+    private String method = "GET";
+    private final FakeResponse fakeResponse = new FakeResponse();
+
+    @Before
+    public void setUp() {
+        final FragmentServer.Fragment fragment = new FragmentServer.Fragment(0,
+                new ByteBuffer[]{ByteBuffer.wrap(CONTENT, 0, 4), ByteBuffer.wrap(CONTENT, 4, 6)},
+                true, null);
+        entry = new FragmentCache().put("seg0.m4s", Collections.singletonList(fragment));
+    }
+
+    @Test
+    public void parseRange_closedRange_returnsFirstAndLast() {
+        assertArrayEquals(new long[]{2, 5}, FragmentResponses.parseRange("bytes=2-5", 10));
+    }
+
+    @Test
+    public void parseRange_lastBeyondLength_isClamped() {
+        assertArrayEquals(new long[]{2, 9}, FragmentResponses.parseRange("bytes=2-50", 10));
+    }
+
+    @Test
+    public void parseRange_openEnded_returnsToEnd() {
+        assertArrayEquals(new long[]{4, 9}, FragmentResponses.parseRange("bytes=4-", 10));
+    }
+
+    @Test
+    public void parseRange_suffix_returnsLastBytes() {
+        assertArrayEquals(new long[]{7, 9}, FragmentResponses.parseRange("bytes=-3", 10));
+        assertArrayEquals(new long[]{0, 9}, FragmentResponses.parseRange("bytes=-50", 10));
+    }
+
+    @Test
+    public void parseRange_zeroSuffix_isNotSatisfiable() {
+        assertEquals(0, FragmentResponses.parseRange("bytes=-0", 10).length);
+    }
+
+    @Test
+    public void parseRange_firstBeyondLength_isNotSatisfiable() {
+        assertEquals(0, FragmentResponses.parseRange("bytes=10-", 10).length);
+        assertEquals(0, FragmentResponses.parseRange("bytes=12-20", 10).length);
+        assertEquals(0, FragmentResponses.parseRange("bytes=0-", 0).length);
+    }
+
+    @Test
+    public void parseRange_multipleRanges_returnsNull() {
+        assertNull(FragmentResponses.parseRange("bytes=0-1,4-5", 10));
+    }
+
+    @Test
+    public void parseRange_malformed_returnsNull() {
+        assertNull(FragmentResponses.parseRange("bytes=5-2", 10));
+        assertNull(FragmentResponses.parseRange("items=0-1", 10));
+        assertNull(FragmentResponses.parseRange("bytes=a-b", 10));
+        assertNull(FragmentResponses.parseRange("bytes=5", 10));
+    }
+
+    @Test
+    public void matches_sameOrWeakTag_returnsTrue() {
+        assertTrue(FragmentResponses.matches("\"a-seg0\"", "\"a-seg0\""));
+        assertTrue(FragmentResponses.matches("W/\"a-seg0\"", "\"a-seg0\""));
+        assertTrue(FragmentResponses.matches("\"a-seg1\", W/\"a-seg0\"", "\"a-seg0\""));
+    }
+
+    @Test
+    public void matches_star_returnsTrue() {
+        assertTrue(FragmentResponses.matches("*", "\"a-seg0\""));
+    }
+
+    @Test
+    public void matches_otherOrMissingTag_returnsFalse() {
+        assertFalse(FragmentResponses.matches("\"a-seg1\"", "\"a-seg0\""));
+        assertFalse(FragmentResponses.matches("a-seg0", "\"a-seg0\""));
+        assertFalse(FragmentResponses.matches(null, "\"a-seg0\""));
+    }
+
+    @Test
+    public void sendEntry_noConditions_sendsWholeEntry() throws Exception {
+        sendEntry();
+
+        assertEquals(HttpServletResponse.SC_OK, fakeResponse.status);
+        assertEquals(entry.etag, fakeResponse.headers.get("ETag"));
+        assertEquals(CACHE_CONTROL, fakeResponse.headers.get("Cache-Control"));
+        assertEquals("bytes", fakeResponse.headers.get("Accept-Ranges"));
+        assertEquals(CONTENT.length, fakeResponse.contentLength);
+        assertArrayEquals(CONTENT, fakeResponse.body.toByteArray());
+    }
+
+    @Test
+    public void sendEntry_ifNoneMatchEtag_sendsNotModified() throws Exception {
+        requestHeaders.put("If-None-Match", "W/" + entry.etag);
+
+        sendEntry();
+
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, fakeResponse.status);
+        assertEquals(entry.etag, fakeResponse.headers.get("ETag"));
+        assertEquals(0, fakeResponse.body.size());
+    }
+
+    @Test
+    public void sendEntry_range_sendsPartialContent() throws Exception {
+        requestHeaders.put("Range", "bytes=2-5");
+
+        sendEntry();
+
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, fakeResponse.status);
+        assertEquals("bytes 2-5/10", fakeResponse.headers.get("Content-Range"));
+        assertEquals(4, fakeResponse.contentLength);
+        assertArrayEquals(new byte[]{2, 3, 4, 5}, fakeResponse.body.toByteArray());
+    }
+
+    @Test
+    public void sendEntry_unsatisfiableRange_sendsRangeNotSatisfiable() throws Exception {
+        requestHeaders.put("Range", "bytes=10-");
+
+        sendEntry();
+
+        assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, fakeResponse.status);
+        assertEquals("bytes */10", fakeResponse.headers.get("Content-Range"));
+        assertEquals(0, fakeResponse.body.size());
+    }
+
+    @Test
+    public void sendEntry_ifRangeEtag_sendsPartialContent() throws Exception {
+        requestHeaders.put("Range", "bytes=-2");
+        requestHeaders.put("If-Range", entry.etag);
+
+        sendEntry();
+
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, fakeResponse.status);
+        assertArrayEquals(new byte[]{8, 9}, fakeResponse.body.toByteArray());
+    }
+
+    @Test
+    public void sendEntry_ifRangeOtherEtag_sendsWholeEntry() throws Exception {
+        requestHeaders.put("Range", "bytes=-2");
+        requestHeaders.put("If-Range", "\"other\"");
+
+        sendEntry();
+
+        assertEquals(HttpServletResponse.SC_OK, fakeResponse.status);
+        assertNull(fakeResponse.headers.get("Content-Range"));
+        assertArrayEquals(CONTENT, fakeResponse.body.toByteArray());
+    }
+
+    @Test
+    public void sendEntry_head_sendsHeadersOnly() throws Exception {
+        method = "HEAD";
+
+        sendEntry();
+
+        assertEquals(HttpServletResponse.SC_OK, fakeResponse.status);
+        assertEquals(CONTENT.length, fakeResponse.contentLength);
+        assertEquals(FragmentResponses.MP4_CONTENT_TYPE, fakeResponse.contentType);
+        assertEquals(0, fakeResponse.body.size());
+    }
+
+    private void sendEntry() throws Exception {
+        final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{HttpServletRequest.class},
+                (proxy, m, args) -> switch (m.getName()) {
+                    case "getHeader" -> requestHeaders.get((String) args[0]);
+                    case "getMethod" -> method;
+                    default -> throw new UnsupportedOperationException(m.getName());
+                });
+        FragmentResponses.sendEntry(request, fakeResponse.asResponse(), entry, CACHE_CONTROL);
+    }
+
+    /**
+     * Records what is set on a response
+     */
+    private static class FakeResponse {
+        int status = HttpServletResponse.SC_OK;
+        final Map<String, String> headers = new HashMap<>();
+        long contentLength = -1;
+        String contentType;
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        HttpServletResponse asResponse() {
+            final ServletOutputStream out = new ServletOutputStream() {
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+            };
+            return (HttpServletResponse) Proxy.newProxyInstance(
+                    FakeResponse.class.getClassLoader(),
+                    new Class<?>[]{HttpServletResponse.class}, (proxy, m, args) -> {
+                        switch (m.getName()) {
+                            case "setStatus" -> status = (Integer) args[0];
+                            case "setHeader" -> headers.put((String) args[0], (String) args[1]);
+                            case "setContentLengthLong" -> contentLength = (Long) args[0];
+                            case "setContentType" -> contentType = (String) args[0];
+                            case "getOutputStream" -> {
+                                return out;
+                            }
+                            default -> throw new UnsupportedOperationException(m.getName());
+                        }
+                        return null;
+                    });
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.homesoft.muxer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class FragmentServerTest {
+    private static final long FRAGMENT_US = 100_000;
+
+    private FragmentServer fragmentServer;
+
+    /**
+     * Return a box of the given type and total size, its payload counting up from 0
+     */
+    private static ByteBuffer newBox(String type, int size) {
+        final ByteBuffer box = ByteBuffer.allocate(size);
+        box.putInt(size);
+        box.put(type.getBytes(StandardCharsets.US_ASCII));
+        for (int i = 0; box.hasRemaining(); i++) {
+            box.put((byte) i);
+        }
+        box.flip();
+        return box;
+    }
+
+    private static byte[] getBytes(FragmentServer.Fragment fragment) {
+        final ByteBuffer bytes = ByteBuffer.allocate((int) fragment.getSize());
+        for (ByteBuffer buffer : fragment.getBuffers()) {
+            bytes.put(buffer);
+        }
+        return bytes.array();
+    }
+
+    /**
+     * Store the next fragment, as the muxer would
+     */
+    private void store(boolean keyFrame, Runnable onFreed) {
+        final long sequence = fragmentServer.getNewestSequence() + 1;
+        fragmentServer.storeFragment(new ByteBuffer[]{ByteBuffer.allocate(100)}, keyFrame,
+                sequence * FRAGMENT_US, FRAGMENT_US, onFreed);
+    }
+
+    private void store(boolean keyFrame) {
+        store(keyFrame, null);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        fragmentServer = new FragmentServer(4);
+        fragmentServer.write(new ByteBuffer[]{newBox("ftyp", 16), newBox("moov", 32)});
+    }
+
+    @Test
+    public void getBoxesSize_boxesAcrossBuffers_returnsSizeFromHeaders() {
+        final ByteBuffer mdatHeader = newBox("mdat", 108);
+        mdatHeader.limit(8);
+
+        assertEquals(124, FragmentServer.getBoxesSize(new ByteBuffer[]{newBox("moof", 16),
+                mdatHeader, ByteBuffer.allocate(60)}));
+        assertEquals(48, FragmentServer.getBoxesSize(new ByteBuffer[]{newBox("ftyp", 16),
+                newBox("moov", 32)}));
+    }
+
+    @Test
+    public void write_wholeFragment_storesIt() throws Exception {
+        fragmentServer.write(new ByteBuffer[]{newBox("moof", 16), newBox("mdat", 108)});
+
+        assertEquals(0, fragmentServer.getNewestSequence());
+        assertEquals(124, fragmentServer.peekFragment(0).getSize());
+    }
+
+    @Test
+    public void write_mdatCutShort_storesFragmentOnceRestIsWritten() throws Exception {
+        final ByteBuffer moof = newBox("moof", 16);
+        final ByteBuffer mdat = newBox("mdat", 108);
+        final byte[] expected = new byte[124];
+        moof.duplicate().get(expected, 0, 16);
+        mdat.duplicate().get(expected, 16, 108);
+        // The muxer writes the mdat header and the samples held in memory, then the spilled ones
+        // through a buffer it reuses
+        mdat.limit(48);
+        fragmentServer.write(new ByteBuffer[]{moof, mdat});
+        final ByteBuffer reused = ByteBuffer.allocate(40);
+        reused.put(expected, 16 + 48, 40);
+        reused.flip();
+        assertEquals(40, fragmentServer.write(reused));
+        assertEquals(-1, fragmentServer.getNewestSequence());
+        reused.clear();
+        reused.put(expected, 16 + 88, 20);
+        reused.flip();
+        fragmentServer.write(reused);
+        // The muxer reuses its buffer, the fragment holds a copy
+        reused.clear();
+        reused.put(new byte[40]);
+
+        final FragmentServer.Fragment fragment = fragmentServer.peekFragment(0);
+        assertNotNull(fragment);
+        assertArrayEquals(expected, getBytes(fragment));
+    }
+
+    @Test
+    public void release_spilledFragment_returnsBufferToPoolOnceFreed() throws Exception {
+        final DirectBufferPool bufferPool = fragmentServer.getBufferPool();
+        final ByteBuffer mdatHeader = newBox("mdat", 8 + 4096);
+        mdatHeader.limit(8);
+        fragmentServer.write(new ByteBuffer[]{newBox("moof", 16), mdatHeader});
+        fragmentServer.write(ByteBuffer.allocate(4096));
+        assertEquals(1, bufferPool.getMissCount());
+        final FragmentServer.Fragment fragment = fragmentServer.retainFragment(0);
+        assertNotNull(fragment);
+
+        for (int i = 0; i < fragmentServer.getCapacity(); i++) {
+            store(false);
+        }
+        assertEquals(0, bufferPool.getPooledBytes());
+        fragment.release();
+
+        assertEquals(4096, bufferPool.getPooledBytes());
+        bufferPool.acquire(4096);
+        assertEquals(1, bufferPool.getHitCount());
+    }
+
+    @Test
+    public void write_outsideFragment_throws() {
+        assertThrows(IllegalStateException.class,
+                () -> fragmentServer.write(ByteBuffer.allocate(10)));
+    }
+
+    @Test
+    public void pollFragment_slowClient_resumesOnNewestKeyFrameFragment() throws Exception {
+        final FragmentServer.Client client = fragmentServer.newClient();
+        store(true);
+        store(false);
+        client.pollFragment().release();
+        // The ring of 4 moves on to 5..8, the client was at 1
+        store(false);
+        store(false);
+        store(false);
+        store(true);
+        store(false);
+        store(false);
+        store(false);
+
+        final FragmentServer.Fragment fragment = client.pollFragment();
+
+        assertEquals(5, fragment.sequence);
+        assertEquals(1, client.getDroppedCount());
+        fragment.release();
+        assertEquals(6, client.pollFragment().sequence);
+    }
+
+    @Test
+    public void pollFragment_newClient_skipsChunksUntilKeyFrame() throws Exception {
+        final FragmentServer.Client client = fragmentServer.newClient();
+        assertNull(client.pollFragment());
+        // Chunks of a segment whose key frame the client missed
+        store(false);
+        store(false);
+        assertNull(client.pollFragment());
+        store(true);
+        store(false);
+
+        assertEquals(2, client.pollFragment().sequence);
+        assertEquals(3, client.pollFragment().sequence);
+        assertEquals(0, client.getDroppedCount());
+    }
+
+    @Test
+    public void release_afterEvictionAndLastClient_runsOnFreedOnce() throws Exception {
+        final AtomicInteger freedCount = new AtomicInteger();
+        store(true, freedCount::incrementAndGet);
+        final FragmentServer.Fragment first = fragmentServer.newClient().pollFragment();
+        final FragmentServer.Fragment second = fragmentServer.newClient().pollFragment();
+        assertEquals(0, second.sequence);
+
+        second.release();
+        assertEquals(0, freedCount.get());
+        // Evict it from the ring
+        for (int i = 0; i < fragmentServer.getCapacity(); i++) {
+            store(false);
+        }
+        assertNull(fragmentServer.retainFragment(0));
+        assertEquals(0, freedCount.get());
+        first.release();
+        assertEquals(1, freedCount.get());
+        fragmentServer.close();
+        assertEquals(1, freedCount.get());
+    }
+
+    @Test
+    public void notifyWhenStored_alreadyStored_runsOnceNow() {
+        final AtomicInteger runCount = new AtomicInteger();
+        store(true);
+
+        fragmentServer.notifyWhenStored(0, runCount::incrementAndGet);
+        assertEquals(1, runCount.get());
+        store(false);
+        assertEquals(1, runCount.get());
+    }
+
+    @Test
+    public void notifyWhenStored_racingStores_runsEachCallbackOnce() throws Exception {
+        final int count = 10_000;
+        final AtomicIntegerArray runCounts = new AtomicIntegerArray(count);
+        final CountDownLatch latch = new CountDownLatch(count);
+        final Thread encoder = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                store(i % 10 == 0);
+            }
+        });
+        encoder.start();
+        // Register as fragments are stored, a fragment stored between the registration and the
+        // re-check must neither be missed nor run the callback twice
+        for (int i = 0; i < count; i++) {
+            final int sequence = i;
+            fragmentServer.notifyWhenStored(sequence, () -> {
+                runCounts.incrementAndGet(sequence);
+                latch.countDown();
+            });
+        }
+        encoder.join();
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertEquals(1, runCounts.get(i));
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.homesoft.muxer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class HlsPlaylistTest {
+    private static final long SEGMENT_US = 1_000_000;
+    private static final long PART_US = 200_000;
+    private static final int PARTS_PER_SEGMENT = (int)(SEGMENT_US / PART_US);
+    private static final long START_US = 5_000_000;
+
+    private FragmentServer fragmentServer;
+    private HlsPlaylist hlsPlaylist;
+
+    /**
+     * Store the header, then whole segments of key frame led parts, then more parts
+     */
+    private void store(int capacity, int segments, int parts) throws Exception {
+        fragmentServer = new FragmentServer(capacity);
+        hlsPlaylist = new HlsPlaylist(fragmentServer, SEGMENT_US, PART_US);
+        fragmentServer.write(new ByteBuffer[]{ByteBuffer.allocate(16)});
+        final int count = segments * PARTS_PER_SEGMENT + parts;
+        for (int i = 0; i < count; i++) {
+            fragmentServer.storeFragment(new ByteBuffer[]{ByteBuffer.allocate(100)},
+                    i % PARTS_PER_SEGMENT == 0, START_US + i * PART_US, PART_US, null);
+        }
+    }
+
+    @Test
+    public void build_noFragment_returnsNull() throws Exception {
+        store(30, 0, 0);
+
+        assertNull(hlsPlaylist.build());
+        assertNull(new HlsPlaylist(new FragmentServer(30), SEGMENT_US, PART_US).build());
+    }
+
+    @Test
+    public void build_listsCompleteSegmentsWithDurations() throws Exception {
+        store(30, 3, 2);
+
+        final String playlist = hlsPlaylist.build();
+
+        assertTrue(playlist.startsWith("#EXTM3U\n"));
+        assertTrue(playlist.contains("#EXT-X-TARGETDURATION:1\n"));
+        assertTrue(playlist.contains("#EXT-X-MEDIA-SEQUENCE:0\n"));
+        assertTrue(playlist.contains("#EXT-X-MAP:URI=\"init.mp4\"\n"));
+        assertTrue(playlist.contains("#EXTINF:1.000,\nseg0.m4s\n"));
+        assertTrue(playlist.contains("#EXTINF:1.000,\nseg2.m4s\n"));
+        // The segment being written is only listed as parts
+        assertFalse(playlist.contains("seg3.m4s"));
+        assertTrue(playlist.contains("part3.1.m4s"));
+    }
+
+    @Test
+    public void build_listsPartInfAndRecentPartsOnly() throws Exception {
+        store(30, 3, 2);
+
+        final String playlist = hlsPlaylist.build();
+
+        assertTrue(playlist.contains("#EXT-X-PART-INF:PART-TARGET=0.200\n"));
+        assertTrue(playlist.contains(
+                "#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=0.600\n"));
+        // Parts are listed up to 3 target durations from the live edge at 3.4s
+        assertFalse(playlist.contains("part0.1.m4s"));
+        assertTrue(playlist.contains(
+                "#EXT-X-PART:DURATION=0.200,URI=\"part0.2.m4s\"\n"));
+        assertTrue(playlist.contains(
+                "#EXT-X-PART:DURATION=0.200,URI=\"part1.0.m4s\",INDEPENDENT=YES\n"));
+    }
+
+    @Test
+    public void build_endsWithPreloadHintOfNextPart() throws Exception {
+        store(30, 3, 2);
+
+        final String playlist = hlsPlaylist.build();
+
+        assertTrue(playlist.endsWith(
+                "#EXT-X-PART:DURATION=0.200,URI=\"part3.1.m4s\"\n"
+                        + "#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"part3.2.m4s\"\n"));
+    }
+
+    @Test
+    public void build_afterRingWraps_slidesWindow() throws Exception {
+        // The ring holds 2 segments
+        store(2 * PARTS_PER_SEGMENT, 4, 0);
+
+        final String playlist = hlsPlaylist.build();
+
+        assertTrue(playlist.contains("#EXT-X-MEDIA-SEQUENCE:2\n"));
+        assertFalse(playlist.contains("seg1.m4s"));
+        assertTrue(playlist.contains("seg2.m4s"));
+    }
+
+    @Test
+    public void build_oldestFragmentInsideSegment_startsAtNextSegment() throws Exception {
+        // The oldest fragment in the ring is the third part of segment 2
+        store(2 * PARTS_PER_SEGMENT, 4, 2);
+
+        final String playlist = hlsPlaylist.build();
+
+        assertTrue(playlist.contains("#EXT-X-MEDIA-SEQUENCE:3\n"));
+        assertFalse(playlist.contains("part2."));
+    }
+
+    @Test
+    public void contains_forBlockingReload_waitsForSegmentOrPart() throws Exception {
+        store(30, 3, 2);
+
+        assertTrue(hlsPlaylist.contains(2, -1));
+        assertFalse(hlsPlaylist.contains(3, -1));
+        assertTrue(hlsPlaylist.contains(3, 1));
+        assertFalse(hlsPlaylist.contains(3, 2));
+        assertEquals(3, hlsPlaylist.getNewestSegmentNumber());
+    }
+
+    @Test
+    public void isAhead_preloadHintedPart_returnsTrue() throws Exception {
+        store(30, 3, 2);
+
+        assertTrue(hlsPlaylist.isAhead(3, 2));
+        assertTrue(hlsPlaylist.isAhead(4, 0));
+        assertFalse(hlsPlaylist.isAhead(3, 1));
+    }
+
+    @Test
+    public void retainSegment_completeSegment_returnsAllParts() throws Exception {
+        store(30, 3, 2);
+
+        final List<FragmentServer.Fragment> segment = hlsPlaylist.retainSegment(1);
+
+        assertNotNull(segment);
+        assertEquals(PARTS_PER_SEGMENT, segment.size());
+        assertEquals(START_US + SEGMENT_US, segment.get(0).timeUs);
+        HlsPlaylist.release(segment);
+        assertNull(hlsPlaylist.retainSegment(3));
+        assertNotNull(hlsPlaylist.retainPart(3, 1));
+        assertNull(hlsPlaylist.retainPart(3, 2));
+    }
+
+    @Test
+    public void parseSegmentName_returnsMediaSequenceNumber() {
+        assertEquals(12, HlsPlaylist.parseSegmentName("seg12.m4s"));
+        assertEquals(-1, HlsPlaylist.parseSegmentName("seg-1.m4s"));
+        assertEquals(-1, HlsPlaylist.parseSegmentName("part1.2.m4s"));
+        assertEquals(-1, HlsPlaylist.parseSegmentName("seg.m4s"));
+    }
+
+    @Test
+    public void parsePartName_returnsMediaSequenceNumberAndPart() {
+        assertArrayEquals(new long[]{12, 3}, HlsPlaylist.parsePartName("part12.3.m4s"));
+        assertNull(HlsPlaylist.parsePartName("part12.m4s"));
+        assertNull(HlsPlaylist.parsePartName("part12.x.m4s"));
+        assertNull(HlsPlaylist.parsePartName("seg12.m4s"));
+    }
+
+    @Test
+    public void parseBlockingReload_returnsMsnAndPart() {
+        assertArrayEquals(new long[]{-1, -1}, HlsPlaylist.parseBlockingReload(null, null));
+        assertArrayEquals(new long[]{7, -1}, HlsPlaylist.parseBlockingReload("7", null));
+        assertArrayEquals(new long[]{7, 2}, HlsPlaylist.parseBlockingReload("7", "2"));
+    }
+
+    @Test
+    public void parseBlockingReload_malformedOrPartWithoutMsn_returnsNull() {
+        assertNull(HlsPlaylist.parseBlockingReload(null, "2"));
+        assertNull(HlsPlaylist.parseBlockingReload("-7", null));
+        assertNull(HlsPlaylist.parseBlockingReload("7", "x"));
+        assertNull(HlsPlaylist.parseBlockingReload("7", "99999999999"));
+        assertNull(HlsPlaylist.parseBlockingReload("", null));
+    }
+}
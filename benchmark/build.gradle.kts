@@ -0,0 +1,36 @@
+plugins {
+    id("com.android.library")
+    id("androidx.benchmark")
+}
+
+android {
+    namespace = "com.homesoft.muxer.benchmark"
+    compileSdk = 34
+
+    defaultConfig {
+        minSdk = 21
+
+        testInstrumentationRunner = "androidx.benchmark.junit4.AndroidBenchmarkRunner"
+    }
+    // Benchmarks must run against a non-debuggable build to give meaningful numbers.
+    testBuildType = "release"
+    buildTypes {
+        release {
+            isMinifyEnabled = false
+            isDefault = true
+        }
+    }
+    compileOptions {
+        sourceCompatibility = JavaVersion.VERSION_17
+        targetCompatibility = JavaVersion.VERSION_17
+    }
+}
+
+//Run on a connected device
+//gradlew benchmark:connectedReleaseAndroidTest
+dependencies {
+    androidTestImplementation(project(":lib-muxer"))
+    androidTestImplementation("androidx.benchmark:benchmark-junit4:1.2.4")
+    androidTestImplementation("androidx.test.ext:junit:1.1.5")
+    androidTestImplementation("junit:junit:4.13.2")
+}
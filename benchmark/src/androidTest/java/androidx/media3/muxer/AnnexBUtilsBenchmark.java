@@ -0,0 +1,100 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import com.google.common.collect.ImmutableList;
+import java.nio.ByteBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Benchmarks for {@link AnnexBUtils} and the {@link AnnexBToAvccConverter} implementations, over
+ * {@code sampleCount} H.264 samples.
+ */
+@RunWith(Parameterized.class)
+public class AnnexBUtilsBenchmark {
+
+  @Parameters(name = "sampleCount={0}")
+  public static ImmutableList<Integer> sampleCounts() {
+    return MuxerBenchmarkUtil.SAMPLE_COUNTS;
+  }
+
+  @Parameter public int sampleCount;
+  @Rule public final BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+  @Test
+  public void findNalUnits() {
+    ByteBuffer sample = MuxerBenchmarkUtil.newVideoSample(/* headroom= */ 0);
+
+    BenchmarkState state = benchmarkRule.getState();
+    while (state.keepRunning()) {
+      for (int i = 0; i < sampleCount; i++) {
+        if (AnnexBUtils.findNalUnits(sample).isEmpty()) {
+          throw new IllegalStateException();
+        }
+      }
+    }
+  }
+
+  @Test
+  public void findNalUnits_withCursor() {
+    ByteBuffer sample = MuxerBenchmarkUtil.newVideoSample(/* headroom= */ 0);
+    AnnexBUtils.NalUnitCursor cursor = new AnnexBUtils.NalUnitCursor();
+
+    BenchmarkState state = benchmarkRule.getState();
+    while (state.keepRunning()) {
+      for (int i = 0; i < sampleCount; i++) {
+        AnnexBUtils.findNalUnits(sample, cursor);
+        if (cursor.count() == 0) {
+          throw new IllegalStateException();
+        }
+      }
+    }
+  }
+
+  @Test
+  public void process_defaultConverter() {
+    runConverter(AnnexBToAvccConverter.DEFAULT);
+  }
+
+  @Test
+  public void process_inPlaceConverter() {
+    runConverter(new InPlaceAnnexBToAvccConverter());
+  }
+
+  /** Converts a sample {@code sampleCount} times, restoring its Annex-B content each time. */
+  private void runConverter(AnnexBToAvccConverter converter) {
+    ByteBuffer annexBSample = MuxerBenchmarkUtil.newVideoSample(/* headroom= */ 0);
+    ByteBuffer sample = MuxerBenchmarkUtil.newVideoSample(/* headroom= */ 0);
+
+    BenchmarkState state = benchmarkRule.getState();
+    while (state.keepRunning()) {
+      for (int i = 0; i < sampleCount; i++) {
+        sample.clear();
+        sample.put(annexBSample);
+        sample.flip();
+        annexBSample.rewind();
+        converter.process(sample);
+      }
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.common.util.Assertions.checkNotNull;
+import static androidx.media3.muxer.MuxerBenchmarkUtil.VIDEO_FORMAT;
+import static androidx.media3.muxer.MuxerBenchmarkUtil.VIDEO_FRAMES_PER_GOP;
+import static androidx.media3.muxer.MuxerBenchmarkUtil.VIDEO_FRAME_DURATION_US;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Benchmarks for the ways of writing a non fragmented MP4 file, with large video samples of a
+ * long recording.
+ *
+ * <p>The samples are about 15 Mbit/s of 30 fps video, already in the AVCC format, so that the
+ * reported time is mostly that of writing {@code frameCount} samples to the storage.
+ *
+ * <p>Run with {@code gradlew benchmark:connectedReleaseAndroidTest} on a device with a stable clock.
+ */
+@RunWith(Parameterized.class)
+public class Mp4FileOutputBenchmark {
+  private static final String OUTPUT_MODE_CHANNEL = "channel";
+  private static final String OUTPUT_MODE_MEMORY_MAPPED = "memoryMapped";
+  private static final String OUTPUT_MODE_WRITE_QUEUE = "writeQueue";
+  private static final String OUTPUT_MODE_PREALLOCATED = "preallocated";
+
+  private static final int VIDEO_SAMPLE_SIZE = 64 * 1024;
+
+  /**
+   * The number of buffers to cycle through, which must exceed the samples pending in the muxer,
+   * about a second of video, and those in the write queue.
+   */
+  private static final int SAMPLE_RING_SIZE = 128;
+
+  private static final int WRITE_QUEUE_CAPACITY_BYTES = 32 * VIDEO_SAMPLE_SIZE;
+  private static final int PREALLOCATION_BYTES = 16 * VIDEO_SAMPLE_SIZE;
+
+  @Parameters(name = "outputMode={0},frameCount={1}")
+  public static ImmutableList<Object[]> parameters() {
+    ImmutableList.Builder<Object[]> parameters = ImmutableList.builder();
+    for (String outputMode :
+        ImmutableList.of(
+            OUTPUT_MODE_CHANNEL,
+            OUTPUT_MODE_MEMORY_MAPPED,
+            OUTPUT_MODE_WRITE_QUEUE,
+            OUTPUT_MODE_PREALLOCATED)) {
+      // One and five minutes of video.
+      parameters.add(new Object[] {outputMode, 1_800});
+      parameters.add(new Object[] {outputMode, 9_000});
+    }
+    return parameters.build();
+  }
+
+  @Parameter(0)
+  public String outputMode;
+
+  @Parameter(1)
+  public int frameCount;
+
+  @Rule public final BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+  private File outputFile;
+  private ByteBuffer[] samples;
+  private BufferInfo[] bufferInfos;
+
+  @Before
+  public void setUp() throws IOException {
+    outputFile =
+        File.createTempFile(
+            "benchmark", ".mp4", ApplicationProvider.getApplicationContext().getCacheDir());
+    samples = new ByteBuffer[SAMPLE_RING_SIZE];
+    bufferInfos = new BufferInfo[SAMPLE_RING_SIZE];
+    for (int i = 0; i < SAMPLE_RING_SIZE; i++) {
+      samples[i] = ByteBuffer.allocateDirect(VIDEO_SAMPLE_SIZE);
+      // A single NAL unit with a length prefix, followed by arbitrary data.
+      samples[i].putInt(VIDEO_SAMPLE_SIZE - 4);
+      samples[i].put((byte) 0x41);
+      while (samples[i].hasRemaining()) {
+        samples[i].put((byte) (samples[i].position() * 31 + i));
+      }
+      bufferInfos[i] = new BufferInfo();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    checkNotNull(outputFile).delete();
+  }
+
+  @Test
+  public void writeSampleData_largeRecording() throws IOException {
+    BenchmarkState state = benchmarkRule.getState();
+    while (state.keepRunning()) {
+      state.pauseTiming();
+      checkNotNull(outputFile).delete();
+      RandomAccessFile randomAccessFile = new RandomAccessFile(checkNotNull(outputFile), "rw");
+      Mp4Muxer.Builder builder =
+          new Mp4Muxer.Builder(randomAccessFile.getChannel())
+              .setAnnexBToAvccConverter(inputBuffer -> {});
+      if (outputMode.equals(OUTPUT_MODE_MEMORY_MAPPED)) {
+        builder.setMemoryMappedOutputEnabled(true);
+      } else if (outputMode.equals(OUTPUT_MODE_WRITE_QUEUE)) {
+        builder.setWriteQueueCapacityBytes(WRITE_QUEUE_CAPACITY_BYTES);
+      } else if (outputMode.equals(OUTPUT_MODE_PREALLOCATED)) {
+        builder
+            .setWriteQueueCapacityBytes(WRITE_QUEUE_CAPACITY_BYTES)
+            .setPreallocationBytes(PREALLOCATION_BYTES);
+      }
+      state.resumeTiming();
+
+      Mp4Muxer mp4Muxer = builder.build();
+      try {
+        Mp4Muxer.TrackToken videoToken = mp4Muxer.addTrack(/* sortKey= */ 0, VIDEO_FORMAT);
+        for (int i = 0; i < frameCount; i++) {
+          ByteBuffer sample = samples[i % SAMPLE_RING_SIZE];
+          sample.rewind();
+          BufferInfo bufferInfo = bufferInfos[i % SAMPLE_RING_SIZE];
+          bufferInfo.set(
+              /* newOffset= */ 0,
+              VIDEO_SAMPLE_SIZE,
+              /* newTimeUs= */ i * VIDEO_FRAME_DURATION_US,
+              i % VIDEO_FRAMES_PER_GOP == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+          mp4Muxer.writeSampleData(videoToken, sample, bufferInfo);
+        }
+      } finally {
+        mp4Muxer.close();
+      }
+
+      state.pauseTiming();
+      randomAccessFile.close();
+      state.resumeTiming();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.muxer.MuxerBenchmarkUtil.AUDIO_FORMAT;
+import static androidx.media3.muxer.MuxerBenchmarkUtil.AUDIO_FRAME_DURATION_US;
+import static androidx.media3.muxer.MuxerBenchmarkUtil.VIDEO_FORMAT;
+import static androidx.media3.muxer.MuxerBenchmarkUtil.VIDEO_FRAMES_PER_GOP;
+import static androidx.media3.muxer.MuxerBenchmarkUtil.VIDEO_FRAME_DURATION_US;
+
+import android.media.MediaCodec;
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import com.google.common.collect.ImmutableList;
+import java.nio.ByteBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Benchmarks for {@link Mp4MoovStructure}, building the moov box of a file with {@code sampleCount}
+ * samples split between a video and an audio track.
+ */
+@RunWith(Parameterized.class)
+public class Mp4MoovStructureBenchmark {
+  /** The number of samples of each track in a chunk, like {@code DefaultMp4Writer} writes. */
+  private static final int SAMPLES_PER_CHUNK = 30;
+
+  private static final int VIDEO_SAMPLE_SIZE = 10_000;
+  private static final int AUDIO_SAMPLE_SIZE = 400;
+
+  @Parameters(name = "sampleCount={0}")
+  public static ImmutableList<Integer> sampleCounts() {
+    return MuxerBenchmarkUtil.SAMPLE_COUNTS;
+  }
+
+  @Parameter public int sampleCount;
+  @Rule public final BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+  @Test
+  public void moovMetadataHeader() {
+    Mp4Writer.Track videoTrack = new Mp4Writer.Track(VIDEO_FORMAT, /* sortKey= */ 0);
+    Mp4Writer.Track audioTrack = new Mp4Writer.Track(AUDIO_FORMAT, /* sortKey= */ 1);
+    long offset = 0;
+    for (int i = 0; i < sampleCount / 2; i++) {
+      videoTrack.writtenSamples.addSample(
+          /* presentationTimeUs= */ i * VIDEO_FRAME_DURATION_US,
+          VIDEO_SAMPLE_SIZE,
+          i % VIDEO_FRAMES_PER_GOP == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+      audioTrack.writtenSamples.addSample(
+          /* presentationTimeUs= */ i * AUDIO_FRAME_DURATION_US,
+          AUDIO_SAMPLE_SIZE,
+          MediaCodec.BUFFER_FLAG_KEY_FRAME);
+      if ((i + 1) % SAMPLES_PER_CHUNK == 0) {
+        videoTrack.writtenSamples.addChunk(offset, SAMPLES_PER_CHUNK);
+        offset += SAMPLES_PER_CHUNK * VIDEO_SAMPLE_SIZE;
+        audioTrack.writtenSamples.addChunk(offset, SAMPLES_PER_CHUNK);
+        offset += SAMPLES_PER_CHUNK * AUDIO_SAMPLE_SIZE;
+      }
+    }
+    ImmutableList<Mp4Writer.Track> tracks = ImmutableList.of(videoTrack, audioTrack);
+    Mp4MoovStructure moovStructure =
+        new Mp4MoovStructure(
+            new MetadataCollector(), Mp4Muxer.LAST_FRAME_DURATION_BEHAVIOR_INSERT_SHORT_FRAME);
+
+    BenchmarkState state = benchmarkRule.getState();
+    while (state.keepRunning()) {
+      ByteBuffer moov =
+          moovStructure
+              .moovMetadataHeader(tracks, /* minInputPtsUs= */ 0L, /* isFragmentedMp4= */ false)
+              .toByteBuffer();
+      if (!moov.hasRemaining()) {
+        throw new IllegalStateException();
+      }
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.common.util.Assertions.checkNotNull;
+import static androidx.media3.muxer.MuxerBenchmarkUtil.AUDIO_FORMAT;
+import static androidx.media3.muxer.MuxerBenchmarkUtil.VIDEO_FORMAT;
+import static androidx.media3.muxer.MuxerBenchmarkUtil.VIDEO_FRAME_DURATION_US;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Benchmarks for {@link Mp4Muxer}, writing synthetic H.264 and AAC samples.
+ *
+ * <p>The reported time is for {@code sampleCount} samples, so the throughput in samples/sec is
+ * {@code sampleCount / time}. The reported allocations are also for {@code sampleCount} samples.
+ *
+ * <p>Run with {@code gradlew benchmark:connectedReleaseAndroidTest} on a device with a stable clock.
+ */
+@RunWith(Parameterized.class)
+public class Mp4MuxerBenchmark {
+
+  @Parameters(name = "sampleCount={0}")
+  public static ImmutableList<Integer> sampleCounts() {
+    return MuxerBenchmarkUtil.SAMPLE_COUNTS;
+  }
+
+  @Parameter public int sampleCount;
+  @Rule public final BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+  private File outputFile;
+
+  @Before
+  public void setUp() throws IOException {
+    outputFile =
+        File.createTempFile(
+            "benchmark", ".mp4", ApplicationProvider.getApplicationContext().getCacheDir());
+  }
+
+  @After
+  public void tearDown() {
+    checkNotNull(outputFile).delete();
+  }
+
+  /**
+   * Writes a fragmented MP4, which includes building a moof box with {@code
+   * FragmentedMp4Writer.createFragment} for each group of pictures.
+   */
+  @Test
+  public void writeSampleData_fragmented() throws IOException {
+    BenchmarkState state = benchmarkRule.getState();
+    while (state.keepRunning()) {
+      Mp4Muxer mp4Muxer = new Mp4Muxer.Builder(new MuxerBenchmarkUtil.NullChannel()).build();
+      writeAudioAndVideo(mp4Muxer);
+    }
+  }
+
+  /**
+   * Writes a fragmented MP4 in low-latency chunks, which builds a moof box for every few samples.
+   */
+  @Test
+  public void writeSampleData_fragmentedWithChunks() throws IOException {
+    BenchmarkState state = benchmarkRule.getState();
+    while (state.keepRunning()) {
+      Mp4Muxer mp4Muxer =
+          new Mp4Muxer.Builder(new MuxerBenchmarkUtil.NullChannel())
+              .setChunkDurationUs(200_000)
+              .build();
+      writeAudioAndVideo(mp4Muxer);
+    }
+  }
+
+  /**
+   * Writes a regular MP4 file, which includes moving the samples with {@code
+   * DefaultMp4Writer.flushPending} and rewriting the moov box as the file grows.
+   */
+  @Test
+  public void writeSampleData_toFile() throws IOException {
+    BenchmarkState state = benchmarkRule.getState();
+    while (state.keepRunning()) {
+      state.pauseTiming();
+      FileOutputStream outputStream = new FileOutputStream(checkNotNull(outputFile));
+      state.resumeTiming();
+
+      Mp4Muxer mp4Muxer = new Mp4Muxer.Builder(outputStream).build();
+      writeAudioAndVideo(mp4Muxer);
+
+      state.pauseTiming();
+      outputStream.close();
+      state.resumeTiming();
+    }
+  }
+
+  /**
+   * Builds a single fragment of {@code sampleCount} video samples, which measures {@code
+   * FragmentedMp4Writer.createFragment} and the moof box alone.
+   *
+   * <p>The samples share a buffer that is already in the AVCC format, so that they need no memory
+   * and no conversion.
+   */
+  @Test
+  public void close_fragmentOfAllSamples() throws IOException {
+    ByteBuffer sample = MuxerBenchmarkUtil.newVideoSample(/* headroom= */ 0);
+    AnnexBToAvccConverter.DEFAULT.process(sample);
+    BufferInfo[] bufferInfos = new BufferInfo[sampleCount];
+    for (int i = 0; i < sampleCount; i++) {
+      bufferInfos[i] = new BufferInfo();
+      bufferInfos[i].set(
+          /* newOffset= */ 0,
+          sample.remaining(),
+          /* newTimeUs= */ i * VIDEO_FRAME_DURATION_US,
+          i == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+    }
+
+    BenchmarkState state = benchmarkRule.getState();
+    while (state.keepRunning()) {
+      state.pauseTiming();
+      Mp4Muxer mp4Muxer =
+          new Mp4Muxer.Builder(new MuxerBenchmarkUtil.NullChannel())
+              .setFragmentDurationUs(Integer.MAX_VALUE)
+              .setAnnexBToAvccConverter(inputBuffer -> {})
+              .build();
+      Mp4Muxer.TrackToken videoToken = mp4Muxer.addTrack(/* sortKey= */ 0, VIDEO_FORMAT);
+      for (int i = 0; i < sampleCount; i++) {
+        mp4Muxer.writeSampleData(videoToken, sample, bufferInfos[i]);
+      }
+      state.resumeTiming();
+
+      mp4Muxer.close();
+    }
+  }
+
+  private void writeAudioAndVideo(Mp4Muxer mp4Muxer) throws IOException {
+    try {
+      Mp4Muxer.TrackToken videoToken = mp4Muxer.addTrack(/* sortKey= */ 0, VIDEO_FORMAT);
+      Mp4Muxer.TrackToken audioToken = mp4Muxer.addTrack(/* sortKey= */ 1, AUDIO_FORMAT);
+      MuxerBenchmarkUtil.writeSamples(mp4Muxer, videoToken, audioToken, sampleCount);
+    } finally {
+      mp4Muxer.close();
+    }
+  }
+}
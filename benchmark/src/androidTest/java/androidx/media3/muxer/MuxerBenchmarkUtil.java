@@ -0,0 +1,195 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.common.MimeTypes.AUDIO_AAC;
+import static androidx.media3.common.MimeTypes.VIDEO_H264;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import androidx.media3.common.Format;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/** Synthetic samples and outputs for the muxer benchmarks. */
+/* package */ final class MuxerBenchmarkUtil {
+
+  /** The sample counts each benchmark is run with. */
+  public static final ImmutableList<Integer> SAMPLE_COUNTS =
+      ImmutableList.of(1_000, 100_000, 1_000_000);
+
+  public static final long VIDEO_FRAME_DURATION_US = 33_333;
+  public static final int VIDEO_FRAMES_PER_GOP = 30;
+  public static final int AUDIO_SAMPLE_RATE = 48_000;
+  public static final long AUDIO_FRAME_DURATION_US = 1024 * 1_000_000L / AUDIO_SAMPLE_RATE;
+
+  private static final byte[] FAKE_CSD_0 =
+      BaseEncoding.base16().decode("0000000167F4000A919B2BF3CB3640000003004000000C83C4896580");
+  private static final byte[] FAKE_CSD_1 = BaseEncoding.base16().decode("0000000168EBE3C448");
+
+  public static final Format VIDEO_FORMAT =
+      new Format.Builder()
+          .setSampleMimeType(VIDEO_H264)
+          .setWidth(12)
+          .setHeight(10)
+          .setInitializationData(ImmutableList.of(FAKE_CSD_0, FAKE_CSD_1))
+          .build();
+  public static final Format AUDIO_FORMAT =
+      new Format.Builder()
+          .setSampleMimeType(AUDIO_AAC)
+          .setSampleRate(AUDIO_SAMPLE_RATE)
+          .setChannelCount(2)
+          .build();
+
+  /**
+   * The same sample as {@code MuxerTestUtil.getFakeSampleAndSampleInfo}, except that the slice has
+   * a 4-byte start code, which all the {@link AnnexBToAvccConverter} implementations support.
+   */
+  private static final byte[] FAKE_H264_SAMPLE =
+      BaseEncoding.base16()
+          .decode(
+              "0000000167F4000A919B2BF3CB3640000003004000000C83C48965800000000168EBE3C44800000001658884002BFFFEF5DBF32CAE4A43FF");
+
+  private static final int FAKE_AAC_SAMPLE_SIZE = 128;
+
+  /** The number of buffers of each track to cycle through, which must exceed a fragment. */
+  private static final int SAMPLE_RING_SIZE = 512;
+
+  private MuxerBenchmarkUtil() {}
+
+  /**
+   * Returns an H.264 sample in the Annex-B format, in a new direct buffer with {@code headroom}
+   * spare bytes of capacity.
+   */
+  public static ByteBuffer newVideoSample(int headroom) {
+    ByteBuffer sample = ByteBuffer.allocateDirect(FAKE_H264_SAMPLE.length + headroom);
+    sample.put(FAKE_H264_SAMPLE);
+    sample.flip();
+    return sample;
+  }
+
+  /** Returns an AAC sample, in a new direct buffer. */
+  public static ByteBuffer newAudioSample() {
+    ByteBuffer sample = ByteBuffer.allocateDirect(FAKE_AAC_SAMPLE_SIZE);
+    for (int i = 0; i < FAKE_AAC_SAMPLE_SIZE; i++) {
+      sample.put((byte) i);
+    }
+    sample.flip();
+    return sample;
+  }
+
+  /**
+   * Writes {@code sampleCount} samples of interleaved video and audio, in presentation order, like
+   * a camera recording.
+   *
+   * <p>The muxer converts the video samples in place and keeps them, with their {@link BufferInfo},
+   * until they are written, so each write takes the next buffer and info of a ring and restores its
+   * content, which is part of the measured time. No other allocation is made here.
+   */
+  public static void writeSamples(
+      Mp4Muxer mp4Muxer,
+      Mp4Muxer.TrackToken videoToken,
+      Mp4Muxer.TrackToken audioToken,
+      int sampleCount)
+      throws IOException {
+    ByteBuffer[] videoSamples = new ByteBuffer[SAMPLE_RING_SIZE];
+    ByteBuffer[] audioSamples = new ByteBuffer[SAMPLE_RING_SIZE];
+    BufferInfo[] bufferInfos = new BufferInfo[2 * SAMPLE_RING_SIZE];
+    for (int i = 0; i < SAMPLE_RING_SIZE; i++) {
+      videoSamples[i] = newVideoSample(/* headroom= */ 0);
+      audioSamples[i] = newAudioSample();
+    }
+    for (int i = 0; i < bufferInfos.length; i++) {
+      bufferInfos[i] = new BufferInfo();
+    }
+    int videoSampleIndex = 0;
+    int audioSampleIndex = 0;
+    for (int i = 0; i < sampleCount; i++) {
+      BufferInfo bufferInfo = bufferInfos[i % bufferInfos.length];
+      long videoPresentationTimeUs = videoSampleIndex * VIDEO_FRAME_DURATION_US;
+      long audioPresentationTimeUs = audioSampleIndex * AUDIO_FRAME_DURATION_US;
+      if (videoPresentationTimeUs <= audioPresentationTimeUs) {
+        ByteBuffer sample = videoSamples[videoSampleIndex % SAMPLE_RING_SIZE];
+        sample.clear();
+        sample.put(FAKE_H264_SAMPLE);
+        sample.flip();
+        bufferInfo.set(
+            /* newOffset= */ 0,
+            sample.remaining(),
+            videoPresentationTimeUs,
+            videoSampleIndex % VIDEO_FRAMES_PER_GOP == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        mp4Muxer.writeSampleData(videoToken, sample, bufferInfo);
+        videoSampleIndex++;
+      } else {
+        ByteBuffer sample = audioSamples[audioSampleIndex % SAMPLE_RING_SIZE];
+        sample.rewind();
+        bufferInfo.set(
+            /* newOffset= */ 0,
+            sample.remaining(),
+            audioPresentationTimeUs,
+            MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        mp4Muxer.writeSampleData(audioToken, sample, bufferInfo);
+        audioSampleIndex++;
+      }
+    }
+  }
+
+  /**
+   * A {@link GatheringByteChannel} that discards what is written, without consuming the buffers, so
+   * that only the cost of the muxer is measured.
+   */
+  public static final class NullChannel implements GatheringByteChannel {
+    private long bytesWritten;
+
+    /** Returns the number of bytes written so far. */
+    public long getBytesWritten() {
+      return bytesWritten;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+      long written = 0;
+      for (int i = offset; i < offset + length; i++) {
+        written += srcs[i].remaining();
+      }
+      bytesWritten += written;
+      return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      int written = src.remaining();
+      bytesWritten += written;
+      return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
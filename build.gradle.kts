@@ -2,4 +2,5 @@
 plugins {
     id("com.android.application") version "8.3.2" apply false
     id("com.android.library") version "8.3.2" apply false
+    id("androidx.benchmark") version "1.2.4" apply false
 }
\ No newline at end of file
@@ -15,9 +15,15 @@
  */
 package androidx.media3.muxer;
 
+import static androidx.media3.common.util.Assertions.checkIndex;
+
+import androidx.media3.common.C;
+
 import com.google.common.collect.ImmutableList;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /** NAL unit utilities for start codes and emulation prevention. */
 /* package */ final class AnnexBUtils {
@@ -31,35 +37,166 @@ import java.nio.ByteBuffer;
    * <p>The position of the input buffer is unchanged after calling this method.
    */
   public static ImmutableList<ByteBuffer> findNalUnits(ByteBuffer input) {
-    if (input.remaining() < 4 || input.getInt(0) != 1) {
+    NalUnitCursor cursor = new NalUnitCursor();
+    findNalUnits(input, cursor);
+    if (cursor.count() == 0) {
       return ImmutableList.of();
     }
 
     ImmutableList.Builder<ByteBuffer> nalUnits = new ImmutableList.Builder<>();
+    for (int i = 0; i < cursor.count(); i++) {
+      nalUnits.add(getBytes(input, cursor.offset(i), cursor.length(i)));
+    }
+    input.rewind();
+    return nalUnits.build();
+  }
 
-    int lastStart = 4;
-    int zerosSeen = 0;
+  /**
+   * Finds the individual NAL units (0x00000001 start code) of a {@link ByteBuffer}, without
+   * allocating.
+   *
+   * <p>The {@code cursor} is cleared, and is left empty if the input is not NAL units.
+   *
+   * <p>The position of the input buffer is unchanged after calling this method.
+   *
+   * @param input The buffer to split, whose first NAL unit starts at index 0.
+   * @param cursor The {@link NalUnitCursor} that receives the offset and length of each NAL unit.
+   */
+  public static void findNalUnits(ByteBuffer input, NalUnitCursor cursor) {
+    cursor.clear();
+    if (input.remaining() < 4 || input.getInt(0) != 1 || input.limit() == 4) {
+      return;
+    }
 
-    for (int i = 4; i < input.limit(); i++) {
-      if (input.get(i) == 1 && zerosSeen >= 3) {
-        // We're just looking at a start code.
-        nalUnits.add(getBytes(input, lastStart, i - 3 - lastStart));
-        lastStart = i + 1;
+    int nalUnitStart = 4;
+    while (true) {
+      int startCodeIndex = findStartCode(input, nalUnitStart);
+      if (startCodeIndex == C.INDEX_UNSET) {
+        cursor.add(nalUnitStart, input.limit() - nalUnitStart);
+        return;
       }
+      cursor.add(nalUnitStart, startCodeIndex - nalUnitStart);
+      nalUnitStart = startCodeIndex + 4;
+    }
+  }
 
-      // Handle the end of the stream.
-      if (i == input.limit() - 1) {
-        nalUnits.add(getBytes(input, lastStart, input.limit() - lastStart));
+  /**
+   * Returns the index of the next 0x00000001 start code in {@code input}, or {@link
+   * C#INDEX_UNSET} if there is none.
+   *
+   * <p>If the start code is preceded by more zeros, these belong to the previous NAL unit, so the
+   * returned index is always that of the third zero before the 0x01 byte.
+   *
+   * <p>The input is skipped a word at a time up to the next zero byte, so the search is fast on
+   * encoded NAL units, which contain few zero bytes because of emulation prevention.
+   *
+   * @param input The buffer to search, up to its limit.
+   * @param fromIndex The index from which to search.
+   */
+  public static int findStartCode(ByteBuffer input, int fromIndex) {
+    int limit = input.limit();
+    for (int index = findZeroByte(input, fromIndex, limit);
+        index != C.INDEX_UNSET;
+        index = findZeroByte(input, index + 1, limit)) {
+      if (index + 3 < limit
+          && input.get(index + 1) == 0
+          && input.get(index + 2) == 0
+          && input.get(index + 3) == 1) {
+        return index;
       }
+    }
+    return C.INDEX_UNSET;
+  }
 
-      if (input.get(i) == 0) {
-        zerosSeen++;
-      } else {
-        zerosSeen = 0;
+  /**
+   * Splits a {@link ByteBuffer} into individual NAL units, without allocating.
+   *
+   * <p>Unlike {@link #findNalUnits(ByteBuffer, NalUnitCursor)}, both the 3-byte (0x000001) and the
+   * 4-byte (0x00000001) start codes are recognized, and the zero bytes before a start code
+   * (trailing_zero_8bits) are not part of any NAL unit. Empty NAL units are skipped.
+   *
+   * <p>The {@code cursor} is cleared, and is left empty if the input does not start with a start
+   * code.
+   *
+   * <p>The position of the input buffer is unchanged after calling this method.
+   *
+   * @param input The buffer to split, from index 0 to its limit.
+   * @param cursor The {@link NalUnitCursor} that receives the offset and length of each NAL unit.
+   */
+  public static void splitNalUnits(ByteBuffer input, NalUnitCursor cursor) {
+    cursor.clear();
+    int limit = input.limit();
+    int leadingZeros = 0;
+    while (leadingZeros < limit && input.get(leadingZeros) == 0) {
+      leadingZeros++;
+    }
+    if (leadingZeros < 2 || leadingZeros == limit || input.get(leadingZeros) != 1) {
+      return;
+    }
+
+    int nalUnitStart = leadingZeros + 1;
+    while (nalUnitStart < limit) {
+      int startCodeIndex = findThreeByteStartCode(input, nalUnitStart, limit);
+      int nalUnitEnd = startCodeIndex == C.INDEX_UNSET ? limit : startCodeIndex;
+      while (nalUnitEnd > nalUnitStart && input.get(nalUnitEnd - 1) == 0) {
+        nalUnitEnd--;
+      }
+      if (nalUnitEnd > nalUnitStart) {
+        cursor.add(nalUnitStart, nalUnitEnd - nalUnitStart);
+      }
+      if (startCodeIndex == C.INDEX_UNSET) {
+        return;
       }
+      nalUnitStart = startCodeIndex + 3;
+    }
+  }
+
+  /**
+   * Holds the offsets and lengths of the NAL units found by {@link #findNalUnits(ByteBuffer,
+   * NalUnitCursor)}.
+   *
+   * <p>An instance can be reused for any number of buffers, and only allocates when a buffer has
+   * more NAL units than any of the previous ones.
+   */
+  public static final class NalUnitCursor {
+    // Pairs of offset and length.
+    private int[] nalUnits;
+    private int count;
+
+    /** Creates an instance. */
+    public NalUnitCursor() {
+      nalUnits = new int[2 * 8];
+    }
+
+    /** Returns the number of NAL units. */
+    public int count() {
+      return count;
+    }
+
+    /** Returns the offset of the NAL unit at {@code index}, after its start code. */
+    public int offset(int index) {
+      checkIndex(index, 0, count);
+      return nalUnits[2 * index];
+    }
+
+    /** Returns the length of the NAL unit at {@code index}, without its start code. */
+    public int length(int index) {
+      checkIndex(index, 0, count);
+      return nalUnits[2 * index + 1];
+    }
+
+    private void clear() {
+      count = 0;
+    }
+
+    private void add(int offset, int length) {
+      if (2 * count == nalUnits.length) {
+        nalUnits = Arrays.copyOf(nalUnits, 2 * nalUnits.length);
+      }
+      nalUnits[2 * count] = offset;
+      nalUnits[2 * count + 1] = length;
+      count++;
     }
-    input.rewind();
-    return nalUnits.build();
   }
 
   /** Removes Annex-B emulation prevention bytes from a buffer. */
@@ -88,6 +225,58 @@ import java.nio.ByteBuffer;
     return output;
   }
 
+  /**
+   * Returns a word with the high bit of each byte set if the corresponding byte of {@code word} is
+   * zero, and all the other bits cleared.
+   *
+   * <p>Unlike the shorter {@code (word - 0x01..01) & ~word & 0x80..80}, no borrow crosses a byte
+   * boundary, so the result is exact for every byte, not only the first zero one.
+   */
+  private static long zeroBytes(long word) {
+    long low7Bits = 0x7F7F7F7F7F7F7F7FL;
+    return ~(((word & low7Bits) + low7Bits) | word | low7Bits);
+  }
+
+  /** Returns the index of the next 0x000001 start code, or {@link C#INDEX_UNSET}. */
+  private static int findThreeByteStartCode(ByteBuffer input, int fromIndex, int limit) {
+    for (int index = findZeroByte(input, fromIndex, limit);
+        index != C.INDEX_UNSET;
+        index = findZeroByte(input, index + 1, limit)) {
+      if (index + 2 < limit && input.get(index + 1) == 0 && input.get(index + 2) == 1) {
+        return index;
+      }
+    }
+    return C.INDEX_UNSET;
+  }
+
+  /**
+   * Returns the index of the next zero byte, or {@link C#INDEX_UNSET}.
+   *
+   * <p>The input is read 8 bytes at a time, and only the words that contain a zero byte are looked
+   * at more closely. Encoded NAL units contain few zero bytes, because of emulation prevention, so
+   * most of the input is skipped a word at a time.
+   */
+  private static int findZeroByte(ByteBuffer input, int fromIndex, int limit) {
+    int index = fromIndex;
+    while (index + 8 <= limit) {
+      long zeroBytes = zeroBytes(input.getLong(index));
+      if (zeroBytes != 0) {
+        return index
+            + (input.order() == ByteOrder.BIG_ENDIAN
+                    ? Long.numberOfLeadingZeros(zeroBytes)
+                    : Long.numberOfTrailingZeros(zeroBytes))
+                / 8;
+      }
+      index += 8;
+    }
+    for (; index < limit; index++) {
+      if (input.get(index) == 0) {
+        return index;
+      }
+    }
+    return C.INDEX_UNSET;
+  }
+
   private static ByteBuffer getBytes(ByteBuffer buf, int offset, int length) {
     ByteBuffer result = buf.duplicate();
     result.position(offset);
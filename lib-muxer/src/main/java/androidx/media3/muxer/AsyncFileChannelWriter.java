@@ -0,0 +1,377 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.common.util.Assertions.checkArgument;
+import static androidx.media3.common.util.Assertions.checkState;
+import static java.lang.Math.max;
+
+import androidx.annotation.Nullable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes to a {@link FileChannel} on a dedicated thread.
+ *
+ * <p>The writes are queued in order, and the queued writes that are contiguous in the file are
+ * gathered into a single write. The queue is bounded by a number of bytes: once it is full, the
+ * caller is blocked until enough bytes are written.
+ *
+ * <p>The buffers are written from the writer thread, so they must not be changed until the writes
+ * are {@linkplain #flush() flushed}.
+ *
+ * <p>The first {@link IOException} of the writer thread is thrown by the next call to any of the
+ * methods that write, and the queued writes are then dropped.
+ *
+ * <p>The methods must be called from a single thread.
+ */
+/* package */ final class AsyncFileChannelWriter {
+  private static final int INITIAL_QUEUE_SIZE = 64;
+  private static final int MAX_GATHERED_BUFFERS = 1024;
+  private static final long FORCE_POSITION = -1;
+
+  private final FileChannel output;
+  private final int capacityBytes;
+  private final Thread writerThread;
+  private final ReentrantLock lock;
+  private final Condition queueNotEmpty;
+  private final Condition queueChanged;
+
+  // The following fields are guarded by the lock.
+
+  // A ring buffer of the queued writes. A null buffer truncates the file to the position, or forces
+  // the file to the storage if the position is FORCE_POSITION.
+  private ByteBuffer[] queuedBuffers;
+  private long[] queuedPositions;
+  private int queueHead;
+  // Includes the writes being written by the writer thread, which leave the queue afterwards.
+  private int queuedWriteCount;
+  private long queuedBytes;
+  private boolean closing;
+  @Nullable private IOException writeException;
+
+  private long maxQueuedBytes;
+  private int backpressureCount;
+  private long backpressureDurationNs;
+  private int fileWriteCount;
+  private long bytesWritten;
+  private long totalWriteLatencyNs;
+  private long maxWriteLatencyNs;
+
+  // Only used by the caller thread.
+  private boolean closed;
+
+  /**
+   * Creates an instance and starts its writer thread.
+   *
+   * @param fileChannel The {@link FileChannel} to write to, which is then only used by the writer
+   *     thread.
+   * @param capacityBytes The maximum number of bytes to queue. A larger write is queued only when
+   *     the queue is empty.
+   */
+  public AsyncFileChannelWriter(FileChannel fileChannel, int capacityBytes) {
+    checkArgument(capacityBytes > 0);
+    output = fileChannel;
+    this.capacityBytes = capacityBytes;
+    lock = new ReentrantLock();
+    queueNotEmpty = lock.newCondition();
+    queueChanged = lock.newCondition();
+    queuedBuffers = new ByteBuffer[INITIAL_QUEUE_SIZE];
+    queuedPositions = new long[INITIAL_QUEUE_SIZE];
+    writerThread = new Thread(this::runWriterThread, "Mp4Muxer:Writer");
+    writerThread.start();
+  }
+
+  /**
+   * Queues writing the remaining bytes of a buffer at a position in the file.
+   *
+   * <p>Blocks while the queue is full.
+   *
+   * @throws IOException If a previous write failed, or if the caller is interrupted.
+   */
+  public void write(ByteBuffer buffer, long position) throws IOException {
+    checkArgument(position >= 0);
+    enqueue(buffer, position);
+  }
+
+  /**
+   * Queues truncating the file to a size.
+   *
+   * @throws IOException If a previous write failed, or if the caller is interrupted.
+   */
+  public void truncate(long size) throws IOException {
+    checkArgument(size >= 0);
+    enqueue(/* buffer= */ null, size);
+  }
+
+  /**
+   * Throws the {@link IOException} of a failed write, if any.
+   *
+   * @throws IOException If a write failed.
+   */
+  public void maybeThrowWriteException() throws IOException {
+    lock.lock();
+    try {
+      throwWriteExceptionIfAny();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Queues forcing the writes queued so far to the storage, so that the later writes do not reach
+   * it before them.
+   *
+   * @throws IOException If a previous write failed, or if the caller is interrupted.
+   */
+  public void force() throws IOException {
+    enqueue(/* buffer= */ null, FORCE_POSITION);
+  }
+
+  /**
+   * Waits until all the queued writes are written.
+   *
+   * @throws IOException If a write failed, or if the caller is interrupted.
+   */
+  public void flush() throws IOException {
+    lock.lock();
+    try {
+      while (queuedWriteCount > 0 && writeException == null) {
+        awaitQueueChanged();
+      }
+      throwWriteExceptionIfAny();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes the queued writes, stops the writer thread and closes the file.
+   *
+   * @throws IOException If a write failed, or if closing the file failed.
+   */
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    boolean interrupted = false;
+    lock.lock();
+    try {
+      closing = true;
+      queueNotEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+    while (true) {
+      try {
+        writerThread.join();
+        break;
+      } catch (InterruptedException e) {
+        // Keep waiting, so that the file is not closed while the writer thread uses it.
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      maybeThrowWriteException();
+    } finally {
+      output.close();
+    }
+  }
+
+  /** Returns a snapshot of the {@link WriteQueueMetrics}. */
+  public WriteQueueMetrics getMetrics() {
+    lock.lock();
+    try {
+      return new WriteQueueMetrics(
+          capacityBytes,
+          queuedBytes,
+          queuedWriteCount,
+          maxQueuedBytes,
+          backpressureCount,
+          backpressureDurationNs / 1000,
+          fileWriteCount,
+          bytesWritten,
+          totalWriteLatencyNs / 1000,
+          maxWriteLatencyNs / 1000);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void enqueue(@Nullable ByteBuffer buffer, long position) throws IOException {
+    checkState(!closed);
+    int size = buffer == null ? 0 : buffer.remaining();
+    lock.lock();
+    try {
+      throwWriteExceptionIfAny();
+      if (queuedBytes > 0 && queuedBytes + size > capacityBytes) {
+        backpressureCount++;
+        long blockStartTimeNs = System.nanoTime();
+        try {
+          while (queuedBytes > 0 && queuedBytes + size > capacityBytes && writeException == null) {
+            awaitQueueChanged();
+          }
+        } finally {
+          backpressureDurationNs += System.nanoTime() - blockStartTimeNs;
+        }
+        throwWriteExceptionIfAny();
+      }
+
+      if (queuedWriteCount == queuedBuffers.length) {
+        growQueue();
+      }
+      int index = (queueHead + queuedWriteCount) % queuedBuffers.length;
+      queuedBuffers[index] = buffer;
+      queuedPositions[index] = position;
+      queuedWriteCount++;
+      queuedBytes += size;
+      maxQueuedBytes = max(maxQueuedBytes, queuedBytes);
+      queueNotEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void growQueue() {
+    int size = queuedBuffers.length;
+    ByteBuffer[] buffers = new ByteBuffer[size * 2];
+    long[] positions = new long[size * 2];
+    for (int i = 0; i < size; i++) {
+      buffers[i] = queuedBuffers[(queueHead + i) % size];
+      positions[i] = queuedPositions[(queueHead + i) % size];
+    }
+    queuedBuffers = buffers;
+    queuedPositions = positions;
+    queueHead = 0;
+  }
+
+  private void awaitQueueChanged() throws InterruptedIOException {
+    try {
+      queueChanged.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  private void throwWriteExceptionIfAny() throws IOException {
+    if (writeException != null) {
+      throw new IOException("Writing to the file failed", writeException);
+    }
+  }
+
+  private void runWriterThread() {
+    ByteBuffer[] gatheredBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
+    while (true) {
+      int gatheredCount = 0;
+      long position;
+      long gatheredBytes = 0;
+      lock.lock();
+      try {
+        while (queuedWriteCount == 0 && !closing) {
+          queueNotEmpty.awaitUninterruptibly();
+        }
+        if (queuedWriteCount == 0) {
+          return;
+        }
+        // Gather the writes that are contiguous with the first one, without dequeuing them so that
+        // they still count towards the capacity.
+        position = queuedPositions[queueHead];
+        if (queuedBuffers[queueHead] != null) {
+          long end = position;
+          while (gatheredCount < queuedWriteCount && gatheredCount < MAX_GATHERED_BUFFERS) {
+            int index = (queueHead + gatheredCount) % queuedBuffers.length;
+            ByteBuffer buffer = queuedBuffers[index];
+            if (buffer == null || queuedPositions[index] != end) {
+              break;
+            }
+            gatheredBuffers[gatheredCount++] = buffer;
+            end += buffer.remaining();
+          }
+          gatheredBytes = end - position;
+        }
+      } finally {
+        lock.unlock();
+      }
+
+      @Nullable IOException exception = null;
+      long startTimeNs = System.nanoTime();
+      try {
+        if (gatheredCount == 0) {
+          if (position == FORCE_POSITION) {
+            output.force(/* metaData= */ true);
+          } else {
+            output.truncate(position);
+          }
+        } else {
+          output.position(position);
+          long remaining = gatheredBytes;
+          int offset = 0;
+          while (remaining > 0) {
+            remaining -= output.write(gatheredBuffers, offset, gatheredCount - offset);
+            while (offset < gatheredCount && !gatheredBuffers[offset].hasRemaining()) {
+              offset++;
+            }
+          }
+        }
+      } catch (IOException e) {
+        exception = e;
+      } catch (RuntimeException e) {
+        // Such as a NonWritableChannelException, which must also reach the caller.
+        exception = new IOException(e);
+      }
+      long latencyNs = System.nanoTime() - startTimeNs;
+      Arrays.fill(gatheredBuffers, 0, gatheredCount, null);
+
+      lock.lock();
+      try {
+        if (exception != null) {
+          writeException = exception;
+          // Drop the queued writes, which can not leave a valid file anymore.
+          Arrays.fill(queuedBuffers, null);
+          queueHead = 0;
+          queuedWriteCount = 0;
+          queuedBytes = 0;
+          queueChanged.signalAll();
+          return;
+        }
+        int dequeuedCount = max(gatheredCount, 1);
+        for (int i = 0; i < dequeuedCount; i++) {
+          queuedBuffers[(queueHead + i) % queuedBuffers.length] = null;
+        }
+        queueHead = (queueHead + dequeuedCount) % queuedBuffers.length;
+        queuedWriteCount -= dequeuedCount;
+        queuedBytes -= gatheredBytes;
+        fileWriteCount++;
+        bytesWritten += gatheredBytes;
+        totalWriteLatencyNs += latencyNs;
+        maxWriteLatencyNs = max(maxWriteLatencyNs, latencyNs);
+        queueChanged.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
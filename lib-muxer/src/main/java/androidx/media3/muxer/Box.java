@@ -0,0 +1,216 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.common.util.Assertions.checkArgument;
+import static androidx.media3.common.util.Assertions.checkState;
+import static androidx.media3.muxer.Boxes.BOX_HEADER_SIZE;
+
+import androidx.annotation.Nullable;
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An MP4 box tree whose size is known before it is written.
+ *
+ * <p>Unlike {@link BoxUtils#wrapBoxesIntoBox}, which copies all the sub-boxes into a new buffer at
+ * every nesting level, a tree is serialized once: either into a single pre-sized buffer with
+ * {@link #toByteBuffer()}, or as a list of buffers for a {@link GatheringByteChannel} with {@link
+ * #gather(List)}, in which case large leaf contents are not copied at all.
+ *
+ * <p>The contents of the leaf buffers are only read when the tree is written, so they must not be
+ * modified until then.
+ */
+/* package */ abstract class Box {
+  private static final Box EMPTY = wrap(ByteBuffer.allocate(0));
+
+  /** Returns an empty sequence of boxes, which has a size of zero. */
+  public static Box empty() {
+    return EMPTY;
+  }
+
+  /** Returns a box that writes the already serialized box (or boxes) in {@code box}. */
+  public static Box wrap(ByteBuffer box) {
+    return new Leaf(/* boxType= */ null, box);
+  }
+
+  /**
+   * Returns a leaf box.
+   *
+   * @param boxType The type of the box.
+   * @param contents The contents of the box, which are written one after the other.
+   */
+  public static Box leaf(String boxType, ByteBuffer... contents) {
+    return new Leaf(boxType.getBytes(Charsets.UTF_8), contents);
+  }
+
+  /** Returns a box containing the {@code subBoxes}. */
+  public static Box container(String boxType, Box... subBoxes) {
+    return container(boxType, Arrays.asList(subBoxes));
+  }
+
+  /** Returns a box containing the {@code subBoxes}. */
+  public static Box container(String boxType, List<Box> subBoxes) {
+    return new Container(boxType.getBytes(Charsets.UTF_8), subBoxes);
+  }
+
+  /** Returns the boxes written one after the other, without a parent box. */
+  public static Box sequence(Box... boxes) {
+    return new Container(/* boxType= */ null, Arrays.asList(boxes));
+  }
+
+  /** Returns the total size of the box, including its header, in bytes. */
+  public abstract int size();
+
+  /** Writes the box to {@code destination}, which must have {@link #size()} bytes remaining. */
+  public abstract void writeTo(ByteBuffer destination);
+
+  /**
+   * Appends buffers that hold the box to {@code buffers}.
+   *
+   * <p>Only the box headers are allocated; the leaf contents are added as read-only views.
+   */
+  public abstract void gather(List<ByteBuffer> buffers);
+
+  /** Returns the box serialized into a new buffer, ready to be read. */
+  public final ByteBuffer toByteBuffer() {
+    ByteBuffer buffer = ByteBuffer.allocate(size());
+    writeTo(buffer);
+    checkState(!buffer.hasRemaining());
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Writes the box to the current position of the {@code channel} with a single gathering write.
+   *
+   * @return The number of bytes written.
+   * @throws IOException If there is any error while writing data to the channel.
+   */
+  public final long writeTo(GatheringByteChannel channel) throws IOException {
+    List<ByteBuffer> buffers = new ArrayList<>();
+    gather(buffers);
+    ByteBuffer[] bufferArray = buffers.toArray(new ByteBuffer[0]);
+    long bytesWritten = 0;
+    while (bytesWritten < size()) {
+      bytesWritten += channel.write(bufferArray);
+    }
+    return bytesWritten;
+  }
+
+  private static ByteBuffer header(byte[] boxType, int size) {
+    ByteBuffer header = ByteBuffer.allocate(BOX_HEADER_SIZE);
+    putHeader(header, boxType, size);
+    header.flip();
+    return header;
+  }
+
+  private static void putHeader(ByteBuffer destination, byte[] boxType, int size) {
+    destination.putInt(size);
+    destination.put(boxType, 0, 4);
+  }
+
+  private static final class Leaf extends Box {
+    @Nullable private final byte[] boxType;
+    private final ByteBuffer[] contents;
+    private final int size;
+
+    private Leaf(@Nullable byte[] boxType, ByteBuffer... contents) {
+      this.boxType = boxType;
+      this.contents = contents;
+      long size = boxType == null ? 0 : BOX_HEADER_SIZE;
+      for (ByteBuffer content : contents) {
+        size += content.remaining();
+      }
+      checkArgument(size <= Integer.MAX_VALUE, "Box too large");
+      this.size = (int) size;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer destination) {
+      if (boxType != null) {
+        putHeader(destination, boxType, size);
+      }
+      for (ByteBuffer content : contents) {
+        destination.put(content.duplicate());
+      }
+    }
+
+    @Override
+    public void gather(List<ByteBuffer> buffers) {
+      if (boxType != null) {
+        buffers.add(header(boxType, size));
+      }
+      for (ByteBuffer content : contents) {
+        if (content.hasRemaining()) {
+          buffers.add(content.asReadOnlyBuffer());
+        }
+      }
+    }
+  }
+
+  private static final class Container extends Box {
+    @Nullable private final byte[] boxType;
+    private final List<Box> subBoxes;
+    private final int size;
+
+    private Container(@Nullable byte[] boxType, List<Box> subBoxes) {
+      this.boxType = boxType;
+      this.subBoxes = subBoxes;
+      long size = boxType == null ? 0 : BOX_HEADER_SIZE;
+      for (int i = 0; i < subBoxes.size(); i++) {
+        size += subBoxes.get(i).size();
+      }
+      checkArgument(size <= Integer.MAX_VALUE, "Box too large");
+      this.size = (int) size;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer destination) {
+      if (boxType != null) {
+        putHeader(destination, boxType, size);
+      }
+      for (int i = 0; i < subBoxes.size(); i++) {
+        subBoxes.get(i).writeTo(destination);
+      }
+    }
+
+    @Override
+    public void gather(List<ByteBuffer> buffers) {
+      if (boxType != null) {
+        buffers.add(header(boxType, size));
+      }
+      for (int i = 0; i < subBoxes.size(); i++) {
+        subBoxes.get(i).gather(buffers);
+      }
+    }
+  }
+}
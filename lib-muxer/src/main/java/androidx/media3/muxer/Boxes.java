@@ -22,10 +22,8 @@ import static androidx.media3.muxer.ColorUtils.MEDIAFORMAT_STANDARD_TO_PRIMARIES
 import static androidx.media3.muxer.ColorUtils.MEDIAFORMAT_TRANSFER_TO_MP4_TRANSFER;
 import static androidx.media3.muxer.Mp4Utils.BYTES_PER_INTEGER;
 import static androidx.media3.muxer.Mp4Utils.MVHD_TIMEBASE;
-import static androidx.media3.muxer.Mp4Utils.UNSIGNED_INT_MAX_VALUE;
 
 import android.media.MediaCodec;
-import android.media.MediaCodec.BufferInfo;
 
 import androidx.annotation.Nullable;
 import androidx.media3.common.C;
@@ -37,7 +35,6 @@ import androidx.media3.container.NalUnitUtil;
 import androidx.media3.muxer.FragmentedMp4Writer.SampleMetadata;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
 import com.google.common.primitives.Bytes;
 
 import java.nio.ByteBuffer;
@@ -51,7 +48,8 @@ import java.util.Locale;
  * Writes out various types of boxes as per MP4 (ISO/IEC 14496-12) standards.
  *
  * <p>Boxes do not construct their sub-boxes but take them as input {@linkplain ByteBuffer byte
- * buffers}.
+ * buffers}. Container boxes that can hold large sub-boxes take and return a {@link Box} tree
+ * instead, so that the sub-boxes are copied only once, when the whole tree is written.
  */
 /* package */ final class Boxes {
   // Box size (4 bytes) + Box name (4 bytes)
@@ -61,6 +59,12 @@ import java.util.Locale;
 
   public static final int TFHD_BOX_CONTENT_SIZE = 2 * BYTES_PER_INTEGER;
 
+  public static final int TFDT_BOX_CONTENT_SIZE = 3 * BYTES_PER_INTEGER;
+
+  // The position of the data_offset field in a trun box, after the box header, the version and
+  // flags, and the sample_count.
+  public static final int TRUN_BOX_DATA_OFFSET_POSITION = BOX_HEADER_SIZE + 2 * BYTES_PER_INTEGER;
+
   // unsigned int(2) sample_depends_on = 2 (bit index 25 and 24)
   private static final int TRUN_BOX_SYNC_SAMPLE_FLAGS = 0b00000010_00000000_00000000_00000000;
   // unsigned int(2) sample_depends_on = 1 (bit index 25 and 24)
@@ -265,8 +269,8 @@ import java.util.Locale;
   }
 
   /** Returns the minf (media info) box. */
-  public static ByteBuffer minf(ByteBuffer... subBoxes) {
-    return BoxUtils.wrapBoxesIntoBox("minf", Arrays.asList(subBoxes));
+  public static Box minf(Box... subBoxes) {
+    return Box.container("minf", subBoxes);
   }
 
   /** Returns the dref (data references) box. */
@@ -340,8 +344,8 @@ import java.util.Locale;
    *
    * <p>This box describes the media format of a track.
    */
-  public static ByteBuffer mdia(ByteBuffer... subBoxes) {
-    return BoxUtils.wrapBoxesIntoBox("mdia", Arrays.asList(subBoxes));
+  public static Box mdia(Box... subBoxes) {
+    return Box.container("mdia", subBoxes);
   }
 
   /**
@@ -349,8 +353,8 @@ import java.util.Locale;
    *
    * <p>This is a top level track descriptor box; each track has one.
    */
-  public static ByteBuffer trak(ByteBuffer... subBoxes) {
-    return BoxUtils.wrapBoxesIntoBox("trak", Arrays.asList(subBoxes));
+  public static Box trak(Box... subBoxes) {
+    return Box.container("trak", subBoxes);
   }
 
   /**
@@ -470,20 +474,16 @@ import java.util.Locale;
    *
    * <p>This box is a top level movie descriptor box (there is a single one of this per Mp4 file).
    */
-  public static ByteBuffer moov(
-      ByteBuffer mvhdBox,
-      ByteBuffer udtaBox,
-      ByteBuffer metaBox,
-      List<ByteBuffer> trakBoxes,
-      ByteBuffer mvexBox) {
-    List<ByteBuffer> subBoxes = new ArrayList<>();
+  public static Box moov(
+      Box mvhdBox, Box udtaBox, Box metaBox, List<Box> trakBoxes, Box mvexBox) {
+    List<Box> subBoxes = new ArrayList<>();
     subBoxes.add(mvhdBox);
     subBoxes.add(udtaBox);
     subBoxes.add(metaBox);
     subBoxes.addAll(trakBoxes);
     subBoxes.add(mvexBox);
 
-    return BoxUtils.wrapBoxesIntoBox("moov", subBoxes);
+    return Box.container("moov", subBoxes);
   }
 
   /** Returns an audio sample entry box based on the MIME type. */
@@ -602,36 +602,38 @@ import java.util.Locale;
   /**
    * Converts sample presentation times (in microseconds) to sample durations (in timebase units).
    *
+   * <p>The durations are the differences between the decode timestamps of the samples, which are
+   * their presentation timestamps unless there are B-frames.
+   *
    * <p>All the tracks must start from the same time. If all the tracks do not start from the same
    * time, then the caller must pass the minimum presentation timestamp across all tracks to be set
    * for the first sample. As a result, the duration of that first sample may be larger.
    *
-   * @param samplesInfo A list of {@linkplain BufferInfo sample info}.
+   * @param samples The {@link SampleTable} of samples.
    * @param firstSamplePresentationTimeUs The presentation timestamp to override the first sample's
-   *     presentation timestamp, in microseconds. This should be the minimum presentation timestamp
-   *     across all tracks if the {@code samplesInfo} contains the first sample of the track.
-   *     Otherwise this should be equal to the presentation timestamp of first sample present in the
-   *     {@code samplesInfo} list.
+   *     decode timestamp, in microseconds. This should be the minimum presentation timestamp
+   *     across all tracks if the {@code samples} contains the first sample of the track.
+   *     Otherwise this should be equal to the decode timestamp of first sample present in the
+   *     {@code samples} table.
    * @param videoUnitTimescale The timescale of the track.
    * @param lastDurationBehavior The behaviour for the last sample duration.
-   * @return A list of all the sample durations.
+   * @return An array of all the sample durations.
    */
   // TODO: b/280084657 - Add support for setting last sample duration.
-  // TODO: b/317373578 - Consider changing return type to List<Integer>.
-  public static List<Long> convertPresentationTimestampsToDurationsVu(
-      List<BufferInfo> samplesInfo,
+  public static long[] convertPresentationTimestampsToDurationsVu(
+      SampleTable samples,
       long firstSamplePresentationTimeUs,
       int videoUnitTimescale,
       @Mp4Muxer.LastFrameDurationBehavior int lastDurationBehavior) {
-    List<Long> durationsVu = new ArrayList<>(samplesInfo.size());
+    long[] durationsVu = new long[samples.sampleCount()];
 
-    if (samplesInfo.isEmpty()) {
+    if (samples.isEmpty()) {
       return durationsVu;
     }
 
     long currentSampleTimeUs = firstSamplePresentationTimeUs;
-    for (int nextSampleId = 1; nextSampleId < samplesInfo.size(); nextSampleId++) {
-      long nextSampleTimeUs = samplesInfo.get(nextSampleId).presentationTimeUs;
+    for (int nextSampleId = 1; nextSampleId < samples.sampleCount(); nextSampleId++) {
+      long nextSampleTimeUs = samples.decodeTimeUs(nextSampleId);
       // TODO: b/316158030 - First calculate the duration and then convert us to vu to avoid
       //  rounding error.
       long currentSampleDurationVu =
@@ -642,169 +644,16 @@ import java.util.Locale;
             String.format(
                 Locale.US, "Timestamp delta %d doesn't fit into an int", currentSampleDurationVu));
       }
-      durationsVu.add(currentSampleDurationVu);
+      durationsVu[nextSampleId - 1] = currentSampleDurationVu;
       currentSampleTimeUs = nextSampleTimeUs;
     }
     // Default duration for the last sample.
-    durationsVu.add(0L);
+    durationsVu[durationsVu.length - 1] = 0L;
 
     adjustLastSampleDuration(durationsVu, lastDurationBehavior);
     return durationsVu;
   }
 
-  /** Generates the stts (decoding time to sample) box. */
-  public static ByteBuffer stts(List<Long> durationsVu) {
-    ByteBuffer contents =
-        ByteBuffer.allocate(durationsVu.size() * 8 + Mp4Utils.MAX_FIXED_LEAF_BOX_SIZE);
-
-    contents.putInt(0x0); // version and flags.
-
-    // We will know total entry count only after processing all the sample durations, so put in a
-    // placeholder for total entry count and store its index.
-    int totalEntryCountIndex = contents.position();
-    contents.putInt(0x0); // entry_count.
-
-    int totalEntryCount = 0;
-    long lastDurationVu = -1L;
-    int lastSampleCountIndex = -1;
-
-    // Note that the framework MediaMuxer adjust time deltas within plus-minus 100 us, so that
-    // samples have repeating duration values. It saves few entries in the table.
-    for (int i = 0; i < durationsVu.size(); i++) {
-      long durationVu = durationsVu.get(i);
-      if (lastDurationVu != durationVu) {
-        lastDurationVu = durationVu;
-        lastSampleCountIndex = contents.position();
-
-        // sample_count; this will be updated instead of adding a new entry if the next sample has
-        // the same duration.
-        contents.putInt(1);
-        contents.putInt((int) durationVu); // sample_delta.
-        totalEntryCount++;
-      } else {
-        contents.putInt(lastSampleCountIndex, contents.getInt(lastSampleCountIndex) + 1);
-      }
-    }
-
-    contents.putInt(totalEntryCountIndex, totalEntryCount);
-
-    contents.flip();
-    return BoxUtils.wrapIntoBox("stts", contents);
-  }
-
-  /** Returns the stsz (sample size) box. */
-  public static ByteBuffer stsz(List<BufferInfo> writtenSamples) {
-    ByteBuffer contents =
-        ByteBuffer.allocate(writtenSamples.size() * 4 + Mp4Utils.MAX_FIXED_LEAF_BOX_SIZE);
-
-    contents.putInt(0x0); // version and flags.
-
-    // TODO: b/270583563 - Consider optimizing for identically-sized samples.
-    //  sample_size; specifying the default sample size. Set to zero to indicate that the samples
-    //  have different sizes and they are stored in the sample size table.
-    contents.putInt(0);
-
-    contents.putInt(writtenSamples.size()); // sample_count.
-
-    for (int i = 0; i < writtenSamples.size(); i++) {
-      contents.putInt(writtenSamples.get(i).size);
-    }
-
-    contents.flip();
-    return BoxUtils.wrapIntoBox("stsz", contents);
-  }
-
-  /** Returns the stsc (sample to chunk) box. */
-  public static ByteBuffer stsc(List<Integer> writtenChunkSampleCounts) {
-    ByteBuffer contents =
-        ByteBuffer.allocate(
-            writtenChunkSampleCounts.size() * 12 + Mp4Utils.MAX_FIXED_LEAF_BOX_SIZE);
-
-    contents.putInt(0x0); // version and flags.
-    contents.putInt(writtenChunkSampleCounts.size()); // entry_count.
-
-    int currentChunk = 1;
-
-    // TODO: b/270583563 - Consider optimizing for consecutive chunks having same number of samples.
-    for (int i = 0; i < writtenChunkSampleCounts.size(); i++) {
-      int samplesInChunk = writtenChunkSampleCounts.get(i);
-      contents.putInt(currentChunk); // first_chunk.
-      contents.putInt(samplesInChunk); // samples_per_chunk.
-      // sample_description_index; we have only one sample description in each track.
-      contents.putInt(1);
-
-      currentChunk += 1;
-    }
-
-    contents.flip();
-    return BoxUtils.wrapIntoBox("stsc", contents);
-  }
-
-  /** Returns the stco (32-bit chunk offset) box. */
-  public static ByteBuffer stco(List<Long> writtenChunkOffsets) {
-    ByteBuffer contents =
-        ByteBuffer.allocate(2 * BYTES_PER_INTEGER + writtenChunkOffsets.size() * BYTES_PER_INTEGER);
-
-    contents.putInt(0x0); // version and flags
-    contents.putInt(writtenChunkOffsets.size()); // entry_count; unsigned int(32)
-
-    for (int i = 0; i < writtenChunkOffsets.size(); i++) {
-      long chunkOffset = writtenChunkOffsets.get(i);
-      checkState(chunkOffset <= UNSIGNED_INT_MAX_VALUE, "Only 32-bit offset is allowed");
-      contents.putInt((int) chunkOffset); // chunk_offset; unsigned int(32)
-    }
-
-    contents.flip();
-    return BoxUtils.wrapIntoBox("stco", contents);
-  }
-
-  /** Returns the co64 (64-bit chunk offset) box. */
-  public static ByteBuffer co64(List<Long> writtenChunkOffsets) {
-    ByteBuffer contents =
-        ByteBuffer.allocate(
-            2 * BYTES_PER_INTEGER + 2 * writtenChunkOffsets.size() * BYTES_PER_INTEGER);
-
-    contents.putInt(0x0); // version and flags
-    contents.putInt(writtenChunkOffsets.size()); // entry_count; unsigned int(32)
-
-    for (int i = 0; i < writtenChunkOffsets.size(); i++) {
-      contents.putLong(writtenChunkOffsets.get(i)); // chunk_offset; unsigned int(64)
-    }
-
-    contents.flip();
-    return BoxUtils.wrapIntoBox("co64", contents);
-  }
-
-  /** Returns the stss (sync sample) box. */
-  public static ByteBuffer stss(List<BufferInfo> writtenSamples) {
-    ByteBuffer contents =
-        ByteBuffer.allocate(writtenSamples.size() * 4 + Mp4Utils.MAX_FIXED_LEAF_BOX_SIZE);
-
-    contents.putInt(0x0); // version and flags.
-
-    // We will know total entry count only after processing all the sample, so put in a placeholder
-    // for total entry count and store its index.
-    int totalEntryCountIndex = contents.position();
-    contents.putInt(writtenSamples.size()); // entry_count.
-
-    int currentSampleNumber = 1;
-    int totalKeyFrames = 0;
-    for (int i = 0; i < writtenSamples.size(); i++) {
-      BufferInfo info = writtenSamples.get(i);
-      if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) > 0) {
-        contents.putInt(currentSampleNumber); // sample_number.
-        totalKeyFrames++;
-      }
-
-      currentSampleNumber++;
-    }
-
-    contents.putInt(totalEntryCountIndex, totalKeyFrames);
-
-    contents.flip();
-    return BoxUtils.wrapIntoBox("stss", contents);
-  }
-
   /** Returns the stsd (sample description) box. */
   public static ByteBuffer stsd(ByteBuffer sampleEntryBox) {
     ByteBuffer contents =
@@ -819,8 +668,8 @@ import java.util.Locale;
   }
 
   /** Returns the stbl (sample table) box. */
-  public static ByteBuffer stbl(ByteBuffer... subBoxes) {
-    return BoxUtils.wrapBoxesIntoBox("stbl", Arrays.asList(subBoxes));
+  public static Box stbl(Box... subBoxes) {
+    return Box.container("stbl", subBoxes);
   }
 
   /** Creates the ftyp box. */
@@ -845,9 +694,9 @@ import java.util.Locale;
   }
 
   /** Returns the movie fragment (moof) box. */
-  public static ByteBuffer moof(ByteBuffer mfhdBox, List<ByteBuffer> trafBoxes) {
-    return BoxUtils.wrapBoxesIntoBox(
-        "moof", new ImmutableList.Builder<ByteBuffer>().add(mfhdBox).addAll(trafBoxes).build());
+  public static Box moof(Box mfhdBox, List<Box> trafBoxes) {
+    return Box.container(
+        "moof", new ImmutableList.Builder<Box>().add(mfhdBox).addAll(trafBoxes).build());
   }
 
   /** Returns the movie fragment header (mfhd) box. */
@@ -860,79 +709,214 @@ import java.util.Locale;
   }
 
   /** Returns a track fragment (traf) box. */
-  public static ByteBuffer traf(ByteBuffer tfhdBox, ByteBuffer trunBox) {
-    return BoxUtils.wrapBoxesIntoBox("traf", ImmutableList.of(tfhdBox, trunBox));
+  public static Box traf(Box tfhdBox, Box tfdtBox, Box trunBox) {
+    return Box.container("traf", tfhdBox, tfdtBox, trunBox);
   }
 
-  /** Returns a track fragment header (tfhd) box. */
-  public static ByteBuffer tfhd(int trackId) {
-    ByteBuffer contents = ByteBuffer.allocate(TFHD_BOX_CONTENT_SIZE);
-    // 0x000001 base-data-offset-present: indicates the presence of the base-data-offset field.
-    contents.putInt(0x0 ); // version and flags
+  /**
+   * Returns a track fragment header (tfhd) box.
+   *
+   * <p>When all the samples have the same duration, or the same size, it is given as a default
+   * here and left out of the {@linkplain #trun trun box}.
+   */
+  public static ByteBuffer tfhd(int trackId, List<SampleMetadata> samplesMetadata) {
+    boolean hasDefaultDuration = hasConstantDuration(samplesMetadata);
+    boolean hasDefaultSize = hasConstantSize(samplesMetadata);
+    ByteBuffer contents =
+        ByteBuffer.allocate(
+            TFHD_BOX_CONTENT_SIZE
+                + (hasDefaultDuration ? BYTES_PER_INTEGER : 0)
+                + (hasDefaultSize ? BYTES_PER_INTEGER : 0));
+    // 0x000008 default-sample-duration-present.
+    // 0x000010 default-sample-size-present.
+    // 0x020000 default-base-is-moof: the data offset of every trun box is relative to the start of
+    // the moof box, rather than to the end of the data of the previous track fragment.
+    // Version is 0x0.
+    int versionAndFlags =
+        0x020000 | (hasDefaultDuration ? 0x000008 : 0) | (hasDefaultSize ? 0x000010 : 0);
+    contents.putInt(versionAndFlags);
     contents.putInt(trackId);
-    //contents.putLong(baseDataOffset);
+    if (hasDefaultDuration) {
+      contents.putInt((int) samplesMetadata.get(0).durationVu); // An unsigned int(32)
+    }
+    if (hasDefaultSize) {
+      contents.putInt(samplesMetadata.get(0).size); // An unsigned int(32)
+    }
     contents.flip();
     return BoxUtils.wrapIntoBox("tfhd", contents);
   }
 
-  /** Returns a track fragment run (trun) box. */
-  public static ByteBuffer trun(List<SampleMetadata> samplesMetadata, int dataOffset) {
-    ByteBuffer contents = ByteBuffer.allocate(getTrunBoxContentSize(samplesMetadata.size()));
+  /**
+   * Returns a track fragment decode time (tfdt) box.
+   *
+   * @param baseMediaDecodeTimeVu The decode time of the first sample of the track fragment, in
+   *     the track timescale.
+   */
+  public static ByteBuffer tfdt(long baseMediaDecodeTimeVu) {
+    ByteBuffer contents = ByteBuffer.allocate(TFDT_BOX_CONTENT_SIZE);
+    // Version 0x1, for a 64-bit baseMediaDecodeTime.
+    contents.putInt(0x01000000); // version and flags
+    contents.putLong(baseMediaDecodeTimeVu); // An unsigned int(64)
+    contents.flip();
+    return BoxUtils.wrapIntoBox("tfdt", contents);
+  }
+
+  /**
+   * Returns a track fragment run (trun) box.
+   *
+   * <p>The durations and sizes are left out when they are the same for all the samples, as the
+   * {@linkplain #tfhd tfhd box} then gives them as defaults. The flags are left out for the samples
+   * whose flags match the {@code defaultSampleFlags} of the {@linkplain #trex trex box}; if it is
+   * only the first sample that does not, its flags are written once, as the first sample flags.
+   *
+   * <p>The composition time offsets are only written if a sample is not presented at its decode
+   * timestamp, with version 1 of the box, for signed offsets, if a sample is presented before it.
+   *
+   * @param samplesMetadata The samples of the run.
+   * @param dataOffset The offset of the data of the first sample from the start of the moof box.
+   * @param defaultSampleFlags The default sample flags of the track, from {@link
+   *     #getDefaultSampleFlags(Format)}.
+   */
+  public static ByteBuffer trun(
+      List<SampleMetadata> samplesMetadata, int dataOffset, int defaultSampleFlags) {
+    int sampleCount = samplesMetadata.size();
+    boolean hasSampleDurations = !hasConstantDuration(samplesMetadata);
+    boolean hasSampleSizes = !hasConstantSize(samplesMetadata);
+    boolean hasSampleFlags = false;
+    for (int i = 1; i < sampleCount; i++) {
+      if (getSampleFlags(samplesMetadata.get(i)) != defaultSampleFlags) {
+        hasSampleFlags = true;
+        break;
+      }
+    }
+    boolean hasFirstSampleFlags =
+        !hasSampleFlags
+            && sampleCount > 0
+            && getSampleFlags(samplesMetadata.get(0)) != defaultSampleFlags;
+    boolean hasCompositionTimeOffsets = false;
+    boolean hasNegativeCompositionTimeOffsets = false;
+    for (int i = 0; i < sampleCount; i++) {
+      int compositionTimeOffsetVu = samplesMetadata.get(i).compositionTimeOffsetVu;
+      hasCompositionTimeOffsets |= compositionTimeOffsetVu != 0;
+      hasNegativeCompositionTimeOffsets |= compositionTimeOffsetVu < 0;
+    }
+    int fieldsPerSample =
+        (hasSampleDurations ? 1 : 0)
+            + (hasSampleSizes ? 1 : 0)
+            + (hasSampleFlags ? 1 : 0)
+            + (hasCompositionTimeOffsets ? 1 : 0);
+
+    ByteBuffer contents =
+        ByteBuffer.allocate(
+            (3 + (hasFirstSampleFlags ? 1 : 0) + fieldsPerSample * sampleCount)
+                * BYTES_PER_INTEGER);
 
     // 0x000001 data-offset-present.
+    // 0x000004 first-sample-flags-present: overrides the default flags for the first sample only.
     // 0x000100 sample-duration-present: indicates that each sample has its own duration, otherwise
     // the default is used.
     // 0x000200 sample-size-present: indicates that each sample has its own size, otherwise the
     // default is used.
     // 0x000400 sample-flags-present: indicates that each sample has its own flags, otherwise the
     // default is used.
-    // Version is 0x0.
-    int versionAndFlags = 0x0 | 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    // 0x000800 sample-composition-time-offsets-present.
+    // Version is 0x1 if the composition time offsets are signed, and 0x0 otherwise.
+    int versionAndFlags =
+        (hasNegativeCompositionTimeOffsets ? 0x01000000 : 0)
+            | 0x000001
+            | (hasFirstSampleFlags ? 0x000004 : 0)
+            | (hasSampleDurations ? 0x000100 : 0)
+            | (hasSampleSizes ? 0x000200 : 0)
+            | (hasSampleFlags ? 0x000400 : 0)
+            | (hasCompositionTimeOffsets ? 0x000800 : 0);
     contents.putInt(versionAndFlags);
-    contents.putInt(samplesMetadata.size()); // An unsigned int(32)
+    contents.putInt(sampleCount); // An unsigned int(32)
     contents.putInt(dataOffset); // A signed int(32)
-    for (int i = 0; i < samplesMetadata.size(); i++) {
+    if (hasFirstSampleFlags) {
+      contents.putInt(getSampleFlags(samplesMetadata.get(0)));
+    }
+    for (int i = 0; i < sampleCount; i++) {
       SampleMetadata currentSampleMetadata = samplesMetadata.get(i);
-      contents.putInt((int) currentSampleMetadata.durationVu); // An unsigned int(32)
-      contents.putInt(currentSampleMetadata.size); // An unsigned int(32)
-      contents.putInt(
-          (currentSampleMetadata.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0
-              ? TRUN_BOX_SYNC_SAMPLE_FLAGS
-              : TRUN_BOX_NON_SYNC_SAMPLE_FLAGS);
+      if (hasSampleDurations) {
+        contents.putInt((int) currentSampleMetadata.durationVu); // An unsigned int(32)
+      }
+      if (hasSampleSizes) {
+        contents.putInt(currentSampleMetadata.size); // An unsigned int(32)
+      }
+      if (hasSampleFlags) {
+        contents.putInt(getSampleFlags(currentSampleMetadata));
+      }
+      if (hasCompositionTimeOffsets) {
+        // An unsigned int(32) in version 0, and a signed int(32) in version 1.
+        contents.putInt(currentSampleMetadata.compositionTimeOffsetVu);
+      }
     }
     contents.flip();
     return BoxUtils.wrapIntoBox("trun", contents);
   }
 
-  /** Returns the size required for {@link #trun(List, int)} box content. */
-  public static int getTrunBoxContentSize(int sampleCount) {
-    int trunBoxFixedSize = 3 * BYTES_PER_INTEGER;
-    // 3 int(32-bit) gets written for each sample.
-    return trunBoxFixedSize + 3 * sampleCount * BYTES_PER_INTEGER;
+  /**
+   * Returns the default sample flags of a track with the given {@link Format}, for the {@linkplain
+   * #trex trex box}: all the audio samples are sync samples, while most video samples are not.
+   */
+  public static int getDefaultSampleFlags(Format format) {
+    return MimeTypes.isVideo(format.sampleMimeType)
+        ? TRUN_BOX_NON_SYNC_SAMPLE_FLAGS
+        : TRUN_BOX_SYNC_SAMPLE_FLAGS;
   }
 
   /** Returns a movie extends (mvex) box. */
-  public static ByteBuffer mvex(List<ByteBuffer> trexBoxes) {
-    return BoxUtils.wrapBoxesIntoBox("mvex", trexBoxes);
+  public static Box mvex(List<Box> trexBoxes) {
+    return Box.container("mvex", trexBoxes);
   }
 
-  /** Returns a track extends (trex) box. */
-  public static ByteBuffer trex(int trackId) {
+  /**
+   * Returns a track extends (trex) box.
+   *
+   * @param trackId The track ID.
+   * @param defaultSampleFlags The sample flags used in the track fragments for the samples that do
+   *     not have their own, from {@link #getDefaultSampleFlags(Format)}.
+   */
+  public static ByteBuffer trex(int trackId, int defaultSampleFlags) {
     ByteBuffer contents = ByteBuffer.allocate(6 * BYTES_PER_INTEGER);
     contents.putInt(0x0); // version and flags
     contents.putInt(trackId);
     contents.putInt(1); // default_sample_description_index
     contents.putInt(0); // default_sample_duration
     contents.putInt(0); // default_sample_size
-    contents.putInt(0); // default_sample_flags
+    contents.putInt(defaultSampleFlags); // default_sample_flags
     contents.flip();
     return BoxUtils.wrapIntoBox("trex", contents);
   }
 
+  private static int getSampleFlags(SampleMetadata sampleMetadata) {
+    return (sampleMetadata.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0
+        ? TRUN_BOX_SYNC_SAMPLE_FLAGS
+        : TRUN_BOX_NON_SYNC_SAMPLE_FLAGS;
+  }
+
+  private static boolean hasConstantDuration(List<SampleMetadata> samplesMetadata) {
+    for (int i = 1; i < samplesMetadata.size(); i++) {
+      if (samplesMetadata.get(i).durationVu != samplesMetadata.get(0).durationVu) {
+        return false;
+      }
+    }
+    return !samplesMetadata.isEmpty();
+  }
+
+  private static boolean hasConstantSize(List<SampleMetadata> samplesMetadata) {
+    for (int i = 1; i < samplesMetadata.size(); i++) {
+      if (samplesMetadata.get(i).size != samplesMetadata.get(0).size) {
+        return false;
+      }
+    }
+    return !samplesMetadata.isEmpty();
+  }
+
   // TODO: b/317117431 - Change this method to getLastSampleDuration().
   /** Adjusts the duration of the very last sample if needed. */
   private static void adjustLastSampleDuration(
-      List<Long> durationsToBeAdjustedVu, @Mp4Muxer.LastFrameDurationBehavior int behavior) {
+      long[] durationsToBeAdjustedVu, @Mp4Muxer.LastFrameDurationBehavior int behavior) {
     // Technically, MP4 file stores frame durations, not timestamps. If a frame starts at a
     // given timestamp then the duration of the last frame is not obvious. If samples follow each
     // other in roughly regular intervals (e.g. in a normal, 30 fps video), it can be safely assumed
@@ -940,7 +924,8 @@ import java.util.Locale;
     // there are just a few, irregularly spaced frames, with duplication, the entire duration of the
     // video will increase, creating abnormal gaps.
 
-    if (durationsToBeAdjustedVu.size() <= 2) {
+    int lastIndex = durationsToBeAdjustedVu.length - 1;
+    if (durationsToBeAdjustedVu.length <= 2) {
       // Nothing to duplicate if there are 0 or 1 entries.
       return;
     }
@@ -949,13 +934,11 @@ import java.util.Locale;
       case Mp4Muxer.LAST_FRAME_DURATION_BEHAVIOR_DUPLICATE_PREV_DURATION:
         // This is the default MediaMuxer behavior: the last sample duration is a copy of the
         // previous sample duration.
-        durationsToBeAdjustedVu.set(
-            durationsToBeAdjustedVu.size() - 1,
-            durationsToBeAdjustedVu.get(durationsToBeAdjustedVu.size() - 2));
+        durationsToBeAdjustedVu[lastIndex] = durationsToBeAdjustedVu[lastIndex - 1];
         break;
       case Mp4Muxer.LAST_FRAME_DURATION_BEHAVIOR_INSERT_SHORT_FRAME:
         // Keep the last sample duration as short as possible.
-        checkState(Iterables.getLast(durationsToBeAdjustedVu) == 0L);
+        checkState(durationsToBeAdjustedVu[lastIndex] == 0L);
         break;
       default:
         throw new IllegalArgumentException(
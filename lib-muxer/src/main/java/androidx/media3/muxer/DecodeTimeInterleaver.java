@@ -0,0 +1,187 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.common.util.Assertions.checkArgument;
+
+import android.media.MediaCodec.BufferInfo;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.muxer.Mp4Writer.Track;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link SampleInterleaver} that writes the chunks of all the tracks in the order of their decode
+ * timestamps.
+ *
+ * <p>A chunk ends once it spans the chunk duration, or once it holds the chunk size. The chunk of
+ * the track whose pending samples are decoded first is written once it is complete and the other
+ * tracks can not add samples that are decoded before it, so a reader finds the samples of all the
+ * tracks at about the same position in the file for any playback position.
+ *
+ * <p>A track that stops receiving samples would hold back the other tracks, so the chunks of a
+ * track are written anyway once its pending samples span {@link #MAX_TRACK_DELAY_US} more than the
+ * chunk duration.
+ */
+/* package */ final class DecodeTimeInterleaver implements SampleInterleaver {
+
+  /**
+   * The duration, in microseconds, that the pending samples of a track can span beyond the chunk
+   * duration while waiting for the other tracks.
+   */
+  public static final long MAX_TRACK_DELAY_US = 1_000_000L;
+
+  private final long chunkDurationUs;
+  private final long chunkBytes;
+
+  /**
+   * Creates an instance.
+   *
+   * @param chunkDurationUs The maximum duration of a chunk, in microseconds, or {@link
+   *     C#TIME_UNSET} to only limit its size.
+   * @param chunkBytes The maximum size of a chunk, in bytes, or {@link C#LENGTH_UNSET} to only limit
+   *     its duration. A chunk holds at least one sample.
+   */
+  public DecodeTimeInterleaver(long chunkDurationUs, long chunkBytes) {
+    checkArgument(chunkDurationUs == C.TIME_UNSET || chunkDurationUs > 0);
+    checkArgument(chunkBytes == C.LENGTH_UNSET || chunkBytes > 0);
+    checkArgument(chunkDurationUs != C.TIME_UNSET || chunkBytes != C.LENGTH_UNSET);
+    this.chunkDurationUs = chunkDurationUs;
+    this.chunkBytes = chunkBytes;
+  }
+
+  @Override
+  public void interleave(List<Track> tracks, ChunkWriter chunkWriter) throws IOException {
+    while (true) {
+      @Nullable Track track = getFirstPendingTrack(tracks);
+      if (track == null) {
+        return;
+      }
+      int sampleCount = getCompleteChunkSampleCount(track);
+      if (sampleCount == 0 || !canWriteBeforeOtherTracks(tracks, track)) {
+        track = getDelayedTrack(tracks);
+        if (track == null) {
+          return;
+        }
+        sampleCount = track.getWritablePendingSampleCount(getChunkSampleCount(track));
+      }
+      chunkWriter.writeChunk(track, sampleCount);
+    }
+  }
+
+  @Override
+  public void flush(List<Track> tracks, ChunkWriter chunkWriter) throws IOException {
+    while (true) {
+      @Nullable Track track = getFirstPendingTrack(tracks);
+      if (track == null) {
+        return;
+      }
+      // All the pending samples can be written, as no more samples are added.
+      int pendingSampleCount = track.pendingSamplesBufferInfo.size();
+      int sampleCount = getChunkSampleCount(track);
+      if (sampleCount < pendingSampleCount) {
+        sampleCount = track.getWritablePendingSampleCount(sampleCount);
+      }
+      chunkWriter.writeChunk(track, sampleCount == 0 ? pendingSampleCount : sampleCount);
+    }
+  }
+
+  /** Returns the track whose first pending sample is decoded first, if any. */
+  @Nullable
+  private static Track getFirstPendingTrack(List<Track> tracks) {
+    @Nullable Track firstTrack = null;
+    long firstDecodeTimeUs = Long.MAX_VALUE;
+    for (int i = 0; i < tracks.size(); i++) {
+      Track track = tracks.get(i);
+      long decodeTimeUs = track.getFirstPendingDecodeTimeUs();
+      if (decodeTimeUs != C.TIME_UNSET && decodeTimeUs < firstDecodeTimeUs) {
+        firstTrack = track;
+        firstDecodeTimeUs = decodeTimeUs;
+      }
+    }
+    return firstTrack;
+  }
+
+  /**
+   * Returns whether none of the other tracks can add a sample that is decoded before the first
+   * pending sample of a track.
+   */
+  private static boolean canWriteBeforeOtherTracks(List<Track> tracks, Track track) {
+    long decodeTimeUs = track.getFirstPendingDecodeTimeUs();
+    for (int i = 0; i < tracks.size(); i++) {
+      Track otherTrack = tracks.get(i);
+      // A track with pending samples is decoded after the first pending track, and the samples it
+      // adds are presented after its latest sample.
+      if (otherTrack != track
+          && otherTrack.pendingSamplesBufferInfo.isEmpty()
+          && (otherTrack.getMaxPresentationTimeUs() == C.TIME_UNSET
+              || otherTrack.getMaxPresentationTimeUs() < decodeTimeUs)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns a track whose pending samples waited too long for the other tracks, if any. */
+  @Nullable
+  private Track getDelayedTrack(List<Track> tracks) {
+    long maxPendingDurationUs =
+        (chunkDurationUs == C.TIME_UNSET ? 0 : chunkDurationUs) + MAX_TRACK_DELAY_US;
+    for (int i = 0; i < tracks.size(); i++) {
+      Track track = tracks.get(i);
+      long firstDecodeTimeUs = track.getFirstPendingDecodeTimeUs();
+      if (firstDecodeTimeUs != C.TIME_UNSET
+          && track.getMaxPresentationTimeUs() - firstDecodeTimeUs > maxPendingDurationUs
+          && track.getWritablePendingSampleCount() > 0) {
+        return track;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the number of samples of the first chunk of the pending samples, if more samples are
+   * pending after it, or 0 otherwise.
+   *
+   * <p>With B-frames, the chunk ends where its samples can be written, which can make it a bit
+   * shorter or longer.
+   */
+  private int getCompleteChunkSampleCount(Track track) {
+    int sampleCount = getChunkSampleCount(track);
+    return sampleCount < track.pendingSamplesBufferInfo.size()
+        ? track.getWritablePendingSampleCount(sampleCount)
+        : 0;
+  }
+
+  /** Returns the number of samples of the first chunk of the pending samples. */
+  private int getChunkSampleCount(Track track) {
+    long firstDecodeTimeUs = track.getFirstPendingDecodeTimeUs();
+    int sampleCount = 0;
+    long bytes = 0;
+    for (BufferInfo bufferInfo : track.pendingSamplesBufferInfo) {
+      if (sampleCount > 0
+          && ((chunkDurationUs != C.TIME_UNSET
+                  && bufferInfo.presentationTimeUs - firstDecodeTimeUs >= chunkDurationUs)
+              || (chunkBytes != C.LENGTH_UNSET && bytes >= chunkBytes))) {
+        break;
+      }
+      bytes += bufferInfo.size;
+      sampleCount++;
+    }
+    return sampleCount;
+  }
+}
@@ -23,6 +23,8 @@ import static java.lang.Math.min;
 
 import android.media.MediaCodec.BufferInfo;
 
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
 import androidx.media3.common.Format;
 import androidx.media3.common.MimeTypes;
 import androidx.media3.common.util.Util;
@@ -30,19 +32,48 @@ import androidx.media3.muxer.Mp4Muxer.TrackToken;
 
 import com.google.common.collect.Range;
 
+import java.io.EOFException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The default implementation of {@link Mp4Writer} which writes all the samples in a single mdat
  * box.
+ *
+ * <p>With a write queue capacity, the file is written by an {@link AsyncFileChannelWriter}, so that
+ * slow storage does not block the caller until the queue is full. The boxes are then serialized on
+ * the caller thread, as the sample tables keep changing after they are queued.
+ *
+ * <p>With memory mapping, the space reserved at the end of the mdat box is mapped, and the samples
+ * are copied into the mapping instead of being written to the file. The mdat size field is also
+ * updated through a mapping, as is the final moov box, which is written into that reserved space.
+ *
+ * <p>With faststart, a free box after the ftyp box reserves space for the final moov box, so that
+ * the file can be played while it is downloaded. If the final moov box does not fit, the mdat box
+ * is moved towards the end of the file to make room for it.
+ *
+ * <p>With a checkpoint interval, the moov box is also written periodically between the extensions
+ * of the mdat box, so that few samples are lost if the process dies. A checkpoint moov box is
+ * written at the end of the reserved space, then the mdat box is shrunk to end before it, which
+ * leaves the file valid at any point.
+ *
+ * <p>With preallocation, the space reserved in the mdat box is filled with zeros in blocks ahead of
+ * the samples, instead of being left as a hole in the file that the file system allocates piece by
+ * piece as the samples are written. With a write queue, the blocks are written by its writer
+ * thread, ordered with the other writes.
  */
 /* package */ final class DefaultMp4Writer extends Mp4Writer {
-  private static final long INTERLEAVE_DURATION_US = 1_000_000L;
+  // Maps the reserved space in windows, to not use up the address space of 32-bit processes.
+  private static final long MAX_MDAT_MAPPING_SIZE = 64_000_000L;
+  private static final int MOVE_BUFFER_SIZE = 1_000_000;
 
   private final AtomicBoolean hasWrittenSamples;
 
@@ -54,6 +85,25 @@ import java.util.concurrent.atomic.AtomicBoolean;
   private Range<Long> lastMoovWritten;
 
   private final FileChannel output;
+  // The samples of the chunk being written, to write them with a single gathering write.
+  private ByteBuffer[] chunkBuffers;
+  @Nullable private final AsyncFileChannelWriter asyncOutput;
+  private final boolean memoryMapped;
+  private final int faststartMoovSpaceBytes;
+  private long faststartMoovStart;
+  @Nullable private MappedByteBuffer mdatSizeMapping;
+  @Nullable private MappedByteBuffer mdatMapping;
+  private long mdatMappingStart;
+  private final long checkpointIntervalUs;
+  private final long checkpointIntervalBytes;
+  private long lastCheckpointTimeUs;
+  private long lastCheckpointDataEnd;
+  private long lastWrittenTimeUs;
+  private final int preallocationBytes;
+  @Nullable private final ByteBuffer preallocationZeros;
+  private long preallocatedEnd;
+  private final SampleInterleaver sampleInterleaver;
+  private long maxChunkSkewUs;
 
   /**
    * Creates an instance.
@@ -63,15 +113,59 @@ import java.util.concurrent.atomic.AtomicBoolean;
    * @param annexBToAvccConverter The {@link AnnexBToAvccConverter} to be used to convert H.264 and
    *     H.265 NAL units from the Annex-B format (using start codes to delineate NAL units) to the
    *     AVCC format (which uses length prefixes).
+   * @param writeQueueCapacityBytes The maximum number of bytes to queue for a writer thread, or
+   *     {@link C#LENGTH_UNSET} to write on the caller thread.
+   * @param memoryMapped Whether to copy the samples into a mapping of the file, which requires the
+   *     {@code fileChannel} to be readable, and no write queue.
+   * @param faststartMoovSpaceBytes The number of bytes to reserve for the final moov box before the
+   *     mdat box, or {@link C#LENGTH_UNSET} to write it after the mdat box.
+   * @param checkpointIntervalUs The duration of the samples written between moov checkpoints, in
+   *     microseconds, or {@link C#TIME_UNSET} to not write checkpoints by duration.
+   * @param checkpointIntervalBytes The number of sample bytes written between moov checkpoints, or
+   *     {@link C#LENGTH_UNSET} to not write checkpoints by size.
+   * @param preallocationBytes The number of bytes to fill with zeros at a time ahead of the
+   *     samples, or {@link C#LENGTH_UNSET} to leave the reserved space as a hole.
+   * @param sampleInterleaver The {@link SampleInterleaver} that decides when the pending samples
+   *     are written.
    */
   public DefaultMp4Writer(
       FileChannel fileChannel,
       Mp4MoovStructure moovGenerator,
-      AnnexBToAvccConverter annexBToAvccConverter) {
+      AnnexBToAvccConverter annexBToAvccConverter,
+      int writeQueueCapacityBytes,
+      boolean memoryMapped,
+      int faststartMoovSpaceBytes,
+      long checkpointIntervalUs,
+      long checkpointIntervalBytes,
+      int preallocationBytes,
+      SampleInterleaver sampleInterleaver) {
     super(moovGenerator, annexBToAvccConverter);
+    checkArgument(
+        faststartMoovSpaceBytes == C.LENGTH_UNSET
+            || faststartMoovSpaceBytes == 0
+            || faststartMoovSpaceBytes >= 8);
+    this.faststartMoovSpaceBytes = faststartMoovSpaceBytes;
+    this.checkpointIntervalUs = checkpointIntervalUs;
+    this.checkpointIntervalBytes = checkpointIntervalBytes;
+    checkArgument(preallocationBytes == C.LENGTH_UNSET || preallocationBytes > 0);
+    this.preallocationBytes = preallocationBytes;
+    // The zeros are only read, so the same buffer can be queued several times.
+    preallocationZeros =
+        preallocationBytes == C.LENGTH_UNSET ? null : ByteBuffer.allocateDirect(preallocationBytes);
+    checkArgument(!memoryMapped || writeQueueCapacityBytes == C.LENGTH_UNSET);
+    this.memoryMapped = memoryMapped;
     output = fileChannel;
+    asyncOutput =
+        writeQueueCapacityBytes == C.LENGTH_UNSET
+            ? null
+            : new AsyncFileChannelWriter(fileChannel, writeQueueCapacityBytes);
     hasWrittenSamples = new AtomicBoolean(false);
     lastMoovWritten = Range.closed(0L, 0L);
+    chunkBuffers = new ByteBuffer[0];
+    lastCheckpointTimeUs = C.TIME_UNSET;
+    lastWrittenTimeUs = C.TIME_UNSET;
+    this.sampleInterleaver = sampleInterleaver;
+    maxChunkSkewUs = C.TIME_UNSET;
   }
 
   @Override
@@ -86,6 +180,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
   public void writeSampleData(TrackToken token, ByteBuffer byteBuffer, BufferInfo bufferInfo)
       throws IOException {
     checkArgument(token instanceof Track);
+    if (asyncOutput != null) {
+      asyncOutput.maybeThrowWriteException();
+    }
     ((Track) token).writeSampleData(byteBuffer, bufferInfo);
     doInterleave();
   }
@@ -93,56 +190,87 @@ import java.util.concurrent.atomic.AtomicBoolean;
   @Override
   public void close() throws IOException {
     try {
-      for (int i = 0; i < tracks.size(); i++) {
-        flushPending(tracks.get(i));
-      }
+      sampleInterleaver.flush(tracks, this::flushPending);
 
       // Leave the file empty if no samples are written.
       if (hasWrittenSamples.get()) {
-        writeMoovAndTrim();
+        if (faststartMoovSpaceBytes != C.LENGTH_UNSET) {
+          writeFaststartMoovAndTrim();
+        } else {
+          writeMoovAndTrim();
+        }
       }
     } finally {
-      output.close();
+      // The mappings are released once they are garbage collected, which is safe after closing.
+      mdatSizeMapping = null;
+      mdatMapping = null;
+      if (asyncOutput != null) {
+        asyncOutput.close();
+      } else {
+        output.close();
+      }
     }
   }
 
+  @Override
+  @Nullable
+  public WriteQueueMetrics getWriteQueueMetrics() {
+    return asyncOutput == null ? null : asyncOutput.getMetrics();
+  }
+
+  @Override
+  public long getMaxChunkSkewUs() {
+    return maxChunkSkewUs;
+  }
+
   private void writeHeader() throws IOException {
-    output.position(0L);
-    output.write(Boxes.ftyp());
+    ByteBuffer ftyp = Boxes.ftyp();
 
     // Start with an empty mdat box.
-    mdatStart = output.position();
+    mdatStart = ftyp.remaining();
+    write(ftyp, /* position= */ 0L);
+
+    if (faststartMoovSpaceBytes != C.LENGTH_UNSET) {
+      faststartMoovStart = mdatStart;
+      if (faststartMoovSpaceBytes > 0) {
+        write(freeBoxHeader(faststartMoovSpaceBytes), faststartMoovStart);
+      }
+      mdatStart += faststartMoovSpaceBytes;
+    }
 
     ByteBuffer header = ByteBuffer.allocate(4 + 4 + 8);
     header.putInt(1); // 4 bytes, indicating a 64-bit length field
     header.put(Util.getUtf8Bytes("mdat")); // 4 bytes
     header.putLong(16); // 8 bytes (the actual length)
     header.flip();
-    output.write(header);
+    write(header, mdatStart);
+    if (memoryMapped) {
+      mdatSizeMapping = output.map(FileChannel.MapMode.READ_WRITE, mdatStart + 8, /* size= */ 8);
+    }
 
     // The box includes only its type and length.
     mdatDataEnd = mdatStart + 16;
     mdatEnd = mdatDataEnd;
   }
 
-  private ByteBuffer assembleCurrentMoovData() {
+  private Box assembleCurrentMoovData() {
     long minInputPtsUs = Long.MAX_VALUE;
 
     // Recalculate the min timestamp every time, in case some new samples have smaller timestamps.
     for (int i = 0; i < tracks.size(); i++) {
       Track track = tracks.get(i);
       if (!track.writtenSamples.isEmpty()) {
-        minInputPtsUs = Math.min(track.writtenSamples.get(0).presentationTimeUs, minInputPtsUs);
+        minInputPtsUs = Math.min(track.writtenSamples.firstPresentationTimeUs(), minInputPtsUs);
       }
     }
 
-    ByteBuffer moovHeader;
+    Box moovHeader;
     if (minInputPtsUs != Long.MAX_VALUE) {
       moovHeader =
           moovGenerator.moovMetadataHeader(tracks, minInputPtsUs, /* isFragmentedMp4= */ false);
     } else {
       // Skip moov box, if there are no samples.
-      moovHeader = ByteBuffer.allocate(0);
+      moovHeader = Box.empty();
     }
 
     return moovHeader;
@@ -162,14 +290,12 @@ import java.util.concurrent.atomic.AtomicBoolean;
    * @param newMoovBoxData The new moov box data.
    * @throws IOException If there is any error while writing data to the disk.
    */
-  private void safelyReplaceMoov(long newMoovBoxPosition, ByteBuffer newMoovBoxData)
-      throws IOException {
+  private void safelyReplaceMoov(long newMoovBoxPosition, Box newMoovBoxData) throws IOException {
     checkState(newMoovBoxPosition >= lastMoovWritten.upperEndpoint());
     checkState(newMoovBoxPosition >= mdatEnd);
 
     // Write a free box to the end of the file, with the new moov box wrapped into it.
-    output.position(newMoovBoxPosition);
-    output.write(BoxUtils.wrapIntoBox("free", newMoovBoxData.duplicate()));
+    write(Box.container("free", newMoovBoxData), newMoovBoxPosition);
 
     // The current state is:
     // | ftyp | mdat .. .. .. | previous moov | free (new moov)|
@@ -179,8 +305,82 @@ import java.util.concurrent.atomic.AtomicBoolean;
     mdatEnd = newMoovBoxPosition + 8;
     updateMdatSize();
 
+    // Include the header of the free box, so that the range ends at the end of the file.
     lastMoovWritten =
-        Range.closed(newMoovBoxPosition, newMoovBoxPosition + newMoovBoxData.remaining());
+        Range.closed(newMoovBoxPosition, newMoovBoxPosition + 8 + newMoovBoxData.size());
+    lastCheckpointTimeUs = lastWrittenTimeUs;
+    lastCheckpointDataEnd = mdatDataEnd;
+  }
+
+  /**
+   * Writes a checkpoint moov box at the end of the space reserved in the mdat box, and shrinks the
+   * mdat box to end before it.
+   *
+   * <p>The moov box and the free box after it, which extends to the end of the file, are written
+   * inside the mdat box, and forced to the storage before the mdat size is updated, so that the
+   * file stays valid if the process dies or the power is lost at any point.
+   *
+   * @throws IOException If there is any error while writing data to the disk.
+   */
+  private void writeMoovCheckpoint() throws IOException {
+    Box moov = assembleCurrentMoovData();
+    long moovStart = mdatEnd - 8 - moov.size();
+    if (moovStart < mdatDataEnd) {
+      // There is no space left for a checkpoint, so extend the mdat box, which writes the moov box
+      // at the end of the file.
+      rewriteMoovWithMdatEmptySpace(/* bytesNeeded= */ getMdatExtensionAmount(mdatDataEnd));
+      return;
+    }
+
+    // The current state is:
+    // | ftyp | mdat .. .. .. (00 00 00) | moov | ...
+    long freeStart = moovStart + moov.size();
+    long freeSize = lastMoovWritten.upperEndpoint() - freeStart;
+    checkState(freeSize < Integer.MAX_VALUE);
+    write(moov, moovStart);
+    write(freeBoxHeader((int) freeSize), freeStart);
+    force();
+
+    // Now change this to:
+    // | ftyp | mdat .. .. .. (00 00 00) | new moov | free (moov ...) |
+    mdatEnd = moovStart;
+    updateMdatSize();
+    force();
+
+    lastCheckpointTimeUs = lastWrittenTimeUs;
+    lastCheckpointDataEnd = mdatDataEnd;
+  }
+
+  private void maybeWriteMoovCheckpoint() throws IOException {
+    if ((checkpointIntervalUs == C.TIME_UNSET && checkpointIntervalBytes == C.LENGTH_UNSET)
+        || lastWrittenTimeUs == C.TIME_UNSET) {
+      return;
+    }
+    // The first checkpoint is written with the first samples, as the moov box written when the
+    // mdat box is first extended has no samples yet, and the later samples can only be recovered
+    // with a moov box.
+    if (lastCheckpointTimeUs == C.TIME_UNSET
+        || (checkpointIntervalUs != C.TIME_UNSET
+            && lastWrittenTimeUs - lastCheckpointTimeUs >= checkpointIntervalUs)
+        || (checkpointIntervalBytes != C.LENGTH_UNSET
+            && mdatDataEnd - lastCheckpointDataEnd >= checkpointIntervalBytes)) {
+      writeMoovCheckpoint();
+    }
+  }
+
+  /** Forces the data written so far to the storage. */
+  private void force() throws IOException {
+    if (mdatMapping != null) {
+      mdatMapping.force();
+    }
+    if (mdatSizeMapping != null) {
+      mdatSizeMapping.force();
+    }
+    if (asyncOutput != null) {
+      asyncOutput.force();
+    } else {
+      output.force(/* metaData= */ true);
+    }
   }
 
   /**
@@ -196,9 +396,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
     // To keep the trimming safe, first write the final moov box into the gap at the end of the mdat
     // box, and only then trim the extra space.
-    ByteBuffer currentMoovData = assembleCurrentMoovData();
+    Box currentMoovData = assembleCurrentMoovData();
 
-    int moovBytesNeeded = currentMoovData.remaining();
+    int moovBytesNeeded = currentMoovData.size();
 
     // Write a temporary free box wrapping the new moov box.
     int moovAndFreeBytesNeeded = moovBytesNeeded + 8;
@@ -212,8 +412,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
     // Write out the new moov box into the gap.
     long newMoovLocation = mdatDataEnd;
-    output.position(mdatDataEnd);
-    output.write(currentMoovData);
+    write(currentMoovData, newMoovLocation);
 
     // Add a free box to account for the actual remaining length of the file.
     long remainingLength = lastMoovWritten.upperEndpoint() - (newMoovLocation + moovBytesNeeded);
@@ -221,14 +420,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
     // Moov boxes shouldn't be too long; they can fit into a free box with a 32-bit length field.
     checkState(remainingLength < Integer.MAX_VALUE);
 
-    ByteBuffer freeHeader = ByteBuffer.allocate(4 + 4);
-    freeHeader.putInt((int) remainingLength);
-    freeHeader.put((byte) 'f');
-    freeHeader.put((byte) 'r');
-    freeHeader.put((byte) 'e');
-    freeHeader.put((byte) 'e');
-    freeHeader.flip();
-    output.write(freeHeader);
+    write(freeBoxHeader((int) remainingLength), newMoovLocation + moovBytesNeeded);
 
     // The moov box is actually written inside mdat box so the current state is:
     // | ftyp | mdat .. .. .. (new moov) (free header ) (00 00 00) | old moov |
@@ -237,10 +429,121 @@ import java.util.concurrent.atomic.AtomicBoolean;
     // | ftyp | mdat .. .. .. | new moov | free (00 00 00) (old moov) |
     mdatEnd = newMoovLocation;
     updateMdatSize();
-    lastMoovWritten = Range.closed(newMoovLocation, newMoovLocation + currentMoovData.limit());
+    lastMoovWritten = Range.closed(newMoovLocation, newMoovLocation + currentMoovData.size());
 
     // Remove the free box.
-    output.truncate(newMoovLocation + moovBytesNeeded);
+    if (asyncOutput != null) {
+      asyncOutput.truncate(newMoovLocation + moovBytesNeeded);
+    } else {
+      output.truncate(newMoovLocation + moovBytesNeeded);
+    }
+  }
+
+  /**
+   * Writes the final moov box into the space reserved before the mdat box, and trims the space
+   * after the mdat box.
+   *
+   * <p>If the moov box does not fit, the mdat box is moved, which requires the output to be
+   * readable and is not safe against a crash, as it overwrites the previous moov box. If the output
+   * is not readable, the moov box is left after the mdat box instead.
+   *
+   * @throws IOException If there is any error while writing data to the disk.
+   */
+  private void writeFaststartMoovAndTrim() throws IOException {
+    Box moov = assembleCurrentMoovData();
+    int moovSize = moov.size();
+    long moovSpaceSize = mdatStart - faststartMoovStart;
+
+    // The space left after the moov box must fit a free box, if any.
+    if (moovSize != moovSpaceSize && moovSize + 8 > moovSpaceSize) {
+      if (asyncOutput != null) {
+        asyncOutput.flush();
+      }
+      if (!isOutputReadable()) {
+        writeMoovAndTrim();
+        return;
+      }
+      long shift =
+          moovSize > moovSpaceSize ? moovSize - moovSpaceSize : moovSize + 8 - moovSpaceSize;
+      moveMdat(shift);
+      mdatStart += shift;
+      mdatDataEnd += shift;
+      moovSpaceSize += shift;
+      // The size field of the mdat box has moved as well.
+      mdatSizeMapping = null;
+      for (int i = 0; i < tracks.size(); i++) {
+        tracks.get(i).writtenSamples.shiftChunkOffsets(shift);
+      }
+      // The chunk offsets are 64-bit, so the moov box keeps its size.
+      moov = assembleCurrentMoovData();
+      checkState(moov.size() == moovSize);
+    }
+
+    // The current state is:
+    // | ftyp | free | mdat .. .. .. (00 00 00) | moov |
+    write(moov, faststartMoovStart);
+    if (moovSpaceSize > moovSize) {
+      write(freeBoxHeader((int) (moovSpaceSize - moovSize)), faststartMoovStart + moovSize);
+    }
+
+    // The mdat box still extends to the end of the file, so the moov box after it is hidden until
+    // the space after the mdat box is trimmed:
+    // | ftyp | moov | free | mdat .. .. .. |
+    mdatEnd = mdatDataEnd;
+    updateMdatSize();
+    lastMoovWritten = Range.closed(faststartMoovStart, faststartMoovStart + moovSize);
+    if (asyncOutput != null) {
+      asyncOutput.truncate(mdatDataEnd);
+    } else {
+      output.truncate(mdatDataEnd);
+    }
+  }
+
+  private boolean isOutputReadable() throws IOException {
+    try {
+      output.read(ByteBuffer.allocate(1), /* position= */ 0);
+      return true;
+    } catch (NonReadableChannelException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Moves the mdat box, with its header, {@code shift} bytes towards the end of the file.
+   *
+   * <p>It is copied from its end, so that each part is read before it is overwritten.
+   */
+  private void moveMdat(long shift) throws IOException {
+    ByteBuffer buffer =
+        ByteBuffer.allocateDirect((int) min(MOVE_BUFFER_SIZE, mdatDataEnd - mdatStart));
+    long end = mdatDataEnd;
+    while (end > mdatStart) {
+      int length = (int) min(buffer.capacity(), end - mdatStart);
+      long position = end - length;
+      buffer.clear();
+      buffer.limit(length);
+      while (buffer.hasRemaining()) {
+        if (output.read(buffer, position + buffer.position()) < 0) {
+          throw new EOFException();
+        }
+      }
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        output.write(buffer, position + shift + buffer.position());
+      }
+      end = position;
+    }
+  }
+
+  private static ByteBuffer freeBoxHeader(int size) {
+    ByteBuffer freeHeader = ByteBuffer.allocate(4 + 4);
+    freeHeader.putInt(size);
+    freeHeader.put((byte) 'f');
+    freeHeader.put((byte) 'r');
+    freeHeader.put((byte) 'e');
+    freeHeader.put((byte) 'e');
+    freeHeader.flip();
+    return freeHeader;
   }
 
   /**
@@ -252,14 +555,20 @@ import java.util.concurrent.atomic.AtomicBoolean;
   private void rewriteMoovWithMdatEmptySpace(long bytesNeeded) throws IOException {
     long newMoovStart = Math.max(mdatEnd + bytesNeeded, lastMoovWritten.upperEndpoint());
 
-    ByteBuffer currentMoovData = assembleCurrentMoovData();
+    Box currentMoovData = assembleCurrentMoovData();
 
     safelyReplaceMoov(newMoovStart, currentMoovData);
   }
 
-  /** Writes out any pending samples to the file. */
-  private void flushPending(Track track) throws IOException {
-    if (track.pendingSamplesBufferInfo.isEmpty()) {
+  /**
+   * Writes out the first {@code sampleCount} pending samples to the file.
+   *
+   * @param track The track whose samples to write.
+   * @param sampleCount The number of samples to write, which must not exceed {@link
+   *     Track#getWritablePendingSampleCount()} unless the file is being closed.
+   */
+  private void flushPending(Track track, int sampleCount) throws IOException {
+    if (sampleCount == 0) {
       return;
     }
 
@@ -267,9 +576,18 @@ import java.util.concurrent.atomic.AtomicBoolean;
       writeHeader();
     }
 
+    // Convert the H.264/H.265 samples from Annex-B format (output by MediaCodec) to Avcc format
+    // (required by MP4 container) first, as the conversion can change their size.
+    boolean isVideo = MimeTypes.isVideo(track.format.sampleMimeType);
+
     // Calculate the additional space required.
     long bytesNeededInMdat = 0L;
-    for (ByteBuffer sample : track.pendingSamplesByteBuffer) {
+    Iterator<ByteBuffer> samples = track.pendingSamplesByteBuffer.iterator();
+    for (int i = 0; i < sampleCount; i++) {
+      ByteBuffer sample = samples.next();
+      if (isVideo) {
+        annexBToAvccConverter.process(sample);
+      }
       bytesNeededInMdat += sample.limit();
     }
 
@@ -281,56 +599,165 @@ import java.util.concurrent.atomic.AtomicBoolean;
           /* bytesNeeded= */ getMdatExtensionAmount(mdatDataEnd) + bytesNeededInMdat);
     }
 
-    track.writtenChunkOffsets.add(mdatDataEnd);
-    track.writtenChunkSampleCounts.add(track.pendingSamplesBufferInfo.size());
+    track.writtenSamples.addChunk(mdatDataEnd, sampleCount);
 
-    do {
+    if (chunkBuffers.length < sampleCount) {
+      chunkBuffers = new ByteBuffer[max(sampleCount, 2 * chunkBuffers.length)];
+    }
+    long chunkStart = mdatDataEnd;
+    long[] decodeTimesUs = track.getPendingDecodeTimesUs(sampleCount);
+    // A reader that reached this chunk has read samples up to lastWrittenTimeUs, which it has to
+    // hold until this chunk is played.
+    long chunkSkewUs =
+        lastWrittenTimeUs == C.TIME_UNSET ? 0 : max(0, lastWrittenTimeUs - decodeTimesUs[0]);
+    maxChunkSkewUs = max(maxChunkSkewUs, chunkSkewUs);
+    lastWrittenTimeUs = max(lastWrittenTimeUs, decodeTimesUs[sampleCount - 1]);
+    for (int i = 0; i < sampleCount; i++) {
       BufferInfo currentSampleBufferInfo = track.pendingSamplesBufferInfo.removeFirst();
       ByteBuffer currentSampleByteBuffer = track.pendingSamplesByteBuffer.removeFirst();
 
-      track.writtenSamples.add(currentSampleBufferInfo);
-
-      // Convert the H.264/H.265 samples from Annex-B format (output by MediaCodec) to
-      // Avcc format (required by MP4 container).
-      if (MimeTypes.isVideo(track.format.sampleMimeType)) {
-        annexBToAvccConverter.process(currentSampleByteBuffer);
-      }
-
       currentSampleByteBuffer.rewind();
+      track.writtenSamples.addSample(
+          currentSampleBufferInfo.presentationTimeUs,
+          decodeTimesUs[i],
+          currentSampleByteBuffer.remaining(),
+          currentSampleBufferInfo.flags);
+
+      chunkBuffers[i] = currentSampleByteBuffer;
+      mdatDataEnd += currentSampleByteBuffer.remaining();
+    }
 
-      mdatDataEnd += output.write(currentSampleByteBuffer, mdatDataEnd);
-    } while (!track.pendingSamplesBufferInfo.isEmpty());
+    // Write the whole chunk at once. The writer thread gathers the queued samples itself.
+    if (memoryMapped) {
+      ByteBuffer mapping = mapMdat(chunkStart, mdatDataEnd - chunkStart);
+      for (int i = 0; i < sampleCount; i++) {
+        mapping.put(chunkBuffers[i]);
+      }
+    } else if (asyncOutput != null) {
+      for (int i = 0; i < sampleCount; i++) {
+        // Read the size first, as the writer thread consumes the buffer.
+        int sampleSize = chunkBuffers[i].remaining();
+        asyncOutput.write(chunkBuffers[i], chunkStart);
+        chunkStart += sampleSize;
+      }
+    } else {
+      output.position(chunkStart);
+      long remaining = mdatDataEnd - chunkStart;
+      int offset = 0;
+      while (remaining > 0) {
+        remaining -= output.write(chunkBuffers, offset, sampleCount - offset);
+        while (offset < sampleCount && !chunkBuffers[offset].hasRemaining()) {
+          offset++;
+        }
+      }
+    }
+    // Don't keep the samples alive until the next chunk.
+    Arrays.fill(chunkBuffers, 0, sampleCount, null);
 
     checkState(mdatDataEnd <= mdatEnd);
+    maybePreallocate();
+  }
+
+  /**
+   * Fills the reserved space with zeros, one block at a time, so that the next block after the
+   * samples is always allocated in the file.
+   *
+   * <p>The space is filled up to the free box header that precedes the moov box, or the checkpoint
+   * moov box, at the end of the mdat box. The writes are in order with the other writes, so that
+   * they never overwrite a later sample or moov box.
+   *
+   * @throws IOException If there is any error while writing data to the disk.
+   */
+  private void maybePreallocate() throws IOException {
+    if (preallocationZeros == null) {
+      return;
+    }
+    long preallocationEnd = min(mdatDataEnd + preallocationBytes, mdatEnd - 8);
+    while (preallocatedEnd < preallocationEnd) {
+      long blockStart = max(preallocatedEnd, mdatDataEnd);
+      ByteBuffer zeros = preallocationZeros.duplicate();
+      zeros.limit((int) min(preallocationBytes, mdatEnd - 8 - blockStart));
+      preallocatedEnd = blockStart + zeros.remaining();
+      write(zeros, blockStart);
+    }
   }
 
   private void updateMdatSize() throws IOException {
     // Assuming that the mdat box has a 64-bit length, skip the box type (4 bytes) and
     // the 32-bit box length field (4 bytes).
-    output.position(mdatStart + 8);
-
+    if (mdatSizeMapping != null) {
+      mdatSizeMapping.putLong(/* index= */ 0, mdatEnd - mdatStart);
+      return;
+    }
     ByteBuffer mdatSize = ByteBuffer.allocate(8); // one long
     mdatSize.putLong(mdatEnd - mdatStart);
     mdatSize.flip();
-    output.write(mdatSize);
+    write(mdatSize, mdatStart + 8);
   }
 
-  private void doInterleave() throws IOException {
-    for (int i = 0; i < tracks.size(); i++) {
-      Track track = tracks.get(i);
-      // TODO: b/270583563 - Check if we need to consider the global timestamp instead.
-      if (track.pendingSamplesBufferInfo.size() > 2) {
-        BufferInfo firstSampleInfo = checkNotNull(track.pendingSamplesBufferInfo.peekFirst());
-        BufferInfo lastSampleInfo = checkNotNull(track.pendingSamplesBufferInfo.peekLast());
-
-        if (lastSampleInfo.presentationTimeUs - firstSampleInfo.presentationTimeUs
-            > INTERLEAVE_DURATION_US) {
-          flushPending(track);
-        }
-      }
+  /**
+   * Returns the mapping of the reserved space at the end of the mdat box, positioned at {@code
+   * position}, mapping a new window if needed.
+   *
+   * @param position The position in the file, which must be in the reserved space.
+   * @param size The number of bytes that must fit in the mapping, up to the end of the mdat box.
+   */
+  private ByteBuffer mapMdat(long position, long size) throws IOException {
+    checkState(position + size <= mdatEnd);
+    @Nullable ByteBuffer mapping = getMdatMapping(position, size);
+    if (mapping == null) {
+      long mappingSize = min(mdatEnd - position, max(size, MAX_MDAT_MAPPING_SIZE));
+      mdatMapping = output.map(FileChannel.MapMode.READ_WRITE, position, mappingSize);
+      mdatMappingStart = position;
+      mapping = checkNotNull(mdatMapping);
+    }
+    return mapping;
+  }
+
+  /**
+   * Returns the current mapping of the mdat box positioned at {@code position}, or {@code null} if
+   * it does not hold the {@code size} bytes from there.
+   */
+  @Nullable
+  private ByteBuffer getMdatMapping(long position, long size) {
+    if (mdatMapping == null
+        || position < mdatMappingStart
+        || position + size > mdatMappingStart + mdatMapping.capacity()) {
+      return null;
+    }
+    mdatMapping.position((int) (position - mdatMappingStart));
+    return mdatMapping;
+  }
+
+  private void write(ByteBuffer buffer, long position) throws IOException {
+    @Nullable ByteBuffer mapping = getMdatMapping(position, buffer.remaining());
+    if (mapping != null) {
+      mapping.put(buffer);
+    } else if (asyncOutput != null) {
+      asyncOutput.write(buffer, position);
+    } else {
+      output.position(position);
+      output.write(buffer);
     }
   }
 
+  private void write(Box box, long position) throws IOException {
+    @Nullable ByteBuffer mapping = getMdatMapping(position, box.size());
+    if (mapping != null) {
+      box.writeTo(mapping);
+    } else if (asyncOutput != null) {
+      asyncOutput.write(box.toByteBuffer(), position);
+    } else {
+      output.position(position);
+      box.writeTo(output);
+    }
+  }
+
+  private void doInterleave() throws IOException {
+    sampleInterleaver.interleave(tracks, this::flushPending);
+    maybeWriteMoovCheckpoint();
+  }
+
   /**
    * Returns the number of bytes by which to extend the mdat box.
    *
@@ -18,9 +18,7 @@ package androidx.media3.muxer;
 import static androidx.media3.common.util.Assertions.checkArgument;
 import static androidx.media3.common.util.Assertions.checkNotNull;
 import static androidx.media3.muxer.Boxes.BOX_HEADER_SIZE;
-import static androidx.media3.muxer.Boxes.MFHD_BOX_CONTENT_SIZE;
-import static androidx.media3.muxer.Boxes.TFHD_BOX_CONTENT_SIZE;
-import static androidx.media3.muxer.Boxes.getTrunBoxContentSize;
+import static androidx.media3.muxer.Boxes.TRUN_BOX_DATA_OFFSET_POSITION;
 import static androidx.media3.muxer.Mp4Utils.UNSIGNED_INT_MAX_VALUE;
 import static java.lang.Math.max;
 import static java.lang.Math.min;
@@ -28,6 +26,8 @@ import static java.lang.Math.min;
 import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
 import androidx.media3.common.Format;
 import androidx.media3.common.MimeTypes;
 import androidx.media3.common.util.Util;
@@ -37,17 +37,28 @@ import com.google.common.collect.ImmutableList;
 
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
  * An {@link Mp4Writer} implementation which writes samples into multiple fragments as per the
  * fragmented MP4 (ISO/IEC 14496-12) standard.
+ *
+ * <p>By default a fragment holds whole groups of pictures, and is only written once the next sync
+ * sample arrives. In chunked mode (as in CMAF, ISO/IEC 23000-19), each segment of groups of pictures
+ * is written as several smaller fragments (chunks), every few video samples or milliseconds. Only
+ * the first chunk of a segment is guaranteed to start with a sync sample.
+ *
+ * <p>The samples of a fragment are held until it is written. With a spill directory, their bytes
+ * are written to a temporary file per track as they arrive, and only their metadata is kept in
+ * memory, so that long groups of pictures do not use a lot of memory.
  */
 public final class FragmentedMp4Writer extends Mp4Writer {
   /** Provides a limited set of sample metadata. */
@@ -55,34 +66,92 @@ public final class FragmentedMp4Writer extends Mp4Writer {
     public final long durationVu;
     public final int size;
     public final int flags;
+    // The presentation timestamp minus the decode timestamp, which is negative for some B-frames.
+    public final int compositionTimeOffsetVu;
 
     public SampleMetadata(long durationsVu, int size, int flags) {
+      this(durationsVu, size, flags, /* compositionTimeOffsetVu= */ 0);
+    }
+
+    public SampleMetadata(long durationsVu, int size, int flags, int compositionTimeOffsetVu) {
       this.durationVu = durationsVu;
       this.size = size;
       this.flags = flags;
+      this.compositionTimeOffsetVu = compositionTimeOffsetVu;
     }
   }
 
   private final int fragmentDurationUs;
+  private final long chunkDurationUs;
+  private final int chunkSampleCount;
 
   private @MonotonicNonNull Track videoTrack;
   private int currentFragmentSequenceNumber;
   private boolean headerCreated;
   private long minInputPresentationTimeUs;
   private long maxTrackDurationUs;
+  private long segmentStartTimeUs;
 
   private final GatheringByteChannel channel;
+  // Reused to hold the samples of each track while a fragment is created.
+  private final SampleTable fragmentSamples;
+  @Nullable private final File spillDirectory;
+  // The spill file of each track, in the order of the tracks, once the header is written with a
+  // spill directory.
+  private final List<SampleSpillFile> spillFiles;
 
   public FragmentedMp4Writer(
       GatheringByteChannel gatheringByteChannel,
       Mp4MoovStructure moovGenerator,
       AnnexBToAvccConverter annexBToAvccConverter,
       int fragmentDurationUs) {
+    this(
+        gatheringByteChannel,
+        moovGenerator,
+        annexBToAvccConverter,
+        fragmentDurationUs,
+        /* chunkDurationUs= */ C.TIME_UNSET,
+        /* chunkSampleCount= */ C.LENGTH_UNSET,
+        /* spillDirectory= */ null);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param gatheringByteChannel The channel to write the fragments to.
+   * @param moovGenerator An {@link Mp4MoovStructure} instance to generate the moov box.
+   * @param annexBToAvccConverter The {@link AnnexBToAvccConverter} to be used to convert H.264 and
+   *     H.265 NAL units from the Annex-B format to the AVCC format.
+   * @param fragmentDurationUs The minimum duration of a segment, which starts with a video sync
+   *     sample.
+   * @param chunkDurationUs The duration after which a chunk of the current segment is written, or
+   *     {@link C#TIME_UNSET} to not cut chunks by duration.
+   * @param chunkSampleCount The number of video samples after which a chunk of the current segment
+   *     is written, or {@link C#LENGTH_UNSET} to not cut chunks by sample count.
+   * @param spillDirectory The directory where to hold the bytes of the pending samples in
+   *     temporary files, or {@code null} to hold them in memory.
+   */
+  public FragmentedMp4Writer(
+      GatheringByteChannel gatheringByteChannel,
+      Mp4MoovStructure moovGenerator,
+      AnnexBToAvccConverter annexBToAvccConverter,
+      int fragmentDurationUs,
+      long chunkDurationUs,
+      int chunkSampleCount,
+      @Nullable File spillDirectory) {
     super(moovGenerator, annexBToAvccConverter);
+    checkArgument(chunkDurationUs == C.TIME_UNSET || chunkDurationUs > 0);
+    checkArgument(chunkSampleCount == C.LENGTH_UNSET || chunkSampleCount > 0);
     this.channel = gatheringByteChannel;
     this.fragmentDurationUs = fragmentDurationUs;
+    this.chunkDurationUs = chunkDurationUs;
+    this.chunkSampleCount = chunkSampleCount;
     minInputPresentationTimeUs = Long.MAX_VALUE;
+    segmentStartTimeUs = C.TIME_UNSET;
     currentFragmentSequenceNumber = 1;
+    fragmentSamples = new SampleTable();
+    this.spillDirectory = spillDirectory;
+    spillFiles = new ArrayList<>();
   }
 
   @Override
@@ -102,13 +171,31 @@ public final class FragmentedMp4Writer extends Mp4Writer {
     checkArgument(token instanceof Track);
     if (!headerCreated) {
       createHeader();
+      // The tracks are all known once the header is written.
+      if (spillDirectory != null) {
+        for (int i = 0; i < tracks.size(); i++) {
+          spillFiles.add(new SampleSpillFile(spillDirectory));
+        }
+      }
       headerCreated = true;
     }
     Track track = (Track) token;
     if (shouldFlushPendingSamples(track, bufferInfo)) {
-      createFragment();
+      createFragment(track, bufferInfo.presentationTimeUs);
+      segmentStartTimeUs = bufferInfo.presentationTimeUs;
+    } else if (shouldFlushChunk(track, bufferInfo)) {
+      createFragment(track, bufferInfo.presentationTimeUs);
     }
+    int pendingSampleCount = track.pendingSamplesBufferInfo.size();
     track.writeSampleData(byteBuffer, bufferInfo);
+    if (spillDirectory != null && track.pendingSamplesBufferInfo.size() > pendingSampleCount) {
+      spillPendingSample(track);
+    }
+    if (segmentStartTimeUs == C.TIME_UNSET && track.equals(videoTrack) && track.hadKeyframe) {
+      // The first segment starts with the first video sample, which is a sync sample.
+      segmentStartTimeUs =
+          checkNotNull(track.pendingSamplesBufferInfo.peekFirst()).presentationTimeUs;
+    }
     BufferInfo firstPendingSample = checkNotNull(track.pendingSamplesBufferInfo.peekFirst());
     BufferInfo lastPendingSample = checkNotNull(track.pendingSamplesBufferInfo.peekLast());
     minInputPresentationTimeUs =
@@ -122,61 +209,67 @@ public final class FragmentedMp4Writer extends Mp4Writer {
   @Override
   public void close() throws IOException {
     try {
-      createFragment();
+      createFragment(/* nextSampleTrack= */ null, /* nextSamplePresentationTimeUs= */ 0);
     } finally {
-      channel.close();
+      try {
+        for (int i = 0; i < spillFiles.size(); i++) {
+          spillFiles.get(i).close();
+        }
+      } finally {
+        channel.close();
+      }
     }
   }
 
-  private static ImmutableList<ByteBuffer> createTrafBoxes(
-      List<ProcessedTrackInfo> trackInfos) {
-    ImmutableList.Builder<ByteBuffer> trafBoxes = new ImmutableList.Builder<>();
-    int moofBoxSize = calculateMoofBoxSize(trackInfos);
-    int mdatBoxHeaderSize = BOX_HEADER_SIZE;
-    // dataOffset denotes the relative position of the first sample of the track from the
-    // moofBoxStartPosition.
-    int dataOffset = moofBoxSize + mdatBoxHeaderSize;
+  /** Moves the bytes of the last pending sample of a track to its spill file. */
+  private void spillPendingSample(Track track) throws IOException {
+    ByteBuffer sample = track.pendingSamplesByteBuffer.removeLast();
+    // The sample size is only recorded once, so it is converted before.
+    if (MimeTypes.isVideo(track.format.sampleMimeType)) {
+      annexBToAvccConverter.process(sample);
+    }
+    spillFiles.get(tracks.indexOf(track)).append(sample);
+  }
+
+  private static ByteBuffer createMoofBox(
+      int sequenceNumber, List<ProcessedTrackInfo> trackInfos) {
+    List<Box> trafBoxes = new ArrayList<>(trackInfos.size());
+    ByteBuffer[] trunBoxes = new ByteBuffer[trackInfos.size()];
     for (int i = 0; i < trackInfos.size(); i++) {
       ProcessedTrackInfo currentTrackInfo = trackInfos.get(i);
+      // The data offset is only known once the size of the whole moof box is.
+      trunBoxes[i] =
+          Boxes.trun(
+              currentTrackInfo.pendingSamplesMetadata,
+              /* dataOffset= */ 0,
+              currentTrackInfo.defaultSampleFlags);
       trafBoxes.add(
           Boxes.traf(
-              Boxes.tfhd(currentTrackInfo.trackId),
-              Boxes.trun(currentTrackInfo.pendingSamplesMetadata, dataOffset)));
-      dataOffset += currentTrackInfo.totalSamplesSize;
+              Box.wrap(
+                  Boxes.tfhd(currentTrackInfo.trackId, currentTrackInfo.pendingSamplesMetadata)),
+              Box.wrap(Boxes.tfdt(currentTrackInfo.baseMediaDecodeTimeVu)),
+              Box.wrap(trunBoxes[i])));
     }
-    return trafBoxes.build();
-  }
+    Box moofBox = Boxes.moof(Box.wrap(Boxes.mfhd(sequenceNumber)), trafBoxes);
 
-  private static int calculateMoofBoxSize(List<ProcessedTrackInfo> trackInfos) {
-    /* moof box looks like:
-    moof
-        mfhd
-        traf
-           tfhd
-           trun
-        traf
-           tfhd
-           trun
-     */
-    int moofBoxHeaderSize = BOX_HEADER_SIZE;
-    int mfhdBoxSize = BOX_HEADER_SIZE + MFHD_BOX_CONTENT_SIZE;
-    int trafBoxHeaderSize = BOX_HEADER_SIZE;
-    int tfhdBoxSize = BOX_HEADER_SIZE + TFHD_BOX_CONTENT_SIZE;
-    int trunBoxHeaderFixedSize = BOX_HEADER_SIZE;
-    int trafBoxesSize = 0;
+    int mdatBoxHeaderSize = BOX_HEADER_SIZE;
+    // dataOffset denotes the relative position of the first sample of the track from the
+    // moofBoxStartPosition.
+    int dataOffset = moofBox.size() + mdatBoxHeaderSize;
     for (int i = 0; i < trackInfos.size(); i++) {
-      ProcessedTrackInfo trackInfo = trackInfos.get(i);
-      int trunBoxSize =
-          trunBoxHeaderFixedSize + getTrunBoxContentSize(trackInfo.pendingSamplesMetadata.size());
-      trafBoxesSize += trafBoxHeaderSize + tfhdBoxSize + trunBoxSize;
+      trunBoxes[i].putInt(TRUN_BOX_DATA_OFFSET_POSITION, dataOffset);
+      dataOffset += trackInfos.get(i).totalSamplesSize;
     }
-
-    return moofBoxHeaderSize + mfhdBoxSize + trafBoxesSize;
+    return moofBox.toByteBuffer();
   }
 
   private long createHeader() throws IOException {
-    ByteBuffer[] headers = {Boxes.ftyp(), moovGenerator.moovMetadataHeader(
-                    tracks, /* minInputPtsUs= */ 0L, /* isFragmentedMp4= */ true)};
+    ByteBuffer[] headers = {
+      Boxes.ftyp(),
+      moovGenerator
+          .moovMetadataHeader(tracks, /* minInputPtsUs= */ 0L, /* isFragmentedMp4= */ true)
+          .toByteBuffer()
+    };
     return channel.write(headers);
   }
 
@@ -188,11 +281,11 @@ public final class FragmentedMp4Writer extends Mp4Writer {
       // Video samples can be written only when complete group of pictures are present.
       if (track.equals(videoTrack)
           && track.hadKeyframe
+          && !track.pendingSamplesBufferInfo.isEmpty()
           && ((nextSampleBufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) > 0)) {
-        BufferInfo firstPendingSample = checkNotNull(track.pendingSamplesBufferInfo.peekFirst());
         BufferInfo lastPendingSample = checkNotNull(track.pendingSamplesBufferInfo.peekLast());
-        return lastPendingSample.presentationTimeUs - firstPendingSample.presentationTimeUs
-            >= fragmentDurationUs;
+        // In chunked mode, the pending samples may only be the last chunk of the segment.
+        return lastPendingSample.presentationTimeUs - segmentStartTimeUs >= fragmentDurationUs;
       }
       return false;
     } else {
@@ -200,32 +293,72 @@ public final class FragmentedMp4Writer extends Mp4Writer {
     }
   }
 
+  private boolean isChunked() {
+    return chunkDurationUs != C.TIME_UNSET || chunkSampleCount != C.LENGTH_UNSET;
+  }
+
+  private boolean shouldFlushChunk(Track track, BufferInfo nextSampleBufferInfo) {
+    // Chunks follow the video track, so that each one holds the audio of the same time span.
+    if (!track.equals(videoTrack) || track.pendingSamplesBufferInfo.isEmpty()) {
+      return false;
+    }
+    // With B-frames, the decode timestamps of the pending samples are only known once the next
+    // sample is presented after all of them.
+    if (nextSampleBufferInfo.presentationTimeUs < track.getMaxPresentationTimeUs()) {
+      return false;
+    }
+    if (chunkSampleCount != C.LENGTH_UNSET
+        && track.pendingSamplesBufferInfo.size() >= chunkSampleCount) {
+      return true;
+    }
+    BufferInfo firstPendingSample = checkNotNull(track.pendingSamplesBufferInfo.peekFirst());
+    return chunkDurationUs != C.TIME_UNSET
+        && nextSampleBufferInfo.presentationTimeUs - firstPendingSample.presentationTimeUs
+            >= chunkDurationUs;
+  }
+
   private static final ByteBuffer[] EMPTY_BYTEBUFFERS = new ByteBuffer[0];
 
-  private long createFragment() throws IOException {
+  /**
+   * Writes the pending samples of all tracks as a fragment.
+   *
+   * @param nextSampleTrack The track of the sample that follows the fragment, or {@code null} if
+   *     there is none.
+   * @param nextSamplePresentationTimeUs The presentation timestamp of the sample that follows the
+   *     fragment. In chunked mode, it gives the exact duration of the last pending sample of {@code
+   *     nextSampleTrack}, which matters as chunks can be as short as one sample.
+   */
+  private long createFragment(@Nullable Track nextSampleTrack, long nextSamplePresentationTimeUs)
+      throws IOException {
     /* Each fragment looks like:
     moof
         mfhd
         traf
            tfhd
+           tfdt
            trun
         traf
            tfhd
+           tfdt
            trun
      mdat
      */
-    ImmutableList<ProcessedTrackInfo> trackInfos = processAllTracks();
-    ImmutableList<ByteBuffer> trafBoxes =
-        createTrafBoxes(trackInfos);
-    if (trafBoxes.isEmpty()) {
+    ImmutableList<ProcessedTrackInfo> trackInfos =
+        processAllTracks(nextSampleTrack, nextSamplePresentationTimeUs);
+    if (trackInfos.isEmpty()) {
       return 0L;
     }
     final ArrayList<ByteBuffer> list = new ArrayList<>();
-    list.add(Boxes.moof(Boxes.mfhd(currentFragmentSequenceNumber), trafBoxes));
+    list.add(createMoofBox(currentFragmentSequenceNumber, trackInfos));
 
     createMdatBox(list);
 
-    final long written = channel.write(list.toArray(EMPTY_BYTEBUFFERS));
+    long written = channel.write(list.toArray(EMPTY_BYTEBUFFERS));
+    for (int i = 0; i < spillFiles.size(); i++) {
+      SampleSpillFile spillFile = spillFiles.get(i);
+      written += spillFile.length();
+      spillFile.transferTo(channel);
+    }
     currentFragmentSequenceNumber++;
     return written;
   }
@@ -238,15 +371,13 @@ public final class FragmentedMp4Writer extends Mp4Writer {
       Track currentTrack = tracks.get(i);
       while (!currentTrack.pendingSamplesByteBuffer.isEmpty()) {
         ByteBuffer currentSampleByteBuffer = currentTrack.pendingSamplesByteBuffer.removeFirst();
-        // Convert the H.264/H.265 samples from Annex-B format (output by MediaCodec) to
-        // Avcc format (required by MP4 container).
-        if (MimeTypes.isVideo(currentTrack.format.sampleMimeType)) {
-          annexBToAvccConverter.process(currentSampleByteBuffer);
-        }
         list.add(currentSampleByteBuffer);
         bytesToWrite += currentSampleByteBuffer.remaining();
       }
     }
+    for (int i = 0; i < spillFiles.size(); i++) {
+      bytesToWrite += spillFiles.get(i).length();
+    }
     int mdatHeaderSize = 8; // 4 bytes (box size) + 4 bytes (box name)
     ByteBuffer header = ByteBuffer.allocate(mdatHeaderSize);
     long mdatSize = bytesToWrite + mdatHeaderSize;
@@ -259,53 +390,122 @@ public final class FragmentedMp4Writer extends Mp4Writer {
     list.add(first, header);
   }
 
-  private ImmutableList<ProcessedTrackInfo> processAllTracks() {
+  private ImmutableList<ProcessedTrackInfo> processAllTracks(
+      @Nullable Track nextSampleTrack, long nextSamplePresentationTimeUs) {
     ImmutableList.Builder<ProcessedTrackInfo> trackInfos = new ImmutableList.Builder<>();
     for (int i = 0; i < tracks.size(); i++) {
-      if (!tracks.get(i).pendingSamplesBufferInfo.isEmpty()) {
-        trackInfos.add(processTrack(/* trackId= */ i + 1, tracks.get(i)));
+      Track track = tracks.get(i);
+      if (!track.pendingSamplesBufferInfo.isEmpty()) {
+        trackInfos.add(
+            processTrack(
+                /* trackId= */ i + 1,
+                track,
+                spillFiles.isEmpty() ? null : spillFiles.get(i),
+                /* nextSamplePresentationTimeUs= */ isChunked() && track.equals(nextSampleTrack)
+                    ? nextSamplePresentationTimeUs
+                    : C.TIME_UNSET));
       }
     }
     return trackInfos.build();
   }
 
-  private ProcessedTrackInfo processTrack(int trackId, Track track) {
-    List<BufferInfo> sampleBufferInfos = new ArrayList<>(track.pendingSamplesBufferInfo);
+  private ProcessedTrackInfo processTrack(
+      int trackId,
+      Track track,
+      @Nullable SampleSpillFile spillFile,
+      long nextSamplePresentationTimeUs) {
+    fragmentSamples.clear();
+    boolean isVideo = MimeTypes.isVideo(track.format.sampleMimeType);
+    long[] decodeTimesUs = track.getPendingDecodeTimesUs(track.pendingSamplesBufferInfo.size());
+    Iterator<ByteBuffer> sampleByteBuffers = track.pendingSamplesByteBuffer.iterator();
+    int sampleIndex = 0;
+    for (BufferInfo bufferInfo : track.pendingSamplesBufferInfo) {
+      int sampleSize;
+      if (spillFile != null) {
+        // The spilled samples are already converted.
+        sampleSize = spillFile.sampleSize(sampleIndex);
+      } else {
+        ByteBuffer sampleByteBuffer = sampleByteBuffers.next();
+        // Convert the H.264/H.265 samples from Annex-B format (output by MediaCodec) to Avcc
+        // format (required by MP4 container) before recording their size, which the conversion
+        // can change.
+        if (isVideo) {
+          annexBToAvccConverter.process(sampleByteBuffer);
+        }
+        sampleSize = sampleByteBuffer.remaining();
+      }
+      fragmentSamples.addSample(
+          bufferInfo.presentationTimeUs, decodeTimesUs[sampleIndex++], sampleSize, bufferInfo.flags);
+    }
 
-    List<Long> sampleDurations =
+    long firstSampleDecodeTimeUs =
+        currentFragmentSequenceNumber == 1
+            ? minInputPresentationTimeUs
+            : fragmentSamples.decodeTimeUs(0);
+    long[] sampleDurations =
         Boxes.convertPresentationTimestampsToDurationsVu(
-            sampleBufferInfos,
-            /* firstSamplePresentationTimeUs= */ currentFragmentSequenceNumber == 1
-                ? minInputPresentationTimeUs
-                : sampleBufferInfos.get(0).presentationTimeUs,
+            fragmentSamples,
+            firstSampleDecodeTimeUs,
             track.videoUnitTimebase(),
             Mp4Muxer.LAST_FRAME_DURATION_BEHAVIOR_DUPLICATE_PREV_DURATION);
+    // All the tracks start at the earliest input timestamp, like in the first fragment, where the
+    // first sample of each track lasts from that timestamp.
+    long baseMediaDecodeTimeVu =
+        Mp4Utils.vuFromUs(firstSampleDecodeTimeUs, track.videoUnitTimebase())
+            - Mp4Utils.vuFromUs(minInputPresentationTimeUs, track.videoUnitTimebase());
+    // With B-frames, the decode timestamp of the next sample is not known yet, so the last sample
+    // keeps the duration of the previous one.
+    if (nextSamplePresentationTimeUs != C.TIME_UNSET && !track.hasReorderedSamples()) {
+      int lastSampleIndex = fragmentSamples.sampleCount() - 1;
+      sampleDurations[lastSampleIndex] =
+          Mp4Utils.vuFromUs(nextSamplePresentationTimeUs, track.videoUnitTimebase())
+              - Mp4Utils.vuFromUs(
+                  fragmentSamples.decodeTimeUs(lastSampleIndex), track.videoUnitTimebase());
+    }
 
     ImmutableList.Builder<SampleMetadata> pendingSamplesMetadata = new ImmutableList.Builder<>();
     int totalSamplesSize = 0;
-    for (int i = 0; i < sampleBufferInfos.size(); i++) {
-      totalSamplesSize += sampleBufferInfos.get(i).size;
+    for (int i = 0; i < fragmentSamples.sampleCount(); i++) {
+      totalSamplesSize += fragmentSamples.size(i);
+      int compositionTimeOffsetVu =
+          (int)
+              (Mp4Utils.vuFromUs(fragmentSamples.presentationTimeUs(i), track.videoUnitTimebase())
+                  - Mp4Utils.vuFromUs(fragmentSamples.decodeTimeUs(i), track.videoUnitTimebase()));
       pendingSamplesMetadata.add(
           new SampleMetadata(
-              sampleDurations.get(i),
-              sampleBufferInfos.get(i).size,
-              sampleBufferInfos.get(i).flags));
+              sampleDurations[i],
+              fragmentSamples.size(i),
+              fragmentSamples.flags(i),
+              compositionTimeOffsetVu));
     }
 
     // Clear the queue.
     track.pendingSamplesBufferInfo.clear();
-    return new ProcessedTrackInfo(trackId, totalSamplesSize, pendingSamplesMetadata.build());
+    return new ProcessedTrackInfo(
+        trackId,
+        totalSamplesSize,
+        baseMediaDecodeTimeVu,
+        Boxes.getDefaultSampleFlags(track.format),
+        pendingSamplesMetadata.build());
   }
 
   private static class ProcessedTrackInfo {
     public final int trackId;
     public final int totalSamplesSize;
+    public final long baseMediaDecodeTimeVu;
+    public final int defaultSampleFlags;
     public final ImmutableList<SampleMetadata> pendingSamplesMetadata;
 
     public ProcessedTrackInfo(
-        int trackId, int totalSamplesSize, ImmutableList<SampleMetadata> pendingSamplesMetadata) {
+        int trackId,
+        int totalSamplesSize,
+        long baseMediaDecodeTimeVu,
+        int defaultSampleFlags,
+        ImmutableList<SampleMetadata> pendingSamplesMetadata) {
       this.trackId = trackId;
       this.totalSamplesSize = totalSamplesSize;
+      this.baseMediaDecodeTimeVu = baseMediaDecodeTimeVu;
+      this.defaultSampleFlags = defaultSampleFlags;
       this.pendingSamplesMetadata = pendingSamplesMetadata;
     }
   }
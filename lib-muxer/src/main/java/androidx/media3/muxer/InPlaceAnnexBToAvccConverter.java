@@ -0,0 +1,167 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.common.util.Assertions.checkArgument;
+
+import androidx.media3.common.util.UnstableApi;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An {@link AnnexBToAvccConverter} that rewrites the buffer in place, without allocating.
+ *
+ * <p>The buffer is scanned once for start codes, with {@link AnnexBUtils#splitNalUnits}. Unlike
+ * {@link AnnexBToAvccConverter#DEFAULT}, 3-byte start codes are supported and the zero bytes before
+ * a start code are dropped, so the converted sample can be larger or smaller than the input. The
+ * limit of the buffer is updated to the converted size, which must not exceed its capacity.
+ *
+ * <p>An instance holds scratch state, so it must not be shared between muxers that write from
+ * different threads.
+ */
+@UnstableApi
+public final class InPlaceAnnexBToAvccConverter implements AnnexBToAvccConverter {
+  private static final int LENGTH_PREFIX_SIZE = 4;
+
+  private final AnnexBUtils.NalUnitCursor nalUnits;
+
+  /** Creates an instance. */
+  public InPlaceAnnexBToAvccConverter() {
+    nalUnits = new AnnexBUtils.NalUnitCursor();
+  }
+
+  /**
+   * Returns an upper bound of how many bytes {@link #process} adds to the sample between the
+   * position and the limit of the {@code buffer}, without changing it.
+   *
+   * <p>Only a 3-byte start code grows, by one byte, to a length prefix. Emulation prevention keeps
+   * start codes out of NAL units, so the {@code 00 00 01} patterns are counted, which also counts
+   * the 4-byte start codes. A buffer with this much spare capacity can always be processed.
+   */
+  public static int getMaxSizeIncrease(ByteBuffer buffer) {
+    int count = 0;
+    int i = buffer.position();
+    int end = buffer.limit() - 2;
+    while (i < end) {
+      byte third = buffer.get(i + 2);
+      if (third == 1 && buffer.get(i + 1) == 0 && buffer.get(i) == 0) {
+        count++;
+        i += 3;
+      } else if (third != 0) {
+        // No start code can begin at i, i + 1 or i + 2.
+        i += 3;
+      } else {
+        i++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Input that does not start with a start code is left unchanged.
+   *
+   * @throws IllegalArgumentException If the converted sample does not fit in the capacity of the
+   *     buffer, which can only happen if it has 3-byte start codes.
+   */
+  @Override
+  public void process(ByteBuffer inputBuffer) {
+    if (!inputBuffer.hasRemaining()) {
+      return;
+    }
+
+    checkArgument(inputBuffer.position() == 0, "The input buffer should have position set to 0.");
+
+    AnnexBUtils.splitNalUnits(inputBuffer, nalUnits);
+    int nalUnitCount = nalUnits.count();
+    if (nalUnitCount == 0) {
+      return;
+    }
+
+    long outputSize = 0;
+    for (int i = 0; i < nalUnitCount; i++) {
+      outputSize += LENGTH_PREFIX_SIZE + nalUnits.length(i);
+    }
+    checkArgument(
+        outputSize <= inputBuffer.capacity(),
+        "The converted sample does not fit in the capacity of the input buffer.");
+    if (outputSize > inputBuffer.limit()) {
+      inputBuffer.limit((int) outputSize);
+    }
+
+    // A NAL unit moves backwards when the start code before it, with the zero bytes before that, is
+    // longer than a length prefix, and forwards otherwise. Moving a NAL unit backwards can only
+    // overwrite the input of the NAL units before it, and forwards the input of the ones after it,
+    // so the first kind is moved in order, then the second kind in reverse order. The length
+    // prefixes go in the gaps between the output NAL units, and are written after the NAL unit
+    // that follows them is moved.
+    int outputOffset = 0;
+    for (int i = 0; i < nalUnitCount; i++) {
+      int offset = nalUnits.offset(i);
+      int length = nalUnits.length(i);
+      outputOffset += LENGTH_PREFIX_SIZE;
+      if (outputOffset <= offset) {
+        move(inputBuffer, offset, outputOffset, length);
+        putLengthPrefix(inputBuffer, outputOffset - LENGTH_PREFIX_SIZE, length);
+      }
+      outputOffset += length;
+    }
+    for (int i = nalUnitCount - 1; i >= 0; i--) {
+      int offset = nalUnits.offset(i);
+      int length = nalUnits.length(i);
+      outputOffset -= length;
+      if (outputOffset > offset) {
+        move(inputBuffer, offset, outputOffset, length);
+        putLengthPrefix(inputBuffer, outputOffset - LENGTH_PREFIX_SIZE, length);
+      }
+      outputOffset -= LENGTH_PREFIX_SIZE;
+    }
+
+    inputBuffer.limit((int) outputSize);
+    inputBuffer.rewind();
+  }
+
+  /** Writes a big-endian length prefix, whatever the byte order of the {@code buffer}. */
+  private static void putLengthPrefix(ByteBuffer buffer, int index, int length) {
+    buffer.putInt(
+        index, buffer.order() == ByteOrder.BIG_ENDIAN ? length : Integer.reverseBytes(length));
+  }
+
+  /**
+   * Copies {@code length} bytes from index {@code from} to index {@code to} of the {@code buffer},
+   * which may overlap.
+   */
+  private static void move(ByteBuffer buffer, int from, int to, int length) {
+    if (to < from) {
+      int i = 0;
+      for (; i + 8 <= length; i += 8) {
+        buffer.putLong(to + i, buffer.getLong(from + i));
+      }
+      for (; i < length; i++) {
+        buffer.put(to + i, buffer.get(from + i));
+      }
+    } else if (to > from) {
+      int i = length;
+      for (; i >= 8; i -= 8) {
+        buffer.putLong(to + i - 8, buffer.getLong(from + i - 8));
+      }
+      for (; i > 0; i--) {
+        buffer.put(to + i - 1, buffer.get(from + i - 1));
+      }
+    }
+  }
+}
@@ -18,14 +18,11 @@ package androidx.media3.muxer;
 import static androidx.media3.muxer.Mp4Utils.MVHD_TIMEBASE;
 import static java.lang.Math.max;
 
-import android.media.MediaCodec.BufferInfo;
-
 import androidx.media3.common.C;
 import androidx.media3.common.Format;
 import androidx.media3.common.MimeTypes;
 import androidx.media3.common.util.Util;
 
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
 import org.checkerframework.checker.nullness.qual.PolyNull;
@@ -43,11 +40,8 @@ import java.util.Locale;
 
     int videoUnitTimebase();
 
-    ImmutableList<BufferInfo> writtenSamples();
-
-    ImmutableList<Long> writtenChunkOffsets();
-
-    ImmutableList<Integer> writtenChunkSampleCounts();
+    /** Returns the encoded sample table of the samples and chunks written so far. */
+    SampleTableEncoder writtenSamples();
   }
 
   private final MetadataCollector metadataCollector;
@@ -60,12 +54,17 @@ import java.util.Locale;
     this.lastFrameDurationBehavior = lastFrameDurationBehavior;
   }
 
-  /** Generates a mdat header. */
+  /**
+   * Generates a mdat header.
+   *
+   * <p>The returned {@link Box} tree refers to the sample tables of the {@code tracks}, so it must
+   * be written before any more samples are written to them.
+   */
   @SuppressWarnings("InlinedApi")
-  public ByteBuffer moovMetadataHeader(
+  public Box moovMetadataHeader(
       List<? extends TrackMetadataProvider> tracks, long minInputPtsUs, boolean isFragmentedMp4) {
-    List<ByteBuffer> trakBoxes = new ArrayList<>();
-    List<ByteBuffer> trexBoxes = new ArrayList<>();
+    List<Box> trakBoxes = new ArrayList<>();
+    List<Box> trexBoxes = new ArrayList<>();
 
     int nextTrackId = 1;
     long videoDurationUs = 0L;
@@ -77,37 +76,28 @@ import java.util.Locale;
       Format format = track.format();
       String languageCode = bcp47LanguageTagToIso3(format.language);
 
-      // Generate the sample durations to calculate the total duration for tkhd box.
-      List<Long> sampleDurationsVu =
-          Boxes.convertPresentationTimestampsToDurationsVu(
-              track.writtenSamples(),
-              minInputPtsUs,
-              track.videoUnitTimebase(),
-              lastFrameDurationBehavior);
-
-      long trackDurationInTrackUnitsVu = 0;
-      for (int j = 0; j < sampleDurationsVu.size(); j++) {
-        trackDurationInTrackUnitsVu += sampleDurationsVu.get(j);
-      }
+      SampleTableEncoder writtenSamples = track.writtenSamples();
+
+      // The sample tables are encoded as the samples are written, so only the first and the last
+      // sample durations depend on the arguments here.
+      long trackDurationInTrackUnitsVu =
+          writtenSamples.durationVu(minInputPtsUs, lastFrameDurationBehavior);
 
       long trackDurationUs =
           Mp4Utils.usFromVu(trackDurationInTrackUnitsVu, track.videoUnitTimebase());
 
       @C.TrackType int trackType = MimeTypes.getTrackType(format.sampleMimeType);
-      ByteBuffer stts = Boxes.stts(sampleDurationsVu);
-      ByteBuffer stsz = Boxes.stsz(track.writtenSamples());
-      ByteBuffer stsc = Boxes.stsc(track.writtenChunkSampleCounts());
-      ByteBuffer chunkOffsetBox =
-          isFragmentedMp4
-              ? Boxes.stco(track.writtenChunkOffsets())
-              : Boxes.co64(track.writtenChunkOffsets());
+      Box stts = writtenSamples.stts(minInputPtsUs, lastFrameDurationBehavior);
+      Box stsz = writtenSamples.stsz();
+      Box stsc = writtenSamples.stsc();
+      Box chunkOffsetBox = isFragmentedMp4 ? writtenSamples.stco() : writtenSamples.co64();
 
       String handlerType;
       String handlerName;
       ByteBuffer mhdBox;
       ByteBuffer sampleEntryBox;
-      ByteBuffer stsdBox;
-      ByteBuffer stblBox;
+      Box stsdBox;
+      Box stblBox;
 
       switch (trackType) {
         case C.TRACK_TYPE_VIDEO:
@@ -115,17 +105,23 @@ import java.util.Locale;
           handlerName = "VideoHandle";
           mhdBox = Boxes.vmhd();
           sampleEntryBox = Boxes.videoSampleEntry(format);
-          stsdBox = Boxes.stsd(sampleEntryBox);
+          stsdBox = Box.wrap(Boxes.stsd(sampleEntryBox));
           stblBox =
               Boxes.stbl(
-                  stsdBox, stts, stsz, stsc, chunkOffsetBox, Boxes.stss(track.writtenSamples()));
+                  stsdBox,
+                  stts,
+                  writtenSamples.ctts(),
+                  stsz,
+                  stsc,
+                  chunkOffsetBox,
+                  writtenSamples.stss());
           break;
         case C.TRACK_TYPE_AUDIO:
           handlerType = "soun";
           handlerName = "SoundHandle";
           mhdBox = Boxes.smhd();
           sampleEntryBox = Boxes.audioSampleEntry(format);
-          stsdBox = Boxes.stsd(sampleEntryBox);
+          stsdBox = Box.wrap(Boxes.stsd(sampleEntryBox));
           stblBox = Boxes.stbl(stsdBox, stts, stsz, stsc, chunkOffsetBox);
           break;
         case C.TRACK_TYPE_METADATA:
@@ -136,7 +132,7 @@ import java.util.Locale;
           handlerName = "MetaHandle";
           mhdBox = Boxes.nmhd();
           sampleEntryBox = Boxes.textMetaDataSampleEntry(format);
-          stsdBox = Boxes.stsd(sampleEntryBox);
+          stsdBox = Box.wrap(Boxes.stsd(sampleEntryBox));
           stblBox = Boxes.stbl(stsdBox, stts, stsz, stsc, chunkOffsetBox);
           break;
         default:
@@ -146,57 +142,63 @@ import java.util.Locale;
       // The below statement is also a description of how a mdat box looks like, with all the
       // inner boxes and what they actually store. Although they're technically instance methods,
       // everything that is written to a box is visible in the argument list.
-      ByteBuffer trakBox =
+      Box trakBox =
           Boxes.trak(
-              Boxes.tkhd(
-                  nextTrackId,
-                  // Using the time base of the entire file, not that of the track; otherwise,
-                  // Quicktime will stretch the audio accordingly, see b/158120042.
-                  (int) Mp4Utils.vuFromUs(trackDurationUs, MVHD_TIMEBASE),
-                  metadataCollector.modificationTimestampSeconds,
-                  metadataCollector.orientation,
-                  format),
-              Boxes.mdia(
-                  Boxes.mdhd(
-                      trackDurationInTrackUnitsVu,
-                      track.videoUnitTimebase(),
+              Box.wrap(
+                  Boxes.tkhd(
+                      nextTrackId,
+                      // Using the time base of the entire file, not that of the track; otherwise,
+                      // Quicktime will stretch the audio accordingly, see b/158120042.
+                      (int) Mp4Utils.vuFromUs(trackDurationUs, MVHD_TIMEBASE),
                       metadataCollector.modificationTimestampSeconds,
-                      languageCode),
-                  Boxes.hdlr(handlerType, handlerName),
-                  Boxes.minf(mhdBox, Boxes.dinf(Boxes.dref(Boxes.localUrl())), stblBox)));
+                      metadataCollector.orientation,
+                      format)),
+              Boxes.mdia(
+                  Box.wrap(
+                      Boxes.mdhd(
+                          trackDurationInTrackUnitsVu,
+                          track.videoUnitTimebase(),
+                          metadataCollector.modificationTimestampSeconds,
+                          languageCode)),
+                  Box.wrap(Boxes.hdlr(handlerType, handlerName)),
+                  Boxes.minf(
+                      Box.wrap(mhdBox),
+                      Box.wrap(Boxes.dinf(Boxes.dref(Boxes.localUrl()))),
+                      stblBox)));
 
       trakBoxes.add(trakBox);
       videoDurationUs = max(videoDurationUs, trackDurationUs);
-      trexBoxes.add(Boxes.trex(nextTrackId));
+      trexBoxes.add(Box.wrap(Boxes.trex(nextTrackId, Boxes.getDefaultSampleFlags(format))));
       nextTrackId++;
     }
 
-    ByteBuffer mvhdBox =
-        Boxes.mvhd(nextTrackId, metadataCollector.modificationTimestampSeconds, videoDurationUs);
-    ByteBuffer udtaBox = Boxes.udta(metadataCollector.location);
-    ByteBuffer metaBox =
+    Box mvhdBox =
+        Box.wrap(
+            Boxes.mvhd(
+                nextTrackId, metadataCollector.modificationTimestampSeconds, videoDurationUs));
+    Box udtaBox = Box.wrap(Boxes.udta(metadataCollector.location));
+    Box metaBox =
         metadataCollector.metadataPairs.isEmpty()
-            ? ByteBuffer.allocate(0)
-            : Boxes.meta(
-                Boxes.hdlr(/* handlerType= */ "mdta", /* handlerName= */ ""),
-                Boxes.keys(Lists.newArrayList(metadataCollector.metadataPairs.keySet())),
-                Boxes.ilst(Lists.newArrayList(metadataCollector.metadataPairs.values())));
-
-    ByteBuffer moovBox;
-    moovBox =
+            ? Box.empty()
+            : Box.wrap(
+                Boxes.meta(
+                    Boxes.hdlr(/* handlerType= */ "mdta", /* handlerName= */ ""),
+                    Boxes.keys(Lists.newArrayList(metadataCollector.metadataPairs.keySet())),
+                    Boxes.ilst(Lists.newArrayList(metadataCollector.metadataPairs.values()))));
+
+    Box moovBox =
         Boxes.moov(
             mvhdBox,
             udtaBox,
             metaBox,
             trakBoxes,
-            isFragmentedMp4 ? Boxes.mvex(trexBoxes) : ByteBuffer.allocate(0));
+            isFragmentedMp4 ? Boxes.mvex(trexBoxes) : Box.empty());
 
     // Also add XMP if needed
     if (metadataCollector.xmpData != null) {
-      return BoxUtils.concatenateBuffers(
-          moovBox, Boxes.uuid(Boxes.XMP_UUID, metadataCollector.xmpData.duplicate()));
+      return Box.sequence(
+          moovBox, Box.wrap(Boxes.uuid(Boxes.XMP_UUID, metadataCollector.xmpData.duplicate())));
     } else {
-      // No need for another copy if there is no XMP to be appended.
       return moovBox;
     }
   }
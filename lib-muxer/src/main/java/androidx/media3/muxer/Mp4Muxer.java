@@ -15,6 +15,7 @@
  */
 package androidx.media3.muxer;
 
+import static androidx.media3.common.util.Assertions.checkArgument;
 import static androidx.media3.common.util.Assertions.checkNotNull;
 import static java.lang.annotation.ElementType.TYPE_USE;
 
@@ -22,11 +23,13 @@ import android.media.MediaCodec.BufferInfo;
 import androidx.annotation.FloatRange;
 import androidx.annotation.IntDef;
 import androidx.annotation.Nullable;
+import androidx.media3.common.C;
 import androidx.media3.common.Format;
 import androidx.media3.common.MimeTypes;
 import androidx.media3.common.util.UnstableApi;
 import com.google.common.collect.ImmutableList;
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.annotation.Documented;
@@ -43,7 +46,8 @@ import java.nio.channels.WritableByteChannel;
  *
  * <p>The muxer supports writing H264, H265 and AV1 video, AAC audio and metadata.
  *
- * <p>All the operations are performed on the caller thread.
+ * <p>All the operations are performed on the caller thread, unless a {@linkplain
+ * Builder#setWriteQueueCapacityBytes(int) write queue} is set.
  *
  * <p>To create an MP4 container file, the caller must:
  *
@@ -95,6 +99,17 @@ public final class Mp4Muxer {
     private @LastFrameDurationBehavior int lastFrameDurationBehavior;
     private boolean fragmentedMp4Enabled;
     private int fragmentDurationUs;
+    private long chunkDurationUs;
+    private int chunkSampleCount;
+    @Nullable private File sampleSpillDirectory;
+    private int writeQueueCapacityBytes;
+    private boolean memoryMappedOutputEnabled;
+    private int faststartMoovSpaceBytes;
+    private long moovCheckpointIntervalUs;
+    private long moovCheckpointIntervalBytes;
+    private int preallocationBytes;
+    private long interleaveChunkDurationUs;
+    private long interleaveChunkBytes;
     @Nullable private AnnexBToAvccConverter annexBToAvccConverter;
 
     private boolean isFileChannel() {
@@ -114,6 +129,15 @@ public final class Mp4Muxer {
       this.gatheringByteChannel = checkNotNull(gatheringByteChannel);
       lastFrameDurationBehavior = LAST_FRAME_DURATION_BEHAVIOR_INSERT_SHORT_FRAME;
       fragmentDurationUs = DEFAULT_FRAGMENT_DURATION_US;
+      chunkDurationUs = C.TIME_UNSET;
+      chunkSampleCount = C.LENGTH_UNSET;
+      writeQueueCapacityBytes = C.LENGTH_UNSET;
+      faststartMoovSpaceBytes = C.LENGTH_UNSET;
+      moovCheckpointIntervalUs = C.TIME_UNSET;
+      moovCheckpointIntervalBytes = C.LENGTH_UNSET;
+      preallocationBytes = C.LENGTH_UNSET;
+      interleaveChunkDurationUs = C.TIME_UNSET;
+      interleaveChunkBytes = C.LENGTH_UNSET;
       if (!isFileChannel()) {
         fragmentedMp4Enabled = true;
       }
@@ -135,7 +159,9 @@ public final class Mp4Muxer {
      * units from the Annex-B format (using start codes to delineate NAL units) to the AVCC format
      * (which uses length prefixes).
      *
-     * <p>The default value is {@link AnnexBToAvccConverter#DEFAULT}.
+     * <p>The default value is {@link AnnexBToAvccConverter#DEFAULT}. {@link
+     * InPlaceAnnexBToAvccConverter} does not allocate per sample and also supports 3-byte start
+     * codes, but needs spare capacity in the sample buffers to grow them.
      */
     @CanIgnoreReturnValue
     public Mp4Muxer.Builder setAnnexBToAvccConverter(AnnexBToAvccConverter annexBToAvccConverter) {
@@ -177,6 +203,260 @@ public final class Mp4Muxer {
       return this;
     }
 
+    /**
+     * Sets the duration of the chunks of a low-latency {@linkplain #setFragmentedMp4Enabled(boolean)
+     * fragmented MP4}.
+     *
+     * <p>When set, the samples are written as a fragment once the pending video samples span the
+     * given duration, without waiting for the next sync sample. A new segment still starts only on
+     * a sync sample, once {@linkplain #setFragmentDurationUs(int) the fragment duration} has passed,
+     * so the first chunk of each segment starts with a sync sample and the group of pictures is as
+     * long as with non-chunked fragments.
+     *
+     * <p>Chunks are only cut on the video track, so this has no effect if there is none.
+     *
+     * <p>The default value is {@link C#TIME_UNSET}, which disables chunking by duration.
+     *
+     * @param chunkDurationUs The chunk duration in microseconds.
+     * @return The {@link Mp4Muxer.Builder}.
+     */
+    @CanIgnoreReturnValue
+    public Mp4Muxer.Builder setChunkDurationUs(long chunkDurationUs) {
+      this.chunkDurationUs = chunkDurationUs;
+      return this;
+    }
+
+    /**
+     * Sets the number of video samples in the chunks of a low-latency {@linkplain
+     * #setFragmentedMp4Enabled(boolean) fragmented MP4}.
+     *
+     * <p>This works like {@link #setChunkDurationUs(long)}, and a chunk is written when either limit
+     * is reached.
+     *
+     * <p>The default value is {@link C#LENGTH_UNSET}, which disables chunking by sample count.
+     *
+     * @param chunkSampleCount The number of video samples per chunk.
+     * @return The {@link Mp4Muxer.Builder}.
+     */
+    @CanIgnoreReturnValue
+    public Mp4Muxer.Builder setChunkSampleCount(int chunkSampleCount) {
+      this.chunkSampleCount = chunkSampleCount;
+      return this;
+    }
+
+    /**
+     * Sets a directory where to hold the pending samples of a {@linkplain
+     * #setFragmentedMp4Enabled(boolean) fragmented MP4}.
+     *
+     * <p>The samples of a fragment are otherwise held in memory until the fragment is written,
+     * which takes a lot of memory with long groups of pictures at a high bitrate. When set, the
+     * bytes of the samples are written to a temporary file per track as they arrive, and they are
+     * transferred from there to the output when the fragment is written, without reading them
+     * back into memory. The samples passed to {@link Mp4Muxer#writeSampleData} can then be reused
+     * as soon as it returns.
+     *
+     * <p>Each fragment is then written as a gathering write of the moof box and the mdat header,
+     * followed by the spilled sample bytes through {@link WritableByteChannel#write(ByteBuffer)}.
+     * An output that takes each gathering write as a whole fragment has to collect the rest of the
+     * mdat box, whose size is in its header.
+     *
+     * <p>The temporary files are removed by the file system once the muxer is closed.
+     *
+     * <p>The default value is {@code null}, which holds the samples in memory.
+     *
+     * @param sampleSpillDirectory The directory, or {@code null}.
+     * @return The {@link Mp4Muxer.Builder}.
+     */
+    @CanIgnoreReturnValue
+    public Mp4Muxer.Builder setSampleSpillDirectory(@Nullable File sampleSpillDirectory) {
+      this.sampleSpillDirectory = sampleSpillDirectory;
+      return this;
+    }
+
+    /**
+     * Sets the capacity of the queue of a dedicated writer thread, for a {@linkplain
+     * #setFragmentedMp4Enabled(boolean) non fragmented MP4}.
+     *
+     * <p>When set, the samples are queued and written to the file by a writer thread, which gathers
+     * the contiguous queued writes into a single write, so that slow storage does not block the
+     * caller. When the queue holds this many bytes, {@link #writeSampleData} blocks until enough
+     * of them are written, which is reported by {@link Mp4Muxer#getWriteQueueMetrics()}. An error
+     * of the writer thread is thrown by the next call to {@link #writeSampleData} or {@link
+     * #close()}.
+     *
+     * <p>The capacity is ignored for {@linkplain #setFragmentedMp4Enabled(boolean) fragmented MP4}.
+     *
+     * <p>The default value is {@link C#LENGTH_UNSET}, which writes the samples on the caller
+     * thread.
+     *
+     * @param writeQueueCapacityBytes The maximum number of bytes to queue.
+     * @return The {@link Mp4Muxer.Builder}.
+     */
+    @CanIgnoreReturnValue
+    public Mp4Muxer.Builder setWriteQueueCapacityBytes(int writeQueueCapacityBytes) {
+      checkArgument(writeQueueCapacityBytes > 0 || writeQueueCapacityBytes == C.LENGTH_UNSET);
+      this.writeQueueCapacityBytes = writeQueueCapacityBytes;
+      return this;
+    }
+
+    /**
+     * Sets whether to copy the samples of a {@linkplain #setFragmentedMp4Enabled(boolean) non
+     * fragmented MP4} into a memory mapping of the file, instead of writing them to the file.
+     *
+     * <p>The space that is reserved in the mdat box as the file grows is mapped, so writing the
+     * samples needs no system call. This requires a {@link FileChannel} that is also readable, such
+     * as the channel of a {@link java.io.RandomAccessFile} opened in {@code "rw"} mode, and can not
+     * be combined with a {@linkplain #setWriteQueueCapacityBytes(int) write queue}.
+     *
+     * <p>The default value is {@code false}.
+     */
+    @CanIgnoreReturnValue
+    public Mp4Muxer.Builder setMemoryMappedOutputEnabled(boolean enabled) {
+      memoryMappedOutputEnabled = enabled;
+      return this;
+    }
+
+    /**
+     * Enables faststart for a {@linkplain #setFragmentedMp4Enabled(boolean) non fragmented MP4},
+     * reserving space for the moov box before the mdat box.
+     *
+     * <p>With faststart, the moov box is written before the mdat box when the muxer is closed, so
+     * that the file can be played while it is downloaded. Until then, the moov box is still written
+     * after the mdat box, so that the file can be recovered if the muxer is not closed.
+     *
+     * <p>If the final moov box does not fit in the reserved space, the whole mdat box is moved to
+     * make room for it, which requires a {@link FileChannel} that is also readable, such as the
+     * channel of a {@link java.io.RandomAccessFile} opened in {@code "rw"} mode. Otherwise, the moov
+     * box is left after the mdat box. The moov box takes about 4 bytes per sample, 8 more per sample
+     * with B-frames, plus 20 bytes per second of each track for the chunks.
+     *
+     * <p>The default value is {@link C#LENGTH_UNSET}, which disables faststart.
+     *
+     * @param faststartMoovSpaceBytes The number of bytes to reserve, which can be 0 to always move
+     *     the mdat box, or at least 8, the size of the free box that fills the reserved space.
+     * @return The {@link Mp4Muxer.Builder}.
+     */
+    @CanIgnoreReturnValue
+    public Mp4Muxer.Builder setFaststartMoovSpaceBytes(int faststartMoovSpaceBytes) {
+      checkArgument(
+          faststartMoovSpaceBytes == C.LENGTH_UNSET
+              || faststartMoovSpaceBytes == 0
+              || faststartMoovSpaceBytes >= 8);
+      this.faststartMoovSpaceBytes = faststartMoovSpaceBytes;
+      return this;
+    }
+
+    /**
+     * Sets the duration of the samples to write between moov checkpoints of a {@linkplain
+     * #setFragmentedMp4Enabled(boolean) non fragmented MP4}.
+     *
+     * <p>The moov box is otherwise only written when the mdat box needs to be extended, which can
+     * leave up to 1 GB of samples out of the file if the process dies before the muxer is closed.
+     * A checkpoint makes the samples written so far part of the file, and forces them to the
+     * storage, so that they survive a power loss. The samples of an interrupted recording that are
+     * not covered by a checkpoint can still be recovered with {@link Mp4Recovery}.
+     *
+     * <p>The duration is that of the written samples, which is the recording time for a live
+     * recording.
+     *
+     * <p>The default value is {@link C#TIME_UNSET}, which disables checkpoints by duration.
+     *
+     * @param moovCheckpointIntervalUs The duration between checkpoints, in microseconds.
+     * @return The {@link Mp4Muxer.Builder}.
+     */
+    @CanIgnoreReturnValue
+    public Mp4Muxer.Builder setMoovCheckpointIntervalUs(long moovCheckpointIntervalUs) {
+      this.moovCheckpointIntervalUs = moovCheckpointIntervalUs;
+      return this;
+    }
+
+    /**
+     * Sets the number of sample bytes to write between moov checkpoints of a {@linkplain
+     * #setFragmentedMp4Enabled(boolean) non fragmented MP4}.
+     *
+     * <p>This works like {@link #setMoovCheckpointIntervalUs(long)}, and a checkpoint is written
+     * when either limit is reached.
+     *
+     * <p>The default value is {@link C#LENGTH_UNSET}, which disables checkpoints by size.
+     *
+     * @param moovCheckpointIntervalBytes The number of bytes between checkpoints.
+     * @return The {@link Mp4Muxer.Builder}.
+     */
+    @CanIgnoreReturnValue
+    public Mp4Muxer.Builder setMoovCheckpointIntervalBytes(long moovCheckpointIntervalBytes) {
+      this.moovCheckpointIntervalBytes = moovCheckpointIntervalBytes;
+      return this;
+    }
+
+    /**
+     * Sets the number of bytes to preallocate at a time ahead of the samples of a {@linkplain
+     * #setFragmentedMp4Enabled(boolean) non fragmented MP4}.
+     *
+     * <p>The space reserved for the samples each time the mdat box is extended is otherwise left as
+     * a hole in the file, which the file system allocates piece by piece as the samples are
+     * written, fragmenting the file on flash storage. With preallocation, the reserved space is
+     * filled with zeros in blocks of that size, each one before the samples reach it.
+     *
+     * <p>As the zeros are written in addition to the samples, this is best combined with a {@link
+     * #setWriteQueueCapacityBytes(int) write queue}, so that they are written in the background.
+     * The write queue capacity should then exceed the block size, as a larger write waits for the
+     * queue to be empty. A few megabytes per block suit most recordings.
+     *
+     * <p>The default value is {@link C#LENGTH_UNSET}, which disables preallocation.
+     *
+     * @param preallocationBytes The number of bytes to preallocate at a time.
+     * @return The {@link Mp4Muxer.Builder}.
+     */
+    @CanIgnoreReturnValue
+    public Mp4Muxer.Builder setPreallocationBytes(int preallocationBytes) {
+      checkArgument(preallocationBytes == C.LENGTH_UNSET || preallocationBytes > 0);
+      this.preallocationBytes = preallocationBytes;
+      return this;
+    }
+
+    /**
+     * Sets the maximum duration of the chunks of a {@linkplain #setFragmentedMp4Enabled(boolean)
+     * non fragmented MP4}, in microseconds.
+     *
+     * <p>When set, or when the {@linkplain #setInterleaveChunkBytes(long) chunk size} is set, the
+     * chunks of all the tracks are written in the order of their decode timestamps, so that the
+     * samples played at the same time are close to each other in the file. A player then reads the
+     * file sequentially with a read-ahead buffer of about one chunk per track, as reported by
+     * {@link Mp4Muxer#getMaxChunkSkewUs()}.
+     *
+     * <p>The default value is {@link C#TIME_UNSET}. If no chunk size is set either, the samples of
+     * each track are written on their own, once they span more than a second.
+     *
+     * @param interleaveChunkDurationUs The maximum duration of a chunk, in microseconds.
+     * @return The {@link Mp4Muxer.Builder}.
+     */
+    @CanIgnoreReturnValue
+    public Mp4Muxer.Builder setInterleaveChunkDurationUs(long interleaveChunkDurationUs) {
+      checkArgument(interleaveChunkDurationUs == C.TIME_UNSET || interleaveChunkDurationUs > 0);
+      this.interleaveChunkDurationUs = interleaveChunkDurationUs;
+      return this;
+    }
+
+    /**
+     * Sets the maximum size of the chunks of a {@linkplain #setFragmentedMp4Enabled(boolean) non
+     * fragmented MP4}, in bytes.
+     *
+     * <p>A chunk holds at least one sample, and ends once it reaches this size or the {@linkplain
+     * #setInterleaveChunkDurationUs(long) chunk duration}, whichever comes first. Setting it also
+     * writes the chunks of all the tracks in the order of their decode timestamps.
+     *
+     * <p>The default value is {@link C#LENGTH_UNSET}, which does not limit the chunk size.
+     *
+     * @param interleaveChunkBytes The maximum size of a chunk, in bytes.
+     * @return The {@link Mp4Muxer.Builder}.
+     */
+    @CanIgnoreReturnValue
+    public Mp4Muxer.Builder setInterleaveChunkBytes(long interleaveChunkBytes) {
+      checkArgument(interleaveChunkBytes == C.LENGTH_UNSET || interleaveChunkBytes > 0);
+      this.interleaveChunkBytes = interleaveChunkBytes;
+      return this;
+    }
+
     /** Builds an {@link Mp4Muxer} instance. */
     public Mp4Muxer build() {
       MetadataCollector metadataCollector = new MetadataCollector();
@@ -187,8 +467,29 @@ public final class Mp4Muxer {
       Mp4Writer mp4Writer =
               !isFileChannel() || fragmentedMp4Enabled
                       ? new FragmentedMp4Writer(
-                      gatheringByteChannel, moovStructure, avccConverter, fragmentDurationUs)
-                      : new DefaultMp4Writer((FileChannel) gatheringByteChannel, moovStructure, avccConverter);
+                      gatheringByteChannel,
+                      moovStructure,
+                      avccConverter,
+                      fragmentDurationUs,
+                      chunkDurationUs,
+                      chunkSampleCount,
+                      sampleSpillDirectory)
+                      : new DefaultMp4Writer(
+                      (FileChannel) gatheringByteChannel,
+                      moovStructure,
+                      avccConverter,
+                      writeQueueCapacityBytes,
+                      memoryMappedOutputEnabled,
+                      faststartMoovSpaceBytes,
+                      moovCheckpointIntervalUs,
+                      moovCheckpointIntervalBytes,
+                      preallocationBytes,
+                      interleaveChunkDurationUs == C.TIME_UNSET
+                              && interleaveChunkBytes == C.LENGTH_UNSET
+                          ? new TrackDurationInterleaver(
+                              TrackDurationInterleaver.DEFAULT_DURATION_US)
+                          : new DecodeTimeInterleaver(
+                              interleaveChunkDurationUs, interleaveChunkBytes));
 
       return new Mp4Muxer(mp4Writer, metadataCollector);
     }
@@ -297,20 +598,49 @@ public final class Mp4Muxer {
    * Writes encoded sample data.
    *
    * <p>The samples are cached and are written in batches so the caller must not change/release the
-   * {@link ByteBuffer} and the {@link BufferInfo} after calling this method.
+   * {@link ByteBuffer} and the {@link BufferInfo} after calling this method. With a {@linkplain
+   * Builder#setWriteQueueCapacityBytes(int) write queue}, this includes the time the samples are
+   * queued for the writer thread.
    *
-   * <p>Note: Out of order B-frames are currently not supported.
+   * <p>The samples of a track must be written in decode order, as output by {@link
+   * android.media.MediaCodec}. With B-frames, their presentation timestamps are then out of order:
+   * the decode timestamps are derived from them, and the samples are presented at their
+   * presentation timestamps through composition time offsets. A sample must not be presented before
+   * a sample that precedes the last sync sample, so the groups of pictures must be closed.
    *
    * @param trackToken The {@link TrackToken} for which this sample is being written.
    * @param byteBuffer The encoded sample.
    * @param bufferInfo The {@link BufferInfo} related to this sample.
-   * @throws IOException If there is any error while writing data to the disk.
+   * @throws IOException If there is any error while writing data to the disk, including a previous
+   *     error of the writer thread.
    */
   public void writeSampleData(TrackToken trackToken, ByteBuffer byteBuffer, BufferInfo bufferInfo)
           throws IOException {
     mp4Writer.writeSampleData(trackToken, byteBuffer, bufferInfo);
   }
 
+  /**
+   * Returns a snapshot of the {@link WriteQueueMetrics}, or {@code null} if there is no {@linkplain
+   * Builder#setWriteQueueCapacityBytes(int) write queue}.
+   */
+  @Nullable
+  public WriteQueueMetrics getWriteQueueMetrics() {
+    return mp4Writer.getWriteQueueMetrics();
+  }
+
+  /**
+   * Returns the greatest chunk skew of the samples written so far, in microseconds, or {@link
+   * C#TIME_UNSET} for a {@linkplain Builder#setFragmentedMp4Enabled(boolean) fragmented MP4} or if
+   * no samples are written.
+   *
+   * <p>The skew of a chunk is how long before the latest sample written ahead of it in the file it
+   * is decoded. A player reading the file sequentially has to buffer at least this much of the
+   * other tracks, so the lower the skew, the better the tracks are interleaved.
+   */
+  public long getMaxChunkSkewUs() {
+    return mp4Writer.getMaxChunkSkewUs();
+  }
+
   /** Closes the MP4 file. */
   public void close() throws IOException {
     mp4Writer.close();
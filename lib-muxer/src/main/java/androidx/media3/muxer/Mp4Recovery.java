@@ -0,0 +1,920 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.muxer.Mp4Utils.BYTES_PER_INTEGER;
+import static androidx.media3.muxer.Mp4Utils.UNSIGNED_INT_MAX_VALUE;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.ParserException;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.common.util.Util;
+import com.google.common.base.Charsets;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recovers the samples of a non fragmented MP4 file whose recording was interrupted before the
+ * {@link Mp4Muxer} was closed.
+ *
+ * <p>Such a file is valid, but its moov box is the one written by the last extension of the mdat
+ * box, or by the last {@linkplain Mp4Muxer.Builder#setMoovCheckpointIntervalUs(long) checkpoint},
+ * so the samples written after it are in the mdat box without being referenced.
+ *
+ * <p>These samples are scanned for the access units of the first H.264 or H.265 video track, which
+ * are stored with 4 byte NAL unit lengths, and added to that track. The recovered samples get the
+ * most common sample duration of the track, and are presented at their decode timestamp. The
+ * samples of the other tracks can not be framed, so they are skipped.
+ *
+ * <p>The new moov box is written at the end of the file before the mdat box is extended to hide the
+ * previous one, so the file stays valid if the recovery is interrupted as well.
+ */
+@UnstableApi
+public final class Mp4Recovery {
+  // The number of bytes to scan for the next access unit, past the samples of other tracks.
+  private static final int MAX_RESYNC_BYTES = 4_000_000;
+  private static final int READ_WINDOW_SIZE = 1_000_000;
+  private static final int NAL_UNIT_LENGTH_SIZE = 4;
+
+  private static final int BOX_TYPE_FTYP = boxType("ftyp");
+  private static final int BOX_TYPE_MDAT = boxType("mdat");
+  private static final int BOX_TYPE_MOOV = boxType("moov");
+  private static final int BOX_TYPE_FREE = boxType("free");
+  private static final int BOX_TYPE_SKIP = boxType("skip");
+  private static final int BOX_TYPE_MVHD = boxType("mvhd");
+  private static final int BOX_TYPE_TRAK = boxType("trak");
+  private static final int BOX_TYPE_TKHD = boxType("tkhd");
+  private static final int BOX_TYPE_MDIA = boxType("mdia");
+  private static final int BOX_TYPE_MDHD = boxType("mdhd");
+  private static final int BOX_TYPE_HDLR = boxType("hdlr");
+  private static final int BOX_TYPE_MINF = boxType("minf");
+  private static final int BOX_TYPE_STBL = boxType("stbl");
+  private static final int BOX_TYPE_STSD = boxType("stsd");
+  private static final int BOX_TYPE_STTS = boxType("stts");
+  private static final int BOX_TYPE_CTTS = boxType("ctts");
+  private static final int BOX_TYPE_STSZ = boxType("stsz");
+  private static final int BOX_TYPE_STSC = boxType("stsc");
+  private static final int BOX_TYPE_STCO = boxType("stco");
+  private static final int BOX_TYPE_CO64 = boxType("co64");
+  private static final int BOX_TYPE_STSS = boxType("stss");
+  private static final int HANDLER_TYPE_VIDEO = boxType("vide");
+  private static final int SAMPLE_ENTRY_TYPE_AVC1 = boxType("avc1");
+  private static final int SAMPLE_ENTRY_TYPE_AVC3 = boxType("avc3");
+  private static final int SAMPLE_ENTRY_TYPE_HVC1 = boxType("hvc1");
+  private static final int SAMPLE_ENTRY_TYPE_HEV1 = boxType("hev1");
+
+  private Mp4Recovery() {}
+
+  /**
+   * Adds the video samples that follow the samples referenced by the moov box to the file.
+   *
+   * @param fileChannel The {@link FileChannel} of the file, which must be readable and writable.
+   * @return The number of recovered samples, which is zero if the file is left unchanged.
+   * @throws ParserException If the file has no mdat box or no moov box.
+   * @throws IOException If there is any error while reading or writing the file.
+   */
+  public static int recover(FileChannel fileChannel) throws IOException {
+    long fileSize = fileChannel.size();
+    ByteBuffer header = ByteBuffer.allocate(2 * BYTES_PER_INTEGER + 8);
+
+    // Find the mdat box, the moov box and the other boxes after the mdat box.
+    long mdatStart = C.POSITION_UNSET;
+    long mdatEnd = C.POSITION_UNSET;
+    boolean mdatHasLargeSize = false;
+    long moovStart = C.POSITION_UNSET;
+    long moovEnd = C.POSITION_UNSET;
+    List<long[]> trailingBoxes = new ArrayList<>();
+    long position = 0;
+    while (fileSize - position >= 2 * BYTES_PER_INTEGER) {
+      header.clear();
+      header.limit((int) min(header.capacity(), fileSize - position));
+      readFully(fileChannel, header, position);
+      long size = header.getInt(0) & UNSIGNED_INT_MAX_VALUE;
+      int type = header.getInt(BYTES_PER_INTEGER);
+      boolean largeSize = size == 1;
+      if (largeSize) {
+        if (header.limit() < header.capacity()) {
+          break;
+        }
+        size = header.getLong(2 * BYTES_PER_INTEGER);
+      } else if (size == 0) {
+        size = fileSize - position;
+      }
+      if (size < 2 * BYTES_PER_INTEGER) {
+        break;
+      }
+      // A box can only extend past the end of the file if the recording was interrupted while it
+      // was being written.
+      long end = min(position + size, fileSize);
+      if (type == BOX_TYPE_MDAT && mdatStart == C.POSITION_UNSET) {
+        mdatStart = position;
+        mdatEnd = end;
+        mdatHasLargeSize = largeSize;
+      } else if (mdatStart != C.POSITION_UNSET && type != BOX_TYPE_FREE && type != BOX_TYPE_SKIP) {
+        if (type == BOX_TYPE_MOOV && moovStart == C.POSITION_UNSET) {
+          moovStart = position;
+          moovEnd = end;
+        }
+        trailingBoxes.add(new long[] {position, end});
+      } else if (type == BOX_TYPE_MOOV) {
+        // The moov box precedes the mdat box, so the file was closed properly.
+        return 0;
+      } else if (type != BOX_TYPE_FTYP && type != BOX_TYPE_FREE && type != BOX_TYPE_SKIP) {
+        break;
+      }
+      position = end;
+    }
+    if (mdatStart == C.POSITION_UNSET || moovStart == C.POSITION_UNSET) {
+      throw ParserException.createForMalformedContainer(
+          "No mdat and moov boxes to recover the samples with", /* cause= */ null);
+    }
+    if (moovEnd - moovStart > Integer.MAX_VALUE) {
+      throw ParserException.createForMalformedContainer("The moov box is too large", null);
+    }
+
+    ByteBuffer moov = ByteBuffer.allocate((int) (moovEnd - moovStart));
+    readFully(fileChannel, moov, moovStart);
+
+    // Find the end of the referenced samples, and the video track to recover the samples of.
+    long dataEnd = mdatStart + (mdatHasLargeSize ? 16 : 8);
+    int mvhdPosition = C.INDEX_UNSET;
+    @Nullable TrackBoxes videoTrack = null;
+    for (int box = 8; box < moov.limit(); box = boxEnd(moov, box, moov.limit())) {
+      int type = moov.getInt(box + BYTES_PER_INTEGER);
+      if (type == BOX_TYPE_MVHD) {
+        mvhdPosition = box;
+      } else if (type == BOX_TYPE_TRAK) {
+        @Nullable TrackBoxes track = TrackBoxes.parse(moov, box);
+        if (track == null) {
+          continue;
+        }
+        dataEnd = max(dataEnd, track.sampleTable.getDataEnd());
+        if (videoTrack == null && track.isH264OrH265Video()) {
+          videoTrack = track;
+        }
+      }
+    }
+    if (videoTrack == null || mvhdPosition == C.INDEX_UNSET) {
+      return 0;
+    }
+    long sampleDurationVu = videoTrack.sampleTable.getMostCommonSampleDuration();
+    if (sampleDurationVu == 0 || readTimescale(moov, videoTrack.mdhdPosition) == 0) {
+      // The recovered samples can not be timed.
+      return 0;
+    }
+
+    RecoveredSamples recoveredSamples =
+        scanAccessUnits(fileChannel, dataEnd, mdatEnd, videoTrack.isH265Video());
+    if (recoveredSamples.count == 0) {
+      return 0;
+    }
+
+    // Build the new moov box.
+    TrackSampleTable sampleTable = videoTrack.sampleTable;
+    sampleTable.addSamples(recoveredSamples, sampleDurationVu);
+    long mediaDurationVu = sampleTable.getDurationVu();
+    long mediaTimescale = readTimescale(moov, videoTrack.mdhdPosition);
+    long movieTimescale = readTimescale(moov, mvhdPosition);
+    long trackDuration = mediaDurationVu * movieTimescale / mediaTimescale;
+    long movieDuration =
+        max(trackDuration, readDuration(moov, mvhdPosition, /* v0Offset= */ 24, 32));
+    Map<Integer, Box> replacements = new HashMap<>();
+    replacements.put(videoTrack.stblPosition, sampleTable.stbl(moov, videoTrack.stblPosition));
+    replacements.put(
+        videoTrack.mdhdPosition,
+        withDuration(moov, videoTrack.mdhdPosition, mediaDurationVu, /* v0Offset= */ 24, 32));
+    replacements.put(
+        videoTrack.tkhdPosition,
+        withDuration(moov, videoTrack.tkhdPosition, trackDuration, /* v0Offset= */ 28, 36));
+    replacements.put(
+        mvhdPosition, withDuration(moov, mvhdPosition, movieDuration, /* v0Offset= */ 24, 32));
+    Box[] newBoxes = new Box[trailingBoxes.size()];
+    for (int i = 0; i < trailingBoxes.size(); i++) {
+      long[] box = trailingBoxes.get(i);
+      if (box[0] == moovStart) {
+        newBoxes[i] = rewrite(moov, /* position= */ 0, moov.limit(), replacements);
+      } else {
+        ByteBuffer contents = ByteBuffer.allocate((int) (box[1] - box[0]));
+        readFully(fileChannel, contents, box[0]);
+        newBoxes[i] = Box.wrap(contents);
+      }
+    }
+
+    long newMdatSize = fileSize - mdatStart;
+    if (!mdatHasLargeSize && newMdatSize > UNSIGNED_INT_MAX_VALUE) {
+      throw ParserException.createForMalformedContainer("The mdat box can not be extended", null);
+    }
+
+    // The current state is:
+    // | ftyp | mdat .. .. .. (recovered samples) .. | moov | ...
+
+    // Write the new moov box, with the boxes that follow the previous one, to the end of the file.
+    fileChannel.position(fileSize);
+    Box.sequence(newBoxes).writeTo(fileChannel);
+    fileChannel.force(/* metaData= */ true);
+
+    // Now change this to:
+    // | ftyp | mdat .. .. .. (recovered samples) .. (moov) ... | new moov | ...
+    ByteBuffer mdatSize = ByteBuffer.allocate(8);
+    if (mdatHasLargeSize) {
+      mdatSize.putLong(newMdatSize);
+    } else {
+      mdatSize.putInt((int) newMdatSize);
+    }
+    mdatSize.flip();
+    fileChannel.write(mdatSize, mdatStart + (mdatHasLargeSize ? 8 : 0));
+    fileChannel.force(/* metaData= */ true);
+    return recoveredSamples.count;
+  }
+
+  private static RecoveredSamples scanAccessUnits(
+      FileChannel fileChannel, long start, long end, boolean isH265) throws IOException {
+    AccessUnitScanner scanner = new AccessUnitScanner(fileChannel, end, isH265);
+    RecoveredSamples samples = new RecoveredSamples();
+    long position = start;
+    while (position < end) {
+      long accessUnitEnd = scanner.readAccessUnit(position);
+      if (accessUnitEnd != C.POSITION_UNSET) {
+        samples.add(position, (int) (accessUnitEnd - position), scanner.isSyncAccessUnit);
+        position = accessUnitEnd;
+      } else {
+        // Skip the samples of the other tracks, or stop at the reserved space.
+        position =
+            scanner.findAccessUnit(position + 1, min(end, position + 1 + MAX_RESYNC_BYTES));
+        if (position == C.POSITION_UNSET) {
+          break;
+        }
+      }
+    }
+    return samples;
+  }
+
+  /**
+   * Returns the box at {@code position} in {@code moov}, with the boxes in {@code replacements}
+   * replaced.
+   */
+  private static Box rewrite(
+      ByteBuffer moov, int position, int end, Map<Integer, Box> replacements) {
+    @Nullable Box replacement = replacements.get(position);
+    if (replacement != null) {
+      return replacement;
+    }
+    int type = moov.getInt(position + BYTES_PER_INTEGER);
+    if (type == BOX_TYPE_MOOV
+        || type == BOX_TYPE_TRAK
+        || type == BOX_TYPE_MDIA
+        || type == BOX_TYPE_MINF) {
+      List<Box> children = new ArrayList<>();
+      for (int child = position + 8; child < end; child = boxEnd(moov, child, end)) {
+        children.add(rewrite(moov, child, boxEnd(moov, child, end), replacements));
+      }
+      return Box.container(boxTypeName(type), children);
+    }
+    return Box.wrap(slice(moov, position, end));
+  }
+
+  /**
+   * Returns a copy of the full box at {@code position} with its duration replaced.
+   *
+   * @param v0Offset The offset of the 32-bit duration in the version 0 box.
+   * @param v1Offset The offset of the 64-bit duration in the version 1 box.
+   */
+  private static Box withDuration(
+      ByteBuffer moov, int position, long duration, int v0Offset, int v1Offset) {
+    ByteBuffer box = ByteBuffer.allocate(moov.getInt(position));
+    box.put(slice(moov, position, position + box.capacity()));
+    if (box.get(8) == 0) {
+      box.putInt(v0Offset, (int) min(duration, UNSIGNED_INT_MAX_VALUE));
+    } else {
+      box.putLong(v1Offset, duration);
+    }
+    box.flip();
+    return Box.wrap(box);
+  }
+
+  private static long readDuration(ByteBuffer moov, int position, int v0Offset, int v1Offset) {
+    return moov.get(position + 8) == 0
+        ? moov.getInt(position + v0Offset) & UNSIGNED_INT_MAX_VALUE
+        : moov.getLong(position + v1Offset);
+  }
+
+  /** Returns the timescale of the mvhd or mdhd box at {@code position}. */
+  private static long readTimescale(ByteBuffer moov, int position) {
+    return moov.getInt(position + (moov.get(position + 8) == 0 ? 20 : 28))
+        & UNSIGNED_INT_MAX_VALUE;
+  }
+
+  /** Returns the position of the child box of type {@code type}, or {@link C#INDEX_UNSET}. */
+  private static int findChild(ByteBuffer moov, int parent, int type) {
+    int end = boxEnd(moov, parent, moov.limit());
+    for (int child = parent + 8; child < end; child = boxEnd(moov, child, end)) {
+      if (moov.getInt(child + BYTES_PER_INTEGER) == type) {
+        return child;
+      }
+    }
+    return C.INDEX_UNSET;
+  }
+
+  /** Returns the end of the box at {@code position}, which is at most {@code parentEnd}. */
+  private static int boxEnd(ByteBuffer moov, int position, int parentEnd) {
+    if (parentEnd - position < 8) {
+      return parentEnd;
+    }
+    long size = moov.getInt(position) & UNSIGNED_INT_MAX_VALUE;
+    if (size == 1 && parentEnd - position >= 16) {
+      size = moov.getLong(position + 8);
+    } else if (size == 0) {
+      size = parentEnd - position;
+    }
+    // Skip the rest of the parent if the size is not valid.
+    return size < 8 ? parentEnd : (int) min(position + size, parentEnd);
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+    ByteBuffer slice = buffer.duplicate();
+    slice.limit(end);
+    slice.position(start);
+    return slice.slice();
+  }
+
+  private static void readFully(FileChannel fileChannel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  private static int boxType(String name) {
+    return ByteBuffer.wrap(Util.getUtf8Bytes(name)).getInt();
+  }
+
+  private static String boxTypeName(int type) {
+    byte[] name = ByteBuffer.allocate(BYTES_PER_INTEGER).putInt(type).array();
+    return new String(name, Charsets.UTF_8);
+  }
+
+  /** The positions in the moov box of the boxes of a track that are used for the recovery. */
+  private static final class TrackBoxes {
+    public final int tkhdPosition;
+    public final int mdhdPosition;
+    public final int stblPosition;
+    public final int handlerType;
+    public final int sampleEntryType;
+    public final TrackSampleTable sampleTable;
+
+    /** Returns the boxes of the trak box at {@code position}, or null if some are missing. */
+    @Nullable
+    public static TrackBoxes parse(ByteBuffer moov, int position) {
+      int tkhd = findChild(moov, position, BOX_TYPE_TKHD);
+      int mdia = findChild(moov, position, BOX_TYPE_MDIA);
+      if (tkhd == C.INDEX_UNSET || mdia == C.INDEX_UNSET) {
+        return null;
+      }
+      int mdhd = findChild(moov, mdia, BOX_TYPE_MDHD);
+      int hdlr = findChild(moov, mdia, BOX_TYPE_HDLR);
+      int minf = findChild(moov, mdia, BOX_TYPE_MINF);
+      if (mdhd == C.INDEX_UNSET || hdlr == C.INDEX_UNSET || minf == C.INDEX_UNSET) {
+        return null;
+      }
+      int stbl = findChild(moov, minf, BOX_TYPE_STBL);
+      if (stbl == C.INDEX_UNSET) {
+        return null;
+      }
+      int stsd = findChild(moov, stbl, BOX_TYPE_STSD);
+      @Nullable TrackSampleTable sampleTable = TrackSampleTable.parse(moov, stbl);
+      if (stsd == C.INDEX_UNSET || sampleTable == null) {
+        return null;
+      }
+      // Skip the header, the version and flags and the pre_defined field of the hdlr box, and the
+      // header, the version and flags, the entry count and the size of the first sample entry.
+      return new TrackBoxes(
+          tkhd,
+          mdhd,
+          stbl,
+          /* handlerType= */ moov.getInt(hdlr + 16),
+          /* sampleEntryType= */ moov.getInt(stsd + 20),
+          sampleTable);
+    }
+
+    private TrackBoxes(
+        int tkhdPosition,
+        int mdhdPosition,
+        int stblPosition,
+        int handlerType,
+        int sampleEntryType,
+        TrackSampleTable sampleTable) {
+      this.tkhdPosition = tkhdPosition;
+      this.mdhdPosition = mdhdPosition;
+      this.stblPosition = stblPosition;
+      this.handlerType = handlerType;
+      this.sampleEntryType = sampleEntryType;
+      this.sampleTable = sampleTable;
+    }
+
+    public boolean isH264OrH265Video() {
+      return handlerType == HANDLER_TYPE_VIDEO
+          && (sampleEntryType == SAMPLE_ENTRY_TYPE_AVC1
+              || sampleEntryType == SAMPLE_ENTRY_TYPE_AVC3
+              || isH265Video());
+    }
+
+    public boolean isH265Video() {
+      return sampleEntryType == SAMPLE_ENTRY_TYPE_HVC1 || sampleEntryType == SAMPLE_ENTRY_TYPE_HEV1;
+    }
+  }
+
+  /** The decoded sample table of a track, to which recovered samples can be added. */
+  private static final class TrackSampleTable {
+    private int[] sampleSizes;
+    private int sampleCount;
+    private long[] chunkOffsets;
+    private int chunkCount;
+    // The (first_chunk, samples_per_chunk, sample_description_index) stsc entries.
+    private int[] chunkEntries;
+    private int chunkEntryCount;
+    // The (sample_count, sample_delta) stts entries.
+    private int[] durationEntries;
+    private int durationEntryCount;
+    // The (sample_count, sample_offset) ctts entries, if there is a ctts box.
+    @Nullable private int[] compositionOffsetEntries;
+    private int compositionOffsetEntryCount;
+    private int compositionOffsetVersionAndFlags;
+    // The sample numbers of the stss box, if there is one.
+    @Nullable private int[] syncSamples;
+    private int syncSampleCount;
+
+    /** Returns the sample table of the stbl box at {@code position}, or null if it is not valid. */
+    @Nullable
+    public static TrackSampleTable parse(ByteBuffer moov, int position) {
+      try {
+        return new TrackSampleTable(moov, position);
+      } catch (IndexOutOfBoundsException | NegativeArraySizeException | ParserException e) {
+        return null;
+      }
+    }
+
+    private TrackSampleTable(ByteBuffer moov, int stbl) throws ParserException {
+      int stsz = findChild(moov, stbl, BOX_TYPE_STSZ);
+      int stsc = findChild(moov, stbl, BOX_TYPE_STSC);
+      int stts = findChild(moov, stbl, BOX_TYPE_STTS);
+      int chunkOffsetBox = findChild(moov, stbl, BOX_TYPE_CO64);
+      boolean largeChunkOffsets = chunkOffsetBox != C.INDEX_UNSET;
+      if (!largeChunkOffsets) {
+        chunkOffsetBox = findChild(moov, stbl, BOX_TYPE_STCO);
+      }
+      if (stsz == C.INDEX_UNSET
+          || stsc == C.INDEX_UNSET
+          || stts == C.INDEX_UNSET
+          || chunkOffsetBox == C.INDEX_UNSET) {
+        throw ParserException.createForMalformedContainer("Missing sample table box", null);
+      }
+
+      int sampleSize = moov.getInt(stsz + 12);
+      sampleCount = moov.getInt(stsz + 16);
+      sampleSizes = new int[sampleCount];
+      for (int i = 0; i < sampleCount; i++) {
+        sampleSizes[i] = sampleSize != 0 ? sampleSize : moov.getInt(stsz + 20 + i * 4);
+      }
+
+      chunkCount = moov.getInt(chunkOffsetBox + 12);
+      chunkOffsets = new long[chunkCount];
+      for (int i = 0; i < chunkCount; i++) {
+        chunkOffsets[i] =
+            largeChunkOffsets
+                ? moov.getLong(chunkOffsetBox + 16 + i * 8)
+                : moov.getInt(chunkOffsetBox + 16 + i * 4) & UNSIGNED_INT_MAX_VALUE;
+      }
+
+      chunkEntryCount = moov.getInt(stsc + 12);
+      chunkEntries = readEntries(moov, stsc + 16, chunkEntryCount * 3);
+      durationEntryCount = moov.getInt(stts + 12);
+      durationEntries = readEntries(moov, stts + 16, durationEntryCount * 2);
+
+      int ctts = findChild(moov, stbl, BOX_TYPE_CTTS);
+      if (ctts != C.INDEX_UNSET) {
+        compositionOffsetVersionAndFlags = moov.getInt(ctts + 8);
+        compositionOffsetEntryCount = moov.getInt(ctts + 12);
+        compositionOffsetEntries = readEntries(moov, ctts + 16, compositionOffsetEntryCount * 2);
+      }
+      int stss = findChild(moov, stbl, BOX_TYPE_STSS);
+      if (stss != C.INDEX_UNSET) {
+        syncSampleCount = moov.getInt(stss + 12);
+        syncSamples = readEntries(moov, stss + 16, syncSampleCount);
+      }
+    }
+
+    /** Returns the end of the last sample in the file. */
+    public long getDataEnd() {
+      long dataEnd = 0;
+      int sampleIndex = 0;
+      for (int entry = 0; entry < chunkEntryCount; entry++) {
+        int firstChunk = chunkEntries[entry * 3];
+        int endChunk = entry + 1 < chunkEntryCount ? chunkEntries[(entry + 1) * 3] : chunkCount + 1;
+        int samplesPerChunk = chunkEntries[entry * 3 + 1];
+        for (int chunk = max(firstChunk, 1); chunk < min(endChunk, chunkCount + 1); chunk++) {
+          long position = chunkOffsets[chunk - 1];
+          for (int i = 0; i < samplesPerChunk && sampleIndex < sampleCount; i++) {
+            position += sampleSizes[sampleIndex++];
+          }
+          dataEnd = max(dataEnd, position);
+        }
+      }
+      return dataEnd;
+    }
+
+    /** Returns the most common sample duration, in timebase units, or 0 if it is not known. */
+    public long getMostCommonSampleDuration() {
+      Map<Integer, Long> sampleCountsByDuration = new HashMap<>();
+      int mostCommonDuration = 0;
+      long mostCommonDurationCount = 0;
+      for (int i = 0; i < durationEntryCount; i++) {
+        int duration = durationEntries[i * 2 + 1];
+        if (duration <= 0) {
+          continue;
+        }
+        @Nullable Long previousCount = sampleCountsByDuration.get(duration);
+        long count =
+            (previousCount == null ? 0 : previousCount)
+                + (durationEntries[i * 2] & UNSIGNED_INT_MAX_VALUE);
+        sampleCountsByDuration.put(duration, count);
+        if (count > mostCommonDurationCount) {
+          mostCommonDuration = duration;
+          mostCommonDurationCount = count;
+        }
+      }
+      return mostCommonDuration;
+    }
+
+    /** Returns the sum of the sample durations, in timebase units. */
+    public long getDurationVu() {
+      long durationVu = 0;
+      for (int i = 0; i < durationEntryCount; i++) {
+        durationVu +=
+            (durationEntries[i * 2] & UNSIGNED_INT_MAX_VALUE)
+                * (durationEntries[i * 2 + 1] & UNSIGNED_INT_MAX_VALUE);
+      }
+      return durationVu;
+    }
+
+    /**
+     * Appends the recovered samples, in chunks of contiguous samples.
+     *
+     * @param samples The samples to add.
+     * @param sampleDurationVu The duration of each added sample, in timebase units, which is also
+     *     given to the last sample of the track if it has none.
+     */
+    public void addSamples(RecoveredSamples samples, long sampleDurationVu) {
+      int previousSampleCount = sampleCount;
+      int sampleDescriptionIndex = chunkEntryCount > 0 ? chunkEntries[chunkEntryCount * 3 - 1] : 1;
+      for (int i = 0; i < samples.count; i++) {
+        sampleSizes = appendEntry(sampleSizes, sampleCount++, samples.sizes[i]);
+        if (i == 0 || samples.offsets[i] != samples.offsets[i - 1] + samples.sizes[i - 1]) {
+          if (chunkOffsets.length == chunkCount) {
+            chunkOffsets = Arrays.copyOf(chunkOffsets, max(16, chunkCount * 2));
+          }
+          chunkOffsets[chunkCount++] = samples.offsets[i];
+          chunkEntries = appendEntry(chunkEntries, chunkEntryCount * 3, chunkCount);
+          chunkEntries = appendEntry(chunkEntries, chunkEntryCount * 3 + 1, 1);
+          chunkEntries =
+              appendEntry(chunkEntries, chunkEntryCount * 3 + 2, sampleDescriptionIndex);
+          chunkEntryCount++;
+        } else {
+          chunkEntries[chunkEntryCount * 3 - 2]++;
+        }
+      }
+      // Merge the consecutive stsc entries with the same number of samples per chunk.
+      int entryCount = 0;
+      for (int entry = 0; entry < chunkEntryCount; entry++) {
+        if (entryCount > 0
+            && chunkEntries[(entryCount - 1) * 3 + 1] == chunkEntries[entry * 3 + 1]
+            && chunkEntries[(entryCount - 1) * 3 + 2] == chunkEntries[entry * 3 + 2]) {
+          continue;
+        }
+        System.arraycopy(chunkEntries, entry * 3, chunkEntries, entryCount * 3, 3);
+        entryCount++;
+      }
+      chunkEntryCount = entryCount;
+
+      if (durationEntryCount > 0 && durationEntries[durationEntryCount * 2 - 1] == 0) {
+        // Give the last sample a duration, now that it is followed by other samples.
+        durationEntries[durationEntryCount * 2 - 2]--;
+        if (durationEntries[durationEntryCount * 2 - 2] == 0) {
+          durationEntryCount--;
+        }
+        appendDurations(/* count= */ 1, (int) sampleDurationVu);
+      }
+      appendDurations(samples.count, (int) sampleDurationVu);
+
+      if (compositionOffsetEntries != null) {
+        if (compositionOffsetEntryCount > 0
+            && compositionOffsetEntries[compositionOffsetEntryCount * 2 - 1] == 0) {
+          compositionOffsetEntries[compositionOffsetEntryCount * 2 - 2] += samples.count;
+        } else {
+          compositionOffsetEntries =
+              appendEntry(compositionOffsetEntries, compositionOffsetEntryCount * 2, samples.count);
+          compositionOffsetEntries =
+              appendEntry(compositionOffsetEntries, compositionOffsetEntryCount * 2 + 1, 0);
+          compositionOffsetEntryCount++;
+        }
+      }
+
+      if (syncSamples == null && samples.syncSampleCount < samples.count) {
+        // All the previous samples were sync samples.
+        syncSamples = new int[previousSampleCount];
+        for (int i = 0; i < previousSampleCount; i++) {
+          syncSamples[i] = i + 1;
+        }
+        syncSampleCount = previousSampleCount;
+      }
+      if (syncSamples != null) {
+        for (int i = 0; i < samples.count; i++) {
+          if (samples.isSyncSample[i]) {
+            syncSamples = appendEntry(syncSamples, syncSampleCount++, previousSampleCount + i + 1);
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns the stbl box at {@code position} in {@code moov}, with this sample table in place of
+     * its sample table boxes.
+     */
+    public Box stbl(ByteBuffer moov, int position) {
+      List<Box> children = new ArrayList<>();
+      int end = boxEnd(moov, position, moov.limit());
+      for (int child = position + 8; child < end; child = boxEnd(moov, child, end)) {
+        int type = moov.getInt(child + BYTES_PER_INTEGER);
+        if (type == BOX_TYPE_STTS) {
+          children.add(entriesBox("stts", 0, durationEntries, durationEntryCount, 2));
+        } else if (type == BOX_TYPE_CTTS && compositionOffsetEntries != null) {
+          children.add(
+              entriesBox(
+                  "ctts",
+                  compositionOffsetVersionAndFlags,
+                  compositionOffsetEntries,
+                  compositionOffsetEntryCount,
+                  2));
+        } else if (type == BOX_TYPE_STSZ) {
+          children.add(stsz());
+        } else if (type == BOX_TYPE_STSC) {
+          children.add(entriesBox("stsc", 0, chunkEntries, chunkEntryCount, 3));
+        } else if (type == BOX_TYPE_STCO || type == BOX_TYPE_CO64) {
+          children.add(co64());
+        } else if (type != BOX_TYPE_STSS) {
+          children.add(Box.wrap(slice(moov, child, boxEnd(moov, child, end))));
+        }
+      }
+      if (syncSamples != null) {
+        children.add(entriesBox("stss", 0, syncSamples, syncSampleCount, 1));
+      }
+      return Box.container("stbl", children);
+    }
+
+    private Box stsz() {
+      ByteBuffer contents = ByteBuffer.allocate(3 * BYTES_PER_INTEGER + sampleCount * 4);
+      contents.putInt(0x0); // version and flags.
+      contents.putInt(0); // sample_size.
+      contents.putInt(sampleCount); // sample_count.
+      for (int i = 0; i < sampleCount; i++) {
+        contents.putInt(sampleSizes[i]); // entry_size.
+      }
+      contents.flip();
+      return Box.leaf("stsz", contents);
+    }
+
+    private Box co64() {
+      ByteBuffer contents = ByteBuffer.allocate(2 * BYTES_PER_INTEGER + chunkCount * 8);
+      contents.putInt(0x0); // version and flags.
+      contents.putInt(chunkCount); // entry_count.
+      for (int i = 0; i < chunkCount; i++) {
+        contents.putLong(chunkOffsets[i]); // chunk_offset.
+      }
+      contents.flip();
+      return Box.leaf("co64", contents);
+    }
+
+    private void appendDurations(int count, int durationVu) {
+      if (durationEntryCount > 0 && durationEntries[durationEntryCount * 2 - 1] == durationVu) {
+        durationEntries[durationEntryCount * 2 - 2] += count;
+        return;
+      }
+      durationEntries = appendEntry(durationEntries, durationEntryCount * 2, count);
+      durationEntries = appendEntry(durationEntries, durationEntryCount * 2 + 1, durationVu);
+      durationEntryCount++;
+    }
+
+    private static Box entriesBox(
+        String boxType, int versionAndFlags, int[] entries, int entryCount, int entrySize) {
+      ByteBuffer contents =
+          ByteBuffer.allocate(2 * BYTES_PER_INTEGER + entryCount * entrySize * BYTES_PER_INTEGER);
+      contents.putInt(versionAndFlags);
+      contents.putInt(entryCount); // entry_count.
+      for (int i = 0; i < entryCount * entrySize; i++) {
+        contents.putInt(entries[i]);
+      }
+      contents.flip();
+      return Box.leaf(boxType, contents);
+    }
+
+    private static int[] readEntries(ByteBuffer moov, int position, int count)
+        throws ParserException {
+      if (count < 0 || position + (long) count * BYTES_PER_INTEGER > moov.limit()) {
+        throw ParserException.createForMalformedContainer("Truncated sample table box", null);
+      }
+      int[] entries = new int[count];
+      for (int i = 0; i < count; i++) {
+        entries[i] = moov.getInt(position + i * BYTES_PER_INTEGER);
+      }
+      return entries;
+    }
+
+    private static int[] appendEntry(int[] entries, int index, int value) {
+      if (index == entries.length) {
+        entries = Arrays.copyOf(entries, max(16, entries.length * 2));
+      }
+      entries[index] = value;
+      return entries;
+    }
+  }
+
+  /** The access units found after the referenced samples. */
+  private static final class RecoveredSamples {
+    public long[] offsets;
+    public int[] sizes;
+    public boolean[] isSyncSample;
+    public int count;
+    public int syncSampleCount;
+
+    public RecoveredSamples() {
+      offsets = new long[16];
+      sizes = new int[16];
+      isSyncSample = new boolean[16];
+    }
+
+    public void add(long offset, int size, boolean isSync) {
+      if (count == offsets.length) {
+        offsets = Arrays.copyOf(offsets, count * 2);
+        sizes = Arrays.copyOf(sizes, count * 2);
+        isSyncSample = Arrays.copyOf(isSyncSample, count * 2);
+      }
+      offsets[count] = offset;
+      sizes[count] = size;
+      isSyncSample[count] = isSync;
+      count++;
+      if (isSync) {
+        syncSampleCount++;
+      }
+    }
+  }
+
+  /** Reads H.264 or H.265 access units, stored as NAL units with 4 byte lengths. */
+  private static final class AccessUnitScanner {
+    private final FileChannel fileChannel;
+    private final long end;
+    private final boolean isH265;
+    private final ByteBuffer window;
+    private long windowStart;
+
+    /** Whether the last access unit returned by {@link #readAccessUnit(long)} is a sync sample. */
+    public boolean isSyncAccessUnit;
+
+    public AccessUnitScanner(FileChannel fileChannel, long end, boolean isH265) {
+      this.fileChannel = fileChannel;
+      this.end = end;
+      this.isH265 = isH265;
+      window = ByteBuffer.allocate(READ_WINDOW_SIZE);
+      window.limit(0);
+    }
+
+    /**
+     * Returns the end of the access unit at {@code position}, or {@link C#POSITION_UNSET} if there
+     * is none.
+     */
+    public long readAccessUnit(long position) throws IOException {
+      int nalUnitType = readNalUnitType(position);
+      if (nalUnitType == C.INDEX_UNSET || !isAccessUnitStart(position, nalUnitType)) {
+        return C.POSITION_UNSET;
+      }
+      boolean hasVclNalUnit = false;
+      boolean isSync = false;
+      do {
+        hasVclNalUnit |= isVclNalUnit(nalUnitType);
+        isSync |= isSyncNalUnit(nalUnitType);
+        position += NAL_UNIT_LENGTH_SIZE + readUnsignedInt(position);
+        nalUnitType = readNalUnitType(position);
+      } while (nalUnitType != C.INDEX_UNSET
+          && !(hasVclNalUnit && isAccessUnitStart(position, nalUnitType)));
+      isSyncAccessUnit = isSync;
+      return hasVclNalUnit ? position : C.POSITION_UNSET;
+    }
+
+    /**
+     * Returns the position of the first access unit in [{@code start}, {@code limit}) that is
+     * followed by another one, or {@link C#POSITION_UNSET} if there is none.
+     */
+    public long findAccessUnit(long start, long limit) throws IOException {
+      for (long position = start; position < limit; position++) {
+        long accessUnitEnd = readAccessUnit(position);
+        if (accessUnitEnd != C.POSITION_UNSET
+            && readAccessUnit(accessUnitEnd) != C.POSITION_UNSET) {
+          return position;
+        }
+      }
+      return C.POSITION_UNSET;
+    }
+
+    /** Returns the type of the NAL unit at {@code position}, or {@link C#INDEX_UNSET}. */
+    private int readNalUnitType(long position) throws IOException {
+      // The NAL unit header, and the first byte of the slice header of VCL NAL units.
+      int minLength = isH265 ? 3 : 2;
+      if (end - position < NAL_UNIT_LENGTH_SIZE + minLength) {
+        return C.INDEX_UNSET;
+      }
+      long length = readUnsignedInt(position);
+      if (length < minLength || length > end - position - NAL_UNIT_LENGTH_SIZE) {
+        return C.INDEX_UNSET;
+      }
+      int header = readUnsignedByte(position + NAL_UNIT_LENGTH_SIZE);
+      if ((header & 0x80) != 0) {
+        // The forbidden_zero_bit is set.
+        return C.INDEX_UNSET;
+      }
+      if (!isH265) {
+        int type = header & 0x1F;
+        return type >= 1 && type <= 23 ? type : C.INDEX_UNSET;
+      }
+      int type = (header >> 1) & 0x3F;
+      int secondHeaderByte = readUnsignedByte(position + NAL_UNIT_LENGTH_SIZE + 1);
+      int layerId = ((header & 0x01) << 5) | (secondHeaderByte >> 3);
+      int temporalIdPlusOne = secondHeaderByte & 0x07;
+      return type <= 40 && layerId == 0 && temporalIdPlusOne != 0 ? type : C.INDEX_UNSET;
+    }
+
+    private boolean isAccessUnitStart(long position, int nalUnitType) throws IOException {
+      if (isVclNalUnit(nalUnitType)) {
+        // The first_mb_in_slice is 0, or the first_slice_segment_in_pic_flag is set.
+        int firstSliceHeaderByte =
+            readUnsignedByte(position + NAL_UNIT_LENGTH_SIZE + (isH265 ? 2 : 1));
+        return (firstSliceHeaderByte & 0x80) != 0;
+      }
+      // The SEI, parameter set and access unit delimiter NAL units that precede the slices.
+      return isH265
+          ? (nalUnitType >= 32 && nalUnitType <= 35) || nalUnitType == 39
+          : nalUnitType >= 6 && nalUnitType <= 9;
+    }
+
+    private boolean isVclNalUnit(int nalUnitType) {
+      return isH265 ? nalUnitType < 32 : nalUnitType <= 5;
+    }
+
+    private boolean isSyncNalUnit(int nalUnitType) {
+      // IDR pictures, and the IRAP pictures of H.265.
+      return isH265 ? nalUnitType >= 16 && nalUnitType <= 21 : nalUnitType == 5;
+    }
+
+    private int readUnsignedByte(long position) throws IOException {
+      fillWindow(position, 1);
+      return window.get((int) (position - windowStart)) & 0xFF;
+    }
+
+    private long readUnsignedInt(long position) throws IOException {
+      fillWindow(position, BYTES_PER_INTEGER);
+      return window.getInt((int) (position - windowStart)) & UNSIGNED_INT_MAX_VALUE;
+    }
+
+    private void fillWindow(long position, int length) throws IOException {
+      if (position >= windowStart && position + length <= windowStart + window.limit()) {
+        return;
+      }
+      window.clear();
+      window.limit((int) min(window.capacity(), end - position));
+      readFully(fileChannel, window, position);
+      windowStart = position;
+    }
+  }
+}
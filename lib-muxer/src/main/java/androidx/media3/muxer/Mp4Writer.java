@@ -16,24 +16,27 @@
 package androidx.media3.muxer;
 
 import static androidx.media3.common.util.Assertions.checkArgument;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
 
 import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 
+import androidx.annotation.Nullable;
 import androidx.media3.common.C;
 import androidx.media3.common.Format;
 import androidx.media3.common.MimeTypes;
 import androidx.media3.muxer.Mp4Muxer.TrackToken;
 
-import com.google.common.collect.ImmutableList;
-
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 
 /** Writes MP4 data to the disk. */
@@ -65,18 +68,40 @@ import java.util.List;
 
   public abstract void close() throws IOException;
 
+  /**
+   * Returns the {@link WriteQueueMetrics}, or {@code null} if the samples are not written
+   * asynchronously.
+   */
+  @Nullable
+  public WriteQueueMetrics getWriteQueueMetrics() {
+    return null;
+  }
+
+  /**
+   * Returns the greatest chunk skew of the written samples, in microseconds, or {@link
+   * C#TIME_UNSET} if no samples are written or it is not known.
+   *
+   * @see Mp4Muxer#getMaxChunkSkewUs()
+   */
+  public long getMaxChunkSkewUs() {
+    return C.TIME_UNSET;
+  }
+
   protected static class Track
       implements TrackToken, Mp4MoovStructure.TrackMetadataProvider {
     public final Format format;
     public final int sortKey;
-    public final List<BufferInfo> writtenSamples;
-    public final List<Long> writtenChunkOffsets;
-    public final List<Integer> writtenChunkSampleCounts;
+    public final SampleTableEncoder writtenSamples;
     public final Deque<BufferInfo> pendingSamplesBufferInfo;
     public final Deque<ByteBuffer> pendingSamplesByteBuffer;
     public boolean hadKeyframe;
 
     private long lastSamplePresentationTimeUs;
+    private long maxPresentationTimeUs;
+    private long maxWrittenPresentationTimeUs;
+    private boolean hasReorderedSamples;
+    // Reused to hold the decode timestamps, or the presentation timestamps, of pending samples.
+    private long[] scratchTimesUs;
 
     /** Creates an instance with {@code sortKey} set to 1. */
     public Track(Format format) {
@@ -92,18 +117,29 @@ import java.util.List;
     public Track(Format format, int sortKey) {
       this.format = format;
       this.sortKey = sortKey;
-      writtenSamples = new ArrayList<>();
-      writtenChunkOffsets = new ArrayList<>();
-      writtenChunkSampleCounts = new ArrayList<>();
+      writtenSamples = new SampleTableEncoder(videoUnitTimebase());
       pendingSamplesBufferInfo = new ArrayDeque<>();
       pendingSamplesByteBuffer = new ArrayDeque<>();
       lastSamplePresentationTimeUs = C.TIME_UNSET;
+      maxPresentationTimeUs = C.TIME_UNSET;
+      maxWrittenPresentationTimeUs = C.TIME_UNSET;
+      scratchTimesUs = new long[0];
     }
 
+    /**
+     * Adds a sample to the pending samples.
+     *
+     * <p>The samples are in decode order, so with B-frames their presentation timestamps are out of
+     * order. A sample must still be presented after every sample that is already written, and the
+     * presentation timestamps must be unique.
+     */
     public void writeSampleData(ByteBuffer byteBuffer, BufferInfo bufferInfo) throws IOException {
       checkArgument(
-          bufferInfo.presentationTimeUs > lastSamplePresentationTimeUs,
-          "Out of order B-frames are not supported");
+          bufferInfo.presentationTimeUs > maxWrittenPresentationTimeUs,
+          "A sample can not be presented before the samples that are already written");
+      checkArgument(
+          bufferInfo.presentationTimeUs != lastSamplePresentationTimeUs,
+          "Samples can not have the same presentation timestamp");
       // TODO: b/279931840 - Confirm whether muxer should throw when writing empty samples.
       //  Skip empty samples.
       if (bufferInfo.size == 0 || byteBuffer.remaining() == 0) {
@@ -122,33 +158,142 @@ import java.util.List;
       pendingSamplesBufferInfo.addLast(bufferInfo);
       pendingSamplesByteBuffer.addLast(byteBuffer);
       lastSamplePresentationTimeUs = bufferInfo.presentationTimeUs;
+      if (bufferInfo.presentationTimeUs < maxPresentationTimeUs) {
+        hasReorderedSamples = true;
+      }
+      maxPresentationTimeUs = max(maxPresentationTimeUs, bufferInfo.presentationTimeUs);
     }
 
-    @Override
-    public int videoUnitTimebase() {
-      return MimeTypes.isAudio(format.sampleMimeType)
-          ? 48_000 // TODO: b/270583563 - Update these with actual values from mediaFormat.
-          : 90_000;
+    /** Returns the greatest presentation timestamp of the samples, in microseconds. */
+    public long getMaxPresentationTimeUs() {
+      return maxPresentationTimeUs;
     }
 
-    @Override
-    public ImmutableList<BufferInfo> writtenSamples() {
-      return ImmutableList.copyOf(writtenSamples);
+    /** Returns whether any sample has been presented before a sample that precedes it. */
+    public boolean hasReorderedSamples() {
+      return hasReorderedSamples;
+    }
+
+    /**
+     * Returns the decode timestamp of the first pending sample, in microseconds, or {@link
+     * C#TIME_UNSET} if there are no pending samples.
+     *
+     * <p>It is the earliest presentation timestamp of the pending samples, as they are all
+     * presented after the written ones.
+     */
+    public long getFirstPendingDecodeTimeUs() {
+      if (pendingSamplesBufferInfo.isEmpty()) {
+        return C.TIME_UNSET;
+      }
+      long firstDecodeTimeUs = Long.MAX_VALUE;
+      for (BufferInfo bufferInfo : pendingSamplesBufferInfo) {
+        firstDecodeTimeUs = min(firstDecodeTimeUs, bufferInfo.presentationTimeUs);
+      }
+      return firstDecodeTimeUs;
+    }
+
+    /**
+     * Returns the number of pending samples, from the first, that can be written before more
+     * samples are added.
+     *
+     * <p>Without B-frames, it is all of them. Otherwise, the decode timestamps of the samples are
+     * their presentation timestamps in ascending order, so the written samples must all be
+     * presented before the ones that are left. As a later sample could still be presented before
+     * the last pending ones, the samples are written up to the last point where it holds.
+     */
+    public int getWritablePendingSampleCount() {
+      return getWritablePendingSampleCount(/* maxSampleCount= */ pendingSamplesBufferInfo.size());
+    }
+
+    /**
+     * Returns the greatest number of pending samples, from the first, that can be written before
+     * more samples are added and does not exceed {@code maxSampleCount}, or the least one that
+     * exceeds it if there is none.
+     *
+     * @see #getWritablePendingSampleCount()
+     */
+    public int getWritablePendingSampleCount(int maxSampleCount) {
+      int pendingSampleCount = pendingSamplesBufferInfo.size();
+      if (!hasReorderedSamples || pendingSampleCount == 0) {
+        return min(pendingSampleCount, maxSampleCount);
+      }
+      // The minimum presentation timestamp of the samples from each index to the end.
+      long[] minPresentationTimesUs = ensureScratchCapacity(pendingSampleCount);
+      Iterator<BufferInfo> descendingIterator = pendingSamplesBufferInfo.descendingIterator();
+      long minPresentationTimeUs = Long.MAX_VALUE;
+      for (int i = pendingSampleCount - 1; i >= 0; i--) {
+        minPresentationTimeUs =
+            min(minPresentationTimeUs, descendingIterator.next().presentationTimeUs);
+        minPresentationTimesUs[i] = minPresentationTimeUs;
+      }
+      int writableSampleCount = 0;
+      Iterator<BufferInfo> iterator = pendingSamplesBufferInfo.iterator();
+      long maxPresentationTimeUs = Long.MIN_VALUE;
+      for (int i = 0; i < pendingSampleCount - 1; i++) {
+        maxPresentationTimeUs = max(maxPresentationTimeUs, iterator.next().presentationTimeUs);
+        if (maxPresentationTimeUs < minPresentationTimesUs[i + 1]) {
+          if (i + 1 > maxSampleCount && writableSampleCount > 0) {
+            break;
+          }
+          writableSampleCount = i + 1;
+          if (writableSampleCount >= maxSampleCount) {
+            break;
+          }
+        }
+      }
+      return writableSampleCount;
+    }
+
+    /**
+     * Returns the decode timestamps of the first {@code sampleCount} pending samples, which are
+     * about to be written, in microseconds.
+     *
+     * <p>The decode timestamps are the presentation timestamps of the samples in ascending order,
+     * so that the first sample is decoded at the earliest presentation timestamp and the samples
+     * are decoded at the same rate as they are presented. Samples added afterwards must be
+     * presented after all of these.
+     *
+     * @param sampleCount The number of samples, which must not exceed {@link
+     *     #getWritablePendingSampleCount()} unless no more samples are added.
+     * @return An array holding the decode timestamps in its first {@code sampleCount} entries, which
+     *     is reused by the next call.
+     */
+    public long[] getPendingDecodeTimesUs(int sampleCount) {
+      checkArgument(sampleCount > 0 && sampleCount <= pendingSamplesBufferInfo.size());
+      long[] decodeTimesUs = ensureScratchCapacity(sampleCount);
+      Iterator<BufferInfo> iterator = pendingSamplesBufferInfo.iterator();
+      for (int i = 0; i < sampleCount; i++) {
+        decodeTimesUs[i] = iterator.next().presentationTimeUs;
+      }
+      if (hasReorderedSamples) {
+        Arrays.sort(decodeTimesUs, 0, sampleCount);
+      }
+      maxWrittenPresentationTimeUs = decodeTimesUs[sampleCount - 1];
+      return decodeTimesUs;
     }
 
     @Override
-    public ImmutableList<Long> writtenChunkOffsets() {
-      return ImmutableList.copyOf(writtenChunkOffsets);
+    public int videoUnitTimebase() {
+      return MimeTypes.isAudio(format.sampleMimeType)
+          ? 48_000 // TODO: b/270583563 - Update these with actual values from mediaFormat.
+          : 90_000;
     }
 
     @Override
-    public ImmutableList<Integer> writtenChunkSampleCounts() {
-      return ImmutableList.copyOf(writtenChunkSampleCounts);
+    public SampleTableEncoder writtenSamples() {
+      return writtenSamples;
     }
 
     @Override
     public Format format() {
       return format;
     }
+
+    private long[] ensureScratchCapacity(int capacity) {
+      if (scratchTimesUs.length < capacity) {
+        scratchTimesUs = new long[max(capacity, 2 * scratchTimesUs.length)];
+      }
+      return scratchTimesUs;
+    }
   }
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import androidx.media3.muxer.Mp4Writer.Track;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Decides when the pending samples of the tracks are written to the mdat box, and in which order.
+ *
+ * <p>The samples of a track are written in chunks, and each call to the {@link ChunkWriter} writes
+ * a chunk right after the previous one.
+ */
+/* package */ interface SampleInterleaver {
+
+  /** Writes a chunk of samples. */
+  interface ChunkWriter {
+
+    /**
+     * Writes the first {@code sampleCount} pending samples of a track as a chunk.
+     *
+     * @param track The {@link Track}.
+     * @param sampleCount The number of samples, which must not exceed {@link
+     *     Track#getWritablePendingSampleCount()} unless no more samples are added.
+     */
+    void writeChunk(Track track, int sampleCount) throws IOException;
+  }
+
+  /**
+   * Writes the chunks that are ready, after a sample is added to one of the tracks.
+   *
+   * @param tracks The tracks.
+   * @param chunkWriter The {@link ChunkWriter}.
+   */
+  void interleave(List<Track> tracks, ChunkWriter chunkWriter) throws IOException;
+
+  /**
+   * Writes all the pending samples, once no more samples are added.
+   *
+   * @param tracks The tracks.
+   * @param chunkWriter The {@link ChunkWriter}.
+   */
+  void flush(List<Track> tracks, ChunkWriter chunkWriter) throws IOException;
+}
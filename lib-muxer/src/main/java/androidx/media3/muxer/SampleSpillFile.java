@@ -0,0 +1,116 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.common.util.Assertions.checkArgument;
+import static java.lang.Math.max;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Holds the bytes of the pending samples of a track in a temporary file, so that only their sizes
+ * are kept in memory.
+ *
+ * <p>The file is deleted as soon as it is created, so it is removed by the file system once it is
+ * closed, even if the process dies. Its space is reused after each {@link #transferTo}.
+ */
+/* package */ final class SampleSpillFile {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final FileChannel file;
+  private int[] sampleSizes;
+  private int sampleCount;
+  private long length;
+
+  /**
+   * Creates an instance.
+   *
+   * @param directory The directory where to create the temporary file.
+   * @throws IOException If the file can not be created.
+   */
+  public SampleSpillFile(File directory) throws IOException {
+    File tempFile = File.createTempFile("mp4muxer", ".spill", directory);
+    try {
+      file = new RandomAccessFile(tempFile, "rw").getChannel();
+    } finally {
+      tempFile.delete();
+    }
+    sampleSizes = new int[INITIAL_CAPACITY];
+  }
+
+  /**
+   * Appends the remaining bytes of a sample, leaving its position unchanged.
+   *
+   * @param sample The sample.
+   * @throws IOException If writing to the file failed.
+   */
+  public void append(ByteBuffer sample) throws IOException {
+    int position = sample.position();
+    int size = sample.remaining();
+    while (sample.hasRemaining()) {
+      file.write(sample, length + sample.position() - position);
+    }
+    sample.position(position);
+    if (sampleCount == sampleSizes.length) {
+      sampleSizes = Arrays.copyOf(sampleSizes, max(INITIAL_CAPACITY, 2 * sampleCount));
+    }
+    sampleSizes[sampleCount++] = size;
+    length += size;
+  }
+
+  /** Returns the number of samples. */
+  public int sampleCount() {
+    return sampleCount;
+  }
+
+  /** Returns the size of a sample, in bytes. */
+  public int sampleSize(int index) {
+    checkArgument(index < sampleCount);
+    return sampleSizes[index];
+  }
+
+  /** Returns the total size of the samples, in bytes. */
+  public long length() {
+    return length;
+  }
+
+  /**
+   * Transfers all the samples to a channel, without copying them through the Java heap when the
+   * platform supports it, and removes them.
+   *
+   * @param target The channel to transfer the samples to.
+   * @throws IOException If reading the file or writing to the channel failed.
+   */
+  public void transferTo(WritableByteChannel target) throws IOException {
+    long position = 0;
+    while (position < length) {
+      position += file.transferTo(position, length - position, target);
+    }
+    sampleCount = 0;
+    length = 0;
+  }
+
+  /** Closes the file, which removes it. */
+  public void close() throws IOException {
+    file.close();
+  }
+}
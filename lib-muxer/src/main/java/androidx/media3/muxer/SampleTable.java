@@ -0,0 +1,183 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+
+import java.util.Arrays;
+
+/**
+ * A growable table of the samples and chunks written to a track.
+ *
+ * <p>The table is stored column-wise in primitive arrays, so that a long recording costs a few
+ * bytes per sample rather than one {@link BufferInfo} object per sample, and the sample table
+ * boxes can be generated by reading the arrays directly.
+ */
+/* package */ final class SampleTable {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private long[] presentationTimesUs;
+  private long[] decodeTimesUs;
+  private int[] sizes;
+  // The MediaCodec.BUFFER_FLAG_* values all fit in the low byte.
+  private byte[] flags;
+  private int sampleCount;
+
+  private long[] chunkOffsets;
+  private int[] chunkSampleCounts;
+  private int chunkCount;
+
+  /** Creates an empty instance. */
+  public SampleTable() {
+    presentationTimesUs = new long[INITIAL_CAPACITY];
+    decodeTimesUs = new long[INITIAL_CAPACITY];
+    sizes = new int[INITIAL_CAPACITY];
+    flags = new byte[INITIAL_CAPACITY];
+    chunkOffsets = new long[INITIAL_CAPACITY];
+    chunkSampleCounts = new int[INITIAL_CAPACITY];
+  }
+
+  /** Appends a sample described by the given {@link BufferInfo}. */
+  public void addSample(BufferInfo bufferInfo) {
+    addSample(bufferInfo.presentationTimeUs, bufferInfo.size, bufferInfo.flags);
+  }
+
+  /**
+   * Appends a sample that is decoded at its presentation timestamp.
+   *
+   * @param presentationTimeUs The presentation timestamp, in microseconds.
+   * @param size The size of the sample, in bytes.
+   * @param flags The {@code MediaCodec.BUFFER_FLAG_*} flags of the sample. Only the low byte is
+   *     kept.
+   */
+  public void addSample(long presentationTimeUs, int size, int flags) {
+    addSample(presentationTimeUs, /* decodeTimeUs= */ presentationTimeUs, size, flags);
+  }
+
+  /**
+   * Appends a sample.
+   *
+   * @param presentationTimeUs The presentation timestamp, in microseconds.
+   * @param decodeTimeUs The decode timestamp, in microseconds.
+   * @param size The size of the sample, in bytes.
+   * @param flags The {@code MediaCodec.BUFFER_FLAG_*} flags of the sample. Only the low byte is
+   *     kept.
+   */
+  public void addSample(long presentationTimeUs, long decodeTimeUs, int size, int flags) {
+    if (sampleCount == sizes.length) {
+      int newCapacity = sampleCount * 2;
+      presentationTimesUs = Arrays.copyOf(presentationTimesUs, newCapacity);
+      decodeTimesUs = Arrays.copyOf(decodeTimesUs, newCapacity);
+      sizes = Arrays.copyOf(sizes, newCapacity);
+      this.flags = Arrays.copyOf(this.flags, newCapacity);
+    }
+    presentationTimesUs[sampleCount] = presentationTimeUs;
+    decodeTimesUs[sampleCount] = decodeTimeUs;
+    sizes[sampleCount] = size;
+    this.flags[sampleCount] = (byte) flags;
+    sampleCount++;
+  }
+
+  /**
+   * Appends a chunk.
+   *
+   * @param offset The offset of the chunk from the start of the file, in bytes.
+   * @param sampleCount The number of samples in the chunk.
+   */
+  public void addChunk(long offset, int sampleCount) {
+    if (chunkCount == chunkOffsets.length) {
+      int newCapacity = chunkCount * 2;
+      chunkOffsets = Arrays.copyOf(chunkOffsets, newCapacity);
+      chunkSampleCounts = Arrays.copyOf(chunkSampleCounts, newCapacity);
+    }
+    chunkOffsets[chunkCount] = offset;
+    chunkSampleCounts[chunkCount] = sampleCount;
+    chunkCount++;
+  }
+
+  /** Removes all the samples and chunks, keeping the allocated capacity. */
+  public void clear() {
+    sampleCount = 0;
+    chunkCount = 0;
+  }
+
+  /** Returns the number of samples. */
+  public int sampleCount() {
+    return sampleCount;
+  }
+
+  /** Returns whether there are no samples. */
+  public boolean isEmpty() {
+    return sampleCount == 0;
+  }
+
+  /** Returns the presentation timestamp of the sample at {@code index}, in microseconds. */
+  public long presentationTimeUs(int index) {
+    return presentationTimesUs[index];
+  }
+
+  /** Returns the decode timestamp of the sample at {@code index}, in microseconds. */
+  public long decodeTimeUs(int index) {
+    return decodeTimesUs[index];
+  }
+
+  /** Returns the size of the sample at {@code index}, in bytes. */
+  public int size(int index) {
+    return sizes[index];
+  }
+
+  /** Returns the {@code MediaCodec.BUFFER_FLAG_*} flags of the sample at {@code index}. */
+  public int flags(int index) {
+    return flags[index] & 0xFF;
+  }
+
+  /** Returns whether the sample at {@code index} is a sync sample. */
+  public boolean isKeyFrame(int index) {
+    return (flags[index] & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+  }
+
+  /** Returns the number of chunks. */
+  public int chunkCount() {
+    return chunkCount;
+  }
+
+  /** Returns the offset of the chunk at {@code index}, in bytes. */
+  public long chunkOffset(int index) {
+    return chunkOffsets[index];
+  }
+
+  /** Returns the number of samples in the chunk at {@code index}. */
+  public int chunkSampleCount(int index) {
+    return chunkSampleCounts[index];
+  }
+
+  /**
+   * Returns the backing array of sample sizes. Only the first {@link #sampleCount()} entries are
+   * valid.
+   */
+  public int[] sizes() {
+    return sizes;
+  }
+
+  /**
+   * Returns the backing array of chunk offsets. Only the first {@link #chunkCount()} entries are
+   * valid.
+   */
+  public long[] chunkOffsets() {
+    return chunkOffsets;
+  }
+}
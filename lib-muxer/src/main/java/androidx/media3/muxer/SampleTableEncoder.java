@@ -0,0 +1,449 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.common.util.Assertions.checkState;
+import static androidx.media3.muxer.Mp4Utils.BYTES_PER_INTEGER;
+import static androidx.media3.muxer.Mp4Utils.UNSIGNED_INT_MAX_VALUE;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Incrementally encodes the entries of the stts, ctts, stsz, stsc, stss and chunk offset boxes of a
+ * track as its samples and chunks are written.
+ *
+ * <p>Generating the boxes only costs copying the already encoded entries, instead of walking every
+ * written sample again. The only entries that can not be encoded up front are the durations of the
+ * first and the last sample: the first depends on the minimum presentation timestamp across all
+ * tracks and the last on the {@link Mp4Muxer.LastFrameDurationBehavior}, so both are added when a
+ * stts box is generated.
+ */
+/* package */ final class SampleTableEncoder {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final int timescale;
+
+  private int sampleCount;
+  private long firstDecodeTimeUs;
+  private long secondDecodeTimeUs;
+  private long lastDecodeTimeUs;
+
+  // The stts entries for all the samples except the first and the last, as (sample_count,
+  // sample_delta) pairs.
+  private ByteBuffer durationEntries;
+  private int durationEntryCount;
+  private long innerDurationsVu;
+
+  // The ctts entries for all the samples, as (sample_count, sample_offset) pairs.
+  private ByteBuffer compositionOffsetEntries;
+  private int compositionOffsetEntryCount;
+  private boolean hasCompositionOffsets;
+  private boolean hasNegativeCompositionOffsets;
+
+  private ByteBuffer sizeEntries;
+  private ByteBuffer syncSampleEntries;
+  private ByteBuffer chunkEntries;
+  private ByteBuffer chunkOffsetEntries;
+  private int syncSampleCount;
+  private int chunkCount;
+
+  /**
+   * Creates an instance.
+   *
+   * @param timescale The timescale of the track, in units per second.
+   */
+  public SampleTableEncoder(int timescale) {
+    this.timescale = timescale;
+    durationEntries = ByteBuffer.allocate(INITIAL_CAPACITY * 2 * BYTES_PER_INTEGER);
+    compositionOffsetEntries = ByteBuffer.allocate(INITIAL_CAPACITY * 2 * BYTES_PER_INTEGER);
+    sizeEntries = ByteBuffer.allocate(INITIAL_CAPACITY * BYTES_PER_INTEGER);
+    syncSampleEntries = ByteBuffer.allocate(INITIAL_CAPACITY * BYTES_PER_INTEGER);
+    chunkEntries = ByteBuffer.allocate(INITIAL_CAPACITY * 3 * BYTES_PER_INTEGER);
+    chunkOffsetEntries = ByteBuffer.allocate(INITIAL_CAPACITY * 2 * BYTES_PER_INTEGER);
+  }
+
+  /** Appends a sample described by the given {@link BufferInfo}. */
+  public void addSample(BufferInfo bufferInfo) {
+    addSample(bufferInfo.presentationTimeUs, bufferInfo.size, bufferInfo.flags);
+  }
+
+  /**
+   * Appends a sample that is decoded at its presentation timestamp.
+   *
+   * @param presentationTimeUs The presentation timestamp, in microseconds.
+   * @param size The size of the sample, in bytes.
+   * @param flags The {@code MediaCodec.BUFFER_FLAG_*} flags of the sample.
+   */
+  public void addSample(long presentationTimeUs, int size, int flags) {
+    addSample(presentationTimeUs, /* decodeTimeUs= */ presentationTimeUs, size, flags);
+  }
+
+  /**
+   * Appends a sample.
+   *
+   * @param presentationTimeUs The presentation timestamp, in microseconds.
+   * @param decodeTimeUs The decode timestamp, in microseconds, which must be greater than that of
+   *     the previous sample.
+   * @param size The size of the sample, in bytes.
+   * @param flags The {@code MediaCodec.BUFFER_FLAG_*} flags of the sample.
+   */
+  public void addSample(long presentationTimeUs, long decodeTimeUs, int size, int flags) {
+    if (sampleCount == 0) {
+      firstDecodeTimeUs = decodeTimeUs;
+    } else if (sampleCount == 1) {
+      secondDecodeTimeUs = decodeTimeUs;
+    } else {
+      // The duration of the previous sample is now known, and it is neither the first nor the
+      // last one.
+      appendInnerDuration(durationVu(lastDecodeTimeUs, decodeTimeUs, timescale));
+    }
+    lastDecodeTimeUs = decodeTimeUs;
+    sampleCount++;
+
+    appendCompositionOffset(durationVu(decodeTimeUs, presentationTimeUs, timescale));
+
+    sizeEntries = ensureCapacity(sizeEntries, BYTES_PER_INTEGER);
+    sizeEntries.putInt(size); // entry_size.
+
+    if ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) > 0) {
+      syncSampleEntries = ensureCapacity(syncSampleEntries, BYTES_PER_INTEGER);
+      syncSampleEntries.putInt(sampleCount); // sample_number.
+      syncSampleCount++;
+    }
+  }
+
+  /**
+   * Appends a chunk.
+   *
+   * @param offset The offset of the chunk from the start of the file, in bytes.
+   * @param sampleCount The number of samples in the chunk.
+   */
+  public void addChunk(long offset, int sampleCount) {
+    chunkCount++;
+
+    // TODO: b/270583563 - Consider optimizing for consecutive chunks having same number of samples.
+    chunkEntries = ensureCapacity(chunkEntries, 3 * BYTES_PER_INTEGER);
+    chunkEntries.putInt(chunkCount); // first_chunk.
+    chunkEntries.putInt(sampleCount); // samples_per_chunk.
+    // sample_description_index; we have only one sample description in each track.
+    chunkEntries.putInt(1);
+
+    chunkOffsetEntries = ensureCapacity(chunkOffsetEntries, 2 * BYTES_PER_INTEGER);
+    chunkOffsetEntries.putLong(offset); // chunk_offset.
+  }
+
+  /**
+   * Adds {@code delta} to the offsets of all the chunks, once their samples are moved in the file.
+   */
+  public void shiftChunkOffsets(long delta) {
+    for (int i = 0; i < chunkCount; i++) {
+      int index = i * 2 * BYTES_PER_INTEGER;
+      chunkOffsetEntries.putLong(index, chunkOffsetEntries.getLong(index) + delta);
+    }
+  }
+
+  /** Returns the number of samples. */
+  public int sampleCount() {
+    return sampleCount;
+  }
+
+  /** Returns whether there are no samples. */
+  public boolean isEmpty() {
+    return sampleCount == 0;
+  }
+
+  /**
+   * Returns the earliest presentation timestamp of the samples, in microseconds, which is also the
+   * decode timestamp of the first sample.
+   */
+  public long firstPresentationTimeUs() {
+    checkState(sampleCount > 0);
+    return firstDecodeTimeUs;
+  }
+
+  /**
+   * Returns the total duration of the track, in timebase units.
+   *
+   * @param firstSamplePresentationTimeUs The presentation timestamp to override the first sample's
+   *     presentation timestamp, in microseconds. See {@link
+   *     Boxes#convertPresentationTimestampsToDurationsVu}.
+   * @param lastDurationBehavior The behaviour for the last sample duration.
+   */
+  public long durationVu(
+      long firstSamplePresentationTimeUs,
+      @Mp4Muxer.LastFrameDurationBehavior int lastDurationBehavior) {
+    if (sampleCount < 2) {
+      return 0L;
+    }
+    return firstDurationVu(firstSamplePresentationTimeUs)
+        + innerDurationsVu
+        + lastDurationVu(lastDurationBehavior);
+  }
+
+  /**
+   * Returns the stts (decoding time to sample) box.
+   *
+   * @param firstSamplePresentationTimeUs The presentation timestamp to override the first sample's
+   *     presentation timestamp, in microseconds. See {@link
+   *     Boxes#convertPresentationTimestampsToDurationsVu}.
+   * @param lastDurationBehavior The behaviour for the last sample duration.
+   */
+  public Box stts(
+      long firstSamplePresentationTimeUs,
+      @Mp4Muxer.LastFrameDurationBehavior int lastDurationBehavior) {
+    // The entries of the inner samples are already encoded and are written as they are, except
+    // that the first and last ones get merged with the entries for the first and the last sample
+    // when the durations match.
+    int firstEntry = 0;
+    int endEntry = durationEntryCount;
+
+    ByteBuffer head = ByteBuffer.allocate(4 * BYTES_PER_INTEGER);
+    head.putInt(0x0); // version and flags.
+    head.putInt(0x0); // entry_count; updated below.
+    int totalEntryCount = 0;
+    if (sampleCount == 1) {
+      // The only sample is also the last one, and is given no duration.
+      head.putInt(1); // sample_count.
+      head.putInt(0); // sample_delta.
+      totalEntryCount++;
+    } else if (sampleCount > 1) {
+      int firstDurationVu = (int) firstDurationVu(firstSamplePresentationTimeUs);
+      int firstSampleCount = 1;
+      if (endEntry > 0 && entryDelta(0) == firstDurationVu) {
+        firstSampleCount += entrySampleCount(0);
+        firstEntry++;
+      }
+      head.putInt(firstSampleCount); // sample_count.
+      head.putInt(firstDurationVu); // sample_delta.
+      totalEntryCount++;
+    }
+
+    ByteBuffer tail = ByteBuffer.allocate(2 * BYTES_PER_INTEGER);
+    if (sampleCount > 1) {
+      int lastDurationVu = (int) lastDurationVu(lastDurationBehavior);
+      if (endEntry > firstEntry && entryDelta(endEntry - 1) == lastDurationVu) {
+        endEntry--;
+        tail.putInt(entrySampleCount(endEntry) + 1); // sample_count.
+        tail.putInt(lastDurationVu); // sample_delta.
+        totalEntryCount++;
+      } else if (endEntry == firstEntry && head.getInt(3 * BYTES_PER_INTEGER) == lastDurationVu) {
+        head.putInt(2 * BYTES_PER_INTEGER, head.getInt(2 * BYTES_PER_INTEGER) + 1);
+      } else {
+        tail.putInt(1); // sample_count.
+        tail.putInt(lastDurationVu); // sample_delta.
+        totalEntryCount++;
+      }
+    }
+    totalEntryCount += endEntry - firstEntry;
+    head.putInt(BYTES_PER_INTEGER, totalEntryCount);
+
+    head.flip();
+    tail.flip();
+    ByteBuffer innerEntries = durationEntries.duplicate();
+    innerEntries.limit(endEntry * 2 * BYTES_PER_INTEGER);
+    innerEntries.position(firstEntry * 2 * BYTES_PER_INTEGER);
+    return Box.leaf("stts", head, innerEntries, tail);
+  }
+
+  /**
+   * Returns the ctts (composition time to sample) box, or an empty box if every sample is presented
+   * at its decode timestamp.
+   *
+   * <p>The box has version 1, with signed offsets, if any sample is presented before its decode
+   * timestamp.
+   */
+  public Box ctts() {
+    if (!hasCompositionOffsets) {
+      return Box.empty();
+    }
+    ByteBuffer head = ByteBuffer.allocate(2 * BYTES_PER_INTEGER);
+
+    head.putInt(hasNegativeCompositionOffsets ? 0x01000000 : 0x0); // version and flags.
+    head.putInt(compositionOffsetEntryCount); // entry_count.
+
+    head.flip();
+    return Box.leaf("ctts", head, entries(compositionOffsetEntries));
+  }
+
+  /** Returns the stsz (sample size) box. */
+  public Box stsz() {
+    ByteBuffer head = ByteBuffer.allocate(3 * BYTES_PER_INTEGER);
+
+    head.putInt(0x0); // version and flags.
+
+    // TODO: b/270583563 - Consider optimizing for identically-sized samples.
+    //  sample_size; specifying the default sample size. Set to zero to indicate that the samples
+    //  have different sizes and they are stored in the sample size table.
+    head.putInt(0);
+
+    head.putInt(sampleCount); // sample_count.
+
+    head.flip();
+    return Box.leaf("stsz", head, entries(sizeEntries));
+  }
+
+  /** Returns the stsc (sample to chunk) box. */
+  public Box stsc() {
+    ByteBuffer head = ByteBuffer.allocate(2 * BYTES_PER_INTEGER);
+
+    head.putInt(0x0); // version and flags.
+    head.putInt(chunkCount); // entry_count.
+
+    head.flip();
+    return Box.leaf("stsc", head, entries(chunkEntries));
+  }
+
+  /** Returns the stco (32-bit chunk offset) box. */
+  public Box stco() {
+    ByteBuffer contents =
+        ByteBuffer.allocate(2 * BYTES_PER_INTEGER + chunkCount * BYTES_PER_INTEGER);
+
+    contents.putInt(0x0); // version and flags
+    contents.putInt(chunkCount); // entry_count; unsigned int(32)
+
+    for (int i = 0; i < chunkCount; i++) {
+      long chunkOffset = chunkOffsetEntries.getLong(i * 2 * BYTES_PER_INTEGER);
+      checkState(chunkOffset <= UNSIGNED_INT_MAX_VALUE, "Only 32-bit offset is allowed");
+      contents.putInt((int) chunkOffset); // chunk_offset; unsigned int(32)
+    }
+
+    contents.flip();
+    return Box.leaf("stco", contents);
+  }
+
+  /** Returns the co64 (64-bit chunk offset) box. */
+  public Box co64() {
+    ByteBuffer head = ByteBuffer.allocate(2 * BYTES_PER_INTEGER);
+
+    head.putInt(0x0); // version and flags
+    head.putInt(chunkCount); // entry_count; unsigned int(32)
+
+    head.flip();
+    // chunk_offset; unsigned int(64)
+    return Box.leaf("co64", head, entries(chunkOffsetEntries));
+  }
+
+  /** Returns the stss (sync sample) box. */
+  public Box stss() {
+    ByteBuffer head = ByteBuffer.allocate(2 * BYTES_PER_INTEGER);
+
+    head.putInt(0x0); // version and flags.
+    head.putInt(syncSampleCount); // entry_count.
+
+    head.flip();
+    return Box.leaf("stss", head, entries(syncSampleEntries));
+  }
+
+  private void appendInnerDuration(int durationVu) {
+    innerDurationsVu += durationVu;
+    // Note that the framework MediaMuxer adjust time deltas within plus-minus 100 us, so that
+    // samples have repeating duration values. It saves few entries in the table.
+    if (durationEntryCount > 0 && entryDelta(durationEntryCount - 1) == durationVu) {
+      int sampleCountIndex = (durationEntryCount - 1) * 2 * BYTES_PER_INTEGER;
+      durationEntries.putInt(sampleCountIndex, durationEntries.getInt(sampleCountIndex) + 1);
+      return;
+    }
+    durationEntries = ensureCapacity(durationEntries, 2 * BYTES_PER_INTEGER);
+    durationEntries.putInt(1); // sample_count.
+    durationEntries.putInt(durationVu); // sample_delta.
+    durationEntryCount++;
+  }
+
+  private void appendCompositionOffset(int offsetVu) {
+    if (offsetVu != 0) {
+      hasCompositionOffsets = true;
+      hasNegativeCompositionOffsets |= offsetVu < 0;
+    }
+    if (compositionOffsetEntryCount > 0
+        && compositionOffsetEntries.getInt(
+                (compositionOffsetEntryCount * 2 - 1) * BYTES_PER_INTEGER)
+            == offsetVu) {
+      int sampleCountIndex = (compositionOffsetEntryCount - 1) * 2 * BYTES_PER_INTEGER;
+      compositionOffsetEntries.putInt(
+          sampleCountIndex, compositionOffsetEntries.getInt(sampleCountIndex) + 1);
+      return;
+    }
+    compositionOffsetEntries = ensureCapacity(compositionOffsetEntries, 2 * BYTES_PER_INTEGER);
+    compositionOffsetEntries.putInt(1); // sample_count.
+    compositionOffsetEntries.putInt(offsetVu); // sample_offset.
+    compositionOffsetEntryCount++;
+  }
+
+  private int entrySampleCount(int entry) {
+    return durationEntries.getInt(entry * 2 * BYTES_PER_INTEGER);
+  }
+
+  private int entryDelta(int entry) {
+    return durationEntries.getInt((entry * 2 + 1) * BYTES_PER_INTEGER);
+  }
+
+  private long firstDurationVu(long firstSamplePresentationTimeUs) {
+    return durationVu(firstSamplePresentationTimeUs, secondDecodeTimeUs, timescale);
+  }
+
+  private long lastDurationVu(@Mp4Muxer.LastFrameDurationBehavior int lastDurationBehavior) {
+    if (sampleCount <= 2) {
+      // Nothing to duplicate if there are 0 or 1 entries.
+      return 0L;
+    }
+
+    switch (lastDurationBehavior) {
+      case Mp4Muxer.LAST_FRAME_DURATION_BEHAVIOR_DUPLICATE_PREV_DURATION:
+        // This is the default MediaMuxer behavior: the last sample duration is a copy of the
+        // previous sample duration.
+        return entryDelta(durationEntryCount - 1);
+      case Mp4Muxer.LAST_FRAME_DURATION_BEHAVIOR_INSERT_SHORT_FRAME:
+        // Keep the last sample duration as short as possible.
+        return 0L;
+      default:
+        throw new IllegalArgumentException(
+            "Unexpected value for the last frame duration behavior " + lastDurationBehavior);
+    }
+  }
+
+  private static int durationVu(long startTimeUs, long endTimeUs, int timescale) {
+    // TODO: b/316158030 - First calculate the duration and then convert us to vu to avoid
+    //  rounding error.
+    long durationVu =
+        Mp4Utils.vuFromUs(endTimeUs, timescale) - Mp4Utils.vuFromUs(startTimeUs, timescale);
+    if (durationVu > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+          String.format(Locale.US, "Timestamp delta %d doesn't fit into an int", durationVu));
+    }
+    return (int) durationVu;
+  }
+
+  /** Returns a view of the entries written to {@code buffer}. */
+  private static ByteBuffer entries(ByteBuffer buffer) {
+    ByteBuffer entries = buffer.duplicate();
+    entries.flip();
+    return entries;
+  }
+
+  private static ByteBuffer ensureCapacity(ByteBuffer buffer, int bytesNeeded) {
+    if (buffer.remaining() >= bytesNeeded) {
+      return buffer;
+    }
+    ByteBuffer newBuffer =
+        ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytesNeeded));
+    buffer.flip();
+    newBuffer.put(buffer);
+    return newBuffer;
+  }
+}
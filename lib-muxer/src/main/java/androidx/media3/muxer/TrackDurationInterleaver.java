@@ -0,0 +1,70 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.common.util.Assertions.checkNotNull;
+
+import android.media.MediaCodec.BufferInfo;
+import androidx.media3.muxer.Mp4Writer.Track;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link SampleInterleaver} that writes the pending samples of each track on its own, once they
+ * span more than a duration.
+ *
+ * <p>The tracks are not ordered by their timestamps, so the chunks of a track can be far from the
+ * chunks of the other tracks that are played at the same time.
+ */
+/* package */ final class TrackDurationInterleaver implements SampleInterleaver {
+  /** The default duration, in microseconds. */
+  public static final long DEFAULT_DURATION_US = 1_000_000L;
+
+  private final long durationUs;
+
+  /**
+   * Creates an instance.
+   *
+   * @param durationUs The duration that the pending samples of a track must exceed before they are
+   *     written, in microseconds.
+   */
+  public TrackDurationInterleaver(long durationUs) {
+    this.durationUs = durationUs;
+  }
+
+  @Override
+  public void interleave(List<Track> tracks, ChunkWriter chunkWriter) throws IOException {
+    for (int i = 0; i < tracks.size(); i++) {
+      Track track = tracks.get(i);
+      if (track.pendingSamplesBufferInfo.size() > 2) {
+        BufferInfo firstSampleInfo = checkNotNull(track.pendingSamplesBufferInfo.peekFirst());
+        BufferInfo lastSampleInfo = checkNotNull(track.pendingSamplesBufferInfo.peekLast());
+
+        if (lastSampleInfo.presentationTimeUs - firstSampleInfo.presentationTimeUs > durationUs) {
+          chunkWriter.writeChunk(track, track.getWritablePendingSampleCount());
+        }
+      }
+    }
+  }
+
+  @Override
+  public void flush(List<Track> tracks, ChunkWriter chunkWriter) throws IOException {
+    for (int i = 0; i < tracks.size(); i++) {
+      Track track = tracks.get(i);
+      chunkWriter.writeChunk(track, track.pendingSamplesBufferInfo.size());
+    }
+  }
+}
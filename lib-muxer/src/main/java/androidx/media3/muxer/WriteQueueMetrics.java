@@ -0,0 +1,91 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import androidx.media3.common.util.UnstableApi;
+
+/**
+ * A snapshot of the state of the write queue of an {@link Mp4Muxer} with {@linkplain
+ * Mp4Muxer.Builder#setWriteQueueCapacityBytes(int) asynchronous writes}.
+ */
+@UnstableApi
+public final class WriteQueueMetrics {
+  /** The maximum number of bytes that can be queued before the caller is blocked. */
+  public final int capacityBytes;
+
+  /** The number of bytes that are queued or being written. */
+  public final long queuedBytes;
+
+  /** The number of writes that are queued or being written. */
+  public final int queuedWriteCount;
+
+  /** The highest number of bytes that has been queued. */
+  public final long maxQueuedBytes;
+
+  /**
+   * The number of times the caller was blocked because the queue was full, which means that the
+   * storage is slower than the encoder.
+   */
+  public final int backpressureCount;
+
+  /** The total time, in microseconds, for which the caller was blocked because the queue was full. */
+  public final long backpressureDurationUs;
+
+  /** The number of writes to the file, each of which can gather several queued writes. */
+  public final int fileWriteCount;
+
+  /** The number of bytes written to the file. */
+  public final long bytesWritten;
+
+  /** The total time, in microseconds, spent writing to the file. */
+  public final long totalWriteLatencyUs;
+
+  /** The longest time, in microseconds, spent in a single write to the file. */
+  public final long maxWriteLatencyUs;
+
+  /* package */ WriteQueueMetrics(
+      int capacityBytes,
+      long queuedBytes,
+      int queuedWriteCount,
+      long maxQueuedBytes,
+      int backpressureCount,
+      long backpressureDurationUs,
+      int fileWriteCount,
+      long bytesWritten,
+      long totalWriteLatencyUs,
+      long maxWriteLatencyUs) {
+    this.capacityBytes = capacityBytes;
+    this.queuedBytes = queuedBytes;
+    this.queuedWriteCount = queuedWriteCount;
+    this.maxQueuedBytes = maxQueuedBytes;
+    this.backpressureCount = backpressureCount;
+    this.backpressureDurationUs = backpressureDurationUs;
+    this.fileWriteCount = fileWriteCount;
+    this.bytesWritten = bytesWritten;
+    this.totalWriteLatencyUs = totalWriteLatencyUs;
+    this.maxWriteLatencyUs = maxWriteLatencyUs;
+  }
+
+  /** Returns whether the queue is full, so that the next write is likely to block the caller. */
+  public boolean isBackpressured() {
+    return queuedBytes >= capacityBytes;
+  }
+
+  /** Returns the average time, in microseconds, spent in a write to the file. */
+  public long getAverageWriteLatencyUs() {
+    return fileWriteCount == 0 ? 0 : totalWriteLatencyUs / fileWriteCount;
+  }
+}
@@ -18,6 +18,7 @@ package androidx.media3.muxer;
 import static androidx.media3.common.util.Util.getBytesFromHexString;
 import static com.google.common.truth.Truth.assertThat;
 
+import androidx.media3.common.C;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import com.google.common.collect.ImmutableList;
 import java.nio.ByteBuffer;
@@ -94,6 +95,77 @@ public class AnnexBUtilsTest {
     assertThat(components.get(1)).isEqualTo(ByteBuffer.wrap(getBytesFromHexString("AB")));
   }
 
+  @Test
+  public void findNalUnits_withCursor_reportsOffsetsAndLengths() {
+    ByteBuffer buf =
+        ByteBuffer.wrap(getBytesFromHexString("00000001ABCDEF00000001DDCC00000001BBAA"));
+    AnnexBUtils.NalUnitCursor cursor = new AnnexBUtils.NalUnitCursor();
+
+    AnnexBUtils.findNalUnits(buf, cursor);
+
+    assertThat(cursor.count()).isEqualTo(3);
+    assertThat(cursor.offset(0)).isEqualTo(4);
+    assertThat(cursor.length(0)).isEqualTo(3);
+    assertThat(cursor.offset(1)).isEqualTo(11);
+    assertThat(cursor.length(1)).isEqualTo(2);
+    assertThat(cursor.offset(2)).isEqualTo(17);
+    assertThat(cursor.length(2)).isEqualTo(2);
+  }
+
+  @Test
+  public void findNalUnits_withReusedCursor_clearsPreviousNalUnits() {
+    AnnexBUtils.NalUnitCursor cursor = new AnnexBUtils.NalUnitCursor();
+    AnnexBUtils.findNalUnits(
+        ByteBuffer.wrap(getBytesFromHexString("00000001ABCDEF00000001DDCC")), cursor);
+
+    AnnexBUtils.findNalUnits(ByteBuffer.wrap(getBytesFromHexString("ABCDEFABC")), cursor);
+
+    assertThat(cursor.count()).isEqualTo(0);
+  }
+
+  @Test
+  public void findStartCode_startCodeAfterLongRunWithoutZeros_found() {
+    // The start code is preceded by more than a word of non-zero bytes, and extra zeros.
+    ByteBuffer buf =
+        ByteBuffer.wrap(getBytesFromHexString("ABCDEFABCDEFABCDEFABCDEFABCDEF0000000001AB"));
+
+    assertThat(AnnexBUtils.findStartCode(buf, /* fromIndex= */ 0)).isEqualTo(16);
+  }
+
+  @Test
+  public void findStartCode_threeByteStartCodeOnly_notFound() {
+    ByteBuffer buf = ByteBuffer.wrap(getBytesFromHexString("ABCDEFABCDEFABCDEF000001AB"));
+
+    assertThat(AnnexBUtils.findStartCode(buf, /* fromIndex= */ 0)).isEqualTo(C.INDEX_UNSET);
+  }
+
+  @Test
+  public void splitNalUnits_mixedStartCodes_trailingZerosExcluded() {
+    ByteBuffer buf =
+        ByteBuffer.wrap(getBytesFromHexString("000001ABCDEF0000000001DDCC00000001BBAA00"));
+    AnnexBUtils.NalUnitCursor cursor = new AnnexBUtils.NalUnitCursor();
+
+    AnnexBUtils.splitNalUnits(buf, cursor);
+
+    assertThat(cursor.count()).isEqualTo(3);
+    assertThat(cursor.offset(0)).isEqualTo(3);
+    assertThat(cursor.length(0)).isEqualTo(3);
+    assertThat(cursor.offset(1)).isEqualTo(11);
+    assertThat(cursor.length(1)).isEqualTo(2);
+    assertThat(cursor.offset(2)).isEqualTo(17);
+    assertThat(cursor.length(2)).isEqualTo(2);
+  }
+
+  @Test
+  public void splitNalUnits_noStartCodeAtStart_returnsNoNalUnits() {
+    ByteBuffer buf = ByteBuffer.wrap(getBytesFromHexString("ABCDEF000001ABCD"));
+    AnnexBUtils.NalUnitCursor cursor = new AnnexBUtils.NalUnitCursor();
+
+    AnnexBUtils.splitNalUnits(buf, cursor);
+
+    assertThat(cursor.count()).isEqualTo(0);
+  }
+
   @Test
   public void stripEmulationPrevention_noEmulationPreventionBytes_copiesInput() {
     ByteBuffer buf = ByteBuffer.wrap(getBytesFromHexString("00000001ABCDEF000000000001AB"));
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import androidx.media3.test.utils.TestUtil;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.collect.Range;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link AsyncFileChannelWriter}. */
+@RunWith(AndroidJUnit4.class)
+public class AsyncFileChannelWriterTest {
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void close_afterWritesAndTruncate_writesBuffersAtTheirPositions() throws IOException {
+    String outputFilePath = temporaryFolder.newFile().getPath();
+    AsyncFileChannelWriter writer =
+        new AsyncFileChannelWriter(
+            new FileOutputStream(outputFilePath).getChannel(), /* capacityBytes= */ 4);
+
+    writer.write(ByteBuffer.wrap(new byte[] {1, 2}), /* position= */ 0);
+    writer.write(ByteBuffer.wrap(new byte[] {3, 4, 5}), /* position= */ 2);
+    writer.write(ByteBuffer.wrap(new byte[] {6, 7, 8}), /* position= */ 5);
+    writer.write(ByteBuffer.wrap(new byte[] {9}), /* position= */ 1);
+    writer.truncate(/* size= */ 7);
+    writer.close();
+
+    assertThat(TestUtil.getByteArrayFromFilePath(outputFilePath))
+        .isEqualTo(new byte[] {1, 9, 3, 4, 5, 6, 7});
+  }
+
+  @Test
+  public void getMetrics_afterClose_hasWrittenAllQueuedBytes() throws IOException {
+    String outputFilePath = temporaryFolder.newFile().getPath();
+    AsyncFileChannelWriter writer =
+        new AsyncFileChannelWriter(
+            new FileOutputStream(outputFilePath).getChannel(), /* capacityBytes= */ 1000);
+
+    for (int i = 0; i < 100; i++) {
+      writer.write(ByteBuffer.allocate(100), /* position= */ i * 100L);
+    }
+    writer.close();
+
+    WriteQueueMetrics metrics = writer.getMetrics();
+    assertThat(metrics.queuedBytes).isEqualTo(0);
+    assertThat(metrics.queuedWriteCount).isEqualTo(0);
+    assertThat(metrics.maxQueuedBytes).isAtMost(1000);
+    assertThat(metrics.bytesWritten).isEqualTo(10_000);
+    // The contiguous writes are gathered, as long as they are queued before the first is written.
+    assertThat(metrics.fileWriteCount).isIn(Range.closed(1, 100));
+    assertThat(metrics.isBackpressured()).isFalse();
+  }
+
+  @Test
+  public void write_afterFailedWrite_throws() throws IOException {
+    FileChannel fileChannel = new FileOutputStream(temporaryFolder.newFile()).getChannel();
+    AsyncFileChannelWriter writer =
+        new AsyncFileChannelWriter(fileChannel, /* capacityBytes= */ 1000);
+    fileChannel.close();
+
+    writer.write(ByteBuffer.allocate(10), /* position= */ 0);
+
+    assertThrows(IOException.class, writer::flush);
+    assertThrows(
+        IOException.class, () -> writer.write(ByteBuffer.allocate(10), /* position= */ 10));
+    assertThrows(IOException.class, writer::close);
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.collect.ImmutableList;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link Box}. */
+@RunWith(AndroidJUnit4.class)
+public class BoxTest {
+  @Test
+  public void toByteBuffer_nestedContainers_matchesWrappedBoxes() {
+    ByteBuffer tkhd = createBox("tkhd", 84);
+    ByteBuffer stsz = createBox("stsz", 400);
+    ByteBuffer stco = createBox("stco", 200);
+
+    Box trak =
+        Box.container(
+            "trak",
+            Box.wrap(tkhd),
+            Box.container("mdia", Box.container("stbl", Box.wrap(stsz), Box.wrap(stco))));
+
+    ByteBuffer expected =
+        BoxUtils.wrapBoxesIntoBox(
+            "trak",
+            ImmutableList.of(
+                tkhd,
+                BoxUtils.wrapIntoBox(
+                    "mdia",
+                    BoxUtils.wrapBoxesIntoBox(
+                        "stbl", ImmutableList.of(stsz.duplicate(), stco.duplicate())))));
+    tkhd.rewind();
+    assertThat(trak.size()).isEqualTo(expected.remaining());
+    assertThat(trak.toByteBuffer()).isEqualTo(expected);
+  }
+
+  @Test
+  public void gather_leafWithSeveralContents_matchesToByteBuffer() {
+    ByteBuffer head = ByteBuffer.wrap(new byte[] {0, 0, 0, 0, 0, 0, 0, 2});
+    ByteBuffer entries = ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    Box box = Box.container("stbl", Box.leaf("stss", head, entries), Box.empty());
+
+    List<ByteBuffer> buffers = new ArrayList<>();
+    box.gather(buffers);
+    ByteBuffer gathered = ByteBuffer.allocate(box.size());
+    for (ByteBuffer buffer : buffers) {
+      gathered.put(buffer);
+    }
+    gathered.flip();
+
+    assertThat(gathered).isEqualTo(box.toByteBuffer());
+    assertThat(box.size()).isEqualTo(8 + 8 + 16);
+  }
+
+  @Test
+  public void sequence_hasNoHeader() {
+    ByteBuffer moov = createBox("moov", 20);
+    ByteBuffer uuid = createBox("uuid", 30);
+
+    Box sequence = Box.sequence(Box.wrap(moov), Box.wrap(uuid));
+
+    assertThat(sequence.toByteBuffer())
+        .isEqualTo(BoxUtils.concatenateBuffers(moov.duplicate(), uuid.duplicate()));
+  }
+
+  private static ByteBuffer createBox(String boxType, int contentSize) {
+    ByteBuffer contents = ByteBuffer.allocate(contentSize);
+    for (int i = 0; i < contentSize; i++) {
+      contents.put((byte) i);
+    }
+    contents.flip();
+    return BoxUtils.wrapIntoBox(boxType, contents);
+  }
+}
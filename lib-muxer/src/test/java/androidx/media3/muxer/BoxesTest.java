@@ -373,161 +373,61 @@ public class BoxesTest {
   @Test
   public void
       convertPresentationTimestampsToDurationsVu_singleSampleAtZeroTimestamp_returnsSampleLengthEqualsZero() {
-    List<MediaCodec.BufferInfo> sampleBufferInfos =
-        createBufferInfoListWithSamplePresentationTimestamps(0L);
+    SampleTable samples = createSampleTableWithSamplePresentationTimestamps(0L);
 
-    List<Long> durationsVu =
+    long[] durationsVu =
         Boxes.convertPresentationTimestampsToDurationsVu(
-            sampleBufferInfos,
+            samples,
             /* firstSamplePresentationTimeUs= */ 0L,
             VU_TIMEBASE,
             LAST_FRAME_DURATION_BEHAVIOR_INSERT_SHORT_FRAME);
 
-    assertThat(durationsVu).containsExactly(0L);
+    assertThat(durationsVu).asList().containsExactly(0L);
   }
 
   @Test
   public void
       convertPresentationTimestampsToDurationsVu_singleSampleAtNonZeroTimestamp_returnsSampleLengthEqualsZero() {
-    List<MediaCodec.BufferInfo> sampleBufferInfos =
-        createBufferInfoListWithSamplePresentationTimestamps(5_000L);
+    SampleTable samples = createSampleTableWithSamplePresentationTimestamps(5_000L);
 
-    List<Long> durationsVu =
+    long[] durationsVu =
         Boxes.convertPresentationTimestampsToDurationsVu(
-            sampleBufferInfos,
+            samples,
             /* firstSamplePresentationTimeUs= */ 0L,
             VU_TIMEBASE,
             LAST_FRAME_DURATION_BEHAVIOR_INSERT_SHORT_FRAME);
 
-    assertThat(durationsVu).containsExactly(0L);
+    assertThat(durationsVu).asList().containsExactly(0L);
   }
 
   @Test
   public void
       convertPresentationTimestampsToDurationsVu_differentSampleDurations_lastFrameDurationShort_returnsLastSampleOfZeroDuration() {
-    List<MediaCodec.BufferInfo> sampleBufferInfos =
-        createBufferInfoListWithSamplePresentationTimestamps(0L, 30_000L, 80_000L);
+    SampleTable samples = createSampleTableWithSamplePresentationTimestamps(0L, 30_000L, 80_000L);
 
-    List<Long> durationsVu =
+    long[] durationsVu =
         Boxes.convertPresentationTimestampsToDurationsVu(
-            sampleBufferInfos,
+            samples,
             /* firstSamplePresentationTimeUs= */ 0L,
             VU_TIMEBASE,
             LAST_FRAME_DURATION_BEHAVIOR_INSERT_SHORT_FRAME);
 
-    assertThat(durationsVu).containsExactly(3_000L, 5_000L, 0L);
+    assertThat(durationsVu).asList().containsExactly(3_000L, 5_000L, 0L);
   }
 
   @Test
   public void
       convertPresentationTimestampsToDurationsVu_differentSampleDurations_lastFrameDurationDuplicate_returnsLastSampleOfDuplicateDuration() {
-    List<MediaCodec.BufferInfo> sampleBufferInfos =
-        createBufferInfoListWithSamplePresentationTimestamps(0L, 30_000L, 80_000L);
+    SampleTable samples = createSampleTableWithSamplePresentationTimestamps(0L, 30_000L, 80_000L);
 
-    List<Long> durationsVu =
+    long[] durationsVu =
         Boxes.convertPresentationTimestampsToDurationsVu(
-            sampleBufferInfos,
+            samples,
             /* firstSamplePresentationTimeUs= */ 0L,
             VU_TIMEBASE,
             LAST_FRAME_DURATION_BEHAVIOR_DUPLICATE_PREV_DURATION);
 
-    assertThat(durationsVu).containsExactly(3_000L, 5_000L, 5_000L);
-  }
-
-  @Test
-  public void createSttsBox_withSingleSampleDuration_matchesExpected() throws IOException {
-    ImmutableList<Long> sampleDurations = ImmutableList.of(500L);
-
-    ByteBuffer sttsBox = Boxes.stts(sampleDurations);
-
-    DumpableMp4Box dumpableBox = new DumpableMp4Box(sttsBox);
-    DumpFileAsserts.assertOutput(
-        context,
-        dumpableBox,
-        MuxerTestUtil.getExpectedDumpFilePath("stts_box_single_sample_duration"));
-  }
-
-  @Test
-  public void createSttsBox_withAllDifferentSampleDurations_matchesExpected() throws IOException {
-    ImmutableList<Long> sampleDurations = ImmutableList.of(1_000L, 2_000L, 3_000L, 5_000L);
-
-    ByteBuffer sttsBox = Boxes.stts(sampleDurations);
-
-    DumpableMp4Box dumpableBox = new DumpableMp4Box(sttsBox);
-    DumpFileAsserts.assertOutput(
-        context,
-        dumpableBox,
-        MuxerTestUtil.getExpectedDumpFilePath("stts_box_all_different_sample_durations"));
-  }
-
-  @Test
-  public void createSttsBox_withFewConsecutiveSameSampleDurations_matchesExpected()
-      throws IOException {
-    ImmutableList<Long> sampleDurations = ImmutableList.of(1_000L, 2_000L, 2_000L, 2_000L);
-
-    ByteBuffer sttsBox = Boxes.stts(sampleDurations);
-
-    DumpableMp4Box dumpableBox = new DumpableMp4Box(sttsBox);
-    DumpFileAsserts.assertOutput(
-        context,
-        dumpableBox,
-        MuxerTestUtil.getExpectedDumpFilePath("stts_box_few_same_sample_durations"));
-  }
-
-  @Test
-  public void createStszBox_matchesExpected() throws IOException {
-    List<MediaCodec.BufferInfo> sampleBufferInfos =
-        createBufferInfoListWithSampleSizes(100, 200, 150, 200);
-
-    ByteBuffer stszBox = Boxes.stsz(sampleBufferInfos);
-
-    DumpableMp4Box dumpableBox = new DumpableMp4Box(stszBox);
-    DumpFileAsserts.assertOutput(
-        context, dumpableBox, MuxerTestUtil.getExpectedDumpFilePath("stsz_box"));
-  }
-
-  @Test
-  public void createStscBox_matchesExpected() throws IOException {
-    ImmutableList<Integer> chunkSampleCounts = ImmutableList.of(100, 500, 200, 100);
-
-    ByteBuffer stscBox = Boxes.stsc(chunkSampleCounts);
-
-    DumpableMp4Box dumpableBox = new DumpableMp4Box(stscBox);
-    DumpFileAsserts.assertOutput(
-        context, dumpableBox, MuxerTestUtil.getExpectedDumpFilePath("stsc_box"));
-  }
-
-  @Test
-  public void createStcoBox_matchesExpected() throws IOException {
-    ImmutableList<Long> chunkOffsets = ImmutableList.of(1_000L, 5_000L, 7_000L, 10_000L);
-
-    ByteBuffer stcoBox = Boxes.stco(chunkOffsets);
-
-    DumpableMp4Box dumpableBox = new DumpableMp4Box(stcoBox);
-    DumpFileAsserts.assertOutput(
-        context, dumpableBox, MuxerTestUtil.getExpectedDumpFilePath("stco_box"));
-  }
-
-  @Test
-  public void createCo64Box_matchesExpected() throws IOException {
-    ImmutableList<Long> chunkOffsets = ImmutableList.of(1_000L, 5_000L, 7_000L, 10_000L);
-
-    ByteBuffer co64Box = Boxes.co64(chunkOffsets);
-
-    DumpableMp4Box dumpableBox = new DumpableMp4Box(co64Box);
-    DumpFileAsserts.assertOutput(
-        context, dumpableBox, MuxerTestUtil.getExpectedDumpFilePath("co64_box"));
-  }
-
-  @Test
-  public void createStssBox_matchesExpected() throws IOException {
-    List<MediaCodec.BufferInfo> sampleBufferInfos = createBufferInfoListWithSomeKeyFrames();
-
-    ByteBuffer stssBox = Boxes.stss(sampleBufferInfos);
-
-    DumpableMp4Box dumpableBox = new DumpableMp4Box(stssBox);
-    DumpFileAsserts.assertOutput(
-        context, dumpableBox, MuxerTestUtil.getExpectedDumpFilePath("stss_box"));
+    assertThat(durationsVu).asList().containsExactly(3_000L, 5_000L, 5_000L);
   }
 
   @Test
@@ -550,7 +450,16 @@ public class BoxesTest {
 
   @Test
   public void createTfhdBox_matchesExpected() throws IOException {
-    ByteBuffer tfhdBox = Boxes.tfhd(/* trackId= */ 1);
+    List<SampleMetadata> samplesMetadata = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      samplesMetadata.add(
+          new SampleMetadata(
+              /* durationsVu= */ 2_000L,
+              /* size= */ 5_000 + i,
+              /* flags= */ MediaCodec.BUFFER_FLAG_KEY_FRAME));
+    }
+
+    ByteBuffer tfhdBox = Boxes.tfhd(/* trackId= */ 1, samplesMetadata);
 
     DumpableMp4Box dumpableBox = new DumpableMp4Box(tfhdBox);
     DumpFileAsserts.assertOutput(
@@ -569,7 +478,11 @@ public class BoxesTest {
               /* flags= */ i == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0));
     }
 
-    ByteBuffer trunBox = Boxes.trun(samplesMetadata, /* dataOffset= */ 1_000);
+    ByteBuffer trunBox =
+        Boxes.trun(
+            samplesMetadata,
+            /* dataOffset= */ 1_000,
+            Boxes.getDefaultSampleFlags(FAKE_VIDEO_FORMAT));
 
     DumpableMp4Box dumpableBox = new DumpableMp4Box(trunBox);
     DumpFileAsserts.assertOutput(
@@ -577,47 +490,83 @@ public class BoxesTest {
   }
 
   @Test
-  public void createTrexBox_matchesExpected() throws IOException {
-    ByteBuffer trexBox = Boxes.trex(/* trackId= */ 2);
+  public void createTrunBox_withVaryingSamples_matchesExpected() throws IOException {
+    int sampleCount = 5;
+    List<SampleMetadata> samplesMetadata = new ArrayList<>(sampleCount);
+    for (int i = 0; i < sampleCount; i++) {
+      samplesMetadata.add(
+          new SampleMetadata(
+              /* durationsVu= */ 2_000L + i,
+              /* size= */ 5_000 + i,
+              /* flags= */ i % 2 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0));
+    }
 
-    DumpableMp4Box dumpableBox = new DumpableMp4Box(trexBox);
+    ByteBuffer trunBox =
+        Boxes.trun(
+            samplesMetadata,
+            /* dataOffset= */ 1_000,
+            Boxes.getDefaultSampleFlags(FAKE_VIDEO_FORMAT));
+
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(trunBox);
     DumpFileAsserts.assertOutput(
-        context, dumpableBox, MuxerTestUtil.getExpectedDumpFilePath("trex_box"));
+        context,
+        dumpableBox,
+        MuxerTestUtil.getExpectedDumpFilePath("trun_box_varying_samples"));
   }
 
-  private static List<MediaCodec.BufferInfo> createBufferInfoListWithSamplePresentationTimestamps(
-      long... timestampsUs) {
-    List<MediaCodec.BufferInfo> bufferInfoList = new ArrayList<>();
-    for (long timestampUs : timestampsUs) {
-      MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-      bufferInfo.presentationTimeUs = timestampUs;
-      bufferInfoList.add(bufferInfo);
+  @Test
+  public void createTrunBox_withCompositionTimeOffsets_matchesExpected() throws IOException {
+    // An I-frame, a P-frame and two B-frames, in decode order.
+    int[] compositionTimeOffsetsVu = {0, 6_000, -3_000, -3_000};
+    List<SampleMetadata> samplesMetadata = new ArrayList<>(compositionTimeOffsetsVu.length);
+    for (int i = 0; i < compositionTimeOffsetsVu.length; i++) {
+      samplesMetadata.add(
+          new SampleMetadata(
+              /* durationsVu= */ 3_000L,
+              /* size= */ 5_000 + i,
+              /* flags= */ i == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0,
+              compositionTimeOffsetsVu[i]));
     }
 
-    return bufferInfoList;
+    ByteBuffer trunBox =
+        Boxes.trun(
+            samplesMetadata,
+            /* dataOffset= */ 1_000,
+            Boxes.getDefaultSampleFlags(FAKE_VIDEO_FORMAT));
+
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(trunBox);
+    DumpFileAsserts.assertOutput(
+        context,
+        dumpableBox,
+        MuxerTestUtil.getExpectedDumpFilePath("trun_box_composition_time_offsets"));
   }
 
-  private static List<MediaCodec.BufferInfo> createBufferInfoListWithSampleSizes(int... sizes) {
-    List<MediaCodec.BufferInfo> bufferInfoList = new ArrayList<>();
-    for (int size : sizes) {
-      MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-      bufferInfo.size = size;
-      bufferInfoList.add(bufferInfo);
-    }
+  @Test
+  public void createTfdtBox_matchesExpected() throws IOException {
+    ByteBuffer tfdtBox = Boxes.tfdt(/* baseMediaDecodeTimeVu= */ 5_000_000_000L);
 
-    return bufferInfoList;
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(tfdtBox);
+    DumpFileAsserts.assertOutput(
+        context, dumpableBox, MuxerTestUtil.getExpectedDumpFilePath("tfdt_box"));
   }
 
-  private static List<MediaCodec.BufferInfo> createBufferInfoListWithSomeKeyFrames() {
-    List<MediaCodec.BufferInfo> bufferInfoList = new ArrayList<>();
-    for (int i = 0; i < 30; i++) {
-      MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-      if (i % 5 == 0) { // Make every 5th frame as key frame.
-        bufferInfo.flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
-      }
-      bufferInfoList.add(bufferInfo);
+  @Test
+  public void createTrexBox_matchesExpected() throws IOException {
+    ByteBuffer trexBox =
+        Boxes.trex(/* trackId= */ 2, Boxes.getDefaultSampleFlags(FAKE_AUDIO_FORMAT));
+
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(trexBox);
+    DumpFileAsserts.assertOutput(
+        context, dumpableBox, MuxerTestUtil.getExpectedDumpFilePath("trex_box"));
+  }
+
+  private static SampleTable createSampleTableWithSamplePresentationTimestamps(
+      long... timestampsUs) {
+    SampleTable samples = new SampleTable();
+    for (long timestampUs : timestampsUs) {
+      samples.addSample(timestampUs, /* size= */ 0, /* flags= */ 0);
     }
 
-    return bufferInfoList;
+    return samples;
   }
 }
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.muxer.MuxerTestUtil.FAKE_VIDEO_FORMAT;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.util.Pair;
+import androidx.media3.common.util.Util;
+import androidx.media3.muxer.Mp4Muxer.TrackToken;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.primitives.Bytes;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link FragmentedMp4Writer}. */
+@RunWith(AndroidJUnit4.class)
+public class FragmentedMp4WriterTest {
+  private static final long FRAME_DURATION_US = 33_333;
+  private static final int FRAMES_PER_GOP = 15;
+  private static final int SEGMENT_DURATION_US = 400_000;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void writeSampleData_notChunked_writesOneFragmentPerGroupOfPictures() throws IOException {
+    RecordingChannel channel = new RecordingChannel();
+
+    writeTwoGroupsOfPictures(
+        new Mp4Muxer.Builder(channel).setFragmentDurationUs(SEGMENT_DURATION_US).build());
+
+    List<Boolean> fragmentsStartingWithSyncSample = channel.getFragmentsStartingWithSyncSample();
+    assertThat(fragmentsStartingWithSyncSample).containsExactly(true, true).inOrder();
+  }
+
+  @Test
+  public void writeSampleData_withChunkSampleCount_onlyFirstChunkOfSegmentStartsWithSyncSample()
+      throws IOException {
+    RecordingChannel channel = new RecordingChannel();
+
+    writeTwoGroupsOfPictures(
+        new Mp4Muxer.Builder(channel)
+            .setFragmentDurationUs(SEGMENT_DURATION_US)
+            .setChunkSampleCount(5)
+            .build());
+
+    List<Boolean> fragmentsStartingWithSyncSample = channel.getFragmentsStartingWithSyncSample();
+    assertThat(fragmentsStartingWithSyncSample)
+        .containsExactly(true, false, false, true, false, false)
+        .inOrder();
+  }
+
+  @Test
+  public void writeSampleData_withChunksNotDividingGroupOfPictures_startsSegmentOnSyncSample()
+      throws IOException {
+    RecordingChannel channel = new RecordingChannel();
+
+    writeTwoGroupsOfPictures(
+        new Mp4Muxer.Builder(channel)
+            .setFragmentDurationUs(SEGMENT_DURATION_US)
+            .setChunkSampleCount(4)
+            .build());
+
+    // The segment duration is measured from the first sync sample, not from the first sample of
+    // the last chunk, so the second group of pictures still starts a segment after a short chunk.
+    List<Boolean> fragmentsStartingWithSyncSample = channel.getFragmentsStartingWithSyncSample();
+    assertThat(fragmentsStartingWithSyncSample)
+        .containsExactly(true, false, false, false, true, false, false, false)
+        .inOrder();
+  }
+
+  @Test
+  public void writeSampleData_withChunkDuration_writesChunksOfThatDuration() throws IOException {
+    RecordingChannel channel = new RecordingChannel();
+
+    writeTwoGroupsOfPictures(
+        new Mp4Muxer.Builder(channel)
+            .setFragmentDurationUs(SEGMENT_DURATION_US)
+            .setChunkDurationUs(3 * FRAME_DURATION_US)
+            .build());
+
+    List<Boolean> fragmentsStartingWithSyncSample = channel.getFragmentsStartingWithSyncSample();
+    assertThat(fragmentsStartingWithSyncSample)
+        .containsExactly(true, false, false, false, false, true, false, false, false, false)
+        .inOrder();
+  }
+
+  @Test
+  public void writeSampleData_withChunks_baseMediaDecodeTimeIsThatOfFirstSample()
+      throws IOException {
+    RecordingChannel channel = new RecordingChannel();
+
+    writeTwoGroupsOfPictures(
+        new Mp4Muxer.Builder(channel)
+            .setFragmentDurationUs(SEGMENT_DURATION_US)
+            .setChunkSampleCount(10)
+            .build());
+
+    // The fragments start with samples 0, 10, 15 and 25, in the 90 kHz video timescale.
+    assertThat(channel.getBaseMediaDecodeTimes())
+        .containsExactly(0L, 29_999L, 44_999L, 74_999L)
+        .inOrder();
+  }
+
+  @Test
+  public void writeSampleData_withBFramesAndChunks_cutsChunksBeforeReferenceFrames()
+      throws IOException {
+    RecordingChannel channel = new RecordingChannel();
+    Mp4Muxer mp4Muxer =
+        new Mp4Muxer.Builder(channel)
+            .setFragmentDurationUs(SEGMENT_DURATION_US)
+            .setChunkSampleCount(2)
+            .build();
+    // Each group of pictures is an I-frame followed by P-frames that each precede, in decode
+    // order, the B-frames presented before them.
+    int[] decodeOrder = {0, 3, 1, 2, 6, 4, 5, 9, 7, 8, 12, 10, 11, 14, 13};
+
+    try {
+      TrackToken token = mp4Muxer.addTrack(/* sortKey= */ 0, FAKE_VIDEO_FORMAT);
+      for (int i = 0; i < 2 * FRAMES_PER_GOP; i++) {
+        int frameIndex =
+            (i / FRAMES_PER_GOP) * FRAMES_PER_GOP + decodeOrder[i % FRAMES_PER_GOP];
+        Pair<ByteBuffer, BufferInfo> sampleAndSampleInfo =
+            MuxerTestUtil.getFakeSampleAndSampleInfo(
+                /* presentationTimeUs= */ frameIndex * FRAME_DURATION_US);
+        sampleAndSampleInfo.second.flags =
+            frameIndex % FRAMES_PER_GOP == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        mp4Muxer.writeSampleData(token, sampleAndSampleInfo.first, sampleAndSampleInfo.second);
+      }
+    } finally {
+      mp4Muxer.close();
+    }
+
+    // The chunks can not end between a P-frame and its B-frames, so they hold the frames 0 to 3,
+    // 4 to 6, 7 to 9, 10 to 12 and 13 to 14 of each group of pictures, and start at the decode
+    // time of the first of these frames.
+    assertThat(channel.getBaseMediaDecodeTimes())
+        .containsExactly(
+            0L, 11_999L, 20_999L, 29_999L, 38_999L, 44_999L, 56_999L, 65_999L, 74_999L, 83_999L)
+        .inOrder();
+  }
+
+  @Test
+  public void writeSampleData_withSampleSpillDirectory_writesSameBytesAndRemovesSpillFiles()
+      throws IOException {
+    RecordingChannel channel = new RecordingChannel();
+    RecordingChannel spilledChannel = new RecordingChannel();
+    File spillDirectory = temporaryFolder.newFolder();
+
+    writeTwoGroupsOfPictures(
+        new Mp4Muxer.Builder(channel).setFragmentDurationUs(SEGMENT_DURATION_US).build());
+    writeTwoGroupsOfPictures(
+        new Mp4Muxer.Builder(spilledChannel)
+            .setFragmentDurationUs(SEGMENT_DURATION_US)
+            .setSampleSpillDirectory(spillDirectory)
+            .build());
+
+    assertThat(spilledChannel.getBytes()).isEqualTo(channel.getBytes());
+    assertThat(spillDirectory.list()).isEmpty();
+  }
+
+  private static void writeTwoGroupsOfPictures(Mp4Muxer mp4Muxer) throws IOException {
+    try {
+      TrackToken token = mp4Muxer.addTrack(/* sortKey= */ 0, FAKE_VIDEO_FORMAT);
+      for (int i = 0; i < 2 * FRAMES_PER_GOP; i++) {
+        Pair<ByteBuffer, BufferInfo> sampleAndSampleInfo =
+            MuxerTestUtil.getFakeSampleAndSampleInfo(
+                /* presentationTimeUs= */ i * FRAME_DURATION_US);
+        sampleAndSampleInfo.second.flags =
+            i % FRAMES_PER_GOP == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        mp4Muxer.writeSampleData(token, sampleAndSampleInfo.first, sampleAndSampleInfo.second);
+      }
+    } finally {
+      mp4Muxer.close();
+    }
+  }
+
+  /** A channel that keeps each gathering write, which is either the header or a fragment. */
+  private static final class RecordingChannel implements GatheringByteChannel {
+    private final List<byte[]> writes = new ArrayList<>();
+    private boolean open = true;
+
+    /** Returns whether the first sample of each fragment (moof+mdat) is a sync sample. */
+    public List<Boolean> getFragmentsStartingWithSyncSample() {
+      List<Boolean> result = new ArrayList<>();
+      // The first write is the header (ftyp+moov).
+      for (int i = 1; i < writes.size(); i++) {
+        ByteBuffer fragment = ByteBuffer.wrap(writes.get(i));
+        int trunPosition = Bytes.indexOf(writes.get(i), Util.getUtf8Bytes("trun")) - 4;
+        int trunFlags = fragment.getInt(trunPosition + 8) & 0xFFFFFF;
+        // The first sample flags, or the sample flags, follow the box header, the version and
+        // flags, the sample count and the data offset.
+        int firstSampleFlagsPosition = trunPosition + 8 + 12;
+        if ((trunFlags & 0x000400) != 0) {
+          // Skip the duration and size of the first sample.
+          firstSampleFlagsPosition +=
+              ((trunFlags & 0x000100) != 0 ? 4 : 0) + ((trunFlags & 0x000200) != 0 ? 4 : 0);
+        } else if ((trunFlags & 0x000004) == 0) {
+          // The first sample has the default flags of the video track, for non-sync samples.
+          result.add(false);
+          continue;
+        }
+        int firstSampleFlags = fragment.getInt(firstSampleFlagsPosition);
+        // sample_is_non_sync_sample is bit 16 of the sample flags.
+        result.add((firstSampleFlags & (1 << 16)) == 0);
+      }
+      return result;
+    }
+
+    /** Returns all the bytes written. */
+    public byte[] getBytes() {
+      return Bytes.concat(writes.toArray(new byte[0][]));
+    }
+
+    /** Returns the base media decode time in the tfdt box of each fragment (moof+mdat). */
+    public List<Long> getBaseMediaDecodeTimes() {
+      List<Long> result = new ArrayList<>();
+      for (int i = 1; i < writes.size(); i++) {
+        int tfdtPosition = Bytes.indexOf(writes.get(i), Util.getUtf8Bytes("tfdt")) - 4;
+        // Skip the box header and the version and flags, for a version 1 box.
+        result.add(ByteBuffer.wrap(writes.get(i)).getLong(tfdtPosition + 8 + 4));
+      }
+      return result;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      for (int i = offset; i < offset + length; i++) {
+        while (srcs[i].hasRemaining()) {
+          output.write(srcs[i].get());
+        }
+      }
+      writes.add(output.toByteArray());
+      return output.size();
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      return (int) write(new ByteBuffer[] {src});
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+    }
+  }
+}
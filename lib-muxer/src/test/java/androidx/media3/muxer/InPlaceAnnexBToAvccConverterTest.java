@@ -0,0 +1,96 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.common.util.Util.getBytesFromHexString;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link InPlaceAnnexBToAvccConverter}. */
+@RunWith(AndroidJUnit4.class)
+public final class InPlaceAnnexBToAvccConverterTest {
+  @Test
+  public void process_fourByteStartCodes_replacedWithLengths() {
+    ByteBuffer in = ByteBuffer.wrap(getBytesFromHexString("00000001ABCDEF00000001DDCC"));
+
+    new InPlaceAnnexBToAvccConverter().process(in);
+
+    assertThat(in).isEqualTo(ByteBuffer.wrap(getBytesFromHexString("00000003ABCDEF00000002DDCC")));
+  }
+
+  @Test
+  public void process_threeByteStartCodesWithSpareCapacity_samplesGrow() {
+    ByteBuffer in = ByteBuffer.allocate(16);
+    in.put(getBytesFromHexString("000001ABCDEF000001DDCC")).flip();
+
+    new InPlaceAnnexBToAvccConverter().process(in);
+
+    assertThat(in).isEqualTo(ByteBuffer.wrap(getBytesFromHexString("00000003ABCDEF00000002DDCC")));
+  }
+
+  @Test
+  public void process_zerosBeforeStartCodes_compacted() {
+    ByteBuffer in = ByteBuffer.wrap(getBytesFromHexString("0000000001ABCDEF000000000001DDCC0000"));
+
+    new InPlaceAnnexBToAvccConverter().process(in);
+
+    assertThat(in).isEqualTo(ByteBuffer.wrap(getBytesFromHexString("00000003ABCDEF00000002DDCC")));
+  }
+
+  @Test
+  public void process_threeByteStartCodesWithoutSpareCapacity_throws() {
+    ByteBuffer in = ByteBuffer.wrap(getBytesFromHexString("000001ABCDEF000001DDCC"));
+
+    assertThrows(
+        IllegalArgumentException.class, () -> new InPlaceAnnexBToAvccConverter().process(in));
+  }
+
+  @Test
+  public void getMaxSizeIncrease_threeByteStartCodes_returnsSpareCapacityNeeded() {
+    byte[] sample = getBytesFromHexString("000001ABCDEF000001DDCC");
+    ByteBuffer in = ByteBuffer.allocate(sample.length + 2);
+    in.put(sample).flip();
+
+    int maxSizeIncrease = InPlaceAnnexBToAvccConverter.getMaxSizeIncrease(in);
+    new InPlaceAnnexBToAvccConverter().process(in);
+
+    assertThat(maxSizeIncrease).isEqualTo(2);
+    assertThat(in).isEqualTo(ByteBuffer.wrap(getBytesFromHexString("00000003ABCDEF00000002DDCC")));
+  }
+
+  @Test
+  public void getMaxSizeIncrease_fourByteStartCodesAndPosition_countsPatternsFromPosition() {
+    ByteBuffer in = ByteBuffer.wrap(getBytesFromHexString("000001AB00000001CDEF0000000001DD"));
+    in.position(3);
+
+    assertThat(InPlaceAnnexBToAvccConverter.getMaxSizeIncrease(in)).isEqualTo(2);
+    assertThat(in.position()).isEqualTo(3);
+  }
+
+  @Test
+  public void process_noNalUnit_outputSameAsInput() {
+    ByteBuffer in = ByteBuffer.wrap(getBytesFromHexString("ABCDEF000001ABCD"));
+
+    new InPlaceAnnexBToAvccConverter().process(in);
+
+    assertThat(in).isEqualTo(ByteBuffer.wrap(getBytesFromHexString("ABCDEF000001ABCD")));
+  }
+}
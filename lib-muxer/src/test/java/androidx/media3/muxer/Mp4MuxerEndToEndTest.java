@@ -15,22 +15,34 @@
  */
 package androidx.media3.muxer;
 
+import static androidx.media3.common.util.Assertions.checkNotNull;
+import static androidx.media3.muxer.MuxerTestUtil.FAKE_AUDIO_FORMAT;
 import static androidx.media3.muxer.MuxerTestUtil.FAKE_VIDEO_FORMAT;
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
 import static org.junit.Assert.assertThrows;
 
 import android.media.MediaCodec.BufferInfo;
 import android.util.Pair;
+import androidx.media3.common.util.Util;
 import androidx.media3.extractor.mp4.Mp4Extractor;
 import androidx.media3.muxer.Mp4Muxer.TrackToken;
 import androidx.media3.test.utils.DumpFileAsserts;
 import androidx.media3.test.utils.FakeExtractorOutput;
+import androidx.media3.test.utils.FakeTrackOutput;
 import androidx.media3.test.utils.TestUtil;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -135,23 +147,351 @@ public class Mp4MuxerEndToEndTest {
   }
 
   @Test
-  public void writeSampleData_withOutOfOrderSampleTimestamps_throws() throws IOException {
+  public void createMp4File_withBFrames_keepsPresentationTimestamps() throws IOException {
     String outputFilePath = temporaryFolder.newFile().getPath();
     Mp4Muxer mp4Muxer = new Mp4Muxer.Builder(new FileOutputStream(outputFilePath)).build();
+    // An I-frame, a P-frame and two B-frames, in decode order.
+    long[] presentationTimesUs = {0L, 3_000L, 1_000L, 2_000L};
+
+    try {
+      TrackToken track1 = mp4Muxer.addTrack(/* sortKey= */ 0, FAKE_VIDEO_FORMAT);
+      for (long presentationTimeUs : presentationTimesUs) {
+        Pair<ByteBuffer, BufferInfo> sample =
+            MuxerTestUtil.getFakeSampleAndSampleInfo(presentationTimeUs);
+        mp4Muxer.writeSampleData(track1, sample.first, sample.second);
+      }
+    } finally {
+      mp4Muxer.close();
+    }
+
+    FakeExtractorOutput fakeExtractorOutput =
+        TestUtil.extractAllSamplesFromFilePath(new Mp4Extractor(), outputFilePath);
+    FakeTrackOutput trackOutput = fakeExtractorOutput.trackOutputs.valueAt(0);
+    assertThat(trackOutput.getSampleCount()).isEqualTo(presentationTimesUs.length);
+    for (int i = 0; i < presentationTimesUs.length; i++) {
+      assertThat(trackOutput.getSampleTimeUs(i)).isEqualTo(presentationTimesUs[i]);
+    }
+  }
+
+  @Test
+  public void writeSampleData_presentedBeforeWrittenSample_throws() throws IOException {
+    String outputFilePath = temporaryFolder.newFile().getPath();
+    Mp4Muxer mp4Muxer = new Mp4Muxer.Builder(new FileOutputStream(outputFilePath)).build();
+    // The first three samples span more than the interleaving duration, so they are written.
     Pair<ByteBuffer, BufferInfo> track1Sample1 =
         MuxerTestUtil.getFakeSampleAndSampleInfo(/* presentationTimeUs= */ 0L);
     Pair<ByteBuffer, BufferInfo> track1Sample2 =
-        MuxerTestUtil.getFakeSampleAndSampleInfo(/* presentationTimeUs= */ 2000L);
+        MuxerTestUtil.getFakeSampleAndSampleInfo(/* presentationTimeUs= */ 600_000L);
     Pair<ByteBuffer, BufferInfo> track1Sample3 =
-        MuxerTestUtil.getFakeSampleAndSampleInfo(/* presentationTimeUs= */ 1000L);
+        MuxerTestUtil.getFakeSampleAndSampleInfo(/* presentationTimeUs= */ 1_200_000L);
+    Pair<ByteBuffer, BufferInfo> track1Sample4 =
+        MuxerTestUtil.getFakeSampleAndSampleInfo(/* presentationTimeUs= */ 1_000_000L);
     try {
       TrackToken track1 = mp4Muxer.addTrack(/* sortKey= */ 0, FAKE_VIDEO_FORMAT);
       mp4Muxer.writeSampleData(track1, track1Sample1.first, track1Sample1.second);
       mp4Muxer.writeSampleData(track1, track1Sample2.first, track1Sample2.second);
+      mp4Muxer.writeSampleData(track1, track1Sample3.first, track1Sample3.second);
 
       assertThrows(
           IllegalArgumentException.class,
-          () -> mp4Muxer.writeSampleData(track1, track1Sample3.first, track1Sample3.second));
+          () -> mp4Muxer.writeSampleData(track1, track1Sample4.first, track1Sample4.second));
+    } finally {
+      mp4Muxer.close();
+    }
+  }
+
+  @Test
+  public void createMp4File_withWriteQueue_matchesSynchronousOutput() throws IOException {
+    String synchronousFilePath = temporaryFolder.newFile().getPath();
+    String asynchronousFilePath = temporaryFolder.newFile().getPath();
+
+    writeSamplesOverSeveralSeconds(
+        new Mp4Muxer.Builder(new FileOutputStream(synchronousFilePath)).build());
+    Mp4Muxer asynchronousMuxer =
+        new Mp4Muxer.Builder(new FileOutputStream(asynchronousFilePath))
+            .setWriteQueueCapacityBytes(100)
+            .build();
+    writeSamplesOverSeveralSeconds(asynchronousMuxer);
+
+    assertThat(TestUtil.getByteArrayFromFilePath(asynchronousFilePath))
+        .isEqualTo(TestUtil.getByteArrayFromFilePath(synchronousFilePath));
+    WriteQueueMetrics metrics = checkNotNull(asynchronousMuxer.getWriteQueueMetrics());
+    assertThat(metrics.queuedBytes).isEqualTo(0);
+    assertThat(metrics.bytesWritten).isGreaterThan(0);
+  }
+
+  @Test
+  public void createMp4File_withMemoryMappedOutput_matchesChannelOutput() throws IOException {
+    String channelFilePath = temporaryFolder.newFile().getPath();
+    String memoryMappedFilePath = temporaryFolder.newFile().getPath();
+
+    writeSamplesOverSeveralSeconds(
+        new Mp4Muxer.Builder(new FileOutputStream(channelFilePath)).build());
+    writeSamplesOverSeveralSeconds(
+        new Mp4Muxer.Builder(new RandomAccessFile(memoryMappedFilePath, "rw").getChannel())
+            .setMemoryMappedOutputEnabled(true)
+            .build());
+
+    assertThat(TestUtil.getByteArrayFromFilePath(memoryMappedFilePath))
+        .isEqualTo(TestUtil.getByteArrayFromFilePath(channelFilePath));
+  }
+
+  @Test
+  public void createMp4File_withPreallocation_matchesOutputWithout() throws IOException {
+    String outputFilePath = temporaryFolder.newFile().getPath();
+    String preallocatedFilePath = temporaryFolder.newFile().getPath();
+
+    writeSamplesOverSeveralSeconds(
+        new Mp4Muxer.Builder(new FileOutputStream(outputFilePath)).build());
+    writeSamplesOverSeveralSeconds(
+        new Mp4Muxer.Builder(new FileOutputStream(preallocatedFilePath))
+            .setWriteQueueCapacityBytes(10_000)
+            .setPreallocationBytes(1_000)
+            .build());
+
+    // The zeros are overwritten by the samples and the moov box, or trimmed.
+    assertThat(TestUtil.getByteArrayFromFilePath(preallocatedFilePath))
+        .isEqualTo(TestUtil.getByteArrayFromFilePath(outputFilePath));
+  }
+
+  @Test
+  public void createMp4File_withPreallocation_reservesZerosUpToFreeBoxBeforeClose()
+      throws Exception {
+    String outputFilePath = temporaryFolder.newFile().getPath();
+    String preallocatedFilePath = temporaryFolder.newFile().getPath();
+    String unclosedFilePath = temporaryFolder.newFile().getPath();
+
+    writeSamplesOverSeveralSeconds(
+        new Mp4Muxer.Builder(new FileOutputStream(outputFilePath)).build());
+    Mp4Muxer preallocatedMuxer =
+        new Mp4Muxer.Builder(new FileOutputStream(preallocatedFilePath))
+            .setWriteQueueCapacityBytes(10_000)
+            .setPreallocationBytes(1_000)
+            .build();
+    preallocatedMuxer.setModificationTime(/* timestampMs= */ 500_000_000L);
+    try {
+      TrackToken track1 = preallocatedMuxer.addTrack(/* sortKey= */ 0, FAKE_VIDEO_FORMAT);
+      for (int i = 0; i < 100; i++) {
+        Pair<ByteBuffer, BufferInfo> sample =
+            MuxerTestUtil.getFakeSampleAndSampleInfo(/* presentationTimeUs= */ i * 100_000L);
+        preallocatedMuxer.writeSampleData(track1, sample.first, sample.second);
+      }
+      waitForQueuedWrites(preallocatedMuxer);
+      Files.copy(new File(preallocatedFilePath), new File(unclosedFilePath));
+    } finally {
+      preallocatedMuxer.close();
+    }
+
+    // The mdat box is extended to reserve space, and ends with the header of the free box that
+    // wraps the moov box, up to the end of the file.
+    byte[] outputFile = TestUtil.getByteArrayFromFilePath(outputFilePath);
+    byte[] unclosedFile = TestUtil.getByteArrayFromFilePath(unclosedFilePath);
+    assertThat(unclosedFile).hasLength(500_712);
+    ByteBuffer unclosed = ByteBuffer.wrap(unclosedFile);
+    int mdatStart = unclosed.getInt(0);
+    int freeStart = (int) (mdatStart + unclosed.getLong(mdatStart + 8) - 8);
+    assertThat(Util.fromUtf8Bytes(unclosedFile, freeStart + 4, 4)).isEqualTo("free");
+    assertThat(unclosed.getInt(freeStart)).isEqualTo(unclosedFile.length - freeStart);
+    // The samples written so far, each ending with a non-zero byte, are followed by zeros up to
+    // the free box header.
+    int mdatDataStart = mdatStart + 16;
+    int mdatDataEnd = freeStart;
+    while (unclosedFile[mdatDataEnd - 1] == 0) {
+      mdatDataEnd--;
+    }
+    int sampleSize = (int) (ByteBuffer.wrap(outputFile).getLong(mdatStart + 8) - 16) / 100;
+    assertThat(mdatDataEnd).isGreaterThan(mdatDataStart);
+    assertThat((mdatDataEnd - mdatDataStart) % sampleSize).isEqualTo(0);
+    assertThat(Arrays.copyOfRange(unclosedFile, mdatDataStart, mdatDataEnd))
+        .isEqualTo(Arrays.copyOfRange(outputFile, mdatDataStart, mdatDataEnd));
+  }
+
+  @Test
+  public void createMp4File_withInterleaveChunkDuration_interleavesTracksByDecodeTime()
+      throws IOException {
+    String outputFilePath = temporaryFolder.newFile().getPath();
+    String interleavedFilePath = temporaryFolder.newFile().getPath();
+    Mp4Muxer muxer = new Mp4Muxer.Builder(new FileOutputStream(outputFilePath)).build();
+    Mp4Muxer interleavedMuxer =
+        new Mp4Muxer.Builder(new FileOutputStream(interleavedFilePath))
+            .setInterleaveChunkDurationUs(200_000)
+            .build();
+
+    writeAudioAndVideoSamplesInBursts(muxer);
+    writeAudioAndVideoSamplesInBursts(interleavedMuxer);
+
+    assertThat(muxer.getMaxChunkSkewUs()).isAtLeast(1_000_000);
+    assertThat(interleavedMuxer.getMaxChunkSkewUs()).isAtMost(200_000);
+    FakeExtractorOutput fakeExtractorOutput =
+        TestUtil.extractAllSamplesFromFilePath(new Mp4Extractor(), interleavedFilePath);
+    assertThat(fakeExtractorOutput.trackOutputs.size()).isEqualTo(2);
+    assertThat(fakeExtractorOutput.trackOutputs.valueAt(0).getSampleCount()).isEqualTo(40);
+    assertThat(fakeExtractorOutput.trackOutputs.valueAt(1).getSampleCount()).isEqualTo(80);
+  }
+
+  @Test
+  public void createMp4File_withFaststartAndEnoughSpace_writesMoovBeforeMdat() throws IOException {
+    String outputFilePath = temporaryFolder.newFile().getPath();
+
+    writeSamplesOverSeveralSeconds(
+        new Mp4Muxer.Builder(new FileOutputStream(outputFilePath))
+            .setFaststartMoovSpaceBytes(10_000)
+            .build());
+
+    assertThat(getTopLevelBoxTypes(outputFilePath))
+        .containsExactly("ftyp", "moov", "free", "mdat")
+        .inOrder();
+    FakeExtractorOutput fakeExtractorOutput =
+        TestUtil.extractAllSamplesFromFilePath(new Mp4Extractor(), outputFilePath);
+    assertThat(fakeExtractorOutput.trackOutputs.valueAt(0).getSampleCount()).isEqualTo(100);
+  }
+
+  @Test
+  public void createMp4File_withFaststartAndNotEnoughSpace_movesMdat() throws IOException {
+    String channelFilePath = temporaryFolder.newFile().getPath();
+    String faststartFilePath = temporaryFolder.newFile().getPath();
+
+    writeSamplesOverSeveralSeconds(
+        new Mp4Muxer.Builder(new FileOutputStream(channelFilePath)).build());
+    writeSamplesOverSeveralSeconds(
+        new Mp4Muxer.Builder(new RandomAccessFile(faststartFilePath, "rw").getChannel())
+            .setFaststartMoovSpaceBytes(8)
+            .build());
+
+    assertThat(getTopLevelBoxTypes(faststartFilePath))
+        .containsExactly("ftyp", "moov", "mdat")
+        .inOrder();
+    FakeTrackOutput expectedTrackOutput =
+        TestUtil.extractAllSamplesFromFilePath(new Mp4Extractor(), channelFilePath)
+            .trackOutputs
+            .valueAt(0);
+    FakeTrackOutput trackOutput =
+        TestUtil.extractAllSamplesFromFilePath(new Mp4Extractor(), faststartFilePath)
+            .trackOutputs
+            .valueAt(0);
+    assertThat(trackOutput.getSampleCount()).isEqualTo(expectedTrackOutput.getSampleCount());
+    for (int i = 0; i < trackOutput.getSampleCount(); i++) {
+      assertThat(trackOutput.getSampleData(i)).isEqualTo(expectedTrackOutput.getSampleData(i));
+      assertThat(trackOutput.getSampleTimeUs(i))
+          .isEqualTo(expectedTrackOutput.getSampleTimeUs(i));
+    }
+  }
+
+  @Test
+  public void createMp4File_withFaststartAndUnreadableOutput_writesMoovAfterMdat()
+      throws IOException {
+    String outputFilePath = temporaryFolder.newFile().getPath();
+
+    writeSamplesOverSeveralSeconds(
+        new Mp4Muxer.Builder(new FileOutputStream(outputFilePath))
+            .setFaststartMoovSpaceBytes(8)
+            .build());
+
+    assertThat(getTopLevelBoxTypes(outputFilePath))
+        .containsExactly("ftyp", "free", "mdat", "moov")
+        .inOrder();
+  }
+
+  @Test
+  public void createMp4File_withMoovCheckpoints_isPlayableBeforeClose() throws IOException {
+    String outputFilePath = temporaryFolder.newFile().getPath();
+    String interruptedFilePath = temporaryFolder.newFile().getPath();
+    Mp4Muxer mp4Muxer =
+        new Mp4Muxer.Builder(new FileOutputStream(outputFilePath))
+            .setMoovCheckpointIntervalUs(1_000_000L)
+            .build();
+
+    try {
+      TrackToken track1 = mp4Muxer.addTrack(/* sortKey= */ 0, FAKE_VIDEO_FORMAT);
+      for (int i = 0; i < 50; i++) {
+        Pair<ByteBuffer, BufferInfo> sample =
+            MuxerTestUtil.getFakeSampleAndSampleInfo(/* presentationTimeUs= */ i * 100_000L);
+        mp4Muxer.writeSampleData(track1, sample.first, sample.second);
+      }
+      // Keep the file as it would be if the process died now.
+      Files.copy(new File(outputFilePath), new File(interruptedFilePath));
+    } finally {
+      mp4Muxer.close();
+    }
+
+    assertThat(getTopLevelBoxTypes(interruptedFilePath))
+        .containsExactly("ftyp", "mdat", "moov", "free")
+        .inOrder();
+    FakeExtractorOutput fakeExtractorOutput =
+        TestUtil.extractAllSamplesFromFilePath(new Mp4Extractor(), interruptedFilePath);
+    // The last samples are still pending in the muxer.
+    assertThat(fakeExtractorOutput.trackOutputs.valueAt(0).getSampleCount()).isEqualTo(48);
+  }
+
+  /** Returns the types of the top-level boxes of an MP4 file, in order. */
+  private static List<String> getTopLevelBoxTypes(String filePath) throws IOException {
+    ByteBuffer file = ByteBuffer.wrap(TestUtil.getByteArrayFromFilePath(filePath));
+    List<String> boxTypes = new ArrayList<>();
+    while (file.hasRemaining()) {
+      int position = file.position();
+      long size = file.getInt() & 0xFFFFFFFFL;
+      byte[] type = new byte[4];
+      file.get(type);
+      if (size == 1) {
+        size = file.getLong();
+      }
+      boxTypes.add(Util.fromUtf8Bytes(type));
+      file.position((int) (position + size));
+    }
+    return boxTypes;
+  }
+
+  /** Writes 4 seconds of video and audio samples, a second of each track at a time. */
+  private static void writeAudioAndVideoSamplesInBursts(Mp4Muxer mp4Muxer) throws IOException {
+    mp4Muxer.setModificationTime(/* timestampMs= */ 500_000_000L);
+    try {
+      TrackToken videoTrack = mp4Muxer.addTrack(/* sortKey= */ 0, FAKE_VIDEO_FORMAT);
+      TrackToken audioTrack =
+          mp4Muxer.addTrack(
+              /* sortKey= */ 1,
+              FAKE_AUDIO_FORMAT
+                  .buildUpon()
+                  .setInitializationData(ImmutableList.of(new byte[] {0x12, 0x10}))
+                  .build());
+      for (int second = 0; second < 4; second++) {
+        for (int i = 0; i < 10; i++) {
+          Pair<ByteBuffer, BufferInfo> sample =
+              MuxerTestUtil.getFakeSampleAndSampleInfo(
+                  /* presentationTimeUs= */ second * 1_000_000L + i * 100_000L);
+          mp4Muxer.writeSampleData(videoTrack, sample.first, sample.second);
+        }
+        for (int i = 0; i < 20; i++) {
+          Pair<ByteBuffer, BufferInfo> sample =
+              MuxerTestUtil.getFakeSampleAndSampleInfo(
+                  /* presentationTimeUs= */ second * 1_000_000L + i * 50_000L);
+          mp4Muxer.writeSampleData(audioTrack, sample.first, sample.second);
+        }
+      }
+    } finally {
+      mp4Muxer.close();
+    }
+  }
+
+  /** Waits for the write queue of the muxer to drain, failing after 10 seconds. */
+  private static void waitForQueuedWrites(Mp4Muxer mp4Muxer) throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + 10_000;
+    while (checkNotNull(mp4Muxer.getWriteQueueMetrics()).queuedWriteCount > 0) {
+      assertWithMessage("Writes still queued after 10 seconds")
+          .that(System.currentTimeMillis())
+          .isLessThan(deadlineMs);
+      Thread.sleep(/* millis= */ 10);
+    }
+  }
+
+  private static void writeSamplesOverSeveralSeconds(Mp4Muxer mp4Muxer) throws IOException {
+    mp4Muxer.setModificationTime(/* timestampMs= */ 500_000_000L);
+    try {
+      TrackToken track1 = mp4Muxer.addTrack(/* sortKey= */ 0, FAKE_VIDEO_FORMAT);
+      for (int i = 0; i < 100; i++) {
+        Pair<ByteBuffer, BufferInfo> sample =
+            MuxerTestUtil.getFakeSampleAndSampleInfo(/* presentationTimeUs= */ i * 100_000L);
+        mp4Muxer.writeSampleData(track1, sample.first, sample.second);
+      }
     } finally {
       mp4Muxer.close();
     }
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.muxer.MuxerTestUtil.FAKE_VIDEO_FORMAT;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import androidx.media3.common.ParserException;
+import androidx.media3.extractor.mp4.Mp4Extractor;
+import androidx.media3.muxer.Mp4Muxer.TrackToken;
+import androidx.media3.test.utils.FakeTrackOutput;
+import androidx.media3.test.utils.TestUtil;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link Mp4Recovery}. */
+@RunWith(AndroidJUnit4.class)
+public class Mp4RecoveryTest {
+  // H.264 access units with a single slice, of an IDR picture and of a non-IDR picture.
+  private static final byte[] IDR_SAMPLE =
+      BaseEncoding.base16().decode("0000000165888400002BFFFEF5DBF32CAE4A43FF");
+  private static final byte[] NON_IDR_SAMPLE =
+      BaseEncoding.base16().decode("00000001419A020C3FEE5D1080");
+  private static final int FRAMES_PER_GOP = 10;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void recover_interruptedRecording_addsSamplesWrittenAfterLastCheckpoint()
+      throws IOException {
+    String outputFilePath = temporaryFolder.newFile().getPath();
+    String interruptedFilePath = temporaryFolder.newFile().getPath();
+    // Only the first checkpoint is written, with the first second of samples.
+    writeSamples(
+        new Mp4Muxer.Builder(new FileOutputStream(outputFilePath))
+            .setMoovCheckpointIntervalUs(10_000_000L)
+            .build(),
+        outputFilePath,
+        interruptedFilePath);
+    FakeTrackOutput interruptedTrackOutput =
+        TestUtil.extractAllSamplesFromFilePath(new Mp4Extractor(), interruptedFilePath)
+            .trackOutputs
+            .valueAt(0);
+
+    int recoveredSampleCount;
+    try (RandomAccessFile file = new RandomAccessFile(interruptedFilePath, "rw")) {
+      recoveredSampleCount = Mp4Recovery.recover(file.getChannel());
+    }
+
+    // The last samples were still pending in the muxer when the file was copied.
+    assertThat(interruptedTrackOutput.getSampleCount()).isEqualTo(12);
+    assertThat(recoveredSampleCount).isEqualTo(36);
+    FakeTrackOutput expectedTrackOutput =
+        TestUtil.extractAllSamplesFromFilePath(new Mp4Extractor(), outputFilePath)
+            .trackOutputs
+            .valueAt(0);
+    FakeTrackOutput trackOutput =
+        TestUtil.extractAllSamplesFromFilePath(new Mp4Extractor(), interruptedFilePath)
+            .trackOutputs
+            .valueAt(0);
+    assertThat(trackOutput.getSampleCount()).isEqualTo(48);
+    for (int i = 0; i < trackOutput.getSampleCount(); i++) {
+      assertThat(trackOutput.getSampleData(i)).isEqualTo(expectedTrackOutput.getSampleData(i));
+      assertThat(trackOutput.getSampleTimeUs(i))
+          .isEqualTo(expectedTrackOutput.getSampleTimeUs(i));
+      assertThat(trackOutput.getSampleFlags(i)).isEqualTo(expectedTrackOutput.getSampleFlags(i));
+    }
+  }
+
+  @Test
+  public void recover_closedFile_leavesFileUnchanged() throws IOException {
+    String outputFilePath = temporaryFolder.newFile().getPath();
+    writeSamples(
+        new Mp4Muxer.Builder(new FileOutputStream(outputFilePath)).build(),
+        outputFilePath,
+        temporaryFolder.newFile().getPath());
+    byte[] outputFileBytes = TestUtil.getByteArrayFromFilePath(outputFilePath);
+
+    int recoveredSampleCount;
+    try (RandomAccessFile file = new RandomAccessFile(outputFilePath, "rw")) {
+      recoveredSampleCount = Mp4Recovery.recover(file.getChannel());
+    }
+
+    assertThat(recoveredSampleCount).isEqualTo(0);
+    assertThat(TestUtil.getByteArrayFromFilePath(outputFilePath)).isEqualTo(outputFileBytes);
+  }
+
+  @Test
+  public void recover_withoutMoov_throws() throws IOException {
+    String outputFilePath = temporaryFolder.newFile().getPath();
+    String interruptedFilePath = temporaryFolder.newFile().getPath();
+    // Without checkpoints, the moov box written when the mdat box is first extended is empty.
+    writeSamples(
+        new Mp4Muxer.Builder(new FileOutputStream(outputFilePath)).build(),
+        outputFilePath,
+        interruptedFilePath);
+
+    try (RandomAccessFile file = new RandomAccessFile(interruptedFilePath, "rw")) {
+      assertThrows(ParserException.class, () -> Mp4Recovery.recover(file.getChannel()));
+    }
+  }
+
+  /**
+   * Writes five seconds of video samples, and copies the output file to {@code
+   * interruptedFilePath} before the muxer is closed, as it would be if the process died.
+   */
+  private static void writeSamples(
+      Mp4Muxer mp4Muxer, String outputFilePath, String interruptedFilePath) throws IOException {
+    try {
+      TrackToken token = mp4Muxer.addTrack(/* sortKey= */ 0, FAKE_VIDEO_FORMAT);
+      for (int i = 0; i < 50; i++) {
+        boolean isKeyFrame = i % FRAMES_PER_GOP == 0;
+        byte[] sample = isKeyFrame ? IDR_SAMPLE : NON_IDR_SAMPLE;
+        ByteBuffer sampleBuffer = ByteBuffer.allocateDirect(sample.length);
+        sampleBuffer.put(sample).rewind();
+        BufferInfo bufferInfo = new BufferInfo();
+        bufferInfo.set(
+            /* newOffset= */ 0,
+            sample.length,
+            /* newTimeUs= */ i * 100_000L,
+            isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        mp4Muxer.writeSampleData(token, sampleBuffer, bufferInfo);
+      }
+      Files.copy(new File(outputFilePath), new File(interruptedFilePath));
+    } finally {
+      mp4Muxer.close();
+    }
+  }
+}
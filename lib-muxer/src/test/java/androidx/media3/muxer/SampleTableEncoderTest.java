@@ -0,0 +1,343 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static androidx.media3.muxer.Mp4Muxer.LAST_FRAME_DURATION_BEHAVIOR_DUPLICATE_PREV_DURATION;
+import static androidx.media3.muxer.Mp4Muxer.LAST_FRAME_DURATION_BEHAVIOR_INSERT_SHORT_FRAME;
+import static androidx.media3.muxer.MuxerTestUtil.getExpectedDumpFilePath;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import androidx.media3.common.util.Util;
+import androidx.media3.test.utils.DumpFileAsserts;
+import androidx.media3.test.utils.DumpableMp4Box;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link SampleTableEncoder}. */
+@RunWith(AndroidJUnit4.class)
+public class SampleTableEncoderTest {
+  private static final int VU_TIMEBASE = 100_000;
+
+  private Context context;
+
+  @Before
+  public void setUp() {
+    context = ApplicationProvider.getApplicationContext();
+  }
+
+  @Test
+  public void referenceStts_withSingleSampleDuration_matchesExpected() throws IOException {
+    ByteBuffer sttsBox = createReferenceSttsBox(new long[] {500L});
+
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(sttsBox);
+    DumpFileAsserts.assertOutput(
+        context, dumpableBox, getExpectedDumpFilePath("stts_box_single_sample_duration"));
+  }
+
+  @Test
+  public void referenceStts_withAllDifferentSampleDurations_matchesExpected() throws IOException {
+    ByteBuffer sttsBox = createReferenceSttsBox(new long[] {1_000L, 2_000L, 3_000L, 5_000L});
+
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(sttsBox);
+    DumpFileAsserts.assertOutput(
+        context, dumpableBox, getExpectedDumpFilePath("stts_box_all_different_sample_durations"));
+  }
+
+  @Test
+  public void referenceStts_withFewConsecutiveSameSampleDurations_matchesExpected()
+      throws IOException {
+    ByteBuffer sttsBox = createReferenceSttsBox(new long[] {1_000L, 2_000L, 2_000L, 2_000L});
+
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(sttsBox);
+    DumpFileAsserts.assertOutput(
+        context, dumpableBox, getExpectedDumpFilePath("stts_box_few_same_sample_durations"));
+  }
+
+  @Test
+  public void stts_withSingleSample_matchesExpected() throws IOException {
+    SampleTableEncoder encoder = new SampleTableEncoder(VU_TIMEBASE);
+    encoder.addSample(/* presentationTimeUs= */ 0L, /* size= */ 0, /* flags= */ 0);
+
+    Box sttsBox =
+        encoder.stts(
+            /* firstSamplePresentationTimeUs= */ 0L,
+            LAST_FRAME_DURATION_BEHAVIOR_INSERT_SHORT_FRAME);
+
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(sttsBox.toByteBuffer());
+    DumpFileAsserts.assertOutput(
+        context, dumpableBox, getExpectedDumpFilePath("stts_box_encoder_single_sample"));
+  }
+
+  @Test
+  public void stts_withAllDifferentSampleDurations_matchesExpected() throws IOException {
+    SampleTableEncoder encoder = new SampleTableEncoder(VU_TIMEBASE);
+    for (long timestampUs : new long[] {0L, 10_000L, 30_000L, 60_000L, 110_000L}) {
+      encoder.addSample(timestampUs, /* size= */ 0, /* flags= */ 0);
+    }
+
+    Box sttsBox =
+        encoder.stts(
+            /* firstSamplePresentationTimeUs= */ 0L,
+            LAST_FRAME_DURATION_BEHAVIOR_INSERT_SHORT_FRAME);
+
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(sttsBox.toByteBuffer());
+    DumpFileAsserts.assertOutput(
+        context,
+        dumpableBox,
+        getExpectedDumpFilePath("stts_box_encoder_all_different_sample_durations"));
+  }
+
+  @Test
+  public void stts_withFewConsecutiveSameSampleDurations_matchesExpected() throws IOException {
+    SampleTableEncoder encoder = new SampleTableEncoder(VU_TIMEBASE);
+    // The durations of the original fixture: 1_000, 2_000, 2_000 and a duplicated 2_000.
+    for (long timestampUs : new long[] {0L, 10_000L, 30_000L, 50_000L}) {
+      encoder.addSample(timestampUs, /* size= */ 0, /* flags= */ 0);
+    }
+
+    Box sttsBox =
+        encoder.stts(
+            /* firstSamplePresentationTimeUs= */ 0L,
+            LAST_FRAME_DURATION_BEHAVIOR_DUPLICATE_PREV_DURATION);
+
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(sttsBox.toByteBuffer());
+    DumpFileAsserts.assertOutput(
+        context, dumpableBox, getExpectedDumpFilePath("stts_box_few_same_sample_durations"));
+  }
+
+  @Test
+  public void stts_matchesReferenceFromSampleTable() {
+    long[][] timestampsUsCases = {
+      {0L},
+      {0L, 10_000L},
+      {0L, 10_000L, 30_000L, 60_000L, 110_000L},
+      {0L, 10_000L, 30_000L, 50_000L},
+      {0L, 30_000L, 60_000L, 90_000L, 130_000L, 170_000L, 200_000L},
+      {0L, 0L, 0L}
+    };
+    for (long[] timestampsUs : timestampsUsCases) {
+      SampleTable samples = new SampleTable();
+      SampleTableEncoder encoder = new SampleTableEncoder(VU_TIMEBASE);
+      for (long timestampUs : timestampsUs) {
+        samples.addSample(timestampUs, /* size= */ 0, /* flags= */ 0);
+        encoder.addSample(timestampUs, /* size= */ 0, /* flags= */ 0);
+      }
+
+      for (int behavior :
+          new int[] {
+            LAST_FRAME_DURATION_BEHAVIOR_INSERT_SHORT_FRAME,
+            LAST_FRAME_DURATION_BEHAVIOR_DUPLICATE_PREV_DURATION
+          }) {
+        long[] durationsVu =
+            Boxes.convertPresentationTimestampsToDurationsVu(
+                samples, /* firstSamplePresentationTimeUs= */ 0L, VU_TIMEBASE, behavior);
+        long totalDurationVu = 0;
+        for (long durationVu : durationsVu) {
+          totalDurationVu += durationVu;
+        }
+
+        assertThat(encoder.stts(/* firstSamplePresentationTimeUs= */ 0L, behavior).toByteBuffer())
+            .isEqualTo(createReferenceSttsBox(durationsVu));
+        assertThat(encoder.durationVu(/* firstSamplePresentationTimeUs= */ 0L, behavior))
+            .isEqualTo(totalDurationVu);
+      }
+    }
+  }
+
+  @Test
+  public void stts_withEarlierFirstSamplePresentationTime_extendsFirstSampleDuration() {
+    SampleTable samples = new SampleTable();
+    SampleTableEncoder encoder = new SampleTableEncoder(VU_TIMEBASE);
+    for (long timestampUs = 10_000L; timestampUs <= 100_000L; timestampUs += 10_000L) {
+      samples.addSample(timestampUs, /* size= */ 0, /* flags= */ 0);
+      encoder.addSample(timestampUs, /* size= */ 0, /* flags= */ 0);
+    }
+
+    long[] durationsVu =
+        Boxes.convertPresentationTimestampsToDurationsVu(
+            samples,
+            /* firstSamplePresentationTimeUs= */ 0L,
+            VU_TIMEBASE,
+            LAST_FRAME_DURATION_BEHAVIOR_DUPLICATE_PREV_DURATION);
+
+    assertThat(
+            encoder
+                .stts(
+                    /* firstSamplePresentationTimeUs= */ 0L,
+                    LAST_FRAME_DURATION_BEHAVIOR_DUPLICATE_PREV_DURATION)
+                .toByteBuffer())
+        .isEqualTo(createReferenceSttsBox(durationsVu));
+  }
+
+  @Test
+  public void ctts_withoutBFrames_isEmpty() {
+    SampleTableEncoder encoder = new SampleTableEncoder(VU_TIMEBASE);
+    for (long timestampUs = 0L; timestampUs <= 100_000L; timestampUs += 10_000L) {
+      encoder.addSample(timestampUs, /* size= */ 0, /* flags= */ 0);
+    }
+
+    assertThat(encoder.ctts().size()).isEqualTo(0);
+  }
+
+  @Test
+  public void stts_withBFrames_usesDecodeTimestamps() {
+    SampleTable samples = new SampleTable();
+    SampleTableEncoder encoder = new SampleTableEncoder(VU_TIMEBASE);
+    // An I-frame, a P-frame and two B-frames, in decode order.
+    long[] presentationTimesUs = {0L, 30_000L, 10_000L, 20_000L};
+    for (int i = 0; i < presentationTimesUs.length; i++) {
+      long decodeTimeUs = i * 10_000L;
+      samples.addSample(decodeTimeUs, /* size= */ 0, /* flags= */ 0);
+      encoder.addSample(presentationTimesUs[i], decodeTimeUs, /* size= */ 0, /* flags= */ 0);
+    }
+
+    long[] durationsVu =
+        Boxes.convertPresentationTimestampsToDurationsVu(
+            samples,
+            /* firstSamplePresentationTimeUs= */ 0L,
+            VU_TIMEBASE,
+            LAST_FRAME_DURATION_BEHAVIOR_DUPLICATE_PREV_DURATION);
+
+    assertThat(
+            encoder
+                .stts(
+                    /* firstSamplePresentationTimeUs= */ 0L,
+                    LAST_FRAME_DURATION_BEHAVIOR_DUPLICATE_PREV_DURATION)
+                .toByteBuffer())
+        .isEqualTo(createReferenceSttsBox(durationsVu));
+  }
+
+  @Test
+  public void ctts_withBFrames_hasSignedCompositionOffsets() {
+    SampleTableEncoder encoder = new SampleTableEncoder(VU_TIMEBASE);
+    // An I-frame, a P-frame and two B-frames, in decode order.
+    long[] presentationTimesUs = {0L, 30_000L, 10_000L, 20_000L};
+    for (int i = 0; i < presentationTimesUs.length; i++) {
+      encoder.addSample(
+          presentationTimesUs[i], /* decodeTimeUs= */ i * 10_000L, /* size= */ 0, /* flags= */ 0);
+    }
+
+    ByteBuffer ctts = encoder.ctts().toByteBuffer();
+
+    ByteBuffer expected = ByteBuffer.allocate(40);
+    expected.putInt(40); // size.
+    expected.put(Util.getUtf8Bytes("ctts"));
+    expected.putInt(0x01000000); // version and flags.
+    expected.putInt(3); // entry_count.
+    expected.putInt(1).putInt(0); // The I-frame, presented at its decode time.
+    expected.putInt(1).putInt(2_000); // The P-frame, presented after the two B-frames.
+    expected.putInt(2).putInt(-1_000); // The B-frames, presented before their decode time.
+    expected.flip();
+    assertThat(ctts).isEqualTo(expected);
+  }
+
+  @Test
+  public void stsz_matchesExpected() throws IOException {
+    SampleTableEncoder encoder = new SampleTableEncoder(VU_TIMEBASE);
+    int[] sizes = {100, 200, 150, 200};
+    for (int size : sizes) {
+      encoder.addSample(/* presentationTimeUs= */ 0L, size, /* flags= */ 0);
+    }
+
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(encoder.stsz().toByteBuffer());
+    DumpFileAsserts.assertOutput(context, dumpableBox, getExpectedDumpFilePath("stsz_box"));
+  }
+
+  @Test
+  public void stsc_matchesExpected() throws IOException {
+    SampleTableEncoder encoder = new SampleTableEncoder(VU_TIMEBASE);
+    for (int chunkSampleCount : new int[] {100, 500, 200, 100}) {
+      encoder.addChunk(/* offset= */ 0L, chunkSampleCount);
+    }
+
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(encoder.stsc().toByteBuffer());
+    DumpFileAsserts.assertOutput(context, dumpableBox, getExpectedDumpFilePath("stsc_box"));
+  }
+
+  @Test
+  public void stco_matchesExpected() throws IOException {
+    SampleTableEncoder encoder = createEncoderWithChunkOffsets(1_000L, 5_000L, 7_000L, 10_000L);
+
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(encoder.stco().toByteBuffer());
+    DumpFileAsserts.assertOutput(context, dumpableBox, getExpectedDumpFilePath("stco_box"));
+  }
+
+  @Test
+  public void co64_matchesExpected() throws IOException {
+    SampleTableEncoder encoder = createEncoderWithChunkOffsets(1_000L, 5_000L, 7_000L, 10_000L);
+
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(encoder.co64().toByteBuffer());
+    DumpFileAsserts.assertOutput(context, dumpableBox, getExpectedDumpFilePath("co64_box"));
+  }
+
+  @Test
+  public void stss_matchesExpected() throws IOException {
+    SampleTableEncoder encoder = new SampleTableEncoder(VU_TIMEBASE);
+    for (int i = 0; i < 30; i++) {
+      // Make every 5th frame as key frame.
+      encoder.addSample(
+          /* presentationTimeUs= */ 0L,
+          /* size= */ 0,
+          /* flags= */ i % 5 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+    }
+
+    DumpableMp4Box dumpableBox = new DumpableMp4Box(encoder.stss().toByteBuffer());
+    DumpFileAsserts.assertOutput(context, dumpableBox, getExpectedDumpFilePath("stss_box"));
+  }
+
+  private static SampleTableEncoder createEncoderWithChunkOffsets(long... chunkOffsets) {
+    SampleTableEncoder encoder = new SampleTableEncoder(VU_TIMEBASE);
+    for (long chunkOffset : chunkOffsets) {
+      encoder.addChunk(chunkOffset, /* sampleCount= */ 1);
+    }
+    return encoder;
+  }
+
+  /**
+   * Returns the stts box that {@link Boxes} wrote from the duration of each sample before {@link
+   * SampleTableEncoder}, run-length encoding equal consecutive durations.
+   */
+  private static ByteBuffer createReferenceSttsBox(long[] durationsVu) {
+    ByteBuffer contents = ByteBuffer.allocate(durationsVu.length * 8 + 8);
+    contents.putInt(0x0); // version and flags.
+    int entryCountIndex = contents.position();
+    contents.putInt(0x0); // entry_count.
+    int entryCount = 0;
+    long lastDurationVu = -1L;
+    int lastSampleCountIndex = -1;
+    for (long durationVu : durationsVu) {
+      if (lastDurationVu != durationVu) {
+        lastDurationVu = durationVu;
+        lastSampleCountIndex = contents.position();
+        contents.putInt(1); // sample_count.
+        contents.putInt((int) durationVu); // sample_delta.
+        entryCount++;
+      } else {
+        contents.putInt(lastSampleCountIndex, contents.getInt(lastSampleCountIndex) + 1);
+      }
+    }
+    contents.putInt(entryCountIndex, entryCount);
+    contents.flip();
+    return BoxUtils.wrapIntoBox("stts", contents);
+  }
+}
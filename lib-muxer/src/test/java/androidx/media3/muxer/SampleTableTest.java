@@ -0,0 +1,70 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.media3.muxer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.media.MediaCodec;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link SampleTable}. */
+@RunWith(AndroidJUnit4.class)
+public class SampleTableTest {
+  @Test
+  public void addSample_beyondInitialCapacity_keepsAllSamples() {
+    SampleTable samples = new SampleTable();
+
+    for (int i = 0; i < 1_000; i++) {
+      samples.addSample(
+          /* presentationTimeUs= */ i * 33_333L,
+          /* size= */ i + 1,
+          /* flags= */ i % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+    }
+
+    assertThat(samples.sampleCount()).isEqualTo(1_000);
+    assertThat(samples.presentationTimeUs(999)).isEqualTo(999 * 33_333L);
+    assertThat(samples.size(999)).isEqualTo(1_000);
+    assertThat(samples.isKeyFrame(990)).isTrue();
+    assertThat(samples.isKeyFrame(991)).isFalse();
+  }
+
+  @Test
+  public void addChunk_beyondInitialCapacity_keepsAllChunks() {
+    SampleTable samples = new SampleTable();
+
+    for (int i = 0; i < 200; i++) {
+      samples.addChunk(/* offset= */ i * 4_096L, /* sampleCount= */ i % 3 + 1);
+    }
+
+    assertThat(samples.chunkCount()).isEqualTo(200);
+    assertThat(samples.chunkOffset(199)).isEqualTo(199 * 4_096L);
+    assertThat(samples.chunkSampleCount(199)).isEqualTo(2);
+  }
+
+  @Test
+  public void clear_removesSamplesAndChunks() {
+    SampleTable samples = new SampleTable();
+    samples.addSample(/* presentationTimeUs= */ 0L, /* size= */ 10, /* flags= */ 0);
+    samples.addChunk(/* offset= */ 0L, /* sampleCount= */ 1);
+
+    samples.clear();
+
+    assertThat(samples.isEmpty()).isTrue();
+    assertThat(samples.chunkCount()).isEqualTo(0);
+  }
+}
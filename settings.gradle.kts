@@ -16,3 +16,4 @@ dependencyResolutionManagement {
 rootProject.name = "Muxer"
 include(":app")
 include(":lib-muxer")
+include(":benchmark")